@@ -324,6 +324,8 @@ public class AllInOneActivity extends AbstractCalendarActivity implements EventH
         // This needs to be created before setContentView
         mController = CalendarController.getInstance(this);
 
+        // Start loading the search index in the background so search is fast
+        EventSearchIndex.getInstance(this);
 
         // Get time from intent or icicle
         long timeMillis = -1;
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar;
+
+import com.android.calendar.AsyncQueryService.Operation;
+import com.android.calendar.AsyncQueryServiceHelper.OperationInfo;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the operations queued by AsyncQueryServiceHelper on a small pool of worker threads.
+ *
+ * Operations on the same target, the uri or for batches the authority and token, run one at a
+ * time in the order of their scheduled time. Operations on different targets run in parallel,
+ * so a slow query doesn't hold up unrelated inserts, updates or deletes. Delayed operations wait
+ * on a scheduler thread until they are due and can be canceled until they start.
+ *
+ * Thread safe.
+ */
+class AsyncQueryExecutor {
+    private static final String TAG = "AsyncQuery";
+
+    private static final int MAX_WORKERS = 3;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private static final int MSG_DUE = 1;
+
+    private static AsyncQueryExecutor sInstance;
+
+    private final Object mLock = new Object();
+    // Operations waiting for their scheduled time. Guarded by mLock.
+    private final ArrayList<OperationInfo> mDelayed = new ArrayList<OperationInfo>();
+    // Due operations per target, in the order they run. A target stays in here while one of its
+    // operations runs, so that the next one waits for it. Guarded by mLock.
+    private final HashMap<String, ArrayDeque<OperationInfo>> mLanes =
+            new HashMap<String, ArrayDeque<OperationInfo>>();
+    private int mRunning;
+    private Runnable mIdleListener;
+
+    // Metrics, guarded by mLock
+    private int mQueueDepth;
+    private int mMaxQueueDepth;
+    private long mCompleted;
+    private long mTotalWaitMillis;
+    private long mMaxWaitMillis;
+
+    private final ThreadPoolExecutor mWorkers;
+    private final Handler mScheduler;
+
+    static synchronized AsyncQueryExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new AsyncQueryExecutor();
+        }
+        return sInstance;
+    }
+
+    private AsyncQueryExecutor() {
+        mWorkers = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int mCount;
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread("AsyncQueryWorker-" + ++mCount) {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        };
+                    }
+                });
+        mWorkers.allowCoreThreadTimeOut(true);
+
+        HandlerThread thread = new HandlerThread("AsyncQueryScheduler",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mScheduler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_DUE) {
+                    onDue((OperationInfo) msg.obj);
+                }
+            }
+        };
+    }
+
+    /**
+     * Queues the operation to run once its scheduled time is reached.
+     */
+    void execute(OperationInfo info) {
+        long delay = info.getScheduledTimeMillis() - SystemClock.elapsedRealtime();
+        synchronized (mLock) {
+            mQueueDepth++;
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueueDepth);
+            if (delay > 0) {
+                mDelayed.add(info);
+                mScheduler.sendMessageDelayed(mScheduler.obtainMessage(MSG_DUE, info), delay);
+            } else {
+                enqueueLocked(info);
+            }
+        }
+    }
+
+    /**
+     * Removes the operations with the given token that haven't started.
+     *
+     * @return the number of operations removed
+     */
+    int cancel(int token) {
+        int canceled = 0;
+        boolean idle;
+        synchronized (mLock) {
+            Iterator<OperationInfo> it = mDelayed.iterator();
+            while (it.hasNext()) {
+                OperationInfo info = it.next();
+                if (info.token == token) {
+                    it.remove();
+                    mScheduler.removeMessages(MSG_DUE, info);
+                    canceled++;
+                }
+            }
+            for (ArrayDeque<OperationInfo> lane : mLanes.values()) {
+                it = lane.iterator();
+                while (it.hasNext()) {
+                    if (it.next().token == token) {
+                        it.remove();
+                        canceled++;
+                    }
+                }
+            }
+            mQueueDepth -= canceled;
+            idle = canceled > 0 && isIdleLocked();
+        }
+        if (idle) {
+            notifyIdle();
+        }
+        return canceled;
+    }
+
+    /**
+     * Returns the delayed operation that hasn't started and is scheduled last, or null.
+     */
+    Operation getLastCancelableOperation() {
+        Operation op = null;
+        synchronized (mLock) {
+            for (OperationInfo info : mDelayed) {
+                op = updateLastCancelable(op, info);
+            }
+            for (ArrayDeque<OperationInfo> lane : mLanes.values()) {
+                for (OperationInfo info : lane) {
+                    op = updateLastCancelable(op, info);
+                }
+            }
+        }
+        return op;
+    }
+
+    private static Operation updateLastCancelable(Operation op, OperationInfo info) {
+        if (info.delayMillis <= 0
+                || (op != null && op.scheduledExecutionTime >= info.getScheduledTimeMillis())) {
+            return op;
+        }
+        if (op == null) {
+            op = new Operation();
+        }
+        op.token = info.token;
+        op.op = info.op;
+        op.scheduledExecutionTime = info.getScheduledTimeMillis();
+        return op;
+    }
+
+    /**
+     * Sets the listener run, on any thread, every time the last queued operation completes or
+     * is canceled.
+     */
+    void setIdleListener(Runnable listener) {
+        synchronized (mLock) {
+            mIdleListener = listener;
+        }
+    }
+
+    boolean isIdle() {
+        synchronized (mLock) {
+            return isIdleLocked();
+        }
+    }
+
+    /**
+     * Returns the number of operations queued or delayed that haven't started.
+     */
+    int getQueueDepth() {
+        synchronized (mLock) {
+            return mQueueDepth;
+        }
+    }
+
+    int getMaxQueueDepth() {
+        synchronized (mLock) {
+            return mMaxQueueDepth;
+        }
+    }
+
+    long getCompletedCount() {
+        synchronized (mLock) {
+            return mCompleted;
+        }
+    }
+
+    /**
+     * Returns the average time operations waited past their scheduled time before starting.
+     */
+    long getAverageWaitMillis() {
+        synchronized (mLock) {
+            return mCompleted == 0 ? 0 : mTotalWaitMillis / mCompleted;
+        }
+    }
+
+    long getMaxWaitMillis() {
+        synchronized (mLock) {
+            return mMaxWaitMillis;
+        }
+    }
+
+    private void onDue(OperationInfo info) {
+        synchronized (mLock) {
+            if (mDelayed.remove(info)) {
+                enqueueLocked(info);
+            }
+        }
+    }
+
+    private void enqueueLocked(OperationInfo info) {
+        String target = getTarget(info);
+        ArrayDeque<OperationInfo> lane = mLanes.get(target);
+        if (lane != null) {
+            // Runs after the ones before it on the same target
+            lane.add(info);
+            return;
+        }
+        lane = new ArrayDeque<OperationInfo>();
+        lane.add(info);
+        mLanes.put(target, lane);
+        mWorkers.execute(new LaneRunner(target, lane));
+    }
+
+    private boolean isIdleLocked() {
+        return mQueueDepth == 0 && mRunning == 0;
+    }
+
+    private void notifyIdle() {
+        Runnable listener;
+        synchronized (mLock) {
+            listener = mIdleListener;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private static String getTarget(OperationInfo info) {
+        if (info.uri != null) {
+            return info.uri.toString();
+        }
+        return info.authority + "#" + info.token;
+    }
+
+    /**
+     * Runs the next operation of a target, then goes back in the pool's queue if the target has
+     * more, so that a busy target doesn't keep the workers from the others.
+     */
+    private class LaneRunner implements Runnable {
+        private final String mTarget;
+        private final ArrayDeque<OperationInfo> mLane;
+
+        LaneRunner(String target, ArrayDeque<OperationInfo> lane) {
+            mTarget = target;
+            mLane = lane;
+        }
+
+        @Override
+        public void run() {
+            OperationInfo info;
+            synchronized (mLock) {
+                info = mLane.poll();
+                if (info != null) {
+                    long wait = SystemClock.elapsedRealtime() - info.getScheduledTimeMillis();
+                    mQueueDepth--;
+                    mRunning++;
+                    mCompleted++;
+                    mTotalWaitMillis += Math.max(wait, 0);
+                    mMaxWaitMillis = Math.max(mMaxWaitMillis, wait);
+                    if (AsyncQueryService.localLOGV) {
+                        Log.d(TAG, "Starting " + Operation.opToChar(info.op) + " token:"
+                                + info.token + " waited:" + wait + " depth:" + mQueueDepth);
+                    }
+                }
+            }
+
+            if (info != null) {
+                try {
+                    AsyncQueryServiceHelper.executeOperation(info);
+                } finally {
+                    synchronized (mLock) {
+                        mRunning--;
+                    }
+                }
+            }
+
+            boolean idle;
+            synchronized (mLock) {
+                if (mLane.isEmpty()) {
+                    mLanes.remove(mTarget);
+                } else {
+                    mWorkers.execute(this);
+                }
+                idle = isIdleLocked();
+            }
+            if (idle) {
+                notifyIdle();
+            }
+        }
+    }
+}
@@ -40,8 +40,9 @@ import java.util.concurrent.atomic.AtomicInteger;
  * which calls the {@link ContentResolver} in a background thread. This supports
  * query/insert/update/delete and also batch mode i.e.
  * {@link ContentProviderOperation}. It also supports delay execution and cancel
- * which allows for time-limited undo. Note that there's one queue per
- * application which serializes all the calls.
+ * which allows for time-limited undo. Note that calls are only serialized per
+ * target, the uri or for batches the authority and token. Calls on different
+ * targets may run in parallel.
  */
 public class AsyncQueryService extends Handler {
     private static final String TAG = "AsyncQuery";
@@ -18,7 +18,7 @@ package com.android.calendar;
 
 import com.android.calendar.AsyncQueryService.Operation;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
@@ -28,6 +28,7 @@ import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteException;
 import android.os.SystemClock;
@@ -35,19 +36,20 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.PriorityQueue;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 
-public class AsyncQueryServiceHelper extends IntentService {
+/**
+ * Keeps the process alive while AsyncQueryExecutor runs the queued operations, and stops once
+ * the executor is idle.
+ */
+public class AsyncQueryServiceHelper extends Service {
     private static final String TAG = "AsyncQuery";
 
-    private static final PriorityQueue<OperationInfo> sWorkQueue =
-        new PriorityQueue<OperationInfo>();
-
     protected Class<AsyncQueryService> mService = AsyncQueryService.class;
 
+    private int mLastStartId;
+
     protected static class OperationInfo implements Delayed{
         public int token; // Used for cancel
         public int op;
@@ -81,6 +83,10 @@ public class AsyncQueryServiceHelper extends IntentService {
             mScheduledTimeMillis = SystemClock.elapsedRealtime() + delayMillis;
         }
 
+        long getScheduledTimeMillis() {
+            return mScheduledTimeMillis;
+        }
+
         // @Override // Uncomment with Java6
         public long getDelay(TimeUnit unit) {
             return unit.convert(mScheduledTimeMillis - SystemClock.elapsedRealtime(),
@@ -160,10 +166,7 @@ public class AsyncQueryServiceHelper extends IntentService {
         // Set the schedule time for execution based on the desired delay.
         args.calculateScheduledTime();
 
-        synchronized (sWorkQueue) {
-            sWorkQueue.add(args);
-            sWorkQueue.notify();
-        }
+        AsyncQueryExecutor.getInstance().execute(args);
 
         context.startService(new Intent(context, AsyncQueryServiceHelper.class));
     }
@@ -174,29 +177,9 @@ public class AsyncQueryServiceHelper extends IntentService {
      * @return Operation object which contains of the last cancelable operation
      */
     static public Operation getLastCancelableOperation() {
-        long lastScheduleTime = Long.MIN_VALUE;
-        Operation op = null;
-
-        synchronized (sWorkQueue) {
-            // Unknown order even for a PriorityQueue
-            Iterator<OperationInfo> it = sWorkQueue.iterator();
-            while (it.hasNext()) {
-                OperationInfo info = it.next();
-                if (info.delayMillis > 0 && lastScheduleTime < info.mScheduledTimeMillis) {
-                    if (op == null) {
-                        op = new Operation();
-                    }
-
-                    op.token = info.token;
-                    op.op = info.op;
-                    op.scheduledExecutionTime = info.mScheduledTimeMillis;
-
-                    lastScheduleTime = info.mScheduledTimeMillis;
-                }
-            }
-        }
+        Operation op = AsyncQueryExecutor.getInstance().getLastCancelableOperation();
 
-        if (AsyncQueryService.localLOGV) {
+        if (AsyncQueryService.localLOGV && op != null) {
             Log.d(TAG, "getLastCancelableOperation -> Operation:" + Operation.opToChar(op.op)
                     + " token:" + op.token);
         }
@@ -214,16 +197,7 @@ public class AsyncQueryServiceHelper extends IntentService {
      *            canceled.
      */
     static public int cancelOperation(int token) {
-        int canceled = 0;
-        synchronized (sWorkQueue) {
-            Iterator<OperationInfo> it = sWorkQueue.iterator();
-            while (it.hasNext()) {
-                if (it.next().token == token) {
-                    it.remove();
-                    ++canceled;
-                }
-            }
-        }
+        int canceled = AsyncQueryExecutor.getInstance().cancel(token);
 
         if (AsyncQueryService.localLOGV) {
             Log.d(TAG, "cancelOperation(" + token + ") -> " + canceled);
@@ -231,50 +205,42 @@ public class AsyncQueryServiceHelper extends IntentService {
         return canceled;
     }
 
-    public AsyncQueryServiceHelper(String name) {
-        super(name);
+    /**
+     * Returns the number of operations queued or delayed that haven't started.
+     */
+    static public int getQueueDepth() {
+        return AsyncQueryExecutor.getInstance().getQueueDepth();
     }
 
-    public AsyncQueryServiceHelper() {
-        super("AsyncQueryServiceHelper");
+    /**
+     * Returns the largest number of operations that were queued at once.
+     */
+    static public int getMaxQueueDepth() {
+        return AsyncQueryExecutor.getInstance().getMaxQueueDepth();
     }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        OperationInfo args;
-
-        if (AsyncQueryService.localLOGV) {
-            Log.d(TAG, "onHandleIntent: queue size=" + sWorkQueue.size());
-        }
-        synchronized (sWorkQueue) {
-            while (true) {
-                /*
-                 * This method can be called with no work because of
-                 * cancellations
-                 */
-                if (sWorkQueue.size() == 0) {
-                    return;
-                } else if (sWorkQueue.size() == 1) {
-                    OperationInfo first = sWorkQueue.peek();
-                    long waitTime = first.mScheduledTimeMillis - SystemClock.elapsedRealtime();
-                    if (waitTime > 0) {
-                        try {
-                            sWorkQueue.wait(waitTime);
-                        } catch (InterruptedException e) {
-                        }
-                    }
-                }
+    /**
+     * Returns the average time operations waited past their scheduled time for a worker or for
+     * the operations before them on the same target.
+     */
+    static public long getAverageWaitMillis() {
+        return AsyncQueryExecutor.getInstance().getAverageWaitMillis();
+    }
 
-                args = sWorkQueue.poll();
-                if (args != null) {
-                    // Got work to do. Break out of waiting loop
-                    break;
-                }
-            }
-        }
+    /**
+     * Returns the longest time an operation waited past its scheduled time.
+     */
+    static public long getMaxWaitMillis() {
+        return AsyncQueryExecutor.getInstance().getMaxWaitMillis();
+    }
 
+    /**
+     * Runs the operation and posts the result to its handler. Called by AsyncQueryExecutor on
+     * a worker thread.
+     */
+    static void executeOperation(OperationInfo args) {
         if (AsyncQueryService.localLOGV) {
-            Log.d(TAG, "onHandleIntent: " + args);
+            Log.d(TAG, "executeOperation: " + args);
         }
 
         ContentResolver resolver = args.resolver;
@@ -344,7 +310,7 @@ public class AsyncQueryServiceHelper extends IntentService {
             reply.arg1 = args.op;
 
             if (AsyncQueryService.localLOGV) {
-                Log.d(TAG, "onHandleIntent: op=" + Operation.opToChar(args.op) + ", token="
+                Log.d(TAG, "executeOperation: op=" + Operation.opToChar(args.op) + ", token="
                         + reply.what);
             }
 
@@ -353,11 +319,18 @@ public class AsyncQueryServiceHelper extends IntentService {
     }
 
     @Override
-    public void onStart(Intent intent, int startId) {
+    public int onStartCommand(Intent intent, int flags, int startId) {
         if (AsyncQueryService.localLOGV) {
-            Log.d(TAG, "onStart startId=" + startId);
+            Log.d(TAG, "onStartCommand startId=" + startId);
+        }
+        synchronized (this) {
+            mLastStartId = startId;
+        }
+        if (AsyncQueryExecutor.getInstance().isIdle()) {
+            // Everything ran or was canceled before the service started
+            stopSelf(startId);
         }
-        super.onStart(intent, startId);
+        return START_NOT_STICKY;
     }
 
     @Override
@@ -366,6 +339,17 @@ public class AsyncQueryServiceHelper extends IntentService {
             Log.d(TAG, "onCreate");
         }
         super.onCreate();
+        AsyncQueryExecutor.getInstance().setIdleListener(new Runnable() {
+            @Override
+            public void run() {
+                int startId;
+                synchronized (AsyncQueryServiceHelper.this) {
+                    startId = mLastStartId;
+                }
+                // Doesn't stop if operations were queued since, they started the service again
+                stopSelf(startId);
+            }
+        });
     }
 
     @Override
@@ -373,6 +357,12 @@ public class AsyncQueryServiceHelper extends IntentService {
         if (AsyncQueryService.localLOGV) {
             Log.d(TAG, "onDestroy");
         }
+        AsyncQueryExecutor.getInstance().setIdleListener(null);
         super.onDestroy();
     }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
 }
@@ -31,7 +31,6 @@ import android.util.Log;
 
 import java.util.Formatter;
 import java.util.HashSet;
-import java.util.Locale;
 
 /**
  * A class containing utility methods related to Calendar apps.
@@ -54,8 +53,6 @@ public class CalendarUtils {
                 CalendarCache.KEY, CalendarCache.VALUE
         };
 
-        private static StringBuilder mSB = new StringBuilder(50);
-        private static Formatter mF = new Formatter(mSB, Locale.getDefault());
         private volatile static boolean mFirstTZRequest = true;
         private volatile static boolean mTZQueryInProgress = false;
 
@@ -169,19 +166,13 @@ public class CalendarUtils {
          */
         public String formatDateRange(Context context, long startMillis,
                 long endMillis, int flags) {
-            String date;
             String tz;
             if ((flags & DateUtils.FORMAT_UTC) != 0) {
                 tz = Time.TIMEZONE_UTC;
             } else {
                 tz = getTimeZone(context, null);
             }
-            synchronized (mSB) {
-                mSB.setLength(0);
-                date = DateUtils.formatDateRange(context, mF, startMillis, endMillis, flags,
-                        tz).toString();
-            }
-            return date;
+            return DateFormatCache.formatDateRange(context, startMillis, endMillis, flags, tz);
         }
 
         /**
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar;
+
+import android.content.Context;
+import android.text.format.DateFormat;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+
+import java.util.Formatter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Keeps the strings formatted by {@link DateUtils#formatDateRange} for the date and time ranges
+ * shown over and over by the widget, the agenda and the day headers, so that scrolling or
+ * rebinding only formats the ranges it hasn't seen.
+ *
+ * Entries are keyed by (start, end, flags, time zone). The output also depends on the locale,
+ * on the current date (the year is left out for ranges in the current year) and, without
+ * FORMAT_12HOUR or FORMAT_24HOUR, on the 24 hour setting, so the cache is emptied whenever any
+ * of them or the device time zone differs from the last lookup.
+ *
+ * Thread safe.
+ */
+public class DateFormatCache {
+    private static final int MAX_ENTRIES = 512;
+
+    private static final Object sLock = new Object();
+    private static final LinkedHashMap<Key, String> sStrings =
+            new LinkedHashMap<Key, String>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    // Guarded by sLock
+    private static final StringBuilder sSB = new StringBuilder(50);
+    private static Formatter sFormatter;
+    private static Locale sLocale;
+    private static String sDeviceTimeZone;
+    private static boolean sIs24Hour;
+    private static int sToday;
+
+    private DateFormatCache() {
+    }
+
+    /**
+     * Same as {@link DateUtils#formatDateRange(Context, Formatter, long, long, int, String)},
+     * returning the cached string if the range was formatted before.
+     */
+    public static String formatDateRange(Context context, long startMillis, long endMillis,
+            int flags, String timeZone) {
+        return formatDateRange(context, startMillis, endMillis, flags, timeZone,
+                System.currentTimeMillis());
+    }
+
+    // VisibleForTesting
+    static String formatDateRange(Context context, long startMillis, long endMillis, int flags,
+            String timeZone, long nowMillis) {
+        Locale locale = Locale.getDefault();
+        TimeZone device = TimeZone.getDefault();
+        String deviceTimeZone = device.getID();
+        int today = Time.getJulianDay(nowMillis, device.getOffset(nowMillis) / 1000);
+        boolean is24Hour = DateFormat.is24HourFormat(context);
+        Key key = new Key(startMillis, endMillis, flags, timeZone);
+        synchronized (sLock) {
+            if (!locale.equals(sLocale) || !deviceTimeZone.equals(sDeviceTimeZone)
+                    || is24Hour != sIs24Hour || today != sToday) {
+                sStrings.clear();
+                sFormatter = new Formatter(sSB, locale);
+                sLocale = locale;
+                sDeviceTimeZone = deviceTimeZone;
+                sIs24Hour = is24Hour;
+                sToday = today;
+            }
+            String string = sStrings.get(key);
+            if (string == null) {
+                sSB.setLength(0);
+                string = DateUtils.formatDateRange(context, sFormatter, startMillis, endMillis,
+                        flags, timeZone).toString();
+                sStrings.put(key, string);
+            }
+            return string;
+        }
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public static void flush() {
+        synchronized (sLock) {
+            sStrings.clear();
+        }
+    }
+
+    // VisibleForTesting
+    static int size() {
+        synchronized (sLock) {
+            return sStrings.size();
+        }
+    }
+
+    private static class Key {
+        final long mStart;
+        final long mEnd;
+        final int mFlags;
+        final String mTimeZone;
+
+        Key(long start, long end, int flags, String timeZone) {
+            mStart = start;
+            mEnd = end;
+            mFlags = flags;
+            mTimeZone = timeZone;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mStart == other.mStart && mEnd == other.mEnd && mFlags == other.mFlags
+                    && (mTimeZone == null ? other.mTimeZone == null
+                            : mTimeZone.equals(other.mTimeZone));
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (int) (mStart ^ (mStart >>> 32));
+            hash = hash * 31 + (int) (mEnd ^ (mEnd >>> 32));
+            hash = hash * 31 + mFlags;
+            return hash * 31 + (mTimeZone == null ? 0 : mTimeZone.hashCode());
+        }
+    }
+}
@@ -36,7 +36,8 @@ import android.widget.ViewSwitcher.ViewFactory;
 /**
  * This is the base class for Day and Week Activities.
  */
-public class DayFragment extends Fragment implements CalendarController.EventHandler, ViewFactory {
+public class DayFragment extends Fragment implements CalendarController.EventHandler, ViewFactory,
+        EventFilter.OnFilterChangedListener {
     /**
      * The view id used for all the views we create. It's OK to have all child
      * views have the same ID. This ID is used to pick which view receives
@@ -126,6 +127,7 @@ public class DayFragment extends Fragment implements CalendarController.EventHan
         super.onResume();
         mEventLoader.startBackgroundThread();
         mTZUpdater.run();
+        EventFilter.getInstance(getActivity()).addListener(this);
         eventsChanged();
         DayView view = (DayView) mViewSwitcher.getCurrentView();
         view.handleOnResume();
@@ -149,6 +151,7 @@ public class DayFragment extends Fragment implements CalendarController.EventHan
     @Override
     public void onPause() {
         super.onPause();
+        EventFilter.getInstance(getActivity()).removeListener(this);
         DayView view = (DayView) mViewSwitcher.getCurrentView();
         view.cleanup();
         view = (DayView) mViewSwitcher.getNextView();
@@ -239,6 +242,19 @@ public class DayFragment extends Fragment implements CalendarController.EventHan
         view.clearCachedEvents();
     }
 
+    @Override
+    public void onEventFilterChanged(boolean requery) {
+        if (mViewSwitcher == null) {
+            return;
+        }
+        if (requery) {
+            eventsChanged();
+            return;
+        }
+        ((DayView) mViewSwitcher.getCurrentView()).applyEventFilter();
+        ((DayView) mViewSwitcher.getNextView()).applyEventFilter();
+    }
+
     Event getSelectedEvent() {
         DayView view = (DayView) mViewSwitcher.getCurrentView();
         return view.getSelectedEvent();
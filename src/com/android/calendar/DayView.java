@@ -308,6 +308,8 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
     private long mLastReloadMillis;
 
     private ArrayList<Event> mEvents = new ArrayList<Event>();
+    // All the events that were loaded, mEvents holds the ones accepted by the EventFilter
+    private ArrayList<Event> mLoadedEvents = new ArrayList<Event>();
     private ArrayList<Event> mAllDayEvents = new ArrayList<Event>();
     private StaticLayout[] mLayouts = null;
     private StaticLayout[] mAllDayLayouts = null;
@@ -2033,53 +2035,67 @@ public class DayView extends View implements View.OnCreateContextMenuListener,
 
             public void run() {
                 boolean fadeinEvents = mFirstJulianDay != mLoadedFirstJulianDay;
-                mEvents = events;
+                mLoadedEvents = events;
                 mLoadedFirstJulianDay = mFirstJulianDay;
-                if (mAllDayEvents == null) {
-                    mAllDayEvents = new ArrayList<Event>();
-                } else {
-                    mAllDayEvents.clear();
-                }
+                showEvents(fadeinEvents);
+            }
+        }, mCancelCallback);
+    }
 
-                // Create a shorter array for all day events
-                for (Event e : events) {
-                    if (e.drawAsAllday()) {
-                        mAllDayEvents.add(e);
-                    }
-                }
+    /**
+     * Re-applies the EventFilter to the loaded events, e.g. after declined events or a
+     * calendar were hidden or shown.
+     */
+    public void applyEventFilter() {
+        showEvents(false);
+    }
 
-                // New events, new layouts
-                if (mLayouts == null || mLayouts.length < events.size()) {
-                    mLayouts = new StaticLayout[events.size()];
-                } else {
-                    Arrays.fill(mLayouts, null);
-                }
+    private void showEvents(boolean fadeinEvents) {
+        final ArrayList<Event> events = EventFilter.getInstance(mContext).filter(mLoadedEvents);
+        mEvents = events;
+        if (mAllDayEvents == null) {
+            mAllDayEvents = new ArrayList<Event>();
+        } else {
+            mAllDayEvents.clear();
+        }
 
-                if (mAllDayLayouts == null || mAllDayLayouts.length < mAllDayEvents.size()) {
-                    mAllDayLayouts = new StaticLayout[events.size()];
-                } else {
-                    Arrays.fill(mAllDayLayouts, null);
-                }
+        // Create a shorter array for all day events
+        for (Event e : events) {
+            if (e.drawAsAllday()) {
+                mAllDayEvents.add(e);
+            }
+        }
 
-                computeEventRelations();
+        // New events, new layouts
+        if (mLayouts == null || mLayouts.length < events.size()) {
+            mLayouts = new StaticLayout[events.size()];
+        } else {
+            Arrays.fill(mLayouts, null);
+        }
 
-                mRemeasure = true;
-                mComputeSelectedEvents = true;
-                recalc();
-
-                // Start animation to cross fade the events
-                if (fadeinEvents) {
-                    if (mEventsCrossFadeAnimation == null) {
-                        mEventsCrossFadeAnimation =
-                                ObjectAnimator.ofInt(DayView.this, "EventsAlpha", 0, 255);
-                        mEventsCrossFadeAnimation.setDuration(EVENTS_CROSS_FADE_DURATION);
-                    }
-                    mEventsCrossFadeAnimation.start();
-                } else{
-                    invalidate();
-                }
+        if (mAllDayLayouts == null || mAllDayLayouts.length < mAllDayEvents.size()) {
+            mAllDayLayouts = new StaticLayout[events.size()];
+        } else {
+            Arrays.fill(mAllDayLayouts, null);
+        }
+
+        computeEventRelations();
+
+        mRemeasure = true;
+        mComputeSelectedEvents = true;
+        recalc();
+
+        // Start animation to cross fade the events
+        if (fadeinEvents) {
+            if (mEventsCrossFadeAnimation == null) {
+                mEventsCrossFadeAnimation =
+                        ObjectAnimator.ofInt(DayView.this, "EventsAlpha", 0, 255);
+                mEventsCrossFadeAnimation.setDuration(EVENTS_CROSS_FADE_DURATION);
             }
-        }, mCancelCallback);
+            mEventsCrossFadeAnimation.start();
+        } else{
+            invalidate();
+        }
     }
 
     public void setEventsAlpha(int alpha) {
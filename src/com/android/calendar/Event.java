@@ -19,13 +19,11 @@ package com.android.calendar;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Debug;
 import android.provider.CalendarContract.Attendees;
-import android.provider.CalendarContract.Calendars;
 import android.provider.CalendarContract.Events;
 import android.provider.CalendarContract.Instances;
 import android.text.TextUtils;
@@ -33,7 +31,6 @@ import android.text.format.DateUtils;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -85,6 +82,7 @@ public class Event implements Cloneable {
             Events.GUESTS_CAN_MODIFY,        // 18
             Instances.ALL_DAY + "=1 OR (" + Instances.END + "-" + Instances.BEGIN + ")>="
                     + DateUtils.DAY_IN_MILLIS + " AS " + DISPLAY_AS_ALLDAY, // 19
+            Instances.CALENDAR_ID,           // 20
     };
 
     // The indices for the projection array above.
@@ -107,6 +105,7 @@ public class Event implements Cloneable {
     private static final int PROJECTION_ORGANIZER_INDEX = 17;
     private static final int PROJECTION_GUESTS_CAN_INVITE_OTHERS_INDEX = 18;
     private static final int PROJECTION_DISPLAY_AS_ALLDAY = 19;
+    private static final int PROJECTION_CALENDAR_ID_INDEX = 20;
 
     static {
         if (!Utils.isJellybeanOrLater()) {
@@ -118,6 +117,7 @@ public class Event implements Cloneable {
     private static int mNoColorColor;
 
     public long id;
+    public long calendarId;
     public int color;
     public CharSequence title;
     public CharSequence location;
@@ -158,6 +158,7 @@ public class Event implements Cloneable {
         super.clone();
         Event e = new Event();
 
+        e.calendarId = calendarId;
         e.title = title;
         e.color = color;
         e.location = location;
@@ -179,6 +180,7 @@ public class Event implements Cloneable {
 
     public final void copyTo(Event dest) {
         dest.id = id;
+        dest.calendarId = calendarId;
         dest.title = title;
         dest.color = color;
         dest.location = location;
@@ -200,6 +202,7 @@ public class Event implements Cloneable {
         Event e = new Event();
 
         e.id = 0;
+        e.calendarId = -1;
         e.title = null;
         e.color = 0;
         e.location = null;
@@ -218,7 +221,8 @@ public class Event implements Cloneable {
     }
 
     /**
-     * Loads <i>days</i> days worth of instances starting at <i>startDay</i>.
+     * Loads <i>days</i> days worth of instances starting at <i>startDay</i>. Declined events
+     * and hidden calendars are not filtered out, see {@link EventFilter}.
      */
     public static void loadEvents(Context context, ArrayList<Event> events, int startDay, int days,
             int requestId, AtomicInteger sequenceNumber) {
@@ -244,24 +248,13 @@ public class Event implements Cloneable {
             // the same then we sort alphabetically on the title.  This isn't
             // required for correctness, it just adds a nice touch.
 
-            // Respect the preference to show/hide declined events
-            SharedPreferences prefs = GeneralPreferences.getSharedPreferences(context);
-            boolean hideDeclined = prefs.getBoolean(GeneralPreferences.KEY_HIDE_DECLINED,
-                    false);
-
-            String where = EVENTS_WHERE;
-            String whereAllday = ALLDAY_WHERE;
-            if (hideDeclined) {
-                String hideString = " AND " + Instances.SELF_ATTENDEE_STATUS + "!="
-                        + Attendees.ATTENDEE_STATUS_DECLINED;
-                where += hideString;
-                whereAllday += hideString;
-            }
+            // Declined events are kept, the EventFilter hides them when the events are shown
+            String calendarSelection = EventFilter.getInstance(context).getCalendarSelection();
 
             cEvents = instancesQuery(context.getContentResolver(), EVENT_PROJECTION, startDay,
-                    endDay, where, null, SORT_EVENTS_BY);
+                    endDay, EVENTS_WHERE, calendarSelection, SORT_EVENTS_BY);
             cAllday = instancesQuery(context.getContentResolver(), EVENT_PROJECTION, startDay,
-                    endDay, whereAllday, null, SORT_ALLDAY_BY);
+                    endDay, ALLDAY_WHERE, calendarSelection, SORT_ALLDAY_BY);
 
             // Check if we should return early because there are more recent
             // load requests waiting.
@@ -286,8 +279,8 @@ public class Event implements Cloneable {
     }
 
     /**
-     * Performs a query to return all visible instances in the given range
-     * that match the given selection. This is a blocking function and
+     * Performs a query to return all instances of the given calendars in the
+     * given range that match the given selection. This is a blocking function and
      * should not be done on the UI thread. This will cause an expansion of
      * recurring events to fill this time range if they are not already
      * expanded and will slow down for larger time ranges with many
@@ -300,32 +293,25 @@ public class Event implements Cloneable {
      * @param end The end of the time range to query in UTC millis since
      *            epoch
      * @param selection Filter on the query as an SQL WHERE statement
-     * @param selectionArgs Args to replace any '?'s in the selection
+     * @param calendarSelection Selects the calendars to return instances of, see
+     *            {@link EventFilter#getCalendarSelection()}
      * @param orderBy How to order the rows as an SQL ORDER BY statement
      * @return A Cursor of instances matching the selection
      */
     private static final Cursor instancesQuery(ContentResolver cr, String[] projection,
-            int startDay, int endDay, String selection, String[] selectionArgs, String orderBy) {
-        String WHERE_CALENDARS_SELECTED = Calendars.VISIBLE + "=?";
-        String[] WHERE_CALENDARS_ARGS = {"1"};
+            int startDay, int endDay, String selection, String calendarSelection,
+            String orderBy) {
         String DEFAULT_SORT_ORDER = "begin ASC";
 
         Uri.Builder builder = Instances.CONTENT_BY_DAY_URI.buildUpon();
         ContentUris.appendId(builder, startDay);
         ContentUris.appendId(builder, endDay);
         if (TextUtils.isEmpty(selection)) {
-            selection = WHERE_CALENDARS_SELECTED;
-            selectionArgs = WHERE_CALENDARS_ARGS;
+            selection = calendarSelection;
         } else {
-            selection = "(" + selection + ") AND " + WHERE_CALENDARS_SELECTED;
-            if (selectionArgs != null && selectionArgs.length > 0) {
-                selectionArgs = Arrays.copyOf(selectionArgs, selectionArgs.length + 1);
-                selectionArgs[selectionArgs.length - 1] = WHERE_CALENDARS_ARGS[0];
-            } else {
-                selectionArgs = WHERE_CALENDARS_ARGS;
-            }
+            selection = "(" + selection + ") AND " + calendarSelection;
         }
-        return cr.query(builder.build(), projection, selection, selectionArgs,
+        return cr.query(builder.build(), projection, selection, null,
                 orderBy == null ? DEFAULT_SORT_ORDER : orderBy);
     }
 
@@ -374,6 +360,7 @@ public class Event implements Cloneable {
         Event e = new Event();
 
         e.id = cEvents.getLong(PROJECTION_EVENT_ID_INDEX);
+        e.calendarId = cEvents.getLong(PROJECTION_CALENDAR_ID_INDEX);
         e.title = cEvents.getString(PROJECTION_TITLE_INDEX);
         e.location = cEvents.getString(PROJECTION_LOCATION_INDEX);
         e.allDay = cEvents.getInt(PROJECTION_ALL_DAY_INDEX) != 0;
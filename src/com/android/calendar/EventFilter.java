@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar;
+
+import android.content.Context;
+import android.provider.CalendarContract.Attendees;
+import android.provider.CalendarContract.Calendars;
+import android.provider.CalendarContract.Instances;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Decides which of the loaded event instances are shown, so that hiding declined events or
+ * hiding a calendar takes effect right away without querying the provider again.
+ *
+ * Views load the instances of the visible calendars plus those of the calendars shown or hidden
+ * from within the app since it started (see {@link #getCalendarSelection()}), together with
+ * their calendar id and self attendee status, and run them through {@link #accept(long, int)}
+ * whenever they read their data. When the filter changes, registered
+ * {@link OnFilterChangedListener}s re-apply it to what they have loaded. They only need to query
+ * the provider again when a calendar they never loaded was made visible.
+ *
+ * Listeners are called on the thread that changed the filter, which is the main thread.
+ * accept() and getCalendarSelection() may be called from any thread.
+ */
+public class EventFilter {
+
+    public interface OnFilterChangedListener {
+        /**
+         * Called when the set of accepted instances changed.
+         *
+         * @param requery true if instances that were never loaded have to be shown now
+         */
+        void onEventFilterChanged(boolean requery);
+    }
+
+    private static EventFilter sInstance;
+
+    private volatile boolean mHideDeclined;
+
+    // Calendars whose visibility was changed from within the app. Their instances are loaded
+    // regardless of the visibility stored in the provider, so toggling them again is instant.
+    // Guarded by this.
+    private final HashSet<Long> mToggledCalendars = new HashSet<Long>();
+
+    // The toggled calendars that are hidden. Guarded by this.
+    private final HashSet<Long> mHiddenCalendars = new HashSet<Long>();
+
+    private final ArrayList<OnFilterChangedListener> mListeners =
+            new ArrayList<OnFilterChangedListener>();
+
+    public static synchronized EventFilter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EventFilter(Utils.getHideDeclinedEvents(context));
+        }
+        return sInstance;
+    }
+
+    private EventFilter(boolean hideDeclined) {
+        mHideDeclined = hideDeclined;
+    }
+
+    public boolean isHideDeclined() {
+        return mHideDeclined;
+    }
+
+    public void setHideDeclined(boolean hideDeclined) {
+        if (mHideDeclined == hideDeclined) {
+            return;
+        }
+        mHideDeclined = hideDeclined;
+        notifyListeners(false);
+    }
+
+    /**
+     * Records that the visibility of a calendar was changed from within the app. The caller
+     * still has to update {@link Calendars#VISIBLE} in the provider.
+     */
+    public void setCalendarVisible(long calendarId, boolean visible) {
+        boolean requery;
+        synchronized (this) {
+            // A calendar that was hidden when it was last loaded has no instances loaded
+            requery = visible && !mToggledCalendars.contains(calendarId);
+            mToggledCalendars.add(calendarId);
+            boolean changed = visible ? mHiddenCalendars.remove(calendarId)
+                    : mHiddenCalendars.add(calendarId);
+            if (!changed && !requery) {
+                return;
+            }
+        }
+        notifyListeners(requery);
+    }
+
+    /**
+     * Returns true if an instance of the given calendar with the given self attendee status
+     * should be shown.
+     */
+    public boolean accept(long calendarId, int selfAttendeeStatus) {
+        if (mHideDeclined && selfAttendeeStatus == Attendees.ATTENDEE_STATUS_DECLINED) {
+            return false;
+        }
+        synchronized (this) {
+            return mHiddenCalendars.isEmpty() || !mHiddenCalendars.contains(calendarId);
+        }
+    }
+
+    public boolean accept(Event event) {
+        return accept(event.calendarId, event.selfAttendeeStatus);
+    }
+
+    /**
+     * Returns the events of the list that are accepted by the filter, or the list itself if
+     * all of them are.
+     */
+    public ArrayList<Event> filter(ArrayList<Event> events) {
+        int size = events.size();
+        for (int i = 0; i < size; i++) {
+            if (!accept(events.get(i))) {
+                ArrayList<Event> filtered = new ArrayList<Event>(size);
+                filtered.addAll(events.subList(0, i));
+                for (i++; i < size; i++) {
+                    Event e = events.get(i);
+                    if (accept(e)) {
+                        filtered.add(e);
+                    }
+                }
+                return filtered;
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Returns the selection for instance queries that loads every calendar this filter may
+     * show. Hiding declined events is left to {@link #accept(long, int)}.
+     */
+    public synchronized String getCalendarSelection() {
+        if (mToggledCalendars.isEmpty()) {
+            return Calendars.VISIBLE + "=1";
+        }
+        StringBuilder selection = new StringBuilder();
+        selection.append('(').append(Calendars.VISIBLE).append("=1 OR ")
+                .append(Instances.CALENDAR_ID).append(" IN (");
+        boolean first = true;
+        for (Long calendarId : mToggledCalendars) {
+            if (!first) {
+                selection.append(',');
+            }
+            selection.append(calendarId);
+            first = false;
+        }
+        selection.append("))");
+        return selection.toString();
+    }
+
+    public void addListener(OnFilterChangedListener listener) {
+        synchronized (mListeners) {
+            if (!mListeners.contains(listener)) {
+                mListeners.add(listener);
+            }
+        }
+    }
+
+    public void removeListener(OnFilterChangedListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    private void notifyListeners(boolean requery) {
+        ArrayList<OnFilterChangedListener> listeners;
+        synchronized (mListeners) {
+            listeners = new ArrayList<OnFilterChangedListener>(mListeners);
+        }
+        for (OnFilterChangedListener listener : listeners) {
+            listener.onEventFilterChanged(requery);
+        }
+    }
+}
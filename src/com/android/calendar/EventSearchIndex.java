@@ -0,0 +1,750 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.CalendarContract.Attendees;
+import android.provider.CalendarContract.Events;
+import android.text.TextUtils;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An inverted index over the titles, locations, descriptions and attendees of all events, so
+ * that search does not have to run a LIKE query in the provider for every window of days the
+ * agenda loads.
+ *
+ * The index is kept in memory and persisted in an app-private file. It is updated on a
+ * background thread when the provider reports a change to events or attendees. The provider has
+ * no modification times and sync adapters don't mark the events they change dirty, so an update
+ * reads the title, location and description of all events, drops the deleted ones and compares a
+ * fingerprint of the text of the others with the one indexed. Attendees are read again only for
+ * the events that are new, dirty or whose text changed. Attendees changed by a sync adapter
+ * alone are picked up by a full update, which reads the attendees of all events and runs at
+ * most FULL_UPDATE_INTERVAL_MS after an update that didn't read all of them. Only events whose
+ * text changed are tokenized again.
+ *
+ * Words match by prefix, which lets results show up while typing. This differs from the
+ * substring match of the provider, so a query no word of which starts a word of any event is left
+ * to the provider. Events are indexed rather than instances, every instance of a matching event
+ * matches.
+ */
+public class EventSearchIndex {
+    private static final String TAG = "EventSearchIndex";
+    private static final boolean DEBUG = false;
+
+    public interface OnIndexChangedListener {
+        /**
+         * Called on the main thread after events were added to, changed in or removed from the
+         * index.
+         */
+        void onSearchIndexChanged();
+    }
+
+    private static final String INDEX_FILE = "event_search_index";
+    private static final int FILE_MAGIC = 0x45534958;
+    private static final int FILE_VERSION = 2;
+
+    // Lets a burst of changes, like a sync, settle before reading the events again
+    private static final long UPDATE_DELAY_MS = 500;
+    // How often an update reads the attendees of all events rather than of the changed ones
+    private static final long FULL_UPDATE_INTERVAL_MS = 15 * 60 * 1000;
+    // Most ids in the selection of one query
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private static final int MAX_DESCRIPTION_LENGTH = 4096;
+
+    private static final int WEIGHT_TITLE = 8;
+    private static final int WEIGHT_LOCATION = 4;
+    private static final int WEIGHT_ATTENDEE = 2;
+    private static final int WEIGHT_DESCRIPTION = 1;
+
+    private static final int MSG_LOAD = 1;
+    private static final int MSG_UPDATE = 2;
+    private static final int MSG_FULL_UPDATE = 3;
+
+    private static final String[] EVENTS_PROJECTION = new String[] {
+            Events._ID, // 0
+            Events.TITLE, // 1
+            Events.EVENT_LOCATION, // 2
+            Events.DESCRIPTION, // 3
+    };
+    private static final int EVENTS_INDEX_ID = 0;
+    private static final int EVENTS_INDEX_TITLE = 1;
+    private static final int EVENTS_INDEX_LOCATION = 2;
+    private static final int EVENTS_INDEX_DESCRIPTION = 3;
+    private static final String EVENTS_SELECTION = Events.DELETED + "=0";
+
+    private static final String[] EVENT_TEXT_PROJECTION = new String[] {
+            Events._ID, // 0
+            Events.TITLE, // 1
+            Events.EVENT_LOCATION, // 2
+            Events.DESCRIPTION, // 3
+            Events.DIRTY, // 4
+    };
+    private static final int EVENT_TEXT_INDEX_DIRTY = 4;
+
+    private static final String[] ATTENDEES_PROJECTION = new String[] {
+            Attendees.EVENT_ID, // 0
+            Attendees.ATTENDEE_NAME, // 1
+            Attendees.ATTENDEE_EMAIL, // 2
+    };
+    private static final int ATTENDEES_INDEX_EVENT_ID = 0;
+    private static final int ATTENDEES_INDEX_NAME = 1;
+    private static final int ATTENDEES_INDEX_EMAIL = 2;
+
+    /** The indexed words of one event and their weights. */
+    private static class Entry {
+        // Of the title, location, description and attendees
+        long fingerprint;
+        // Of the title, location and description only
+        long textFingerprint;
+        String[] words;
+        int[] weights;
+    }
+
+    private static EventSearchIndex sInstance;
+
+    private final Context mContext;
+    private final AtomicFile mFile;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this
+    private final HashMap<Long, Entry> mEntries = new HashMap<Long, Entry>();
+    // Word -> event id -> weight. Guarded by this.
+    private final TreeMap<String, HashMap<Long, Integer>> mPostings =
+            new TreeMap<String, HashMap<Long, Integer>>();
+
+    private volatile boolean mReady;
+
+    // Only used on the background thread. 0 until the first full update.
+    private long mLastFullUpdateTime;
+
+    private final ArrayList<OnIndexChangedListener> mListeners =
+            new ArrayList<OnIndexChangedListener>();
+
+    private final Runnable mNotifyListeners = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<OnIndexChangedListener> listeners;
+            synchronized (mListeners) {
+                listeners = new ArrayList<OnIndexChangedListener>(mListeners);
+            }
+            for (OnIndexChangedListener listener : listeners) {
+                listener.onSearchIndexChanged();
+            }
+        }
+    };
+
+    public static synchronized EventSearchIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EventSearchIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private EventSearchIndex(Context context) {
+        mContext = context;
+        mFile = new AtomicFile(new File(context.getFilesDir(), INDEX_FILE));
+
+        HandlerThread thread = new HandlerThread("EventSearchIndex",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_LOAD:
+                        load();
+                        break;
+                    case MSG_UPDATE:
+                        update();
+                        break;
+                    case MSG_FULL_UPDATE:
+                        fullUpdate();
+                        break;
+                }
+            }
+        };
+
+        ContentObserver observer = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mHandler.removeMessages(MSG_UPDATE);
+                mHandler.sendEmptyMessageDelayed(MSG_UPDATE, UPDATE_DELAY_MS);
+            }
+        };
+        ContentResolver cr = context.getContentResolver();
+        cr.registerContentObserver(Events.CONTENT_URI, true, observer);
+        cr.registerContentObserver(Attendees.CONTENT_URI, true, observer);
+
+        mHandler.sendEmptyMessage(MSG_LOAD);
+        mHandler.sendEmptyMessage(MSG_UPDATE);
+    }
+
+    /**
+     * Returns true once the index was loaded or built and {@link #search(String, int)} can
+     * answer queries.
+     */
+    public boolean isReady() {
+        return mReady;
+    }
+
+    /**
+     * Returns the ids of the events that match every word of the query, best matches first.
+     * Words in the title count more than in the location, attendees and description, and whole
+     * words more than prefixes.
+     *
+     * @param query the search terms
+     * @param maxResults the maximum number of events the caller can make use of
+     * @return the event ids, or null if the index isn't ready, the query holds no words, no
+     *         event or more than maxResults events match. The provider search, which matches
+     *         substrings, has to be used then.
+     */
+    public long[] search(String query, int maxResults) {
+        if (!mReady) {
+            return null;
+        }
+        HashMap<String, Integer> terms = new HashMap<String, Integer>();
+        addWords(query, 0, terms);
+        if (terms.isEmpty()) {
+            return null;
+        }
+
+        HashMap<Long, Integer> scores = null;
+        synchronized (this) {
+            for (String term : terms.keySet()) {
+                HashMap<Long, Integer> termScores = new HashMap<Long, Integer>();
+                for (Map.Entry<String, HashMap<Long, Integer>> posting : mPostings.subMap(term,
+                        term + Character.MAX_VALUE).entrySet()) {
+                    int boost = posting.getKey().length() == term.length() ? 2 : 1;
+                    for (Map.Entry<Long, Integer> event : posting.getValue().entrySet()) {
+                        Integer score = termScores.get(event.getKey());
+                        termScores.put(event.getKey(),
+                                (score == null ? 0 : score) + event.getValue() * boost);
+                    }
+                }
+
+                if (scores == null) {
+                    scores = termScores;
+                } else {
+                    Iterator<Map.Entry<Long, Integer>> it = scores.entrySet().iterator();
+                    while (it.hasNext()) {
+                        Map.Entry<Long, Integer> event = it.next();
+                        Integer score = termScores.get(event.getKey());
+                        if (score == null) {
+                            it.remove();
+                        } else {
+                            event.setValue(event.getValue() + score);
+                        }
+                    }
+                }
+                if (scores.isEmpty()) {
+                    break;
+                }
+            }
+        }
+
+        if (scores.isEmpty() || scores.size() > maxResults) {
+            return null;
+        }
+        ArrayList<Map.Entry<Long, Integer>> ranked =
+                new ArrayList<Map.Entry<Long, Integer>>(scores.entrySet());
+        Collections.sort(ranked, new Comparator<Map.Entry<Long, Integer>>() {
+            @Override
+            public int compare(Map.Entry<Long, Integer> lhs, Map.Entry<Long, Integer> rhs) {
+                int cmp = rhs.getValue().compareTo(lhs.getValue());
+                return cmp != 0 ? cmp : lhs.getKey().compareTo(rhs.getKey());
+            }
+        });
+        long[] eventIds = new long[ranked.size()];
+        for (int i = 0; i < eventIds.length; i++) {
+            eventIds[i] = ranked.get(i).getKey();
+        }
+        return eventIds;
+    }
+
+    public void addListener(OnIndexChangedListener listener) {
+        synchronized (mListeners) {
+            if (!mListeners.contains(listener)) {
+                mListeners.add(listener);
+            }
+        }
+    }
+
+    public void removeListener(OnIndexChangedListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Reads the index persisted by a previous run, so search is fast right after starting.
+     */
+    private void load() {
+        long start = System.currentTimeMillis();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    long id = in.readLong();
+                    Entry entry = new Entry();
+                    entry.fingerprint = in.readLong();
+                    entry.textFingerprint = in.readLong();
+                    int words = in.readInt();
+                    entry.words = new String[words];
+                    entry.weights = new int[words];
+                    for (int j = 0; j < words; j++) {
+                        entry.words[j] = in.readUTF();
+                        entry.weights[j] = in.readInt();
+                    }
+                    putEntry(id, entry);
+                }
+            }
+            mReady = true;
+            if (DEBUG) {
+                Log.d(TAG, "Loaded " + count + " events in "
+                        + (System.currentTimeMillis() - start) + "ms");
+            }
+        } catch (FileNotFoundException e) {
+            // Not built yet
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the search index, rebuilding it", e);
+            synchronized (this) {
+                mEntries.clear();
+                mPostings.clear();
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Brings the index up to date with the provider.
+     */
+    private void update() {
+        long now = SystemClock.elapsedRealtime();
+        if (mLastFullUpdateTime == 0 || now - mLastFullUpdateTime >= FULL_UPDATE_INTERVAL_MS) {
+            fullUpdate();
+        } else if (updateChanged() && !mHandler.hasMessages(MSG_FULL_UPDATE)) {
+            // Picks up the attendees a sync adapter changed without another change coming
+            mHandler.sendEmptyMessageDelayed(MSG_FULL_UPDATE,
+                    mLastFullUpdateTime + FULL_UPDATE_INTERVAL_MS - now);
+        }
+    }
+
+    private void fullUpdate() {
+        mHandler.removeMessages(MSG_FULL_UPDATE);
+        if (updateAll()) {
+            mLastFullUpdateTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Reads the text of every event and replaces the entries that changed.
+     *
+     * @return false if the provider couldn't be read
+     */
+    private boolean updateAll() {
+        long start = System.currentTimeMillis();
+        ContentResolver cr = mContext.getContentResolver();
+
+        HashMap<Long, StringBuilder> attendees = readAttendees(cr, null, null);
+        if (attendees == null) {
+            return false;
+        }
+        Cursor cursor = cr.query(Events.CONTENT_URI, EVENTS_PROJECTION, EVENTS_SELECTION, null,
+                null);
+        if (cursor == null) {
+            return false;
+        }
+        HashMap<Long, Entry> changed = new HashMap<Long, Entry>();
+        HashSet<Long> seen = new HashSet<Long>(cursor.getCount());
+        try {
+            readEntries(cursor, attendees, changed, seen);
+        } finally {
+            cursor.close();
+        }
+
+        ArrayList<Long> deleted = new ArrayList<Long>();
+        synchronized (this) {
+            for (Long id : mEntries.keySet()) {
+                if (!seen.contains(id)) {
+                    deleted.add(id);
+                }
+            }
+        }
+        applyChanges(changed, deleted);
+
+        if (DEBUG) {
+            Log.d(TAG, "Updated " + changed.size() + " and removed " + deleted.size() + " of "
+                    + seen.size() + " events in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        return true;
+    }
+
+    /**
+     * Drops the deleted events and reads the attendees of only the events that are new, dirty or
+     * whose title, location or description changed.
+     *
+     * @return false if the provider couldn't be read
+     */
+    private boolean updateChanged() {
+        long start = System.currentTimeMillis();
+        ContentResolver cr = mContext.getContentResolver();
+
+        Cursor cursor = cr.query(Events.CONTENT_URI, EVENT_TEXT_PROJECTION, EVENTS_SELECTION,
+                null, null);
+        if (cursor == null) {
+            return false;
+        }
+        HashSet<Long> seen = new HashSet<Long>(cursor.getCount());
+        ArrayList<Long> toRead = new ArrayList<Long>();
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(EVENTS_INDEX_ID);
+                seen.add(id);
+                long textFingerprint = fingerprint(cursor.getString(EVENTS_INDEX_TITLE),
+                        cursor.getString(EVENTS_INDEX_LOCATION),
+                        truncateDescription(cursor.getString(EVENTS_INDEX_DESCRIPTION)));
+                Entry current;
+                synchronized (this) {
+                    current = mEntries.get(id);
+                }
+                if (current == null || current.textFingerprint != textFingerprint
+                        || cursor.getInt(EVENT_TEXT_INDEX_DIRTY) != 0) {
+                    toRead.add(id);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ArrayList<Long> deleted = new ArrayList<Long>();
+        synchronized (this) {
+            for (Long id : mEntries.keySet()) {
+                if (!seen.contains(id)) {
+                    deleted.add(id);
+                }
+            }
+        }
+
+        HashMap<Long, Entry> changed = new HashMap<Long, Entry>();
+        for (int i = 0; i < toRead.size(); i += MAX_IDS_PER_QUERY) {
+            List<Long> ids = toRead.subList(i, Math.min(i + MAX_IDS_PER_QUERY, toRead.size()));
+            String idList = TextUtils.join(",", ids);
+            HashMap<Long, StringBuilder> attendees = readAttendees(cr,
+                    Attendees.EVENT_ID + " IN (" + idList + ")", null);
+            if (attendees == null) {
+                return false;
+            }
+            cursor = cr.query(Events.CONTENT_URI, EVENTS_PROJECTION,
+                    EVENTS_SELECTION + " AND " + Events._ID + " IN (" + idList + ")", null,
+                    null);
+            if (cursor == null) {
+                return false;
+            }
+            try {
+                readEntries(cursor, attendees, changed, null);
+            } finally {
+                cursor.close();
+            }
+        }
+        applyChanges(changed, deleted);
+
+        if (DEBUG) {
+            Log.d(TAG, "Read " + toRead.size() + ", updated " + changed.size() + " and removed "
+                    + deleted.size() + " of " + seen.size() + " events in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+        return true;
+    }
+
+    /**
+     * Reads the attendee names and emails of the events selected, keyed by event id.
+     *
+     * @return null if the provider couldn't be read
+     */
+    private static HashMap<Long, StringBuilder> readAttendees(ContentResolver cr,
+            String selection, String[] selectionArgs) {
+        Cursor cursor = cr.query(Attendees.CONTENT_URI, ATTENDEES_PROJECTION, selection,
+                selectionArgs, null);
+        if (cursor == null) {
+            return null;
+        }
+        HashMap<Long, StringBuilder> attendees = new HashMap<Long, StringBuilder>();
+        try {
+            while (cursor.moveToNext()) {
+                long eventId = cursor.getLong(ATTENDEES_INDEX_EVENT_ID);
+                StringBuilder text = attendees.get(eventId);
+                if (text == null) {
+                    text = new StringBuilder();
+                    attendees.put(eventId, text);
+                }
+                appendNonNull(text, cursor.getString(ATTENDEES_INDEX_NAME));
+                appendNonNull(text, cursor.getString(ATTENDEES_INDEX_EMAIL));
+            }
+        } finally {
+            cursor.close();
+        }
+        return attendees;
+    }
+
+    /**
+     * Tokenizes the events read through {@link #EVENTS_PROJECTION} whose text changed.
+     *
+     * @param changed receives the new entries of the events whose text changed
+     * @param seen receives the ids of all events read, if not null
+     */
+    private void readEntries(Cursor cursor, HashMap<Long, StringBuilder> attendees,
+            HashMap<Long, Entry> changed, HashSet<Long> seen) {
+        while (cursor.moveToNext()) {
+            long id = cursor.getLong(EVENTS_INDEX_ID);
+            String title = cursor.getString(EVENTS_INDEX_TITLE);
+            String location = cursor.getString(EVENTS_INDEX_LOCATION);
+            String description = truncateDescription(
+                    cursor.getString(EVENTS_INDEX_DESCRIPTION));
+            StringBuilder attendeeText = attendees.get(id);
+            String attendee = attendeeText == null ? null : attendeeText.toString();
+            if (seen != null) {
+                seen.add(id);
+            }
+
+            long fingerprint = fingerprint(title, location, description, attendee);
+            Entry current;
+            synchronized (this) {
+                current = mEntries.get(id);
+            }
+            if (current != null && current.fingerprint == fingerprint) {
+                continue;
+            }
+
+            HashMap<String, Integer> words = new HashMap<String, Integer>();
+            addWords(title, WEIGHT_TITLE, words);
+            addWords(location, WEIGHT_LOCATION, words);
+            addWords(attendee, WEIGHT_ATTENDEE, words);
+            addWords(description, WEIGHT_DESCRIPTION, words);
+            Entry entry = new Entry();
+            entry.fingerprint = fingerprint;
+            entry.textFingerprint = fingerprint(title, location, description);
+            entry.words = new String[words.size()];
+            entry.weights = new int[words.size()];
+            int i = 0;
+            for (Map.Entry<String, Integer> word : words.entrySet()) {
+                entry.words[i] = word.getKey();
+                entry.weights[i] = word.getValue();
+                i++;
+            }
+            changed.put(id, entry);
+        }
+    }
+
+    /**
+     * Puts the changed entries in the index and removes the deleted events, then saves the
+     * index and tells the listeners if anything changed.
+     */
+    private void applyChanges(HashMap<Long, Entry> changed, ArrayList<Long> deleted) {
+        synchronized (this) {
+            for (Map.Entry<Long, Entry> entry : changed.entrySet()) {
+                removeEntry(entry.getKey());
+                putEntry(entry.getKey(), entry.getValue());
+            }
+            for (Long id : deleted) {
+                removeEntry(id);
+            }
+        }
+        mReady = true;
+
+        if (!changed.isEmpty() || !deleted.isEmpty()) {
+            save();
+            mMainHandler.post(mNotifyListeners);
+        }
+    }
+
+    /**
+     * Writes the index to the file. Entries are never changed once put in the index, so only
+     * copying the map needs the lock and search isn't held up while the file is written.
+     */
+    private void save() {
+        long[] ids;
+        Entry[] entries;
+        synchronized (this) {
+            ids = new long[mEntries.size()];
+            entries = new Entry[ids.length];
+            int i = 0;
+            for (Map.Entry<Long, Entry> event : mEntries.entrySet()) {
+                ids[i] = event.getKey();
+                entries[i] = event.getValue();
+                i++;
+            }
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(ids.length);
+            for (int j = 0; j < ids.length; j++) {
+                Entry entry = entries[j];
+                out.writeLong(ids[j]);
+                out.writeLong(entry.fingerprint);
+                out.writeLong(entry.textFingerprint);
+                out.writeInt(entry.words.length);
+                for (int i = 0; i < entry.words.length; i++) {
+                    out.writeUTF(entry.words[i]);
+                    out.writeInt(entry.weights[i]);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write the search index", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+
+    /** Must be called with this locked. */
+    private void putEntry(long id, Entry entry) {
+        mEntries.put(id, entry);
+        for (int i = 0; i < entry.words.length; i++) {
+            HashMap<Long, Integer> posting = mPostings.get(entry.words[i]);
+            if (posting == null) {
+                posting = new HashMap<Long, Integer>();
+                mPostings.put(entry.words[i], posting);
+            }
+            posting.put(id, entry.weights[i]);
+        }
+    }
+
+    /** Must be called with this locked. */
+    private void removeEntry(long id) {
+        Entry entry = mEntries.remove(id);
+        if (entry == null) {
+            return;
+        }
+        for (String word : entry.words) {
+            HashMap<Long, Integer> posting = mPostings.get(word);
+            if (posting != null) {
+                posting.remove(id);
+                if (posting.isEmpty()) {
+                    mPostings.remove(word);
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits the text into lower case words of letters and digits and adds the weight to each
+     * of them. Lower cased in the root locale, so that the words don't depend on the locale the
+     * index or the query was made in.
+     */
+    private static void addWords(String text, int weight, HashMap<String, Integer> words) {
+        if (text == null) {
+            return;
+        }
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                String word = text.substring(start, i).toLowerCase(Locale.ROOT);
+                Integer current = words.get(word);
+                words.put(word, (current == null ? 0 : current) + weight);
+            }
+        }
+    }
+
+    private static String truncateDescription(String description) {
+        // Only the start of long descriptions is indexed
+        if (description != null && description.length() > MAX_DESCRIPTION_LENGTH) {
+            return description.substring(0, MAX_DESCRIPTION_LENGTH);
+        }
+        return description;
+    }
+
+    private static void appendNonNull(StringBuilder text, String value) {
+        if (value != null) {
+            text.append(value).append(' ');
+        }
+    }
+
+    // 64 bit FNV-1a over the searchable columns
+    private static long fingerprint(String... values) {
+        long hash = 0xcbf29ce484222325L;
+        for (String value : values) {
+            if (value != null) {
+                for (int i = 0; i < value.length(); i++) {
+                    hash ^= value.charAt(i);
+                    hash *= 0x100000001b3L;
+                }
+            }
+            // Separator, so moving text from one column to the next changes the fingerprint
+            hash ^= 0xffff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
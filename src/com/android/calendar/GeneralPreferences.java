@@ -39,7 +39,6 @@ import android.preference.PreferenceFragment;
 import android.preference.PreferenceManager;
 import android.preference.PreferenceScreen;
 import android.preference.RingtonePreference;
-import android.provider.CalendarContract;
 import android.provider.CalendarContract.CalendarCache;
 import android.provider.SearchRecentSuggestions;
 import android.text.TextUtils;
@@ -314,9 +313,8 @@ public class GeneralPreferences extends PreferenceFragment implements
             return true;
         } else if (preference == mHideDeclined) {
             mHideDeclined.setChecked((Boolean) newValue);
-            Intent intent = new Intent(Utils.getWidgetScheduledUpdateAction(activity));
-            intent.setDataAndType(CalendarContract.CONTENT_URI, Utils.APPWIDGET_DATA_TYPE);
-            activity.sendBroadcast(intent);
+            // The views and the widget re-apply the filter to the events they loaded
+            EventFilter.getInstance(activity).setHideDeclined((Boolean) newValue);
             return true;
         } else if (preference == mWeekStart) {
             mWeekStart.setValue((String) newValue);
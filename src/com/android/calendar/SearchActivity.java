@@ -34,6 +34,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.provider.CalendarContract.Events;
 import android.provider.SearchRecentSuggestions;
+import android.text.TextUtils;
 import android.text.format.Time;
 import android.util.Log;
 import android.view.Menu;
@@ -47,7 +48,8 @@ import com.android.calendar.CalendarController.ViewType;
 import com.android.calendar.agenda.AgendaFragment;
 
 public class SearchActivity extends Activity implements CalendarController.EventHandler,
-        SearchView.OnQueryTextListener, OnActionExpandListener {
+        SearchView.OnQueryTextListener, OnActionExpandListener,
+        EventSearchIndex.OnIndexChangedListener {
 
     private static final String TAG = SearchActivity.class.getSimpleName();
 
@@ -74,6 +76,11 @@ public class SearchActivity extends Activity implements CalendarController.Event
 
     private SearchView mSearchView;
 
+    private EventSearchIndex mSearchIndex;
+
+    // Delay after the last key stroke before searching as you type
+    private static final long SEARCH_AS_YOU_TYPE_DELAY_MS = 150;
+
     private DeleteEventHelper mDeleteEventHelper;
 
     private Handler mHandler;
@@ -92,6 +99,14 @@ public class SearchActivity extends Activity implements CalendarController.Event
         }
     };
 
+    private final Runnable mSearchAsYouType = new Runnable() {
+        @Override
+        public void run() {
+            mController.sendEvent(SearchActivity.this, EventType.SEARCH, null, null, -1,
+                    ViewType.CURRENT, 0, mQuery, getComponentName());
+        }
+    };
+
     // runs when a timezone was changed and updates the today icon
     private final Runnable mTimeChangesUpdater = new Runnable() {
         @Override
@@ -118,6 +133,7 @@ public class SearchActivity extends Activity implements CalendarController.Event
         setDefaultKeyMode(DEFAULT_KEYS_SEARCH_LOCAL);
 
         mContentResolver = getContentResolver();
+        mSearchIndex = EventSearchIndex.getInstance(this);
 
         if (mIsMultipane) {
             getActionBar().setDisplayOptions(
@@ -330,6 +346,7 @@ public class SearchActivity extends Activity implements CalendarController.Event
         invalidateOptionsMenu();
         mTimeChangesReceiver = Utils.setTimeChangesReceiver(this, mTimeChangesUpdater);
         mContentResolver.registerContentObserver(Events.CONTENT_URI, true, mObserver);
+        mSearchIndex.addListener(this);
         // We call this in case the user changed the time zone
         eventsChanged();
     }
@@ -340,6 +357,8 @@ public class SearchActivity extends Activity implements CalendarController.Event
         Utils.resetMidnightUpdater(mHandler, mTimeChangesUpdater);
         Utils.clearTimeChangesReceiver(this, mTimeChangesReceiver);
         mContentResolver.unregisterContentObserver(mObserver);
+        mSearchIndex.removeListener(this);
+        mHandler.removeCallbacks(mSearchAsYouType);
     }
 
     @Override
@@ -362,13 +381,31 @@ public class SearchActivity extends Activity implements CalendarController.Event
         }
     }
 
+    @Override
+    public void onSearchIndexChanged() {
+        // Events the provider reported changed may only match now that they are indexed
+        if (mQuery != null) {
+            eventsChanged();
+        }
+    }
+
     @Override
     public boolean onQueryTextChange(String newText) {
+        // Only search as you type when the local index can answer it, a provider search for
+        // every key stroke is too slow
+        if (!mSearchIndex.isReady() || TextUtils.isEmpty(newText.trim())
+                || newText.equals(mQuery)) {
+            return false;
+        }
+        mQuery = newText;
+        mHandler.removeCallbacks(mSearchAsYouType);
+        mHandler.postDelayed(mSearchAsYouType, SEARCH_AS_YOU_TYPE_DELAY_MS);
         return false;
     }
 
     @Override
     public boolean onQueryTextSubmit(String query) {
+        mHandler.removeCallbacks(mSearchAsYouType);
         mQuery = query;
         mController.sendEvent(this, EventType.SEARCH, null, null, -1, ViewType.CURRENT, 0, query,
                 getComponentName());
@@ -31,11 +31,10 @@ import android.widget.ResourceCursorAdapter;
 import android.widget.TextView;
 
 import com.android.calendar.ColorChipView;
+import com.android.calendar.DateFormatCache;
 import com.android.calendar.R;
 import com.android.calendar.Utils;
 
-import java.util.Formatter;
-import java.util.Locale;
 import java.util.TimeZone;
 
 public class AgendaAdapter extends ResourceCursorAdapter {
@@ -45,9 +44,6 @@ public class AgendaAdapter extends ResourceCursorAdapter {
     private final int mStandardColor;
     private final int mWhereColor;
     private final int mWhereDeclinedColor;
-    // Note: Formatter is not thread safe. Fine for now as it is only used by the main thread.
-    private final Formatter mFormatter;
-    private final StringBuilder mStringBuilder;
     private float mScale;
 
     private int COLOR_CHIP_ALL_DAY_HEIGHT;
@@ -89,8 +85,6 @@ public class AgendaAdapter extends ResourceCursorAdapter {
         mStandardColor = mResources.getColor(R.color.agenda_item_standard_color);
         mWhereDeclinedColor = mResources.getColor(R.color.agenda_item_where_declined_text_color);
         mWhereColor = mResources.getColor(R.color.agenda_item_where_text_color);
-        mStringBuilder = new StringBuilder(50);
-        mFormatter = new Formatter(mStringBuilder, Locale.getDefault());
 
         COLOR_CHIP_ALL_DAY_HEIGHT = mResources.getInteger(R.integer.color_chip_all_day_height);
         COLOR_CHIP_HEIGHT = mResources.getInteger(R.integer.color_chip_height);
@@ -205,9 +199,7 @@ public class AgendaAdapter extends ResourceCursorAdapter {
         if (DateFormat.is24HourFormat(context)) {
             flags |= DateUtils.FORMAT_24HOUR;
         }
-        mStringBuilder.setLength(0);
-        whenString = DateUtils.formatDateRange(context, mFormatter, begin, end, flags, tzString)
-                .toString();
+        whenString = DateFormatCache.formatDateRange(context, begin, end, flags, tzString);
         if (!allDay && !TextUtils.equals(tzString, eventTz)) {
             String displayName;
             // Figure out if this is in DST
@@ -28,15 +28,15 @@ import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import android.widget.TextView;
 
+import com.android.calendar.DateFormatCache;
+import com.android.calendar.EventFilter;
 import com.android.calendar.R;
 import com.android.calendar.Utils;
 import com.android.calendar.agenda.AgendaWindowAdapter.DayAdapterInfo;
 
 import java.util.ArrayList;
-import java.util.Formatter;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Locale;
 
 public class AgendaByDayAdapter extends BaseAdapter {
     private static final int TYPE_DAY = 0;
@@ -50,9 +50,6 @@ public class AgendaByDayAdapter extends BaseAdapter {
     private int mTodayJulianDay;
     private Time mTmpTime;
     private String mTimeZone;
-    // Note: Formatter is not thread safe. Fine for now as it is only used by the main thread.
-    private final Formatter mFormatter;
-    private final StringBuilder mStringBuilder;
 
     static class ViewHolder {
         TextView dayView;
@@ -74,8 +71,6 @@ public class AgendaByDayAdapter extends BaseAdapter {
         mContext = context;
         mAgendaAdapter = new AgendaAdapter(context, R.layout.agenda_item);
         mInflater = (LayoutInflater) mContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        mStringBuilder = new StringBuilder(50);
-        mFormatter = new Formatter(mStringBuilder, Locale.getDefault());
         mTimeZone = Utils.getTimeZone(context, mTZUpdater);
         mTmpTime = new Time(mTimeZone);
     }
@@ -223,7 +218,6 @@ public class AgendaByDayAdapter extends BaseAdapter {
             Time date = mTmpTime;
             long millis = date.setJulianDay(row.mDay);
             int flags = DateUtils.FORMAT_SHOW_WEEKDAY;
-            mStringBuilder.setLength(0);
 
             String dayViewText = Utils.getDayOfWeekString(row.mDay, mTodayJulianDay, millis,
                     mContext);
@@ -231,10 +225,9 @@ public class AgendaByDayAdapter extends BaseAdapter {
             // Build text for the date
             // Format should be month day
 
-            mStringBuilder.setLength(0);
             flags = DateUtils.FORMAT_SHOW_DATE;
-            String dateViewText = DateUtils.formatDateRange(mContext, mFormatter, millis, millis,
-                    flags, mTimeZone).toString();
+            String dateViewText = DateFormatCache.formatDateRange(mContext, millis, millis, flags,
+                    mTimeZone);
 
             if (AgendaWindowAdapter.BASICLOG) {
                 dayViewText += " P:" + position;
@@ -295,6 +288,17 @@ public class AgendaByDayAdapter extends BaseAdapter {
         mAgendaAdapter.changeCursor(info.cursor);
     }
 
+    /**
+     * Detaches the current cursor without closing it and drops the day header info, so that
+     * the cursor can be closed elsewhere and this adapter reused for another cursor.
+     *
+     * @return the cursor that was detached
+     */
+    public Cursor detachCursor() {
+        mRowInfo = null;
+        return mAgendaAdapter.swapCursor(null);
+    }
+
     public void calculateDays(DayAdapterInfo dayAdapterInfo) {
         Cursor cursor = dayAdapterInfo.cursor;
         ArrayList<RowInfo> rowInfo = new ArrayList<RowInfo>();
@@ -305,8 +309,14 @@ public class AgendaByDayAdapter extends BaseAdapter {
         tempTime.set(now);
         mTodayJulianDay = Time.getJulianDay(now, tempTime.gmtoff);
 
+        EventFilter filter = EventFilter.getInstance(mContext);
         LinkedList<MultipleDayInfo> multipleDayList = new LinkedList<MultipleDayInfo>();
         for (int position = 0; cursor.moveToNext(); position++) {
+            // Leave out declined events and hidden calendars
+            if (!filter.accept(cursor.getLong(AgendaWindowAdapter.INDEX_CALENDAR_ID),
+                    cursor.getInt(AgendaWindowAdapter.INDEX_SELF_ATTENDEE_STATUS))) {
+                continue;
+            }
             int startDay = cursor.getInt(AgendaWindowAdapter.INDEX_START_DAY);
             long id = cursor.getLong(AgendaWindowAdapter.INDEX_EVENT_ID);
             long startTime =  cursor.getLong(AgendaWindowAdapter.INDEX_BEGIN);
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.agenda;
+
+import android.database.Cursor;
+import android.provider.CalendarContract.Events;
+import android.text.format.Time;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Works out which days of the agenda a provider change touched, so that AgendaWindowAdapter
+ * only has to query the windows holding those days again.
+ *
+ * The provider doesn't tell what changed. The tracker keeps a fingerprint of the columns the
+ * agenda shows and the range of the instances of every event, and compares them with a new
+ * snapshot of the events that can have instances around the loaded windows, read with
+ * {@link #SELECTION}. An event that was added, changed or removed touches the days of its old
+ * and of its new instances. An event moved out of the range is missing from the new snapshot,
+ * which counts as removed. Events that were out of range of the previous snapshot count as
+ * added, which at worst queries a window again that didn't change.
+ *
+ * Snapshots are read on the background thread of AgendaCursorRetirer, so that a large events
+ * table doesn't hold up the main thread. {@link #hasSnapshot(String)} may be called from any
+ * thread, everything else only from that one.
+ */
+class AgendaChangeTracker {
+
+    static final String[] PROJECTION = new String[] {
+            Events._ID, // 0
+            Events.DTSTART, // 1
+            Events.LAST_DATE, // 2
+            Events.ORIGINAL_INSTANCE_TIME, // 3
+            // Only part of the fingerprint from here on
+            Events.TITLE,
+            Events.EVENT_LOCATION,
+            Events.ALL_DAY,
+            Events.HAS_ALARM,
+            Events.DISPLAY_COLOR,
+            Events.DTEND,
+            Events.DURATION,
+            Events.RRULE,
+            Events.RDATE,
+            Events.EXDATE,
+            Events.EVENT_TIMEZONE,
+            Events.STATUS,
+            Events.SELF_ATTENDEE_STATUS,
+            Events.ORGANIZER,
+            Events.CALENDAR_ID,
+            Events.DELETED,
+    };
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_DTSTART = 1;
+    private static final int INDEX_LAST_DATE = 2;
+    private static final int INDEX_ORIGINAL_INSTANCE_TIME = 3;
+
+    /**
+     * Events with instances between two times, or replacing one, see
+     * {@link #getSelectionArgs(long, long)}.
+     */
+    static final String SELECTION = "(" + Events.DTSTART + "<=? AND (" + Events.LAST_DATE
+            + " IS NULL OR " + Events.LAST_DATE + ">=?)) OR " + Events.ORIGINAL_INSTANCE_TIME
+            + " BETWEEN ? AND ?";
+
+    private static class EventState {
+        long fingerprint;
+        int firstDay;
+        int lastDay;
+    }
+
+    // Null until the first snapshot
+    private HashMap<Long, EventState> mEvents;
+    // Time zone of the snapshot, null without one
+    private volatile String mTimeZone;
+
+    /**
+     * Returns true if there is a snapshot taken in the given time zone to compare with.
+     */
+    boolean hasSnapshot(String timeZone) {
+        return timeZone.equals(mTimeZone);
+    }
+
+    /**
+     * Drops the snapshot, the next one starts over.
+     */
+    void reset() {
+        mEvents = null;
+        mTimeZone = null;
+    }
+
+    /**
+     * Replaces the snapshot with the events read through {@link #PROJECTION}.
+     *
+     * @param events the events, left open
+     * @param timeZone the time zone to compute julian days in
+     * @return the julian day ranges touched since the previous snapshot as [first, last]
+     *         pairs, or null if there was no previous snapshot in this time zone
+     */
+    ArrayList<int[]> update(Cursor events, String timeZone) {
+        HashMap<Long, EventState> previous = hasSnapshot(timeZone) ? mEvents : null;
+        HashMap<Long, EventState> current = new HashMap<Long, EventState>(events.getCount());
+        Time time = new Time(timeZone);
+        time.setToNow();
+        long gmtoff = time.gmtoff;
+
+        ArrayList<int[]> touched = previous == null ? null : new ArrayList<int[]>();
+        int columns = events.getColumnCount();
+        events.moveToPosition(-1);
+        while (events.moveToNext()) {
+            long id = events.getLong(INDEX_ID);
+            EventState state = new EventState();
+            state.fingerprint = fingerprint(events, columns);
+
+            long first = events.getLong(INDEX_DTSTART);
+            if (!events.isNull(INDEX_ORIGINAL_INSTANCE_TIME)) {
+                // An exception also moves the instance it replaces
+                first = Math.min(first, events.getLong(INDEX_ORIGINAL_INSTANCE_TIME));
+            }
+            // All-day events are in UTC and gmtoff changes with DST, be a day generous
+            state.firstDay = Time.getJulianDay(first, gmtoff) - 1;
+            state.lastDay = events.isNull(INDEX_LAST_DATE) ? Integer.MAX_VALUE
+                    : Time.getJulianDay(events.getLong(INDEX_LAST_DATE), gmtoff) + 1;
+            current.put(id, state);
+
+            if (previous != null) {
+                EventState old = previous.remove(id);
+                if (old == null) {
+                    touched.add(new int[] { state.firstDay, state.lastDay });
+                } else if (old.fingerprint != state.fingerprint) {
+                    touched.add(new int[] { old.firstDay, old.lastDay });
+                    touched.add(new int[] { state.firstDay, state.lastDay });
+                }
+            }
+        }
+
+        if (previous != null) {
+            // What is left was deleted
+            for (Map.Entry<Long, EventState> removed : previous.entrySet()) {
+                touched.add(new int[] { removed.getValue().firstDay, removed.getValue().lastDay });
+            }
+        }
+
+        mEvents = current;
+        mTimeZone = timeZone;
+        return touched;
+    }
+
+    static String[] getSelectionArgs(long startMillis, long endMillis) {
+        String start = Long.toString(startMillis);
+        String end = Long.toString(endMillis);
+        return new String[] { end, start, start, end };
+    }
+
+    /**
+     * Returns true if any of the ranges overlaps the days from start to end.
+     */
+    static boolean isTouched(ArrayList<int[]> ranges, int start, int end) {
+        for (int[] range : ranges) {
+            if (range[0] <= end && start <= range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 64 bit FNV-1a over all columns of the current row
+    private static long fingerprint(Cursor cursor, int columns) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < columns; i++) {
+            String value = cursor.getString(i);
+            if (value != null) {
+                for (int j = 0; j < value.length(); j++) {
+                    hash ^= value.charAt(j);
+                    hash *= 0x100000001b3L;
+                }
+            }
+            hash ^= 0xffff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
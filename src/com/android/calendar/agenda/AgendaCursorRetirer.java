@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.agenda;
+
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closes the cursors of agenda windows that were evicted from AgendaWindowAdapter on a
+ * background thread. Closing a cursor releases its CursorWindow and talks to the provider, which
+ * is slow enough to cause ANRs when done on the main thread.
+ *
+ * A cursor handed to {@link #retire(Cursor)} must not be used by the caller anymore.
+ *
+ * Other agenda work too slow for the main thread can be queued on the same thread with
+ * {@link #post(Runnable)}.
+ */
+class AgendaCursorRetirer {
+    private static final String TAG = "AgendaCursorRetirer";
+    private static final boolean DEBUG = false;
+
+    private static final int MSG_RETIRE = 1;
+
+    private static Handler sHandler;
+
+    private static final AtomicLong sRetiredCount = new AtomicLong();
+    private static final AtomicLong sRetireTimeNanos = new AtomicLong();
+
+    private AgendaCursorRetirer() {
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("AgendaCursorRetirer",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    if (msg.what == MSG_RETIRE) {
+                        close((Cursor) msg.obj);
+                    }
+                }
+            };
+        }
+        return sHandler;
+    }
+
+    /**
+     * Queues the cursor to be closed on the background thread.
+     */
+    static void retire(Cursor cursor) {
+        if (cursor == null) {
+            return;
+        }
+        Handler handler = getHandler();
+        handler.sendMessage(handler.obtainMessage(MSG_RETIRE, cursor));
+    }
+
+    /**
+     * Queues the work to run on the background thread, after the work queued before it.
+     */
+    static void post(Runnable work) {
+        getHandler().post(work);
+    }
+
+    private static void close(Cursor cursor) {
+        long start = System.nanoTime();
+        try {
+            if (!cursor.isClosed()) {
+                cursor.close();
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to close cursor", e);
+        }
+        long elapsed = System.nanoTime() - start;
+        long count = sRetiredCount.incrementAndGet();
+        long total = sRetireTimeNanos.addAndGet(elapsed);
+        if (DEBUG) {
+            Log.d(TAG, "Retired cursor in " + elapsed / 1000 + "us, " + count + " total in "
+                    + total / 1000000 + "ms");
+        }
+    }
+
+    /**
+     * @return the number of cursors closed so far
+     */
+    static long getRetiredCount() {
+        return sRetiredCount.get();
+    }
+
+    /**
+     * @return the total time spent closing cursors, in milliseconds
+     */
+    static long getRetireTimeMillis() {
+        return sRetireTimeNanos.get() / 1000000;
+    }
+}
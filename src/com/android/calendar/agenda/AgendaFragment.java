@@ -38,6 +38,7 @@ import com.android.calendar.CalendarController;
 import com.android.calendar.CalendarController.EventInfo;
 import com.android.calendar.CalendarController.EventType;
 import com.android.calendar.CalendarController.ViewType;
+import com.android.calendar.EventFilter;
 import com.android.calendar.EventInfoFragment;
 import com.android.calendar.GeneralPreferences;
 import com.android.calendar.R;
@@ -220,7 +221,7 @@ public class AgendaFragment extends Fragment implements CalendarController.Event
         boolean hideDeclined = prefs.getBoolean(
                 GeneralPreferences.KEY_HIDE_DECLINED, false);
 
-        mAgendaListView.setHideDeclinedEvents(hideDeclined);
+        EventFilter.getInstance(getActivity()).setHideDeclined(hideDeclined);
         if (mLastHandledEventId != -1) {
             mAgendaListView.goTo(mLastHandledEventTime, mLastHandledEventId, mQuery, true, false);
             mLastHandledEventTime = null;
@@ -350,7 +351,7 @@ public class AgendaFragment extends Fragment implements CalendarController.Event
     @Override
     public void eventsChanged() {
         if (mAgendaListView != null) {
-            mAgendaListView.refresh(true);
+            mAgendaListView.onEventsChanged();
         }
     }
 
@@ -452,6 +453,10 @@ public class AgendaFragment extends Fragment implements CalendarController.Event
     @Override
     public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
             int totalItemCount) {
+        if (mAdapter != null) {
+            mAdapter.onScroll(firstVisibleItem - mAgendaListView.getHeaderViewsCount(),
+                    visibleItemCount);
+        }
         int julianDay = mAgendaListView.getJulianDayFromPosition(firstVisibleItem
                 - mAgendaListView.getHeaderViewsCount());
         // On error - leave the old view
@@ -228,6 +228,13 @@ public class AgendaListView extends ListView implements OnItemClickListener {
         mWindowAdapter.refresh(mTime, -1, null, forced, false);
     }
 
+    /**
+     * Updates the loaded events after the provider reported a change.
+     */
+    public void onEventsChanged() {
+        mWindowAdapter.onEventsChanged();
+    }
+
     public void deleteSelectedEvent() {
         int position = getSelectedItemPosition();
         AgendaItem agendaItem = mWindowAdapter.getAgendaItemByPosition(position);
@@ -413,10 +420,6 @@ public class AgendaListView extends ListView implements OnItemClickListener {
         }
     }
 
-    public void setHideDeclinedEvents(boolean hideDeclined) {
-        mWindowAdapter.setHideDeclinedEvents(hideDeclined);
-    }
-
     public void onResume() {
         mTZUpdater.run();
         Utils.setMidnightUpdater(mHandler, mMidnightUpdater, mTimeZone);
@@ -427,5 +430,6 @@ public class AgendaListView extends ListView implements OnItemClickListener {
     public void onPause() {
         Utils.resetMidnightUpdater(mHandler, mMidnightUpdater);
         resetPastEventsUpdater();
+        mWindowAdapter.onPause();
     }
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.agenda;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.CalendarContract.Instances;
+
+/**
+ * Builds keyset paginated queries over the instances of the agenda.
+ *
+ * A page holds the next N instances after (or before) a (start day, begin, instance id) key, in
+ * agenda order, no matter how many days they are spread over. The agenda only uses pages to find
+ * where its next window of whole days has to end so that it holds about N rows: a page query
+ * just reads the keys, and the window itself is then loaded as a regular day range. Empty
+ * stretches are skipped in one query and busy stretches never produce oversized windows.
+ */
+class AgendaPageQuery {
+
+    /** How far from its key a page may reach. Bounds the range the provider has to expand. */
+    static final int MAX_SCAN_DAYS = 365;
+
+    static final String[] PROJECTION = new String[] {
+            Instances.START_DAY, // 0
+            Instances.BEGIN, // 1
+            Instances._ID, // 2
+    };
+    private static final int INDEX_START_DAY = 0;
+
+    // The instance id has to be qualified, _id is ambiguous in the joined instances query.
+    private static final String INSTANCE_ID = "Instances." + Instances._ID;
+
+    private static final String AFTER_KEY_SELECTION = "(" + Instances.START_DAY + ">? OR ("
+            + Instances.START_DAY + "=? AND (" + Instances.BEGIN + ">? OR ("
+            + Instances.BEGIN + "=? AND " + INSTANCE_ID + ">?))))";
+
+    private static final String BEFORE_KEY_SELECTION = "(" + Instances.START_DAY + "<? OR ("
+            + Instances.START_DAY + "=? AND (" + Instances.BEGIN + "<? OR ("
+            + Instances.BEGIN + "=? AND " + INSTANCE_ID + "<?))))";
+
+    private static final String AFTER_KEY_SORT_ORDER = Instances.START_DAY + " ASC, "
+            + Instances.BEGIN + " ASC, " + INSTANCE_ID + " ASC";
+
+    private static final String BEFORE_KEY_SORT_ORDER = Instances.START_DAY + " DESC, "
+            + Instances.BEGIN + " DESC, " + INSTANCE_ID + " DESC";
+
+    private AgendaPageQuery() {
+    }
+
+    /**
+     * Returns the uri for a page starting at the given day.
+     *
+     * @param keyDay julian day of the key
+     * @param after true for the page after the key, false for the page before it
+     * @param searchQuery search terms or null
+     */
+    static Uri buildUri(int keyDay, boolean after, String searchQuery) {
+        Uri rootUri = searchQuery == null ?
+                Instances.CONTENT_BY_DAY_URI :
+                Instances.CONTENT_SEARCH_BY_DAY_URI;
+        Uri.Builder builder = rootUri.buildUpon();
+        if (after) {
+            ContentUris.appendId(builder, keyDay);
+            ContentUris.appendId(builder, keyDay + MAX_SCAN_DAYS);
+        } else {
+            ContentUris.appendId(builder, keyDay - MAX_SCAN_DAYS);
+            ContentUris.appendId(builder, keyDay);
+        }
+        if (searchQuery != null) {
+            builder.appendPath(searchQuery);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the selection for a page, on top of the given base selection.
+     */
+    static String buildSelection(String baseSelection, boolean after) {
+        String keySelection = after ? AFTER_KEY_SELECTION : BEFORE_KEY_SELECTION;
+        if (baseSelection == null) {
+            return keySelection;
+        }
+        return "(" + baseSelection + ") AND " + keySelection;
+    }
+
+    /**
+     * Returns the selection args for a page after/before the given instance.
+     */
+    static String[] buildSelectionArgs(int keyDay, long keyBegin, long keyInstanceId) {
+        String day = Integer.toString(keyDay);
+        String begin = Long.toString(keyBegin);
+        return new String[] {
+                day, day, begin, begin, Long.toString(keyInstanceId)
+        };
+    }
+
+    /**
+     * Returns the selection args for a page that starts with the first instance of the given
+     * day (after) or ends with the last instance of it (before).
+     */
+    static String[] buildDaySelectionArgs(int keyDay, boolean after) {
+        return after ? buildSelectionArgs(keyDay, Long.MIN_VALUE, Long.MIN_VALUE)
+                : buildSelectionArgs(keyDay, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns the sort order for a page of the given size. One more row than the page holds is
+     * requested to find the first instance of the next page.
+     */
+    static String buildSortOrder(boolean after, int pageSize) {
+        return (after ? AFTER_KEY_SORT_ORDER : BEFORE_KEY_SORT_ORDER)
+                + " LIMIT " + (pageSize + 1);
+    }
+
+    /**
+     * Finds the far end of a window of whole days that starts at the key day and holds at most
+     * one page of instances. A day holding more than a page of instances on its own makes up a
+     * window by itself.
+     *
+     * @param page the result of a page query with the given key and page size
+     * @param keyDay the julian day the page was requested from
+     * @param after whether the page is after or before the key
+     * @param pageSize the page size the page was requested with
+     * @return the last julian day of the window when after, the first one otherwise
+     */
+    static int findWindowEdge(Cursor page, int keyDay, boolean after, int pageSize) {
+        if (!page.moveToPosition(pageSize)) {
+            // Everything within reach fits in one page
+            return after ? keyDay + MAX_SCAN_DAYS : keyDay - MAX_SCAN_DAYS;
+        }
+
+        // The first instance of the next page, leave its whole day to the next window
+        int nextPageDay = page.getInt(INDEX_START_DAY);
+        if (after) {
+            return Math.max(keyDay, nextPageDay - 1);
+        } else {
+            return Math.min(keyDay, nextPageDay + 1);
+        }
+    }
+}
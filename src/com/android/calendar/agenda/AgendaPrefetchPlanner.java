@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.agenda;
+
+/**
+ * Plans the queries AgendaWindowAdapter makes for newer and older events.
+ *
+ * The event density (rows per julian day) of the windows loaded at each end of the agenda is
+ * used to size the next window so that it returns roughly the target number of rows. The scroll
+ * velocity together with the observed query latency decides how many rows before the end of the
+ * loaded data the next query needs to be started so that it completes before the list gets
+ * there.
+ *
+ * Not thread safe. Only used by the main thread.
+ */
+class AgendaPrefetchPlanner {
+
+    // Weight of the newest sample when smoothing densities, velocity and latency
+    private static final float SMOOTHING = 0.5f;
+
+    // Assumed query latency until a query has actually been timed
+    private static final long DEFAULT_QUERY_LATENCY_MS = 250;
+
+    // Scroll samples further apart than this don't tell anything about the current velocity
+    private static final long MAX_SAMPLE_INTERVAL_MS = 500;
+
+    // Start the next query early enough to cover this many query latencies
+    private static final int LATENCY_SAFETY_FACTOR = 2;
+
+    private final int mTargetRows;
+    private final int mMinDuration;
+    private final int mMaxDuration;
+
+    // Rows per day of the windows at each end of the agenda, negative if unknown
+    private float mNewerRowsPerDay = -1;
+    private float mOlderRowsPerDay = -1;
+
+    private float mQueryLatencyMs = DEFAULT_QUERY_LATENCY_MS;
+
+    // Rows per ms, positive when scrolling towards newer events
+    private float mVelocity;
+    private int mLastFirstVisibleItem = -1;
+    private long mLastScrollTime;
+
+    /**
+     * @param targetRows number of rows a query should ideally return
+     * @param minDuration minimum number of days to query
+     * @param maxDuration maximum number of days to query
+     */
+    AgendaPrefetchPlanner(int targetRows, int minDuration, int maxDuration) {
+        mTargetRows = targetRows;
+        mMinDuration = minDuration;
+        mMaxDuration = maxDuration;
+    }
+
+    /**
+     * Records the position of the first visible row to update the scroll velocity.
+     */
+    void onScroll(int firstVisibleItem, long nowMillis) {
+        if (mLastFirstVisibleItem >= 0) {
+            long elapsed = nowMillis - mLastScrollTime;
+            if (elapsed > MAX_SAMPLE_INTERVAL_MS) {
+                mVelocity = 0;
+            } else if (elapsed > 0) {
+                float sample = (float) (firstVisibleItem - mLastFirstVisibleItem) / elapsed;
+                mVelocity = smooth(mVelocity, sample);
+            } else {
+                // Several callbacks in the same ms. Keep measuring from the first one.
+                return;
+            }
+        }
+        mLastFirstVisibleItem = firstVisibleItem;
+        mLastScrollTime = nowMillis;
+    }
+
+    /**
+     * Rows were added or removed in front of the visible rows. Shift the last known position so
+     * this doesn't show up as a jump in velocity.
+     */
+    void onRowsShifted(int offset) {
+        if (mLastFirstVisibleItem >= 0) {
+            mLastFirstVisibleItem += offset;
+        }
+    }
+
+    /**
+     * The list stopped or was repositioned programmatically.
+     */
+    void resetVelocity() {
+        mVelocity = 0;
+        mLastFirstVisibleItem = -1;
+    }
+
+    /**
+     * Records the number of rows returned for a window of days at one end of the agenda.
+     */
+    void onWindowLoaded(boolean newer, int days, int rows) {
+        if (days <= 0) {
+            return;
+        }
+        float rowsPerDay = (float) rows / days;
+        if (newer) {
+            mNewerRowsPerDay = mNewerRowsPerDay < 0 ? rowsPerDay
+                    : smooth(mNewerRowsPerDay, rowsPerDay);
+        } else {
+            mOlderRowsPerDay = mOlderRowsPerDay < 0 ? rowsPerDay
+                    : smooth(mOlderRowsPerDay, rowsPerDay);
+        }
+    }
+
+    /**
+     * Records how long a query took from start to completion.
+     */
+    void onQueryTimed(long latencyMs) {
+        if (latencyMs >= 0) {
+            mQueryLatencyMs = smooth(mQueryLatencyMs, latencyMs);
+        }
+    }
+
+    /**
+     * Returns how many rows before the newer/older end of the loaded data the next query for
+     * that end should be started.
+     *
+     * @param newer true for the end with the newer events
+     * @param minBoundary the boundary to use when the list isn't moving towards that end
+     * @param rowCount number of rows currently loaded
+     */
+    int getPrefetchBoundary(boolean newer, int minBoundary, int rowCount) {
+        float speed = newer ? mVelocity : -mVelocity;
+        if (speed <= 0) {
+            return minBoundary;
+        }
+        int rows = (int) Math.ceil(speed * mQueryLatencyMs * LATENCY_SAFETY_FACTOR);
+        return Math.max(minBoundary, Math.min(rows, rowCount / 2));
+    }
+
+    /**
+     * Returns the number of days the next query for newer/older events should cover.
+     *
+     * @param newer true for a query for newer events
+     * @param fallbackDuration duration to use when the density at that end isn't known yet
+     */
+    int planQueryDuration(boolean newer, int fallbackDuration) {
+        float rowsPerDay = newer ? mNewerRowsPerDay : mOlderRowsPerDay;
+        if (rowsPerDay < 0) {
+            return fallbackDuration;
+        }
+        if (rowsPerDay == 0) {
+            return mMaxDuration;
+        }
+
+        int duration = (int) Math.ceil(getTargetRows() / rowsPerDay);
+
+        if (duration > mMaxDuration) {
+            duration = mMaxDuration;
+        } else if (duration < mMinDuration) {
+            duration = mMinDuration;
+        }
+        return duration;
+    }
+
+    /**
+     * Returns the number of rows the next page of events should hold.
+     */
+    int planPageSize() {
+        return (int) Math.ceil(getTargetRows());
+    }
+
+    private float getTargetRows() {
+        // A fling needs at least the rows it covers while the query after this one runs
+        float speed = Math.abs(mVelocity);
+        return Math.max(mTargetRows, speed * mQueryLatencyMs * LATENCY_SAFETY_FACTOR);
+    }
+
+    private static float smooth(float current, float sample) {
+        return current + SMOOTHING * (sample - current);
+    }
+}
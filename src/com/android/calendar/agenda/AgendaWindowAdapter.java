@@ -25,9 +25,10 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.CalendarContract;
 import android.provider.CalendarContract.Attendees;
-import android.provider.CalendarContract.Calendars;
+import android.provider.CalendarContract.Events;
 import android.provider.CalendarContract.Instances;
 import android.text.format.DateUtils;
 import android.text.format.Time;
@@ -44,15 +45,17 @@ import android.widget.TextView;
 import com.android.calendar.CalendarController;
 import com.android.calendar.CalendarController.EventType;
 import com.android.calendar.CalendarController.ViewType;
+import com.android.calendar.DateFormatCache;
+import com.android.calendar.EventFilter;
+import com.android.calendar.EventSearchIndex;
 import com.android.calendar.R;
 import com.android.calendar.StickyHeaderListView;
 import com.android.calendar.Utils;
 
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Formatter;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Locale;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 /*
@@ -74,7 +77,8 @@ Check for leaks and excessive allocations
  */
 
 public class AgendaWindowAdapter extends BaseAdapter
-    implements StickyHeaderListView.HeaderIndexer, StickyHeaderListView.HeaderHeightListener{
+    implements StickyHeaderListView.HeaderIndexer, StickyHeaderListView.HeaderHeightListener,
+    EventFilter.OnFilterChangedListener {
 
     static final boolean BASICLOG = false;
     static final boolean DEBUGLOG = false;
@@ -102,6 +106,7 @@ public class AgendaWindowAdapter extends BaseAdapter
     public static final int INDEX_OWNER_ACCOUNT = 14;
     public static final int INDEX_CAN_ORGANIZER_RESPOND= 15;
     public static final int INDEX_TIME_ZONE = 16;
+    public static final int INDEX_CALENDAR_ID = 17;
 
     private static final String[] PROJECTION = new String[] {
             Instances._ID, // 0
@@ -121,6 +126,7 @@ public class AgendaWindowAdapter extends BaseAdapter
             Instances.OWNER_ACCOUNT, // 14
             Instances.CAN_ORGANIZER_RESPOND, // 15
             Instances.EVENT_TIMEZONE, // 16
+            Instances.CALENDAR_ID, // 17
     };
 
     static {
@@ -134,11 +140,15 @@ public class AgendaWindowAdapter extends BaseAdapter
     // TODO Need to look into this.
     private static final int OFF_BY_ONE_BUG = 1;
     private static final int MAX_NUM_OF_ADAPTERS = 5;
+    private static final int MAX_NUM_OF_RECYCLED_ADAPTERS = 2;
     private static final int IDEAL_NUM_OF_EVENTS = 50;
     private static final int MIN_QUERY_DURATION = 7; // days
     private static final int MAX_QUERY_DURATION = 60; // days
     private static final int PREFETCH_BOUNDARY = 1;
 
+    // Above this many matching events, searching in the provider beats a long IN list
+    private static final int MAX_INDEXED_SEARCH_RESULTS = 1000;
+
     /** Times to auto-expand/retry query after getting no data */
     private static final int RETRIES_ON_NO_DATA = 1;
 
@@ -158,8 +168,13 @@ public class AgendaWindowAdapter extends BaseAdapter
 
     private final LinkedList<DayAdapterInfo> mAdapterInfos =
             new LinkedList<DayAdapterInfo>();
+    /** Evicted adapter infos kept around so their AgendaByDayAdapter can be reused */
+    private final LinkedList<DayAdapterInfo> mRecycledInfos =
+            new LinkedList<DayAdapterInfo>();
     private final ConcurrentLinkedQueue<QuerySpec> mQueryQueue =
             new ConcurrentLinkedQueue<QuerySpec>();
+    private final AgendaPrefetchPlanner mPrefetchPlanner = new AgendaPrefetchPlanner(
+            IDEAL_NUM_OF_EVENTS, MIN_QUERY_DURATION, MAX_QUERY_DURATION);
     private final TextView mHeaderView;
     private final TextView mFooterView;
     private boolean mDoneSettingUpHeaderFooter = false;
@@ -189,9 +204,6 @@ public class AgendaWindowAdapter extends BaseAdapter
     /** Number of "newer" query that has been processed. */
     private int mNewerRequestsProcessed;
 
-    // Note: Formatter is not thread safe. Fine for now as it is only used by the main thread.
-    private final Formatter mFormatter;
-    private final StringBuilder mStringBuilder;
     private String mTimeZone;
 
     // defines if to pop-up the current event when the agenda is first shown
@@ -214,7 +226,6 @@ public class AgendaWindowAdapter extends BaseAdapter
     };
 
     private boolean mShuttingDown;
-    private boolean mHideDeclined;
 
     // Used to stop a fling motion if the ListView is set to a specific position
     int mListViewScrollState = OnScrollListener.SCROLL_STATE_IDLE;
@@ -228,11 +239,38 @@ public class AgendaWindowAdapter extends BaseAdapter
     private final int mSelectedItemTextColor;
     private final float mItemRightMargin;
 
-    // Types of Query
+    // Types of Query. Also used as the token of the query so that a query for older events and
+    // a query for newer events can run at the same time.
     private static final int QUERY_TYPE_OLDER = 0; // Query for older events
     private static final int QUERY_TYPE_NEWER = 1; // Query for newer events
     private static final int QUERY_TYPE_CLEAN = 2; // Delete everything and query around a date
 
+    // Added to the query type to make the token of the page query that sizes a window
+    private static final int PAGE_QUERY_TOKEN_OFFSET = 3;
+
+    // Tokens of the queries reading the events table when a clean query starts and when the
+    // provider reports a change, to work out which windows the change touched
+    private static final int BASELINE_QUERY_TOKEN = 6;
+    private static final int CHANGE_QUERY_TOKEN = 7;
+
+    // Token of the queries replacing windows touched by a change
+    private static final int PATCH_QUERY_TOKEN = 8;
+
+    /**
+     * Size windows for newer/older events by pages of instances rather than by the event
+     * density. Turned off if the provider rejects a page query.
+     */
+    private boolean mUsePagedQueries = true;
+
+    private final AgendaChangeTracker mChangeTracker = new AgendaChangeTracker();
+
+    /** A window queried again after a change, and the range it had then. */
+    private static class PatchSpec {
+        DayAdapterInfo info;
+        int start;
+        int end;
+    }
+
     private static class QuerySpec {
         long queryStartMillis;
         Time goToTime;
@@ -241,6 +279,8 @@ public class AgendaWindowAdapter extends BaseAdapter
         String searchQuery;
         int queryType;
         long id;
+        boolean inFlight;
+        int pageSize;
 
         public QuerySpec(int queryType) {
             this.queryType = queryType;
@@ -350,9 +390,6 @@ public class AgendaWindowAdapter extends BaseAdapter
         mAgendaListView = agendaListView;
         mQueryHandler = new QueryHandler(context.getContentResolver());
 
-        mStringBuilder = new StringBuilder(50);
-        mFormatter = new Formatter(mStringBuilder, Locale.getDefault());
-
         mShowEventOnStart = showEventOnStart;
 
         // Implies there is no sticky header
@@ -449,19 +486,7 @@ public class AgendaWindowAdapter extends BaseAdapter
 
     // Abstract Method in BaseAdapter
     public View getView(int position, View convertView, ViewGroup parent) {
-        if (position >= (mRowCount - PREFETCH_BOUNDARY)
-                && mNewerRequests <= mNewerRequestsProcessed) {
-            if (DEBUGLOG) Log.e(TAG, "queryForNewerEvents: ");
-            mNewerRequests++;
-            queueQuery(new QuerySpec(QUERY_TYPE_NEWER));
-        }
-
-        if (position < PREFETCH_BOUNDARY
-                && mOlderRequests <= mOlderRequestsProcessed) {
-            if (DEBUGLOG) Log.e(TAG, "queryForOlderEvents: ");
-            mOlderRequests++;
-            queueQuery(new QuerySpec(QUERY_TYPE_OLDER));
-        }
+        prefetchIfNeeded(position, position);
 
         final View v;
         DayAdapterInfo info = getAdapterInfoByPosition(position);
@@ -531,6 +556,32 @@ public class AgendaWindowAdapter extends BaseAdapter
 
     private AgendaAdapter.ViewHolder mSelectedVH = null;
 
+    /**
+     * Queues a query for newer or older events if the given positions are within the prefetch
+     * boundary of either end of the loaded data. The boundary grows with the scroll velocity.
+     */
+    private void prefetchIfNeeded(int firstPosition, int lastPosition) {
+        if (mRowCount == 0) {
+            return;
+        }
+
+        if (lastPosition >= (mRowCount - mPrefetchPlanner.getPrefetchBoundary(true,
+                PREFETCH_BOUNDARY, mRowCount))
+                && mNewerRequests <= mNewerRequestsProcessed) {
+            if (DEBUGLOG) Log.e(TAG, "queryForNewerEvents: ");
+            mNewerRequests++;
+            queueQuery(new QuerySpec(QUERY_TYPE_NEWER));
+        }
+
+        if (firstPosition < mPrefetchPlanner.getPrefetchBoundary(false,
+                PREFETCH_BOUNDARY, mRowCount)
+                && mOlderRequests <= mOlderRequestsProcessed) {
+            if (DEBUGLOG) Log.e(TAG, "queryForOlderEvents: ");
+            mOlderRequests++;
+            queueQuery(new QuerySpec(QUERY_TYPE_OLDER));
+        }
+    }
+
     private int findEventPositionNearestTime(Time time, long id) {
         DayAdapterInfo info = getAdapterInfoByTime(time);
         int pos = -1;
@@ -702,6 +753,7 @@ public class AgendaWindowAdapter extends BaseAdapter
             if (!mAgendaListView.isAgendaItemVisible(goToTime, id)) {
                 int gotoPosition = findEventPositionNearestTime(goToTime, id);
                 if (gotoPosition > 0) {
+                    mPrefetchPlanner.resetVelocity();
                     mAgendaListView.setSelectionFromTop(gotoPosition +
                             OFF_BY_ONE_BUG, mStickyHeaderSize);
                     if (mListViewScrollState == OnScrollListener.SCROLL_STATE_FLING) {
@@ -741,6 +793,8 @@ public class AgendaWindowAdapter extends BaseAdapter
 
             mSelectedInstanceId = -1;
             mCleanQueryInitiated = true;
+            // Ahead of the clean query, so changes made after it are the ones detected
+            startChangeQuery(true, startDay, endDay);
             queueQuery(startDay, endDay, goToTime, searchQuery, QUERY_TYPE_CLEAN, id);
 
             // Pre-fetch more data to overcome a race condition in AgendaListView.shiftSelection
@@ -757,7 +811,171 @@ public class AgendaWindowAdapter extends BaseAdapter
         mShuttingDown = true;
         pruneAdapterInfo(QUERY_TYPE_CLEAN);
         if (mQueryHandler != null) {
-            mQueryHandler.cancelOperation(0);
+            mQueryHandler.cancelOperation(QUERY_TYPE_OLDER);
+            mQueryHandler.cancelOperation(QUERY_TYPE_NEWER);
+            mQueryHandler.cancelOperation(QUERY_TYPE_CLEAN);
+            mQueryHandler.cancelOperation(QUERY_TYPE_OLDER + PAGE_QUERY_TOKEN_OFFSET);
+            mQueryHandler.cancelOperation(QUERY_TYPE_NEWER + PAGE_QUERY_TOKEN_OFFSET);
+            mQueryHandler.cancelOperation(BASELINE_QUERY_TOKEN);
+            mQueryHandler.cancelOperation(CHANGE_QUERY_TOKEN);
+            mQueryHandler.cancelOperation(PATCH_QUERY_TOKEN);
+        }
+    }
+
+    /**
+     * Called when the provider reported a change. Only the windows holding days the change
+     * touched are queried again, the others and the scroll position are kept. Everything is
+     * reloaded around the current time if what changed can't be worked out.
+     */
+    public void onEventsChanged() {
+        if (mShuttingDown) {
+            return;
+        }
+        if (mAdapterInfos.isEmpty() || !mChangeTracker.hasSnapshot(mTimeZone)) {
+            mAgendaListView.refresh(true);
+            return;
+        }
+        int startDay;
+        int endDay;
+        synchronized (mAdapterInfos) {
+            startDay = mAdapterInfos.getFirst().start;
+            endDay = mAdapterInfos.getLast().end;
+        }
+        startChangeQuery(false, startDay, endDay);
+    }
+
+    /**
+     * Reads the events that can have instances around the given days, to be compared with the
+     * snapshot.
+     */
+    private void startChangeQuery(boolean baseline, int startDay, int endDay) {
+        int token = baseline ? BASELINE_QUERY_TOKEN : CHANGE_QUERY_TOKEN;
+        // Also covers the windows loaded next to these, and all-day events stored in UTC
+        Time time = new Time(mTimeZone);
+        long startMillis = time.setJulianDay(startDay - MAX_QUERY_DURATION);
+        long endMillis = time.setJulianDay(endDay + MAX_QUERY_DURATION + 1);
+        // A later query covers everything an earlier one of the same kind would have found
+        mQueryHandler.cancelOperation(token);
+        mQueryHandler.startQuery(token, null, Events.CONTENT_URI,
+                AgendaChangeTracker.PROJECTION, AgendaChangeTracker.SELECTION,
+                AgendaChangeTracker.getSelectionArgs(startMillis, endMillis), null);
+    }
+
+    private void onChangeQueryComplete(final boolean baseline, final Cursor cursor) {
+        if (cursor == null) {
+            AgendaCursorRetirer.post(new Runnable() {
+                @Override
+                public void run() {
+                    mChangeTracker.reset();
+                }
+            });
+            return;
+        }
+        if (mShuttingDown || (!baseline && mCleanQueryInitiated)) {
+            // A clean query is about to replace every window anyway. Keep comparing with the
+            // snapshot taken ahead of it.
+            AgendaCursorRetirer.retire(cursor);
+            return;
+        }
+        // Walking the whole cursor is too slow for the main thread, only the touched day
+        // ranges come back
+        final String timeZone = mTimeZone;
+        AgendaCursorRetirer.post(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<int[]> touched = mChangeTracker.update(cursor, timeZone);
+                cursor.close();
+                if (baseline) {
+                    return;
+                }
+                mDataChangedHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onChangesFound(touched);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Queries again the windows holding days a change touched.
+     *
+     * @param touched the julian day ranges touched, or null if they are unknown
+     */
+    private void onChangesFound(ArrayList<int[]> touched) {
+        if (mShuttingDown || mCleanQueryInitiated) {
+            return;
+        }
+        if (touched == null) {
+            mAgendaListView.refresh(true);
+            return;
+        }
+
+        synchronized (mAdapterInfos) {
+            for (DayAdapterInfo info : mAdapterInfos) {
+                if (AgendaChangeTracker.isTouched(touched, info.start, info.end)) {
+                    PatchSpec spec = new PatchSpec();
+                    spec.info = info;
+                    spec.start = info.start;
+                    spec.end = info.end;
+                    if (BASICLOG) {
+                        Log.v(TAG, "Patching " + info);
+                    }
+                    startInstancesQuery(PATCH_QUERY_TOKEN, spec, spec.start, spec.end,
+                            mSearchQuery);
+                }
+            }
+        }
+    }
+
+    /**
+     * Swaps the new cursor into a window touched by a change, if the window is still loaded.
+     */
+    private void onPatchQueryComplete(PatchSpec spec, Cursor cursor) {
+        if (cursor == null) {
+            return;
+        }
+        if (mShuttingDown) {
+            AgendaCursorRetirer.retire(cursor);
+            return;
+        }
+
+        int firstVisible = mAgendaListView.getFirstVisiblePosition()
+                - mAgendaListView.getHeaderViewsCount();
+        int shift = 0;
+        synchronized (mAdapterInfos) {
+            DayAdapterInfo info = spec.info;
+            if (!mAdapterInfos.contains(info) || info.start != spec.start
+                    || info.end != spec.end) {
+                // Evicted or replaced while the query ran
+                AgendaCursorRetirer.retire(cursor);
+                return;
+            }
+            int oldSize = info.size;
+            boolean aboveVisibleRows = info.offset + oldSize <= firstVisible;
+
+            retireCursor(info);
+            info.cursor = cursor;
+            info.dayAdapter.changeCursor(info);
+            info.size = info.dayAdapter.getCount();
+
+            mRowCount = 0;
+            for (DayAdapterInfo info2 : mAdapterInfos) {
+                info2.offset = mRowCount;
+                mRowCount += info2.size;
+            }
+            mLastUsedInfo = null;
+            if (aboveVisibleRows) {
+                shift = info.size - oldSize;
+            }
+        }
+        markFirstDayAfterYesterday();
+        notifyDataSetChanged();
+        if (shift != 0) {
+            // Keep the rows on screen where they are
+            mAgendaListView.shiftSelection(shift);
+            mPrefetchPlanner.onRowsShifted(shift);
         }
     }
 
@@ -765,18 +983,19 @@ public class AgendaWindowAdapter extends BaseAdapter
         synchronized (mAdapterInfos) {
             DayAdapterInfo recycleMe = null;
             if (!mAdapterInfos.isEmpty()) {
+                // Don't drop the end that a running query is about to extend. The list is
+                // trimmed back once that query is done.
                 if (mAdapterInfos.size() >= MAX_NUM_OF_ADAPTERS) {
-                    if (queryType == QUERY_TYPE_NEWER) {
+                    if (queryType == QUERY_TYPE_NEWER && !isQueryInFlight(QUERY_TYPE_OLDER)) {
                         recycleMe = mAdapterInfos.removeFirst();
-                    } else if (queryType == QUERY_TYPE_OLDER) {
+                    } else if (queryType == QUERY_TYPE_OLDER
+                            && !isQueryInFlight(QUERY_TYPE_NEWER)) {
                         recycleMe = mAdapterInfos.removeLast();
                         // Keep the size only if the oldest items are removed.
                         recycleMe.size = 0;
                     }
                     if (recycleMe != null) {
-                        if (recycleMe.cursor != null) {
-                            recycleMe.cursor.close();
-                        }
+                        retireCursor(recycleMe);
                         return recycleMe;
                     }
                 }
@@ -788,15 +1007,17 @@ public class AgendaWindowAdapter extends BaseAdapter
                     do {
                         info = mAdapterInfos.poll();
                         if (info != null) {
-                            // TODO the following causes ANR's. Do this in a thread.
-                            info.cursor.close();
+                            retireCursor(info);
                             deletedRows += info.size;
+                            if (recycleMe != null
+                                    && mRecycledInfos.size() < MAX_NUM_OF_RECYCLED_ADAPTERS) {
+                                mRecycledInfos.add(recycleMe);
+                            }
                             recycleMe = info;
                         }
                     } while (info != null);
 
                     if (recycleMe != null) {
-                        recycleMe.cursor = null;
                         recycleMe.size = deletedRows;
                     }
                 }
@@ -805,16 +1026,49 @@ public class AgendaWindowAdapter extends BaseAdapter
         }
     }
 
+    /**
+     * Detaches the cursor of an evicted adapter info and hands it off to be closed in the
+     * background.
+     */
+    private void retireCursor(DayAdapterInfo info) {
+        info.dayAdapter.detachCursor();
+        AgendaCursorRetirer.retire(info.cursor);
+        info.cursor = null;
+        if (BASICLOG) {
+            Log.v(TAG, "Retired " + AgendaCursorRetirer.getRetiredCount() + " windows in "
+                    + AgendaCursorRetirer.getRetireTimeMillis() + "ms");
+        }
+    }
+
     private String buildQuerySelection() {
-        // Respect the preference to show/hide declined events
+        // Declined events and hidden calendars are filtered out by the EventFilter when the
+        // days are calculated
+        return EventFilter.getInstance(mContext).getCalendarSelection();
+    }
 
-        if (mHideDeclined) {
-            return Calendars.VISIBLE + "=1 AND "
-                    + Instances.SELF_ATTENDEE_STATUS + "!="
-                    + Attendees.ATTENDEE_STATUS_DECLINED;
-        } else {
-            return Calendars.VISIBLE + "=1";
+    /**
+     * Returns the selection for the instances of the events the local search index matches,
+     * or null if the provider has to search.
+     */
+    private String buildIndexedSearchSelection(String searchQuery) {
+        if (searchQuery == null) {
+            return null;
+        }
+        long[] eventIds = EventSearchIndex.getInstance(mContext).search(searchQuery,
+                MAX_INDEXED_SEARCH_RESULTS);
+        if (eventIds == null) {
+            return null;
         }
+        StringBuilder selection = new StringBuilder();
+        selection.append('(').append(buildQuerySelection()).append(") AND ");
+        selection.append(Instances.EVENT_ID).append(" IN (");
+        for (int i = 0; i < eventIds.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(eventIds[i]);
+        }
+        return selection.append(')').toString();
     }
 
     private Uri buildQueryUri(int start, int end, String searchQuery) {
@@ -870,14 +1124,71 @@ public class AgendaWindowAdapter extends BaseAdapter
         Boolean queuedQuery;
         synchronized (mQueryQueue) {
             queuedQuery = false;
-            Boolean doQueryNow = mQueryQueue.isEmpty();
             mQueryQueue.add(queryData);
             queuedQuery = true;
-            if (doQueryNow) {
+            startPendingQueries();
+        }
+        return queuedQuery;
+    }
+
+    /**
+     * Starts the queued queries that can run now. A clean query runs alone and holds back
+     * everything queued after it. Otherwise one query for older and one for newer events can
+     * run at the same time. Queries for ranges that are already loaded are dropped.
+     *
+     * Must be called with mQueryQueue locked.
+     */
+    private void startPendingQueries() {
+        Iterator<QuerySpec> it = mQueryQueue.iterator();
+        while (it.hasNext()) {
+            QuerySpec queryData = it.next();
+            if (queryData.inFlight) {
+                if (queryData.queryType == QUERY_TYPE_CLEAN) {
+                    break;
+                }
+                continue;
+            }
+
+            if (queryData.queryType == QUERY_TYPE_CLEAN) {
+                if (!isAnyQueryInFlight()) {
+                    if (DEBUGLOG) Log.e(TAG, "Query accepted. QueueSize:" + mQueryQueue.size());
+                    doQuery(queryData);
+                }
+                break;
+            }
+
+            if (isQueryInFlight(queryData.queryType)) {
+                continue;
+            }
+
+            if (!isInRange(queryData.start, queryData.end)) {
+                // Query accepted
+                if (DEBUGLOG) Log.e(TAG, "Query accepted. QueueSize:" + mQueryQueue.size());
                 doQuery(queryData);
+            } else {
+                // Query rejected
+                it.remove();
+                if (DEBUGLOG) Log.e(TAG, "Query rejected. QueueSize:" + mQueryQueue.size());
             }
         }
-        return queuedQuery;
+    }
+
+    private boolean isQueryInFlight(int queryType) {
+        for (QuerySpec queryData : mQueryQueue) {
+            if (queryData.inFlight && queryData.queryType == queryType) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAnyQueryInFlight() {
+        for (QuerySpec queryData : mQueryQueue) {
+            if (queryData.inFlight) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private void doQuery(QuerySpec queryData) {
@@ -888,17 +1199,29 @@ public class AgendaWindowAdapter extends BaseAdapter
             switch(queryData.queryType) {
                 case QUERY_TYPE_OLDER:
                     queryData.end = start - 1;
-                    queryData.start = queryData.end - queryDuration;
+                    queryData.start = queryData.end
+                            - mPrefetchPlanner.planQueryDuration(false, queryDuration);
                     break;
                 case QUERY_TYPE_NEWER:
                     queryData.start = end + 1;
-                    queryData.end = queryData.start + queryDuration;
+                    queryData.end = queryData.start
+                            + mPrefetchPlanner.planQueryDuration(true, queryDuration);
                     break;
             }
 
+            // Let a page of instances decide where the new window ends. The range computed
+            // above is only used if the page query fails.
+            if (mUsePagedQueries && queryData.queryType != QUERY_TYPE_CLEAN) {
+                doPageQuery(queryData);
+                return;
+            }
+
             // By "compacting" cursors, this fixes the disco/ping-pong problem
             // b/5311977
-            if (mRowCount < 20 && queryData.queryType != QUERY_TYPE_CLEAN) {
+            // Only when nothing else is loading, a clean query would overtake it. Page queries
+            // skip over empty stretches themselves, so this is only needed without them.
+            if (mRowCount < 20 && queryData.queryType != QUERY_TYPE_CLEAN
+                    && !isAnyQueryInFlight()) {
                 if (DEBUGLOG) {
                     Log.e(TAG, "Compacting cursor: mRowCount=" + mRowCount
                             + " totalStart:" + start
@@ -927,24 +1250,101 @@ public class AgendaWindowAdapter extends BaseAdapter
                     + time2.toString() + " then go to " + queryData.goToTime);
         }
 
-        mQueryHandler.cancelOperation(0);
-        if (BASICLOG) queryData.queryStartMillis = System.nanoTime();
+        startWindowQuery(queryData);
+    }
+
+    private void startWindowQuery(QuerySpec queryData) {
+        mQueryHandler.cancelOperation(queryData.queryType);
+        queryData.queryStartMillis = System.nanoTime();
+        queryData.inFlight = true;
+
+        startInstancesQuery(queryData.queryType, queryData, queryData.start, queryData.end,
+                queryData.searchQuery);
+    }
 
-        Uri queryUri = buildQueryUri(
-                queryData.start, queryData.end, queryData.searchQuery);
-        mQueryHandler.startQuery(0, queryData, queryUri,
-                PROJECTION, buildQuerySelection(), null,
+    private void startInstancesQuery(int token, Object cookie, int start, int end,
+            String searchQuery) {
+        String selection = buildIndexedSearchSelection(searchQuery);
+        Uri queryUri;
+        if (selection != null) {
+            queryUri = buildQueryUri(start, end, null);
+        } else {
+            queryUri = buildQueryUri(start, end, searchQuery);
+            selection = buildQuerySelection();
+        }
+        mQueryHandler.startQuery(token, cookie, queryUri,
+                PROJECTION, selection, null,
                 AGENDA_SORT_ORDER);
     }
 
+    /**
+     * Queries the keys of the next page of instances beyond the loaded range. The window query
+     * is started from onQueryComplete once the page tells where the window should end.
+     */
+    private void doPageQuery(QuerySpec queryData) {
+        boolean after = queryData.queryType == QUERY_TYPE_NEWER;
+        int keyDay = after ? queryData.start : queryData.end;
+        int token = queryData.queryType + PAGE_QUERY_TOKEN_OFFSET;
+        queryData.pageSize = mPrefetchPlanner.planPageSize();
+
+        if (BASICLOG) {
+            Log.v(TAG, "startPageQuery: " + (after ? "after " : "before ") + keyDay
+                    + " size " + queryData.pageSize);
+        }
+
+        mQueryHandler.cancelOperation(token);
+        queryData.queryStartMillis = System.nanoTime();
+        queryData.inFlight = true;
+
+        String selection = buildIndexedSearchSelection(queryData.searchQuery);
+        String searchQuery = null;
+        if (selection == null) {
+            selection = buildQuerySelection();
+            searchQuery = queryData.searchQuery;
+        }
+        mQueryHandler.startQuery(token, queryData,
+                AgendaPageQuery.buildUri(keyDay, after, searchQuery),
+                AgendaPageQuery.PROJECTION,
+                AgendaPageQuery.buildSelection(selection, after),
+                AgendaPageQuery.buildDaySelectionArgs(keyDay, after),
+                AgendaPageQuery.buildSortOrder(after, queryData.pageSize));
+    }
+
+    private void onPageQueryComplete(QuerySpec data, Cursor cursor) {
+        if (mShuttingDown) {
+            AgendaCursorRetirer.retire(cursor);
+            return;
+        }
+
+        synchronized (mQueryQueue) {
+            if (cursor == null) {
+                // Keep the range computed from the event density
+                Log.w(TAG, "Page query failed, sizing agenda windows by day ranges");
+                mUsePagedQueries = false;
+            } else {
+                if (data.queryType == QUERY_TYPE_NEWER) {
+                    data.end = AgendaPageQuery.findWindowEdge(cursor, data.start, true,
+                            data.pageSize);
+                } else {
+                    data.start = AgendaPageQuery.findWindowEdge(cursor, data.end, false,
+                            data.pageSize);
+                }
+                AgendaCursorRetirer.retire(cursor);
+            }
+            // Time both queries together, that's how long it takes to get the window
+            long pageQueryStartMillis = data.queryStartMillis;
+            startWindowQuery(data);
+            data.queryStartMillis = pageQueryStartMillis;
+        }
+    }
+
     private String formatDateString(int julianDay) {
         Time time = new Time(mTimeZone);
         time.setJulianDay(julianDay);
         long millis = time.toMillis(false);
-        mStringBuilder.setLength(0);
-        return DateUtils.formatDateRange(mContext, mFormatter, millis, millis,
+        return DateFormatCache.formatDateRange(mContext, millis, millis,
                 DateUtils.FORMAT_SHOW_YEAR | DateUtils.FORMAT_SHOW_DATE
-                        | DateUtils.FORMAT_ABBREV_MONTH, mTimeZone).toString();
+                        | DateUtils.FORMAT_ABBREV_MONTH, mTimeZone);
     }
 
     private void updateHeaderFooter(final int start, final int end) {
@@ -965,7 +1365,20 @@ public class AgendaWindowAdapter extends BaseAdapter
             if (DEBUGLOG) {
                 Log.d(TAG, "(+)onQueryComplete");
             }
+            if (token == BASELINE_QUERY_TOKEN || token == CHANGE_QUERY_TOKEN) {
+                onChangeQueryComplete(token == BASELINE_QUERY_TOKEN, cursor);
+                return;
+            }
+            if (token == PATCH_QUERY_TOKEN) {
+                onPatchQueryComplete((PatchSpec) cookie, cursor);
+                return;
+            }
             QuerySpec data = (QuerySpec)cookie;
+            if (token >= PAGE_QUERY_TOKEN_OFFSET) {
+                onPageQueryComplete(data, cursor);
+                return;
+            }
+            data.inFlight = false;
 
             if (cursor == null) {
               if (mAgendaListView != null && mAgendaListView.getContext() instanceof Activity) {
@@ -974,11 +1387,10 @@ public class AgendaWindowAdapter extends BaseAdapter
               return;
             }
 
+            long queryTimeMs = (System.nanoTime() - data.queryStartMillis) / 1000000;
+            mPrefetchPlanner.onQueryTimed(queryTimeMs);
             if (BASICLOG) {
-                long queryEndMillis = System.nanoTime();
-                Log.e(TAG, "Query time(ms): "
-                        + (queryEndMillis - data.queryStartMillis) / 1000000
-                        + " Count: " + cursor.getCount());
+                Log.e(TAG, "Query time(ms): " + queryTimeMs + " Count: " + cursor.getCount());
             }
 
             if (data.queryType == QUERY_TYPE_CLEAN) {
@@ -986,7 +1398,7 @@ public class AgendaWindowAdapter extends BaseAdapter
             }
 
             if (mShuttingDown) {
-                cursor.close();
+                AgendaCursorRetirer.retire(cursor);
                 return;
             }
 
@@ -999,12 +1411,14 @@ public class AgendaWindowAdapter extends BaseAdapter
                     notifyDataSetChanged();
                     if (listPositionOffset != 0) {
                         mAgendaListView.shiftSelection(listPositionOffset);
+                        mPrefetchPlanner.onRowsShifted(listPositionOffset);
                     }
                 } else { // refresh() called. Go to the designated position
                     final Time goToTime = data.goToTime;
                     notifyDataSetChanged();
                     newPosition = findEventPositionNearestTime(goToTime, data.id);
                     if (newPosition >= 0) {
+                        mPrefetchPlanner.resetVelocity();
                         if (mListViewScrollState == OnScrollListener.SCROLL_STATE_FLING) {
                             mAgendaListView.smoothScrollBy(0, 0);
                         }
@@ -1086,7 +1500,7 @@ public class AgendaWindowAdapter extends BaseAdapter
                     }
                 }
             } else {
-                cursor.close();
+                AgendaCursorRetirer.retire(cursor);
             }
 
             // Update header and footer
@@ -1110,10 +1524,7 @@ public class AgendaWindowAdapter extends BaseAdapter
 
                 if (cursorSize != 0) {
                     // Remove the query that just completed
-                    QuerySpec x = mQueryQueue.poll();
-                    if (BASICLOG && !x.equals(data)) {
-                        Log.e(TAG, "onQueryComplete - cookie != head of queue");
-                    }
+                    mQueryQueue.remove(data);
                     mEmptyCursorCount = 0;
                     if (data.queryType == QUERY_TYPE_NEWER) {
                         mNewerRequestsProcessed++;
@@ -1124,7 +1535,7 @@ public class AgendaWindowAdapter extends BaseAdapter
                     totalAgendaRangeStart = mAdapterInfos.getFirst().start;
                     totalAgendaRangeEnd = mAdapterInfos.getLast().end;
                 } else { // CursorSize == 0
-                    QuerySpec querySpec = mQueryQueue.peek();
+                    QuerySpec querySpec = data;
 
                     // Update Adapter Info with new start and end date range
                     if (!mAdapterInfos.isEmpty()) {
@@ -1167,55 +1578,16 @@ public class AgendaWindowAdapter extends BaseAdapter
 
                     if (++mEmptyCursorCount > RETRIES_ON_NO_DATA) {
                         // Nothing in the cursor again. Dropping query
-                        mQueryQueue.poll();
+                        mQueryQueue.remove(querySpec);
                     }
                 }
 
                 updateHeaderFooter(totalAgendaRangeStart, totalAgendaRangeEnd);
 
-                // Go over the events and mark the first day after yesterday
-                // that has events in it
-                // If the range of adapters doesn't include yesterday, skip marking it since it will
-                // mark the first day in the adapters.
-                synchronized (mAdapterInfos) {
-                    DayAdapterInfo info = mAdapterInfos.getFirst();
-                    Time time = new Time(mTimeZone);
-                    long now = System.currentTimeMillis();
-                    time.set(now);
-                    int JulianToday = Time.getJulianDay(now, time.gmtoff);
-                    if (info != null && JulianToday >= info.start && JulianToday
-                            <= mAdapterInfos.getLast().end) {
-                        Iterator<DayAdapterInfo> iter = mAdapterInfos.iterator();
-                        boolean foundDay = false;
-                        while (iter.hasNext() && !foundDay) {
-                            info = iter.next();
-                            for (int i = 0; i < info.size; i++) {
-                                if (info.dayAdapter.findJulianDayFromPosition(i) >= JulianToday) {
-                                    info.dayAdapter.setAsFirstDayAfterYesterday(i);
-                                    foundDay = true;
-                                    break;
-                                }
-                            }
-                        }
-                    }
-                }
+                markFirstDayAfterYesterday();
 
-                // Fire off the next query if any
-                Iterator<QuerySpec> it = mQueryQueue.iterator();
-                while (it.hasNext()) {
-                    QuerySpec queryData = it.next();
-                    if (queryData.queryType == QUERY_TYPE_CLEAN
-                            || !isInRange(queryData.start, queryData.end)) {
-                        // Query accepted
-                        if (DEBUGLOG) Log.e(TAG, "Query accepted. QueueSize:" + mQueryQueue.size());
-                        doQuery(queryData);
-                        break;
-                    } else {
-                        // Query rejected
-                        it.remove();
-                        if (DEBUGLOG) Log.e(TAG, "Query rejected. QueueSize:" + mQueryQueue.size());
-                    }
-                }
+                // Fire off the next queries if any
+                startPendingQueries();
             }
             if (BASICLOG) {
                 for (DayAdapterInfo info3 : mAdapterInfos) {
@@ -1236,7 +1608,12 @@ public class AgendaWindowAdapter extends BaseAdapter
                 DayAdapterInfo info = pruneAdapterInfo(data.queryType);
                 int listPositionOffset = 0;
                 if (info == null) {
-                    info = new DayAdapterInfo(mContext);
+                    info = mRecycledInfos.poll();
+                    if (info == null) {
+                        info = new DayAdapterInfo(mContext);
+                    } else {
+                        info.size = 0;
+                    }
                 } else {
                     if (DEBUGLOG)
                         Log.e(TAG, "processNewCursor listPositionOffsetA="
@@ -1251,6 +1628,15 @@ public class AgendaWindowAdapter extends BaseAdapter
                 info.dayAdapter.changeCursor(info);
                 info.size = info.dayAdapter.getCount();
 
+                // Feed the event density of this window to the prefetch planner
+                int days = info.end - info.start + 1;
+                if (data.queryType != QUERY_TYPE_OLDER) {
+                    mPrefetchPlanner.onWindowLoaded(true, days, info.size);
+                }
+                if (data.queryType != QUERY_TYPE_NEWER) {
+                    mPrefetchPlanner.onWindowLoaded(false, days, info.size);
+                }
+
                 // Insert into adapterInfos
                 if (mAdapterInfos.isEmpty()
                         || data.end <= mAdapterInfos.getFirst().start) {
@@ -1299,10 +1685,71 @@ public class AgendaWindowAdapter extends BaseAdapter
 
     public void onResume() {
         mTZUpdater.run();
+        EventFilter.getInstance(mContext).addListener(this);
+    }
+
+    public void onPause() {
+        EventFilter.getInstance(mContext).removeListener(this);
+    }
+
+    /**
+     * Go over the events and mark the first day after yesterday that has events in it.
+     * If the range of adapters doesn't include yesterday, skip marking it since it will
+     * mark the first day in the adapters.
+     */
+    private void markFirstDayAfterYesterday() {
+        synchronized (mAdapterInfos) {
+            DayAdapterInfo info = mAdapterInfos.getFirst();
+            Time time = new Time(mTimeZone);
+            long now = System.currentTimeMillis();
+            time.set(now);
+            int JulianToday = Time.getJulianDay(now, time.gmtoff);
+            if (info != null && JulianToday >= info.start && JulianToday
+                    <= mAdapterInfos.getLast().end) {
+                Iterator<DayAdapterInfo> iter = mAdapterInfos.iterator();
+                boolean foundDay = false;
+                while (iter.hasNext() && !foundDay) {
+                    info = iter.next();
+                    for (int i = 0; i < info.size; i++) {
+                        if (info.dayAdapter.findJulianDayFromPosition(i) >= JulianToday) {
+                            info.dayAdapter.setAsFirstDayAfterYesterday(i);
+                            foundDay = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
     }
 
-    public void setHideDeclinedEvents(boolean hideDeclined) {
-        mHideDeclined = hideDeclined;
+    /**
+     * Re-applies the EventFilter to the loaded windows without querying them again, unless
+     * instances that were never loaded have to be shown.
+     */
+    @Override
+    public void onEventFilterChanged(boolean requery) {
+        if (mShuttingDown) {
+            return;
+        }
+        if (requery) {
+            mAgendaListView.refresh(true);
+            return;
+        }
+        synchronized (mAdapterInfos) {
+            mRowCount = 0;
+            for (DayAdapterInfo info : mAdapterInfos) {
+                info.cursor.moveToPosition(-1);
+                info.dayAdapter.calculateDays(info);
+                info.size = info.dayAdapter.getCount();
+                info.offset = mRowCount;
+                mRowCount += info.size;
+            }
+            mLastUsedInfo = null;
+        }
+        if (!mAdapterInfos.isEmpty()) {
+            markFirstDayAfterYesterday();
+        }
+        notifyDataSetChanged();
     }
 
     public void setSelectedView(View v) {
@@ -1408,5 +1855,22 @@ public class AgendaWindowAdapter extends BaseAdapter
 
     public void setScrollState(int state) {
         mListViewScrollState = state;
+        if (state == OnScrollListener.SCROLL_STATE_IDLE) {
+            mPrefetchPlanner.resetVelocity();
+        }
+    }
+
+    /**
+     * Tracks the scroll velocity of the list so that queries for more events start early
+     * enough to complete before a fling reaches the end of the loaded data.
+     *
+     * @param firstVisiblePosition adapter position of the first visible row
+     * @param visibleItemCount number of visible rows
+     */
+    public void onScroll(int firstVisiblePosition, int visibleItemCount) {
+        mPrefetchPlanner.onScroll(firstVisiblePosition, SystemClock.uptimeMillis());
+        if (visibleItemCount > 0) {
+            prefetchIfNeeded(firstVisiblePosition, firstVisiblePosition + visibleItemCount - 1);
+        }
     }
 }
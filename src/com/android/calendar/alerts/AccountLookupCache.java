@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.provider.CalendarContract.Calendars;
+import android.provider.CalendarContract.Events;
+import android.util.Pair;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the calendar of recently seen events and the account of every calendar, so that
+ * GlobalDismissManager doesn't have to query the provider for them on every alert run and
+ * dismissal.
+ *
+ * The calendars are dropped when the Calendars table changes, the events when the Events
+ * table changes. Lookups tell which ids are missing, those are queried by the caller and put
+ * back with the generation read before querying, so that a result which raced with a change
+ * isn't cached.
+ *
+ * Thread safe.
+ */
+class AccountLookupCache {
+    private static final int MAX_CACHED_EVENTS = 256;
+
+    private static AccountLookupCache sInstance;
+
+    // Event id -> calendar id, least recently used first
+    private final LinkedHashMap<Long, Long> mEventCalendars =
+            new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_CACHED_EVENTS;
+        }
+    };
+    // Calendar id -> (account type, account name)
+    private final HashMap<Long, Pair<String, String>> mCalendarAccounts =
+            new HashMap<Long, Pair<String, String>>();
+    private int mEventsGeneration;
+    private int mCalendarsGeneration;
+
+    static synchronized AccountLookupCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AccountLookupCache();
+            sInstance.register(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    // VisibleForTesting
+    AccountLookupCache() {
+    }
+
+    private void register(Context context) {
+        // Called without a handler on a binder thread, the cache is synchronized anyway
+        context.getContentResolver().registerContentObserver(Calendars.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidateCalendars();
+                    }
+                });
+        context.getContentResolver().registerContentObserver(Events.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidateEvents();
+                    }
+                });
+    }
+
+    synchronized int getEventsGeneration() {
+        return mEventsGeneration;
+    }
+
+    synchronized int getCalendarsGeneration() {
+        return mCalendarsGeneration;
+    }
+
+    /**
+     * Adds the cached calendars of the events to the map.
+     *
+     * @return the events that aren't cached
+     */
+    synchronized Set<Long> getEventCalendars(Set<Long> eventIds,
+            Map<Long, Long> eventsToCalendars) {
+        Set<Long> missing = new HashSet<Long>();
+        for (Long eventId : eventIds) {
+            Long calendarId = mEventCalendars.get(eventId);
+            if (calendarId != null) {
+                eventsToCalendars.put(eventId, calendarId);
+            } else {
+                missing.add(eventId);
+            }
+        }
+        return missing;
+    }
+
+    synchronized void putEventCalendars(Map<Long, Long> eventsToCalendars, int generation) {
+        if (generation == mEventsGeneration) {
+            mEventCalendars.putAll(eventsToCalendars);
+        }
+    }
+
+    /**
+     * Adds the cached accounts of the calendars to the map.
+     *
+     * @return the calendars that aren't cached
+     */
+    synchronized Set<Long> getCalendarAccounts(Set<Long> calendarIds,
+            Map<Long, Pair<String, String>> calendarsToAccounts) {
+        Set<Long> missing = new HashSet<Long>();
+        for (Long calendarId : calendarIds) {
+            Pair<String, String> account = mCalendarAccounts.get(calendarId);
+            if (account != null) {
+                calendarsToAccounts.put(calendarId, account);
+            } else {
+                missing.add(calendarId);
+            }
+        }
+        return missing;
+    }
+
+    synchronized void putCalendarAccounts(Map<Long, Pair<String, String>> calendarsToAccounts,
+            int generation) {
+        if (generation == mCalendarsGeneration) {
+            mCalendarAccounts.putAll(calendarsToAccounts);
+        }
+    }
+
+    synchronized void invalidateEvents() {
+        mEventCalendars.clear();
+        mEventsGeneration++;
+    }
+
+    synchronized void invalidateCalendars() {
+        mCalendarAccounts.clear();
+        mCalendarsGeneration++;
+    }
+}
@@ -23,4 +23,6 @@ import android.app.PendingIntent;
  */
 public interface AlarmManagerInterface {
     public void set(int type, long triggerAtMillis, PendingIntent operation);
+
+    public void cancel(PendingIntent operation);
 }
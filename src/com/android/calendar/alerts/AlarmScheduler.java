@@ -42,6 +42,9 @@ import java.util.Map;
 /**
  * Schedules the next EVENT_REMINDER_APP broadcast with AlarmManager, by querying the events
  * and reminders tables for the next upcoming alert.
+ *
+ * The reminders found are kept in a {@link ReminderTimeline}, so that the next alarm can be
+ * scheduled again without querying until the provider data or the time changes.
  */
 public class AlarmScheduler {
     private static final String TAG = "AlarmScheduler";
@@ -92,6 +95,12 @@ public class AlarmScheduler {
     private static final long EVENT_LOOKAHEAD_WINDOW_MS = DateUtils.WEEK_IN_MILLIS;
     private static final long MAX_ALARM_ELAPSED_MS = DateUtils.DAY_IN_MILLIS;
 
+    // How long a timeline answers for. It holds the events starting within the lookahead
+    // window of any time in that period.
+    private static final long TIMELINE_VALIDITY_MS = DateUtils.DAY_IN_MILLIS;
+
+    private static final ReminderTimeline sTimeline = new ReminderTimeline();
+
     /**
      * Schedules the nearest upcoming alarm, to refresh notifications.
      *
@@ -102,40 +111,73 @@ public class AlarmScheduler {
      * a 2 week notification will not fire on time.
      */
     public static void scheduleNextAlarm(Context context) {
-        scheduleNextAlarm(context, AlertUtils.createAlarmManager(context),
+        scheduleNextAlarm(context, sTimeline, AlertUtils.createAlarmManager(context),
                 REMINDER_QUERY_BATCH_SIZE, System.currentTimeMillis());
     }
 
+    /**
+     * Drops the reminders found so far, so that the next alarm is scheduled from the provider
+     * data again. To be called when events, reminders or the time changed.
+     */
+    public static void invalidateTimeline() {
+        sTimeline.invalidate();
+    }
+
     // VisibleForTesting
     static void scheduleNextAlarm(Context context, AlarmManagerInterface alarmManager,
             int batchSize, long currentMillis) {
-        Cursor instancesCursor = null;
-        try {
-            instancesCursor = queryUpcomingEvents(context, context.getContentResolver(),
-                    currentMillis);
-            if (instancesCursor != null) {
-                queryNextReminderAndSchedule(instancesCursor, context,
-                        context.getContentResolver(), alarmManager, batchSize, currentMillis);
-            }
-        } finally {
-            if (instancesCursor != null) {
-                instancesCursor.close();
+        scheduleNextAlarm(context, new ReminderTimeline(), alarmManager, batchSize,
+                currentMillis);
+    }
+
+    // VisibleForTesting
+    static void scheduleNextAlarm(Context context, ReminderTimeline timeline,
+            AlarmManagerInterface alarmManager, int batchSize, long currentMillis) {
+        String timeZone = Time.getCurrentTimezone();
+        if (!timeline.isValid(currentMillis, timeZone)) {
+            timeline.reset(currentMillis, currentMillis + TIMELINE_VALIDITY_MS, timeZone);
+            Cursor instancesCursor = null;
+            boolean built = false;
+            try {
+                instancesCursor = queryUpcomingEvents(context, context.getContentResolver(),
+                        currentMillis);
+                if (instancesCursor != null) {
+                    queryReminders(instancesCursor, context.getContentResolver(), batchSize,
+                            currentMillis, timeline);
+                    built = true;
+                }
+            } finally {
+                if (!built) {
+                    // Don't keep a partial timeline, try again next time
+                    timeline.invalidate();
+                }
+                if (instancesCursor != null) {
+                    instancesCursor.close();
+                }
             }
+        } else if (AlertService.DEBUG) {
+            Log.d(TAG, "Scheduling from the timeline of " + timeline.size() + " reminders");
+        }
+
+        // Schedule the alarm for the next reminder time.
+        if (timeline.findNext(currentMillis, EVENT_LOOKAHEAD_WINDOW_MS)) {
+            scheduleAlarm(context, timeline.getNextEventId(), timeline.getNextAlarmTime(),
+                    currentMillis, alarmManager);
         }
     }
 
     /**
-     * Queries events starting within a fixed interval from now.
+     * Queries events starting within a fixed interval from now, or from any time within the
+     * validity period of a timeline.
      */
     private static Cursor queryUpcomingEvents(Context context, ContentResolver contentResolver,
             long currentMillis) {
-        Time time = new Time();
-        time.normalize(false);
-        long localOffset = time.gmtoff * 1000;
+        long localOffset = getLocalOffset();
         final long localStartMin = currentMillis;
-        final long localStartMax = localStartMin + EVENT_LOOKAHEAD_WINDOW_MS;
+        final long localStartMax = localStartMin + EVENT_LOOKAHEAD_WINDOW_MS
+                + TIMELINE_VALIDITY_MS;
         final long utcStartMin = localStartMin - localOffset;
-        final long utcStartMax = utcStartMin + EVENT_LOOKAHEAD_WINDOW_MS;
+        final long utcStartMax = utcStartMin + EVENT_LOOKAHEAD_WINDOW_MS + TIMELINE_VALIDITY_MS;
 
         // Expand Instances table range by a day on either end to account for
         // all-day events.
@@ -170,12 +212,21 @@ public class AlarmScheduler {
     }
 
     /**
-     * Queries for all the reminders of the events in the instancesCursor, and schedules
-     * the alarm for the next upcoming reminder.
+     * Returns the offset between the UTC start times of all-day events and the start of the
+     * lookahead window.
      */
-    private static void queryNextReminderAndSchedule(Cursor instancesCursor, Context context,
-            ContentResolver contentResolver, AlarmManagerInterface alarmManager,
-            int batchSize, long currentMillis) {
+    private static long getLocalOffset() {
+        Time time = new Time();
+        time.normalize(false);
+        return time.gmtoff * 1000;
+    }
+
+    /**
+     * Queries for all the reminders of the events in the instancesCursor, and adds the ones
+     * still ahead to the timeline.
+     */
+    private static void queryReminders(Cursor instancesCursor, ContentResolver contentResolver,
+            int batchSize, long currentMillis, ReminderTimeline timeline) {
         if (AlertService.DEBUG) {
             int eventCount = instancesCursor.getCount();
             if (eventCount == 0) {
@@ -186,11 +237,10 @@ public class AlarmScheduler {
         }
 
         // Put query results of all events starting within some interval into map of event ID to
-        // local start time.
-        Map<Integer, List<Long>> eventMap = new HashMap<Integer, List<Long>>();
+        // local start time, and the start time the lookahead window applies to.
+        Map<Integer, List<long[]>> eventMap = new HashMap<Integer, List<long[]>>();
         Time timeObj = new Time();
-        long nextAlarmTime = Long.MAX_VALUE;
-        int nextAlarmEventId = 0;
+        long localOffset = getLocalOffset();
         instancesCursor.moveToPosition(-1);
         while (!instancesCursor.isAfterLast()) {
             int index = 0;
@@ -202,21 +252,24 @@ public class AlarmScheduler {
                 long begin = instancesCursor.getLong(INSTANCES_INDEX_BEGIN);
                 boolean allday = instancesCursor.getInt(INSTANCES_INDEX_ALL_DAY) != 0;
                 long localStartTime;
+                long windowBegin;
                 if (allday) {
                     // Adjust allday to local time.
                     localStartTime = Utils.convertAlldayUtcToLocal(timeObj, begin,
                             Time.getCurrentTimezone());
+                    windowBegin = begin + localOffset;
                 } else {
                     localStartTime = begin;
+                    windowBegin = begin;
                 }
-                List<Long> startTimes = eventMap.get(eventId);
+                List<long[]> startTimes = eventMap.get(eventId);
                 if (startTimes == null) {
-                    startTimes = new ArrayList<Long>();
+                    startTimes = new ArrayList<long[]>();
                     eventMap.put(eventId, startTimes);
                     eventIdsForQuery.append(eventId);
                     eventIdsForQuery.append(",");
                 }
-                startTimes.add(localStartTime);
+                startTimes.add(new long[] { localStartTime, windowBegin });
 
                 // Log for debugging.
                 if (Log.isLoggable(TAG, Log.DEBUG)) {
@@ -245,14 +298,14 @@ public class AlarmScheduler {
                 while (cursor.moveToNext()) {
                     int eventId = cursor.getInt(REMINDERS_INDEX_EVENT_ID);
                     int reminderMinutes = cursor.getInt(REMINDERS_INDEX_MINUTES);
-                    List<Long> startTimes = eventMap.get(eventId);
+                    List<long[]> startTimes = eventMap.get(eventId);
                     if (startTimes != null) {
-                        for (Long startTime : startTimes) {
+                        for (long[] times : startTimes) {
+                            long startTime = times[0];
                             long alarmTime = startTime -
                                     reminderMinutes * DateUtils.MINUTE_IN_MILLIS;
-                            if (alarmTime > currentMillis && alarmTime < nextAlarmTime) {
-                                nextAlarmTime = alarmTime;
-                                nextAlarmEventId = eventId;
+                            if (alarmTime > currentMillis) {
+                                timeline.add(alarmTime, eventId, times[1]);
                             }
 
                             if (Log.isLoggable(TAG, Log.DEBUG)) {
@@ -275,11 +328,6 @@ public class AlarmScheduler {
                 }
             }
         }
-
-        // Schedule the alarm for the next reminder time.
-        if (nextAlarmTime < Long.MAX_VALUE) {
-            scheduleAlarm(context, nextAlarmEventId, nextAlarmTime, currentMillis, alarmManager);
-        }
     }
 
     /**
@@ -27,6 +27,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.CalendarContract;
 import android.provider.CalendarContract.CalendarAlerts;
 import android.util.Log;
@@ -134,15 +135,9 @@ public class AlertActivity extends Activity implements OnClickListener {
         initiateGlobalDismiss(alarmIds);
     }
 
-    @SuppressWarnings("unchecked")
     private void initiateGlobalDismiss(List<AlarmId> alarmIds) {
-        new AsyncTask<List<AlarmId>, Void, Void>() {
-            @Override
-            protected Void doInBackground(List<AlarmId>... params) {
-                GlobalDismissManager.dismissGlobally(getApplicationContext(), params[0]);
-                return null;
-            }
-        }.execute(alarmIds);
+        GlobalDismissManager.dismissGloballyAsync(getApplicationContext(), alarmIds,
+                SystemClock.elapsedRealtime());
     }
 
     private class QueryHandler extends AsyncQueryService {
@@ -282,6 +277,7 @@ public class AlertActivity extends Activity implements OnClickListener {
             NotificationManager nm =
                 (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
             nm.cancelAll();
+            PostedNotifications.getInstance().forgetAll();
 
             dismissFiredAlarms();
 
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.util.Log;
+
+import com.android.calendar.alerts.AlertService.NotificationInfo;
+
+import java.util.ArrayList;
+
+/**
+ * Sorts the fired alerts of an AlertService run into the notifications to post, keeping memory
+ * bounded by the max number of notifications rather than by the number of alerts.
+ *
+ * Events have to be added in descending order of start time, as the alerts are queried. At
+ * most maxNotifications high and medium priority events are kept. When there are more, the
+ * latest high priority ones and the earliest medium priority ones are moved to the expired
+ * digest, as soon as it's clear they can't be shown. {@link #finish()} then makes room for the
+ * high priority events by moving medium priority ones to the digest.
+ *
+ * When an event is removed in favor of a later instance, the next event in line is moved back
+ * from the digest to its slot, as if the removed one had never been added. For that the last
+ * maxNotifications high priority events moved to the digest are kept whole.
+ */
+class AlertBuckets {
+    private static final String TAG = "AlertBuckets";
+
+    private final int mMaxNotifications;
+    private final int mMaxShownInDigest;
+
+    // Descending start time
+    private final ArrayList<NotificationInfo> mHighPriority = new ArrayList<NotificationInfo>();
+    private final ArrayList<NotificationInfo> mMediumPriority = new ArrayList<NotificationInfo>();
+    // Events that didn't fit, in the order they go to the digest
+    private final ExpiredDigest mHighBumped;
+    private final ExpiredDigest mMediumBumped;
+    private final ExpiredDigest mLowPriority;
+    // The last high priority events moved to mHighBumped, the next in line last
+    private final ArrayList<NotificationInfo> mHighBumpedTail = new ArrayList<NotificationInfo>();
+
+    // Set by finish()
+    private ExpiredDigest mDigest;
+
+    /**
+     * @param maxNotifications max number of individual notifications
+     * @param maxShownInDigest number of events of the digest to keep whole
+     */
+    AlertBuckets(int maxNotifications, int maxShownInDigest) {
+        mMaxNotifications = maxNotifications;
+        mMaxShownInDigest = maxShownInDigest;
+        mHighBumped = new ExpiredDigest(maxShownInDigest);
+        mMediumBumped = new ExpiredDigest(maxShownInDigest);
+        mLowPriority = new ExpiredDigest(maxShownInDigest);
+    }
+
+    void addHighPriority(NotificationInfo info) {
+        mHighPriority.add(info);
+        if (mHighPriority.size() > mMaxNotifications) {
+            // Too many high priority events, the latest one goes to the digest
+            NotificationInfo bumped = mHighPriority.remove(0);
+            mHighBumped.add(bumped);
+            mHighBumpedTail.add(bumped);
+            if (mHighBumpedTail.size() > mMaxNotifications) {
+                mHighBumpedTail.remove(0);
+            }
+        }
+    }
+
+    void addMediumPriority(NotificationInfo info) {
+        if (mMediumPriority.size() < mMaxNotifications) {
+            mMediumPriority.add(info);
+        } else {
+            mMediumBumped.add(info);
+        }
+    }
+
+    void addLowPriority(NotificationInfo info) {
+        mLowPriority.add(info);
+    }
+
+    /**
+     * Drops the high or medium priority event with the given id, if there is one, also when it
+     * was moved to the digest. Otherwise a later instance replacing it would be shown and be
+     * dismissed along with the digest. An event that was moved to the digest for lack of room
+     * takes the freed slot.
+     */
+    void removeEvent(long eventId) {
+        if (removeEvent(mHighPriority, eventId)) {
+            if (!mHighBumpedTail.isEmpty()) {
+                // The most recently bumped event has the earliest start of the bumped ones
+                NotificationInfo info = mHighBumpedTail.remove(mHighBumpedTail.size() - 1);
+                mHighBumped.remove(info.eventId);
+                mHighPriority.add(0, info);
+            }
+        } else if (removeEvent(mMediumPriority, eventId)) {
+            NotificationInfo info = mMediumBumped.removeFirst();
+            if (info != null) {
+                // Has the latest start of the bumped ones
+                mMediumPriority.add(info);
+            }
+        } else {
+            removeEvent(mHighBumpedTail, eventId);
+            mHighBumped.remove(eventId);
+            mMediumBumped.remove(eventId);
+        }
+    }
+
+    private static boolean removeEvent(ArrayList<NotificationInfo> infos, long eventId) {
+        for (int i = 0; i < infos.size(); i++) {
+            if (infos.get(i).eventId == eventId) {
+                infos.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the medium priority events that don't fit next to the high priority ones to the
+     * digest, and builds the digest.
+     */
+    void finish() {
+        int spaceRemaining = mHighBumped.size() > 0 ? 0
+                : mMaxNotifications - mHighPriority.size();
+
+        mDigest = new ExpiredDigest(mMaxShownInDigest);
+        mDigest.addAll(mHighBumped);
+        // Concurrent events with an earlier start time are further in the past and less
+        // important, they are the ones moved.
+        for (int i = spaceRemaining; i < mMediumPriority.size(); i++) {
+            mDigest.add(mMediumPriority.get(i));
+        }
+        if (spaceRemaining < mMediumPriority.size()) {
+            mMediumPriority.subList(spaceRemaining, mMediumPriority.size()).clear();
+        }
+        mDigest.addAll(mMediumBumped);
+        mDigest.addAll(mLowPriority);
+
+        if (AlertService.DEBUG) {
+            int bumped = mDigest.size() - mLowPriority.size();
+            if (bumped > 0) {
+                Log.d(TAG, "Reached max postings, bumping " + bumped + " events to digest.");
+            }
+        }
+    }
+
+    /**
+     * Returns the high priority events to post, in descending order of start time.
+     */
+    ArrayList<NotificationInfo> getHighPriorityEvents() {
+        return mHighPriority;
+    }
+
+    /**
+     * Returns the medium priority events to post, in descending order of start time.
+     */
+    ArrayList<NotificationInfo> getMediumPriorityEvents() {
+        return mMediumPriority;
+    }
+
+    /**
+     * Returns the events of the expired digest. Only valid after {@link #finish()}.
+     */
+    ExpiredDigest getExpiredDigest() {
+        return mDigest;
+    }
+}
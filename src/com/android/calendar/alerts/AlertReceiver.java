@@ -33,7 +33,6 @@ import android.provider.CalendarContract.Attendees;
 import android.provider.CalendarContract.Calendars;
 import android.provider.CalendarContract.Events;
 import android.telephony.TelephonyManager;
-import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.text.style.RelativeSizeSpan;
@@ -261,14 +260,14 @@ public class AlertReceiver extends BroadcastReceiver {
             int notificationId, boolean doPopup, int priority) {
         Notification n = buildBasicNotification(new Notification.Builder(context),
                 context, title, summaryText, startMillis, endMillis, eventId, notificationId,
-                doPopup, priority, false);
+                doPopup, priority, false, null);
         return new NotificationWrapper(n, notificationId, eventId, startMillis, endMillis, doPopup);
     }
 
     private static Notification buildBasicNotification(Notification.Builder notificationBuilder,
             Context context, String title, String summaryText, long startMillis, long endMillis,
             long eventId, int notificationId, boolean doPopup, int priority,
-            boolean addActionButtons) {
+            boolean addActionButtons, NotificationPrefetch prefetch) {
         Resources resources = context.getResources();
         if (title == null || title.length() == 0) {
             title = resources.getString(R.string.no_title_label);
@@ -300,13 +299,21 @@ public class AlertReceiver extends BroadcastReceiver {
             //    not automatically close the notification shade.
             // 2) Event information will always be up to date.
 
+            NotificationPrefetch.EventContent content =
+                    prefetch != null ? prefetch.get(eventId) : null;
+
             // Create map and/or call intents.
-            URLSpan[] urlSpans = getURLSpans(context, eventId);
+            URLSpan[] urlSpans = content != null ? content.urlSpans
+                    : getURLSpans(context, eventId);
             mapIntent = createMapBroadcastIntent(context, urlSpans, eventId);
             callIntent = createCallBroadcastIntent(context, urlSpans, eventId);
 
             // Create email intent for emailing attendees.
-            emailIntent = createBroadcastMailIntent(context, eventId, title);
+            if (content == null) {
+                emailIntent = createBroadcastMailIntent(context, eventId, title);
+            } else if (content.hasEmailableAttendee) {
+                emailIntent = createMailBroadcastIntent(context, eventId);
+            }
 
             // Create snooze intent.  TODO: change snooze to 10 minutes.
             snoozeIntent = createSnoozeIntent(context, eventId, startMillis, endMillis,
@@ -411,10 +418,21 @@ public class AlertReceiver extends BroadcastReceiver {
     public static NotificationWrapper makeExpandingNotification(Context context, String title,
             String summaryText, String description, long startMillis, long endMillis, long eventId,
             int notificationId, boolean doPopup, int priority) {
+        return makeExpandingNotification(context, title, summaryText, description, startMillis,
+                endMillis, eventId, notificationId, doPopup, priority, null);
+    }
+
+    /**
+     * @param prefetch the content of the action buttons loaded for all notifications of the
+     *     refresh, or null to query it for this event
+     */
+    static NotificationWrapper makeExpandingNotification(Context context, String title,
+            String summaryText, String description, long startMillis, long endMillis, long eventId,
+            int notificationId, boolean doPopup, int priority, NotificationPrefetch prefetch) {
         Notification.Builder basicBuilder = new Notification.Builder(context);
         Notification notification = buildBasicNotification(basicBuilder, context, title,
                 summaryText, startMillis, endMillis, eventId, notificationId, doPopup,
-                priority, true);
+                priority, true, prefetch);
         if (Utils.isJellybeanOrLater()) {
             // Create a new-style expanded notification
             Notification.BigTextStyle expandedBuilder = new Notification.BigTextStyle();
@@ -443,23 +461,19 @@ public class AlertReceiver extends BroadcastReceiver {
     }
 
     /**
-     * Creates an expanding digest notification for expired events.
+     * Creates an expanding digest notification for expired events. Only the events the digest
+     * keeps whole are listed.
      */
-    public static NotificationWrapper makeDigestNotification(Context context,
-            ArrayList<AlertService.NotificationInfo> notificationInfos, String digestTitle,
-            boolean expandable) {
-        if (notificationInfos == null || notificationInfos.size() < 1) {
+    static NotificationWrapper makeDigestNotification(Context context, ExpiredDigest digest,
+            String digestTitle, boolean expandable) {
+        if (digest.size() < 1) {
             return null;
         }
 
         Resources res = context.getResources();
-        int numEvents = notificationInfos.size();
-        long[] eventIds = new long[notificationInfos.size()];
-        long[] startMillis = new long[notificationInfos.size()];
-        for (int i = 0; i < notificationInfos.size(); i++) {
-            eventIds[i] = notificationInfos.get(i).eventId;
-            startMillis[i] = notificationInfos.get(i).startMillis;
-        }
+        int numEvents = digest.size();
+        long[] eventIds = digest.getEventIds();
+        long[] startMillis = digest.getStartMillis();
 
         // Create an intent triggered by clicking on the status icon that shows the alerts list.
         PendingIntent pendingClickIntent = createAlertActivityIntent(context);
@@ -497,7 +511,7 @@ public class AlertReceiver extends BroadcastReceiver {
                 // Multiple reminders.  Combine into an expanded digest notification.
                 Notification.InboxStyle expandedBuilder = new Notification.InboxStyle();
                 int i = 0;
-                for (AlertService.NotificationInfo info : notificationInfos) {
+                for (AlertService.NotificationInfo info : digest.getShownEvents()) {
                     if (i < NOTIFICATION_DIGEST_MAX_LENGTH) {
                         String name = info.eventName;
                         if (TextUtils.isEmpty(name)) {
@@ -570,9 +584,9 @@ public class AlertReceiver extends BroadcastReceiver {
 
         NotificationWrapper nw = new NotificationWrapper(n);
         if (AlertService.DEBUG) {
-            for (AlertService.NotificationInfo info : notificationInfos) {
-                nw.add(new NotificationWrapper(null, 0, info.eventId, info.startMillis,
-                        info.endMillis, false));
+            for (int i = 0; i < digest.size(); i++) {
+                nw.add(new NotificationWrapper(null, 0, digest.getEventId(i),
+                        digest.getStartMillis(i), digest.getEndMillis(i), false));
             }
         }
         return nw;
@@ -648,12 +662,7 @@ public class AlertReceiver extends BroadcastReceiver {
                 do {
                     String email = attendeesCursor.getString(ATTENDEES_INDEX_EMAIL);
                     if (Utils.isEmailableFrom(email, syncAccount)) {
-                        Intent broadcastIntent = new Intent(MAIL_ACTION);
-                        broadcastIntent.setClass(context, AlertReceiver.class);
-                        broadcastIntent.putExtra(EXTRA_EVENT_ID, eventId);
-                        return PendingIntent.getBroadcast(context,
-                                Long.valueOf(eventId).hashCode(), broadcastIntent,
-                                PendingIntent.FLAG_CANCEL_CURRENT);
+                        return createMailBroadcastIntent(context, eventId);
                     }
                 } while (attendeesCursor.moveToNext());
             }
@@ -666,6 +675,14 @@ public class AlertReceiver extends BroadcastReceiver {
         }
     }
 
+    private static PendingIntent createMailBroadcastIntent(Context context, long eventId) {
+        Intent broadcastIntent = new Intent(MAIL_ACTION);
+        broadcastIntent.setClass(context, AlertReceiver.class);
+        broadcastIntent.putExtra(EXTRA_EVENT_ID, eventId);
+        return PendingIntent.getBroadcast(context, Long.valueOf(eventId).hashCode(),
+                broadcastIntent, PendingIntent.FLAG_CANCEL_CURRENT);
+    }
+
     /**
      * Creates an Intent for emailing the attendees of the event.  Returns null if there
      * are no emailable attendees.
@@ -758,12 +775,7 @@ public class AlertReceiver extends BroadcastReceiver {
         URLSpan[] urlSpans = new URLSpan[0];
         if (locationCursor != null && locationCursor.moveToFirst()) {
             String location = locationCursor.getString(0); // Only one item in this cursor.
-            if (location != null && !location.isEmpty()) {
-                Spannable text = Utils.extendedLinkify(location, true);
-                // The linkify method should have found at least one link, at the very least.
-                // If no smart links were found, it should have set the whole string as a geo link.
-                urlSpans = text.getSpans(0, text.length(), URLSpan.class);
-            }
+            urlSpans = NotificationPrefetch.getURLSpans(eventId, location);
             locationCursor.close();
         }
 
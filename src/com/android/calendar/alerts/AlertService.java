@@ -19,11 +19,13 @@ package com.android.calendar.alerts;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.Service;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
@@ -34,6 +36,8 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.CalendarContract;
 import android.provider.CalendarContract.Attendees;
 import android.provider.CalendarContract.CalendarAlerts;
@@ -49,7 +53,6 @@ import com.android.calendar.Utils;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.TimeZone;
 
 /**
@@ -62,6 +65,17 @@ public class AlertService extends Service {
     private volatile Looper mServiceLooper;
     private volatile ServiceHandler mServiceHandler;
 
+    // Message of the service handler that runs the work queue
+    private static final int MSG_RUN_WORK = 1;
+
+    // Delay of the work requested by a provider change, see b/7652098 below
+    private static final long PROVIDER_CHANGED_WORK_DELAY_MS = 5000;
+    // Delay of the work requested by a time change, to merge the other broadcasts sent with it
+    private static final long TIME_CHANGE_WORK_DELAY_MS = 1000;
+
+    // Only used on the service thread
+    private AlertWorkQueue mWorkQueue;
+
     static final String[] ALERT_PROJECTION = new String[] {
         CalendarAlerts._ID,                     // 0
         CalendarAlerts.EVENT_ID,                // 1
@@ -111,6 +125,9 @@ public class AlertService extends Service {
     // Hard limit to the number of notifications displayed.
     public static final int MAX_NOTIFICATIONS = 20;
 
+    // Max number of alert updates written to the provider in one transaction.
+    private static final int MAX_UPDATE_BATCH_SIZE = 100;
+
     // Shared prefs key for storing whether the EVENT_REMINDER event from the provider
     // was ever received.  Some OEMs modified this provider broadcast, so we had to
     // do the alarm scheduling here in the app, for the unbundled app's reminders to work.
@@ -170,8 +187,15 @@ public class AlertService extends Service {
         }
     }
 
-    void processMessage(Message msg) {
+    /**
+     * Handles the intent in the message. The work it needs is requested from the work queue.
+     *
+     * @return true if work was requested
+     */
+    boolean processMessage(Message msg) {
         Bundle bundle = (Bundle) msg.obj;
+        int work = 0;
+        long workDelay = 0;
 
         // On reboot, update the notification bar with the contents of the
         // CalendarAlerts table.
@@ -209,11 +233,9 @@ public class AlertService extends Service {
             // notifications to help issue with the unbundled app installed on HTC having
             // stale notifications.
             if (action.equals(Intent.ACTION_PROVIDER_CHANGED)) {
-                try {
-                    Thread.sleep(5000);
-                } catch (Exception e) {
-                    // Ignore.
-                }
+                // Events or reminders may have changed
+                AlarmScheduler.invalidateTimeline();
+                workDelay = PROVIDER_CHANGED_WORK_DELAY_MS;
             }
 
             // If we dismissed a notification for a new event, then we need to sync the cache when
@@ -222,8 +244,8 @@ public class AlertService extends Service {
             // until it notifies us that the sync adapter has finished.
             // TODO(psliwowski): Find a quicker way to be notified when the data provider has the
             // syncId for event.
-            GlobalDismissManager.syncSenderDismissCache(this);
-            updateAlertNotification(this);
+            work |= AlertWorkQueue.WORK_SYNC_DISMISSALS
+                    | AlertWorkQueue.WORK_REFRESH_NOTIFICATIONS;
         } else if (action.equals(Intent.ACTION_BOOT_COMPLETED)) {
             // The provider usually initiates this setting up of alarms on startup,
             // but there was a bug (b/7221716) where a race condition caused this step to be
@@ -237,7 +259,10 @@ public class AlertService extends Service {
             intent.setClass(this, InitAlarmsService.class);
             startService(intent);
         } else if (action.equals(Intent.ACTION_TIME_CHANGED)) {
-            doTimeChanged();
+            AlarmScheduler.invalidateTimeline();
+            work |= AlertWorkQueue.WORK_RESCHEDULE_MISSED
+                    | AlertWorkQueue.WORK_REFRESH_NOTIFICATIONS;
+            workDelay = TIME_CHANGE_WORK_DELAY_MS;
         } else if (action.equals(AlertReceiver.ACTION_DISMISS_OLD_REMINDERS)) {
             dismissOldAlerts(this);
         } else {
@@ -248,6 +273,32 @@ public class AlertService extends Service {
         if (sReceivedProviderReminderBroadcast == null || !sReceivedProviderReminderBroadcast) {
             Log.d(TAG, "Scheduling next alarm with AlarmScheduler. "
                    + "sEventReminderReceived: " + sReceivedProviderReminderBroadcast);
+            work |= AlertWorkQueue.WORK_SCHEDULE_NEXT_ALARM;
+        }
+
+        if (work == 0) {
+            return false;
+        }
+        mWorkQueue.request(work, workDelay);
+        return true;
+    }
+
+    /**
+     * Does the work merged by the work queue.
+     */
+    private void doWork(int work) {
+        if ((work & AlertWorkQueue.WORK_SYNC_DISMISSALS) != 0) {
+            GlobalDismissManager.syncSenderDismissCache(this);
+        }
+        if ((work & AlertWorkQueue.WORK_RESCHEDULE_MISSED) != 0) {
+            // TODO Move this into Provider
+            rescheduleMissedAlarms(getContentResolver(), this,
+                    AlertUtils.createAlarmManager(this));
+        }
+        if ((work & AlertWorkQueue.WORK_REFRESH_NOTIFICATIONS) != 0) {
+            updateAlertNotification(this);
+        }
+        if ((work & AlertWorkQueue.WORK_SCHEDULE_NEXT_ALARM) != 0) {
             AlarmScheduler.scheduleNextAlarm(this);
         }
     }
@@ -281,6 +332,7 @@ public class AlertService extends Service {
             // If we shouldn't be showing notifications cancel any existing ones
             // and return.
             nm.cancelAll();
+            PostedNotifications.getInstance().forgetAll();
             return true;
         }
 
@@ -297,42 +349,63 @@ public class AlertService extends Service {
 
             if (DEBUG) Log.d(TAG, "No fired or scheduled alerts");
             nm.cancelAll();
+            PostedNotifications.getInstance().forgetAll();
             return false;
         }
 
         return generateAlerts(context, nm, AlertUtils.createAlarmManager(context), prefs,
-                alertCursor, currentTime, MAX_NOTIFICATIONS);
+                alertCursor, currentTime, MAX_NOTIFICATIONS, PostedNotifications.getInstance());
     }
 
     public static boolean generateAlerts(Context context, NotificationMgr nm,
             AlarmManagerInterface alarmMgr, SharedPreferences prefs, Cursor alertCursor,
             final long currentTime, final int maxNotifications) {
+        return generateAlerts(context, nm, alarmMgr, prefs, alertCursor, currentTime,
+                maxNotifications, null);
+    }
+
+    /**
+     * @param posted what was posted by the previous refresh, to skip the notifications that
+     *     didn't change. If null every notification is posted and every leftover id cancelled.
+     */
+    static boolean generateAlerts(Context context, NotificationMgr nm,
+            AlarmManagerInterface alarmMgr, SharedPreferences prefs, Cursor alertCursor,
+            final long currentTime, final int maxNotifications, PostedNotifications posted) {
         if (DEBUG) {
             Log.d(TAG, "alertCursor count:" + alertCursor.getCount());
         }
-
-        // Process the query results and bucketize events.
-        ArrayList<NotificationInfo> highPriorityEvents = new ArrayList<NotificationInfo>();
-        ArrayList<NotificationInfo> mediumPriorityEvents = new ArrayList<NotificationInfo>();
-        ArrayList<NotificationInfo> lowPriorityEvents = new ArrayList<NotificationInfo>();
-        int numFired = processQuery(alertCursor, context, currentTime, highPriorityEvents,
-                mediumPriorityEvents, lowPriorityEvents);
+        final long startTime = SystemClock.elapsedRealtime();
+
+        // Process the query results and bucketize events.  If there are more high/medium
+        // priority events than we can show, some are bumped to the low priority digest.
+        AlertBuckets buckets = new AlertBuckets(maxNotifications, ExpiredDigest.MAX_SHOWN);
+        int numFired = processQuery(alertCursor, context, currentTime, buckets);
+        buckets.finish();
+        ArrayList<NotificationInfo> highPriorityEvents = buckets.getHighPriorityEvents();
+        ArrayList<NotificationInfo> mediumPriorityEvents = buckets.getMediumPriorityEvents();
+        ExpiredDigest expiredDigest = buckets.getExpiredDigest();
+        final long processQueryTime = SystemClock.elapsedRealtime();
 
         if (highPriorityEvents.size() + mediumPriorityEvents.size()
-                + lowPriorityEvents.size() == 0) {
-            nm.cancelAll();
+                + expiredDigest.size() == 0) {
+            cancelBetween(nm, posted, 0, maxNotifications);
+            if (posted != null) {
+                posted.setKnown();
+            }
+            if (DEBUG) {
+                Log.d(TAG, "generateAlerts took " + (processQueryTime - startTime)
+                        + " ms, nothing to post");
+            }
             return true;
         }
 
         long nextRefreshTime = Long.MAX_VALUE;
         int currentNotificationId = 1;
+        int numSkipped = 0;
         NotificationPrefs notificationPrefs = new NotificationPrefs(context, prefs,
                 (numFired == 0));
-
-        // If there are more high/medium priority events than we can show, bump some to
-        // the low priority digest.
-        redistributeBuckets(highPriorityEvents, mediumPriorityEvents, lowPriorityEvents,
-                maxNotifications);
+        NotificationPrefetch prefetch = new NotificationPrefetch(context,
+                getEventIds(highPriorityEvents, mediumPriorityEvents));
 
         // Post the individual higher priority events (future and recently started
         // concurrent events).  Order these so that earlier start times appear higher in
@@ -341,8 +414,10 @@ public class AlertService extends Service {
             NotificationInfo info = highPriorityEvents.get(i);
             String summaryText = AlertUtils.formatTimeLocation(context, info.startMillis,
                     info.allDay, info.location);
-            postNotification(info, summaryText, context, true, notificationPrefs, nm,
-                    currentNotificationId++);
+            if (!postNotificationIfChanged(info, summaryText, context, true, notificationPrefs,
+                    nm, posted, prefetch, currentNotificationId++)) {
+                numSkipped++;
+            }
 
             // Keep concurrent events high priority (to appear higher in the notification list)
             // until 15 minutes into the event.
@@ -360,21 +435,29 @@ public class AlertService extends Service {
             // This requires constant refreshing to the message as time goes.
             String summaryText = AlertUtils.formatTimeLocation(context, info.startMillis,
                     info.allDay, info.location);
-            postNotification(info, summaryText, context, false, notificationPrefs, nm,
-                    currentNotificationId++);
+            if (!postNotificationIfChanged(info, summaryText, context, false, notificationPrefs,
+                    nm, posted, prefetch, currentNotificationId++)) {
+                numSkipped++;
+            }
 
             // Refresh when concurrent event ends so it will drop into the expired digest.
             nextRefreshTime = Math.min(nextRefreshTime, getNextRefreshTime(info, currentTime));
         }
 
         // Post the low priority events as 1 combined notification.
-        int numLowPriority = lowPriorityEvents.size();
-        if (numLowPriority > 0) {
-            String expiredDigestTitle = getDigestTitle(lowPriorityEvents);
+        int numLowPriority = expiredDigest.size();
+        String expiredDigestTitle = expiredDigest.getTitle();
+        long digestHash = numLowPriority > 0
+                ? PostedNotifications.hashDigest(expiredDigest, expiredDigestTitle) : 0;
+        if (numLowPriority > 0 && posted != null
+                && posted.isUnchanged(AlertUtils.EXPIRED_GROUP_NOTIFICATION_ID, digestHash)) {
+            // The digest is always posted quietly, nothing is lost by leaving it as it is.
+            numSkipped++;
+        } else if (numLowPriority > 0) {
             NotificationWrapper notification;
             if (numLowPriority == 1) {
                 // If only 1 expired event, display an "old-style" basic alert.
-                NotificationInfo info = lowPriorityEvents.get(0);
+                NotificationInfo info = expiredDigest.getShownEvents().get(0);
                 String summaryText = AlertUtils.formatTimeLocation(context, info.startMillis,
                         info.allDay, info.location);
                 notification = AlertReceiver.makeBasicNotification(context, info.eventName,
@@ -384,7 +467,7 @@ public class AlertService extends Service {
             } else {
                 // Multiple expired events are listed in a digest.
                 notification = AlertReceiver.makeDigestNotification(context,
-                    lowPriorityEvents, expiredDigestTitle, false);
+                    expiredDigest, expiredDigestTitle, false);
             }
 
             // Add options for a quiet update.
@@ -400,8 +483,12 @@ public class AlertService extends Service {
 
             // Post the new notification for the group.
             nm.notify(AlertUtils.EXPIRED_GROUP_NOTIFICATION_ID, notification);
+            if (posted != null) {
+                posted.setPosted(AlertUtils.EXPIRED_GROUP_NOTIFICATION_ID, digestHash);
+            }
         } else {
-            nm.cancel(AlertUtils.EXPIRED_GROUP_NOTIFICATION_ID);
+            cancelBetween(nm, posted, AlertUtils.EXPIRED_GROUP_NOTIFICATION_ID,
+                    AlertUtils.EXPIRED_GROUP_NOTIFICATION_ID);
             if (DEBUG) {
                 Log.d(TAG, "No low priority events, canceling the digest notification.");
             }
@@ -409,12 +496,18 @@ public class AlertService extends Service {
 
         // Remove the notifications that are hanging around from the previous refresh.
         if (currentNotificationId <= maxNotifications) {
-            nm.cancelAllBetween(currentNotificationId, maxNotifications);
+            cancelBetween(nm, posted, currentNotificationId, maxNotifications);
             if (DEBUG) {
                 Log.d(TAG, "Canceling leftover notification IDs " + currentNotificationId + "-"
                         + maxNotifications);
             }
         }
+        if (posted != null) {
+            posted.setKnown();
+        }
+        if (DEBUG && numSkipped > 0) {
+            Log.d(TAG, "Skipped " + numSkipped + " unchanged notifications");
+        }
 
         // Schedule the next silent refresh time so notifications will change
         // buckets (eg. drop into expired digest, etc).
@@ -435,79 +528,13 @@ public class AlertService extends Service {
         // Flushes old fired alerts from internal storage, if needed.
         AlertUtils.flushOldAlertsFromInternalStorage(context);
 
-        return true;
-    }
-
-    /**
-     * Redistributes events in the priority lists based on the max # of notifications we
-     * can show.
-     */
-    static void redistributeBuckets(ArrayList<NotificationInfo> highPriorityEvents,
-            ArrayList<NotificationInfo> mediumPriorityEvents,
-            ArrayList<NotificationInfo> lowPriorityEvents, int maxNotifications) {
-
-        // If too many high priority alerts, shift the remaining high priority and all the
-        // medium priority ones to the low priority bucket.  Note that order is important
-        // here; these lists are sorted by descending start time.  Maintain that ordering
-        // so posted notifications are in the expected order.
-        if (highPriorityEvents.size() > maxNotifications) {
-            // Move mid-priority to the digest.
-            lowPriorityEvents.addAll(0, mediumPriorityEvents);
-
-            // Move the rest of the high priority ones (latest ones) to the digest.
-            List<NotificationInfo> itemsToMoveSublist = highPriorityEvents.subList(
-                    0, highPriorityEvents.size() - maxNotifications);
-            // TODO: What order for high priority in the digest?
-            lowPriorityEvents.addAll(0, itemsToMoveSublist);
-            if (DEBUG) {
-                logEventIdsBumped(mediumPriorityEvents, itemsToMoveSublist);
-            }
-            mediumPriorityEvents.clear();
-            // Clearing the sublist view removes the items from the highPriorityEvents list.
-            itemsToMoveSublist.clear();
-        }
-
-        // Bump the medium priority events if necessary.
-        if (mediumPriorityEvents.size() + highPriorityEvents.size() > maxNotifications) {
-            int spaceRemaining = maxNotifications - highPriorityEvents.size();
-
-            // Reached our max, move the rest to the digest.  Since these are concurrent
-            // events, we move the ones with the earlier start time first since they are
-            // further in the past and less important.
-            List<NotificationInfo> itemsToMoveSublist = mediumPriorityEvents.subList(
-                    spaceRemaining, mediumPriorityEvents.size());
-            lowPriorityEvents.addAll(0, itemsToMoveSublist);
-            if (DEBUG) {
-                logEventIdsBumped(itemsToMoveSublist, null);
-            }
-
-            // Clearing the sublist view removes the items from the mediumPriorityEvents list.
-            itemsToMoveSublist.clear();
-        }
-    }
-
-    private static void logEventIdsBumped(List<NotificationInfo> list1,
-            List<NotificationInfo> list2) {
-        StringBuilder ids = new StringBuilder();
-        if (list1 != null) {
-            for (NotificationInfo info : list1) {
-                ids.append(info.eventId);
-                ids.append(",");
-            }
-        }
-        if (list2 != null) {
-            for (NotificationInfo info : list2) {
-                ids.append(info.eventId);
-                ids.append(",");
-            }
-        }
-        if (ids.length() > 0 && ids.charAt(ids.length() - 1) == ',') {
-            ids.setLength(ids.length() - 1);
-        }
-        if (ids.length() > 0) {
-            Log.d(TAG, "Reached max postings, bumping event IDs {" + ids.toString()
-                    + "} to digest.");
+        if (DEBUG) {
+            long endTime = SystemClock.elapsedRealtime();
+            Log.d(TAG, "generateAlerts took " + (endTime - startTime) + " ms, processQuery "
+                    + (processQueryTime - startTime) + " ms, posting "
+                    + (endTime - processQueryTime) + " ms");
         }
+        return true;
     }
 
     private static long getNextRefreshTime(NotificationInfo info, long currentTime) {
@@ -537,20 +564,14 @@ public class AlertService extends Service {
     }
 
     /**
-     * Processes the query results and bucketizes the alerts.
+     * Processes the query results and adds the alerts to the buckets, which are left to be
+     * finished by the caller.
      *
-     * @param highPriorityEvents This will contain future events, and concurrent events
-     *     that started recently (less than the interval DEPRIORITIZE_GRACE_PERIOD_MS).
-     * @param mediumPriorityEvents This will contain concurrent events that started
-     *     more than DEPRIORITIZE_GRACE_PERIOD_MS ago.
-     * @param lowPriorityEvents Will contain events that have ended.
      * @return Returns the number of new alerts to fire.  If this is 0, it implies
      *     a quiet update.
      */
     static int processQuery(final Cursor alertCursor, final Context context,
-            final long currentTime, ArrayList<NotificationInfo> highPriorityEvents,
-            ArrayList<NotificationInfo> mediumPriorityEvents,
-            ArrayList<NotificationInfo> lowPriorityEvents) {
+            final long currentTime, AlertBuckets buckets) {
         // Experimental reminder setting to only remind for events that have
         // been responded to with "yes" or "maybe".
         String skipRemindersPref = Utils.getSharedPreference(context,
@@ -561,37 +582,13 @@ public class AlertService extends Service {
         boolean remindRespondedOnly = skipRemindersPref.equals(context.getResources().
                 getStringArray(R.array.preferences_skip_reminders_values)[1]);
         // Experimental reminder setting to silence reminders when they are
-        // during the pre-defined quiet hours.
-        boolean useQuietHours = Utils.getSharedPreference(context,
-                OtherPreferences.KEY_OTHER_QUIET_HOURS, false);
-        // Note that the start time may be either before or after the end time,
-        // depending on whether quiet hours cross through midnight.
-        int quietHoursStartHour =
-                OtherPreferences.QUIET_HOURS_DEFAULT_START_HOUR;
-        int quietHoursStartMinute =
-                OtherPreferences.QUIET_HOURS_DEFAULT_START_MINUTE;
-        int quietHoursEndHour =
-                OtherPreferences.QUIET_HOURS_DEFAULT_END_HOUR;
-        int quietHoursEndMinute =
-                OtherPreferences.QUIET_HOURS_DEFAULT_END_MINUTE;
-        if (useQuietHours) {
-            quietHoursStartHour = Utils.getSharedPreference(context,
-                    OtherPreferences.KEY_OTHER_QUIET_HOURS_START_HOUR,
-                    OtherPreferences.QUIET_HOURS_DEFAULT_START_HOUR);
-            quietHoursStartMinute = Utils.getSharedPreference(context,
-                    OtherPreferences.KEY_OTHER_QUIET_HOURS_START_MINUTE,
-                    OtherPreferences.QUIET_HOURS_DEFAULT_START_MINUTE);
-            quietHoursEndHour = Utils.getSharedPreference(context,
-                    OtherPreferences.KEY_OTHER_QUIET_HOURS_END_HOUR,
-                    OtherPreferences.QUIET_HOURS_DEFAULT_END_HOUR);
-            quietHoursEndMinute = Utils.getSharedPreference(context,
-                    OtherPreferences.KEY_OTHER_QUIET_HOURS_END_MINUTE,
-                    OtherPreferences.QUIET_HOURS_DEFAULT_END_MINUTE);
-        }
-        Time time = new Time();
+        // during the pre-defined quiet hours.  Null if not set.
+        QuietHoursPolicy quietHours = QuietHoursPolicy.fromPreferences(context, currentTime);
 
         ContentResolver cr = context.getContentResolver();
-        HashMap<Long, NotificationInfo> eventIds = new HashMap<Long, NotificationInfo>();
+        ArrayList<ContentProviderOperation> updates = new ArrayList<ContentProviderOperation>();
+        // Event ID -> start time of the instance picked for its notification
+        HashMap<Long, Long> eventIds = new HashMap<Long, Long>();
         int numFired = 0;
         try {
             while (alertCursor.moveToNext()) {
@@ -610,46 +607,8 @@ public class AlertService extends Service {
                 final Uri alertUri = ContentUris
                         .withAppendedId(CalendarAlerts.CONTENT_URI, alertId);
                 final long alarmTime = alertCursor.getLong(ALERT_INDEX_ALARM_TIME);
-                boolean forceQuiet = false;
-                if (useQuietHours) {
-                    // Quiet hours have been set.
-                    time.set(alarmTime);
-                    // Check whether the alarm will fire after the quiet hours
-                    // start time and/or before the quiet hours end time.
-                    boolean alarmAfterQuietHoursStart =
-                            (time.hour > quietHoursStartHour ||
-                                    (time.hour == quietHoursStartHour
-                                    && time.minute >= quietHoursStartMinute));
-                    boolean alarmBeforeQuietHoursEnd =
-                            (time.hour < quietHoursEndHour ||
-                                    (time.hour == quietHoursEndHour
-                                    && time.minute <= quietHoursEndMinute));
-                    // Check if quiet hours crosses through midnight, iff:
-                    // start hour is after end hour, or
-                    // start hour is equal to end hour, and start minute is
-                    // after end minute.
-                    // i.e. 22:30 - 06:45; 12:45 - 12:00
-                    //      01:05 - 10:30; 05:00 - 05:30
-                    boolean quietHoursCrossesMidnight =
-                            quietHoursStartHour > quietHoursEndHour ||
-                            (quietHoursStartHour == quietHoursEndHour
-                            && quietHoursStartMinute > quietHoursEndMinute);
-                    if (quietHoursCrossesMidnight) {
-                        // Quiet hours crosses midnight. Alarm should be quiet
-                        // if it's after start time OR before end time.
-                        if (alarmAfterQuietHoursStart ||
-                                alarmBeforeQuietHoursEnd) {
-                            forceQuiet = true;
-                        }
-                    } else {
-                        // Quiet hours doesn't cross midnight. Alarm should be
-                        // quiet if it's after start time AND before end time.
-                        if (alarmAfterQuietHoursStart &&
-                                alarmBeforeQuietHoursEnd) {
-                            forceQuiet = true;
-                        }
-                    }
-                }
+                // Quiet hours have been set and the alarm is within them.
+                final boolean forceQuiet = quietHours != null && quietHours.isQuiet(alarmTime);
                 int state = alertCursor.getInt(ALERT_INDEX_STATE);
                 final boolean allDay = alertCursor.getInt(ALERT_INDEX_ALL_DAY) != 0;
 
@@ -743,8 +702,12 @@ public class AlertService extends Service {
                     values.put(CalendarAlerts.NOTIFY_TIME, currentTime);
                 }
 
-                // Write row to if anything changed
-                if (values.size() > 0) cr.update(alertUri, values, null, null);
+                // Write row to if anything changed. The writes are applied together once all
+                // rows are read.
+                if (values.size() > 0) {
+                    updates.add(ContentProviderOperation.newUpdate(alertUri)
+                            .withValues(values).build());
+                }
 
                 if (state != CalendarAlerts.STATE_FIRED) {
                     continue;
@@ -766,11 +729,11 @@ public class AlertService extends Service {
 
                 // Handle multiple alerts for the same event ID.
                 if (eventIds.containsKey(eventId)) {
-                    NotificationInfo oldInfo = eventIds.get(eventId);
-                    long oldBeginTimeAdjustedForAllDay = oldInfo.startMillis;
+                    long oldStartMillis = eventIds.get(eventId);
+                    long oldBeginTimeAdjustedForAllDay = oldStartMillis;
                     if (allDay) {
                         oldBeginTimeAdjustedForAllDay = Utils.convertAlldayUtcToLocal(null,
-                                oldInfo.startMillis, tz);
+                                oldStartMillis, tz);
                     }
 
                     // Determine whether to replace the previous reminder with this one.
@@ -790,16 +753,12 @@ public class AlertService extends Service {
                         // This is a recurring event that has a more relevant start time,
                         // drop other reminder in favor of this one.
                         //
-                        // It will only be present in 1 of these buckets; just remove from
-                        // multiple buckets since this occurrence is rare enough that the
-                        // inefficiency of multiple removals shouldn't be a big deal to
-                        // justify a more complicated data structure.  Expired events don't
-                        // have individual notifications so we don't need to clean that up.
-                        highPriorityEvents.remove(oldInfo);
-                        mediumPriorityEvents.remove(oldInfo);
+                        // Expired events don't have individual notifications so we don't need
+                        // to clean that up.
+                        buckets.removeEvent(eventId);
                         if (DEBUG) {
-                            Log.d(TAG, "Dropping alert for recurring event ID:" + oldInfo.eventId
-                                    + ", startTime:" + oldInfo.startMillis
+                            Log.d(TAG, "Dropping alert for recurring event ID:" + eventId
+                                    + ", startTime:" + oldStartMillis
                                     + " in favor of startTime:" + newInfo.startMillis);
                         }
                     } else {
@@ -809,20 +768,21 @@ public class AlertService extends Service {
                 }
 
                 // TODO: Prioritize by "primary" calendar
-                eventIds.put(eventId, newInfo);
+                eventIds.put(eventId, beginTime);
                 long highPriorityCutoff = currentTime -
                         getGracePeriodMs(beginTime, endTime, allDay);
 
                 if (beginTimeAdjustedForAllDay > highPriorityCutoff) {
                     // High priority = future events or events that just started
-                    highPriorityEvents.add(newInfo);
+                    buckets.addHighPriority(newInfo);
                 } else if (allDay && tz != null && DateUtils.isToday(beginTimeAdjustedForAllDay)) {
                     // Medium priority = in progress all day events
-                    mediumPriorityEvents.add(newInfo);
+                    buckets.addMediumPriority(newInfo);
                 } else {
-                    lowPriorityEvents.add(newInfo);
+                    buckets.addLowPriority(newInfo);
                 }
             }
+            applyAlertUpdates(cr, updates);
             // TODO(psliwowski): move this to account synchronization
             GlobalDismissManager.processEventIds(context, eventIds.keySet());
         } finally {
@@ -833,6 +793,58 @@ public class AlertService extends Service {
         return numFired;
     }
 
+    /**
+     * Writes the alert updates collected by processQuery in batches of at most
+     * MAX_UPDATE_BATCH_SIZE, instead of a provider transaction per alert. A batch that fails is
+     * written again one alert at a time, so a single bad row doesn't lose the others.
+     */
+    private static void applyAlertUpdates(ContentResolver cr,
+            ArrayList<ContentProviderOperation> updates) {
+        final int count = updates.size();
+        if (count == 0) {
+            return;
+        }
+        final long startTime = SystemClock.elapsedRealtime();
+        int transactions = 0;
+        for (int start = 0; start < count; start += MAX_UPDATE_BATCH_SIZE) {
+            int end = Math.min(start + MAX_UPDATE_BATCH_SIZE, count);
+            ArrayList<ContentProviderOperation> batch = (start == 0 && end == count) ? updates
+                    : new ArrayList<ContentProviderOperation>(updates.subList(start, end));
+            transactions++;
+            try {
+                cr.applyBatch(CalendarContract.AUTHORITY, batch);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Failed to update alerts", e);
+                transactions += applyAlertUpdatesSingly(cr, batch);
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, "Failed to update alerts", e);
+                transactions += applyAlertUpdatesSingly(cr, batch);
+            }
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Updated " + count + " alerts in " + transactions
+                    + " provider transactions, " + (SystemClock.elapsedRealtime() - startTime)
+                    + " ms");
+        }
+    }
+
+    private static int applyAlertUpdatesSingly(ContentResolver cr,
+            ArrayList<ContentProviderOperation> updates) {
+        ArrayList<ContentProviderOperation> single = new ArrayList<ContentProviderOperation>(1);
+        for (ContentProviderOperation update : updates) {
+            single.clear();
+            single.add(update);
+            try {
+                cr.applyBatch(CalendarContract.AUTHORITY, single);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Failed to update alert " + update.getUri(), e);
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, "Failed to update alert " + update.getUri(), e);
+            }
+        }
+        return updates.size();
+    }
+
     /**
      * High priority cutoff should be 1/4 event duration or 15 min, whichever is longer.
      */
@@ -846,22 +858,64 @@ public class AlertService extends Service {
         }
     }
 
-    private static String getDigestTitle(ArrayList<NotificationInfo> events) {
-        StringBuilder digestTitle = new StringBuilder();
-        for (NotificationInfo eventInfo : events) {
-            if (!TextUtils.isEmpty(eventInfo.eventName)) {
-                if (digestTitle.length() > 0) {
-                    digestTitle.append(", ");
-                }
-                digestTitle.append(eventInfo.eventName);
+    /**
+     * Posts the notification unless the same one is already posted under the id and it's not
+     * a new alert, which has to make its sound again.
+     *
+     * @return false if the notification was left as it is
+     */
+    private static boolean postNotificationIfChanged(NotificationInfo info, String summaryText,
+            Context context, boolean highPriority, NotificationPrefs prefs,
+            NotificationMgr notificationMgr, PostedNotifications posted,
+            NotificationPrefetch prefetch, int notificationId) {
+        long hash = 0;
+        if (posted != null) {
+            hash = PostedNotifications.hash(info, summaryText, highPriority, prefs.getDoPopup());
+            if (!info.newAlert && posted.isUnchanged(notificationId, hash)) {
+                return false;
+            }
+        }
+        postNotification(info, summaryText, context, highPriority, prefs, notificationMgr,
+                prefetch, notificationId);
+        if (posted != null) {
+            posted.setPosted(notificationId, hash);
+        }
+        return true;
+    }
+
+    private static long[] getEventIds(ArrayList<NotificationInfo> highPriorityEvents,
+            ArrayList<NotificationInfo> mediumPriorityEvents) {
+        long[] eventIds = new long[highPriorityEvents.size() + mediumPriorityEvents.size()];
+        int i = 0;
+        for (NotificationInfo info : highPriorityEvents) {
+            eventIds[i++] = info.eventId;
+        }
+        for (NotificationInfo info : mediumPriorityEvents) {
+            eventIds[i++] = info.eventId;
+        }
+        return eventIds;
+    }
+
+    /**
+     * Cancels the ids between the bounds, inclusively, skipping those known to be free.
+     */
+    private static void cancelBetween(NotificationMgr nm, PostedNotifications posted, int from,
+            int to) {
+        if (posted == null) {
+            nm.cancelAllBetween(from, to);
+            return;
+        }
+        for (int id = from; id <= to; id++) {
+            if (posted.mayBePosted(id)) {
+                nm.cancel(id);
+                posted.setCancelled(id);
             }
         }
-        return digestTitle.toString();
     }
 
     private static void postNotification(NotificationInfo info, String summaryText,
             Context context, boolean highPriority, NotificationPrefs prefs,
-            NotificationMgr notificationMgr, int notificationId) {
+            NotificationMgr notificationMgr, NotificationPrefetch prefetch, int notificationId) {
         int priorityVal = Notification.PRIORITY_DEFAULT;
         if (highPriority) {
             priorityVal = Notification.PRIORITY_HIGH;
@@ -870,7 +924,8 @@ public class AlertService extends Service {
         String tickerText = getTickerText(info.eventName, info.location);
         NotificationWrapper notification = AlertReceiver.makeExpandingNotification(context,
                 info.eventName, summaryText, info.description, info.startMillis,
-                info.endMillis, info.eventId, notificationId, prefs.getDoPopup(), priorityVal);
+                info.endMillis, info.eventId, notificationId, prefs.getDoPopup(), priorityVal,
+                prefetch);
 
         boolean quietUpdate = true;
         String ringtone = NotificationPrefs.EMPTY_RINGTONE;
@@ -1008,13 +1063,6 @@ public class AlertService extends Service {
         }
     }
 
-    private void doTimeChanged() {
-        ContentResolver cr = getContentResolver();
-        // TODO Move this into Provider
-        rescheduleMissedAlarms(cr, this, AlertUtils.createAlarmManager(this));
-        updateAlertNotification(this);
-    }
-
     private static final String SORT_ORDER_ALARMTIME_ASC =
             CalendarContract.CalendarAlerts.ALARM_TIME + " ASC";
 
@@ -1089,10 +1137,14 @@ public class AlertService extends Service {
 
         @Override
         public void handleMessage(Message msg) {
+            if (msg.what == MSG_RUN_WORK) {
+                mWorkQueue.runIfDue();
+                return;
+            }
             processMessage(msg);
-            // NOTE: We MUST not call stopSelf() directly, since we need to
-            // make sure the wake lock acquired by AlertReceiver is released.
-            AlertReceiver.finishStartingService(AlertService.this, msg.arg1);
+            // Held while the work queue has work pending, even if this intent added none, or
+            // stopping the service would drop the pending work.
+            mWorkQueue.finishWhenIdle(msg.arg1);
         }
     }
 
@@ -1104,6 +1156,20 @@ public class AlertService extends Service {
 
         mServiceLooper = thread.getLooper();
         mServiceHandler = new ServiceHandler(mServiceLooper);
+        mWorkQueue = new AlertWorkQueue(mServiceHandler, MSG_RUN_WORK,
+                new AlertWorkQueue.Worker() {
+                    @Override
+                    public void doWork(int work) {
+                        AlertService.this.doWork(work);
+                    }
+
+                    @Override
+                    public void finish(int startId) {
+                        // NOTE: We MUST not call stopSelf() directly, since we need to
+                        // make sure the wake lock acquired by AlertReceiver is released.
+                        AlertReceiver.finishStartingService(AlertService.this, startId);
+                    }
+                });
 
         // Flushes old fired alerts from internal storage, if needed.
         AlertUtils.flushOldAlertsFromInternalStorage(getApplication());
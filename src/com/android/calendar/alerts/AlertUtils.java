@@ -30,18 +30,15 @@ import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.text.format.DateUtils;
 import android.text.format.Time;
-import android.util.Log;
 
 import com.android.calendar.EventInfoActivity;
 import com.android.calendar.R;
 import com.android.calendar.Utils;
 
 import java.util.Locale;
-import java.util.Map;
 import java.util.TimeZone;
 
 public class AlertUtils {
-    private static final String TAG = "AlertUtils";
     static final boolean DEBUG = true;
 
     public static final long SNOOZE_DELAY = 5 * 60 * 1000L;
@@ -66,14 +63,12 @@ public class AlertUtils {
     // Calendar apps from eating the alerts.
     private static final String ALERTS_SHARED_PREFS_NAME = "calendar_alerts";
 
-    // Keyname prefix for the alerts data in SharedPrefs.  The key will contain a combo
-    // of event ID, begin time, and alarm time.  The value will be the fired time.
+    // Keyname prefix for the alerts data in SharedPrefs by earlier versions.  The key
+    // contains a combo of event ID, begin time, and alarm time.  These alerts are moved to
+    // FiredAlertStore.
     private static final String KEY_FIRED_ALERT_PREFIX = "preference_alert_";
 
-    // The last time the SharedPrefs was scanned and flushed of old alerts data.
-    private static final String KEY_LAST_FLUSH_TIME_MS = "preference_flushTimeMs";
-
-    // The # of days to save alert states in the shared prefs table, before flushing.  This
+    // The # of days to save alert states in internal storage, before flushing.  This
     // can be any value, since AlertService will also check for a recent alertTime before
     // ringing the alert.
     private static final int FLUSH_INTERVAL_DAYS = 1;
@@ -81,11 +76,12 @@ public class AlertUtils {
 
     /**
      * Creates an AlarmManagerInterface that wraps a real AlarmManager.  The alarm code
-     * was abstracted to an interface to make it testable.
+     * was abstracted to an interface to make it testable.  Alarms close to each other
+     * share a wakeup, see CoalescingAlarmManager.
      */
     public static AlarmManagerInterface createAlarmManager(Context context) {
         final AlarmManager mgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        return new AlarmManagerInterface() {
+        return new CoalescingAlarmManager(new AlarmManagerInterface() {
             @Override
             public void set(int type, long triggerAtMillis, PendingIntent operation) {
                 if (Utils.isKeyLimePieOrLater()) {
@@ -94,7 +90,12 @@ public class AlertUtils {
                     mgr.set(type, triggerAtMillis, operation);
                 }
             }
-        };
+
+            @Override
+            public void cancel(PendingIntent operation) {
+                mgr.cancel(operation);
+            }
+        });
     }
 
     /**
@@ -230,98 +231,52 @@ public class AlertUtils {
         return context.getSharedPreferences(ALERTS_SHARED_PREFS_NAME, Context.MODE_PRIVATE);
     }
 
-    private static String getFiredAlertsKey(long eventId, long beginTime,
-            long alarmTime) {
-        StringBuilder sb = new StringBuilder(KEY_FIRED_ALERT_PREFIX);
-        sb.append(eventId);
-        sb.append("_");
-        sb.append(beginTime);
-        sb.append("_");
-        sb.append(alarmTime);
-        return sb.toString();
+    /**
+     * Parses a key of the fired alerts SharedPrefs table.
+     *
+     * @return the event ID, begin time and alarm time, or null if the key isn't for an alert
+     */
+    static long[] parseFiredAlertsKey(String key) {
+        if (!key.startsWith(KEY_FIRED_ALERT_PREFIX)) {
+            return null;
+        }
+        String[] parts = key.substring(KEY_FIRED_ALERT_PREFIX.length()).split("_");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            return new long[] {
+                    Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2])
+            };
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 
     /**
-     * Returns whether the SharedPrefs storage indicates we have fired the alert before.
+     * Returns whether the internal storage indicates we have fired the alert before.
      */
     static boolean hasAlertFiredInSharedPrefs(Context context, long eventId, long beginTime,
             long alarmTime) {
-        SharedPreferences prefs = getFiredAlertsTable(context);
-        return prefs.contains(getFiredAlertsKey(eventId, beginTime, alarmTime));
+        return FiredAlertStore.getInstance(context).contains(eventId, beginTime, alarmTime);
     }
 
     /**
-     * Store fired alert info in the SharedPrefs.
+     * Store fired alert info in the internal storage.
      */
     static void setAlertFiredInSharedPrefs(Context context, long eventId, long beginTime,
             long alarmTime) {
-        // Store alarm time as the value too so we don't have to parse all the keys to flush
-        // old alarms out of the table later.
-        SharedPreferences prefs = getFiredAlertsTable(context);
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putLong(getFiredAlertsKey(eventId, beginTime, alarmTime), alarmTime);
-        editor.apply();
+        FiredAlertStore.getInstance(context).add(eventId, beginTime, alarmTime);
     }
 
     /**
-     * Scans and flushes the internal storage of old alerts.  Looks up the previous flush
-     * time in SharedPrefs, and performs the flush if overdue.  Otherwise, no-op.
+     * Flushes the internal storage of old alerts. Alerts are stored in segments by day, so
+     * this only deletes the segments that are old enough.
      */
     static void flushOldAlertsFromInternalStorage(Context context) {
         if (BYPASS_DB) {
-            SharedPreferences prefs = getFiredAlertsTable(context);
-
-            // Only flush if it hasn't been done in a while.
-            long nowTime = System.currentTimeMillis();
-            long lastFlushTimeMs = prefs.getLong(KEY_LAST_FLUSH_TIME_MS, 0);
-            if (nowTime - lastFlushTimeMs > FLUSH_INTERVAL_MS) {
-                if (DEBUG) {
-                    Log.d(TAG, "Flushing old alerts from shared prefs table");
-                }
-
-                // Scan through all fired alert entries, removing old ones.
-                SharedPreferences.Editor editor = prefs.edit();
-                Time timeObj = new Time();
-                for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
-                    String key = entry.getKey();
-                    Object value = entry.getValue();
-                    if (key.startsWith(KEY_FIRED_ALERT_PREFIX)) {
-                        long alertTime;
-                        if (value instanceof Long) {
-                            alertTime = (Long) value;
-                        } else {
-                            // Should never occur.
-                            Log.e(TAG,"SharedPrefs key " + key + " did not have Long value: " +
-                                    value);
-                            continue;
-                        }
-
-                        if (nowTime - alertTime >= FLUSH_INTERVAL_MS) {
-                            editor.remove(key);
-                            if (DEBUG) {
-                                int ageInDays = getIntervalInDays(alertTime, nowTime, timeObj);
-                                Log.d(TAG, "SharedPrefs key " + key + ": removed (" + ageInDays +
-                                        " days old)");
-                            }
-                        } else {
-                            if (DEBUG) {
-                                int ageInDays = getIntervalInDays(alertTime, nowTime, timeObj);
-                                Log.d(TAG, "SharedPrefs key " + key + ": keep (" + ageInDays +
-                                        " days old)");
-                            }
-                        }
-                    }
-                }
-                editor.putLong(KEY_LAST_FLUSH_TIME_MS, nowTime);
-                editor.apply();
-            }
+            FiredAlertStore.getInstance(context).removeOlderThan(System.currentTimeMillis(),
+                    FLUSH_INTERVAL_MS);
         }
     }
-
-    private static int getIntervalInDays(long startMillis, long endMillis, Time timeObj) {
-        timeObj.set(startMillis);
-        int startDay = Time.getJulianDay(startMillis, timeObj.gmtoff);
-        timeObj.set(endMillis);
-        return Time.getJulianDay(endMillis, timeObj.gmtoff) - startDay;
-    }
 }
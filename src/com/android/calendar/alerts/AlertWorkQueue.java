@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Merges the reschedule and refresh work requested by bursts of broadcasts (sync changes, time
+ * and time zone changes, boot) into a single execution.
+ *
+ * Requests are flags of work. A request runs no earlier than its delay after it was made; later
+ * requests push the run back, so a burst runs once after it settles, with the union of the
+ * flags. A run is never pushed back more than MAX_WAIT_MS after the first pending request.
+ * Requests without a delay, such as reminders, don't wait behind a delayed burst: they run
+ * right away and the burst keeps its own schedule.
+ *
+ * The start ids of the intents are held until no work is pending, so that the service and the
+ * wake lock of AlertReceiver stay up until the work they asked for, or came after, has run.
+ *
+ * Not thread safe. Only used from the thread of the handler.
+ */
+class AlertWorkQueue {
+    private static final String TAG = "AlertWorkQueue";
+
+    // Pulls the dismissals made on this device to the other devices
+    static final int WORK_SYNC_DISMISSALS = 1 << 0;
+    // Moves the alarms missed during a time change
+    static final int WORK_RESCHEDULE_MISSED = 1 << 1;
+    static final int WORK_REFRESH_NOTIFICATIONS = 1 << 2;
+    static final int WORK_SCHEDULE_NEXT_ALARM = 1 << 3;
+
+    // Longest a burst can hold back the work
+    static final long MAX_WAIT_MS = 15000;
+
+    interface Worker {
+        /**
+         * Does the work of the merged requests, in the order of the flag values.
+         */
+        void doWork(int work);
+
+        /**
+         * Lets the service go of the intent with the start id.
+         */
+        void finish(int startId);
+    }
+
+    private final Handler mHandler;
+    private final int mWhat;
+    private final Worker mWorker;
+
+    private int mPendingWork;
+    private long mFirstRequestTime;
+    private long mRunTime;
+    // Start ids held until no work is pending
+    private final ArrayList<Integer> mHeldStartIds = new ArrayList<Integer>();
+
+    private int mRequestCount;
+    private int mRunCount;
+
+    /**
+     * @param what the message sent to the handler when a run may be due, to be passed to
+     *     {@link #runIfDue()}
+     */
+    AlertWorkQueue(Handler handler, int what, Worker worker) {
+        mHandler = handler;
+        mWhat = what;
+        mWorker = worker;
+    }
+
+    /**
+     * Asks for the work to be done no earlier than delayMs from now.
+     */
+    void request(int work, long delayMs) {
+        long now = SystemClock.uptimeMillis();
+        mRequestCount++;
+        if (delayMs <= 0 && mPendingWork != 0 && mRunTime > now) {
+            // Not held back by the delay of the pending work, which still runs later
+            run(work, now);
+            return;
+        }
+        if (mPendingWork == 0) {
+            mFirstRequestTime = now;
+            mRunTime = now;
+        }
+        mPendingWork |= work;
+        mRunTime = Math.min(Math.max(mRunTime, now + delayMs), mFirstRequestTime + MAX_WAIT_MS);
+        mHandler.removeMessages(mWhat);
+        mHandler.sendEmptyMessageAtTime(mWhat, mRunTime);
+    }
+
+    /**
+     * Does the pending work if it's due, or waits again.
+     *
+     * @return true if the work was done
+     */
+    boolean runIfDue() {
+        if (mPendingWork == 0) {
+            return false;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (now < mRunTime) {
+            mHandler.removeMessages(mWhat);
+            mHandler.sendEmptyMessageAtTime(mWhat, mRunTime);
+            return false;
+        }
+        int work = mPendingWork;
+        mPendingWork = 0;
+        run(work, now);
+
+        for (int i = 0; i < mHeldStartIds.size(); i++) {
+            mWorker.finish(mHeldStartIds.get(i));
+        }
+        mHeldStartIds.clear();
+        return true;
+    }
+
+    /**
+     * Finishes the start id once no work is pending, which may be right away.
+     */
+    void finishWhenIdle(int startId) {
+        if (mPendingWork != 0) {
+            mHeldStartIds.add(startId);
+        } else {
+            mWorker.finish(startId);
+        }
+    }
+
+    private void run(int work, long now) {
+        mRunCount++;
+        if (AlertService.DEBUG) {
+            Log.d(TAG, "Running work " + work + " after " + (now - mFirstRequestTime)
+                    + " ms, " + mRequestCount + " requests in " + mRunCount + " runs so far");
+        }
+        mWorker.doWork(work);
+    }
+
+    boolean hasPendingWork() {
+        return mPendingWork != 0;
+    }
+
+    int getRequestCount() {
+        return mRequestCount;
+    }
+
+    int getRunCount() {
+        return mRunCount;
+    }
+}
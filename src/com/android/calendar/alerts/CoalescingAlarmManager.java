@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * AlarmManagerInterface that lines alarms up with the wakeups already planned, so that the
+ * device wakes once for alarms that are close together instead of once for each.
+ *
+ * The app sets exact alarms, which the system doesn't batch: reminders, snoozes, notification
+ * refreshes and widget updates. An alarm due up to the tolerance before a planned wakeup is
+ * moved to that wakeup. Alarms are only ever delayed, never fired early, since AlertService
+ * only handles alerts whose alarm time has passed.
+ *
+ * The planned wakeups are the pending wakeup alarms set through any instance sharing the
+ * plan, by PendingIntent, so setting an alarm again replaces its wakeup. Alarms have to be
+ * cancelled through {@link #cancel(PendingIntent)} too, or later alarms would keep being delayed
+ * to a wakeup that doesn't happen.
+ */
+public class CoalescingAlarmManager implements AlarmManagerInterface {
+    private static final String TAG = "CoalescingAlarmManager";
+
+    // Longest an alarm is delayed to share a wakeup
+    public static final long DEFAULT_TOLERANCE_MS = 30 * DateUtils.SECOND_IN_MILLIS;
+
+    // The plan of the alarms set with the system AlarmManager
+    private static final HashMap<PendingIntent, Long> sPlan = new HashMap<PendingIntent, Long>();
+
+    private final AlarmManagerInterface mManager;
+    private final long mToleranceMs;
+    // Operation -> time of its wakeup alarm. Guarded by itself.
+    private final HashMap<PendingIntent, Long> mPlan;
+
+    public CoalescingAlarmManager(AlarmManagerInterface manager) {
+        this(manager, DEFAULT_TOLERANCE_MS, sPlan);
+    }
+
+    // VisibleForTesting
+    CoalescingAlarmManager(AlarmManagerInterface manager, long toleranceMs,
+            HashMap<PendingIntent, Long> plan) {
+        mManager = manager;
+        mToleranceMs = toleranceMs;
+        mPlan = plan;
+    }
+
+    @Override
+    public void set(int type, long triggerAtMillis, PendingIntent operation) {
+        long planned = plan(type, triggerAtMillis, operation, System.currentTimeMillis());
+        if (AlertService.DEBUG && planned != triggerAtMillis) {
+            Log.d(TAG, "Delaying alarm by " + (planned - triggerAtMillis)
+                    + " ms to share a wakeup");
+        }
+        mManager.set(type, planned, operation);
+    }
+
+    @Override
+    public void cancel(PendingIntent operation) {
+        synchronized (mPlan) {
+            mPlan.remove(operation);
+        }
+        mManager.cancel(operation);
+    }
+
+    /**
+     * Returns the time to set the alarm at, and adds it to the plan if it wakes the device.
+     */
+    // VisibleForTesting
+    long plan(int type, long triggerAtMillis, PendingIntent operation, long currentMillis) {
+        if (type != AlarmManager.RTC && type != AlarmManager.RTC_WAKEUP) {
+            // The plan is in wall clock time
+            return triggerAtMillis;
+        }
+        synchronized (mPlan) {
+            // Wakeups that passed already happened, and the operation's is replaced
+            Iterator<Long> it = mPlan.values().iterator();
+            while (it.hasNext()) {
+                if (it.next() < currentMillis) {
+                    it.remove();
+                }
+            }
+            mPlan.remove(operation);
+
+            // The earliest wakeup within the tolerance after the alarm
+            long planned = Long.MAX_VALUE;
+            for (long wakeup : mPlan.values()) {
+                if (wakeup >= triggerAtMillis && wakeup - triggerAtMillis <= mToleranceMs
+                        && wakeup < planned) {
+                    planned = wakeup;
+                }
+            }
+            if (planned == Long.MAX_VALUE) {
+                planned = triggerAtMillis;
+            }
+            if (type == AlarmManager.RTC_WAKEUP) {
+                mPlan.put(operation, planned);
+            }
+            return planned;
+        }
+    }
+
+    /**
+     * Returns the distinct times the planned alarms wake the device, in ascending order.
+     */
+    long[] getPlannedWakeups() {
+        synchronized (mPlan) {
+            long[] wakeups = new long[mPlan.size()];
+            int count = 0;
+            for (long wakeup : mPlan.values()) {
+                wakeups[count++] = wakeup;
+            }
+            Arrays.sort(wakeups);
+            int distinct = 0;
+            for (int i = 0; i < count; i++) {
+                if (i == 0 || wakeups[i] != wakeups[i - 1]) {
+                    wakeups[distinct++] = wakeups[i];
+                }
+            }
+            return Arrays.copyOf(wakeups, distinct);
+        }
+    }
+}
@@ -22,8 +22,8 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.net.Uri;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.provider.CalendarContract.CalendarAlerts;
 import android.support.v4.app.TaskStackBuilder;
 
@@ -31,7 +31,7 @@ import android.util.Log;
 import com.android.calendar.EventInfoActivity;
 import com.android.calendar.alerts.GlobalDismissManager.AlarmId;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -47,6 +47,9 @@ public class DismissAlarmsService extends IntentService {
     };
     private static final int COLUMN_INDEX_STATE = 0;
 
+    // Stays below SQLite's limit of 999 arguments per statement
+    private static final int MAX_EVENTS_PER_UPDATE = 500;
+
     public DismissAlarmsService() {
         super("DismissAlarmsService");
     }
@@ -62,45 +65,56 @@ public class DismissAlarmsService extends IntentService {
             Log.d(TAG, "onReceive: a=" + intent.getAction() + " " + intent.toString());
         }
 
+        final long startTime = SystemClock.elapsedRealtime();
         long eventId = intent.getLongExtra(AlertUtils.EVENT_ID_KEY, -1);
         long eventStart = intent.getLongExtra(AlertUtils.EVENT_START_KEY, -1);
         long eventEnd = intent.getLongExtra(AlertUtils.EVENT_END_KEY, -1);
         long[] eventIds = intent.getLongArrayExtra(AlertUtils.EVENT_IDS_KEY);
         long[] eventStarts = intent.getLongArrayExtra(AlertUtils.EVENT_STARTS_KEY);
         int notificationId = intent.getIntExtra(AlertUtils.NOTIFICATION_ID_KEY, -1);
-        List<AlarmId> alarmIds = new LinkedList<AlarmId>();
+        List<AlarmId> alarmIds;
 
-        Uri uri = CalendarAlerts.CONTENT_URI;
-        String selection;
+        ContentResolver resolver = getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(PROJECTION[COLUMN_INDEX_STATE], CalendarAlerts.STATE_DISMISSED);
 
         // Dismiss a specific fired alarm if id is present, otherwise, dismiss all alarms
         if (eventId != -1) {
+            alarmIds = new ArrayList<AlarmId>(1);
             alarmIds.add(new AlarmId(eventId, eventStart));
-            selection = CalendarAlerts.STATE + "=" + CalendarAlerts.STATE_FIRED + " AND " +
-            CalendarAlerts.EVENT_ID + "=" + eventId;
+            dismissEvents(resolver, values, new long[] { eventId });
         } else if (eventIds != null && eventIds.length > 0 &&
                 eventStarts != null && eventIds.length == eventStarts.length) {
-            selection = buildMultipleEventsQuery(eventIds);
+            alarmIds = new ArrayList<AlarmId>(eventIds.length);
             for (int i = 0; i < eventIds.length; i++) {
                 alarmIds.add(new AlarmId(eventIds[i], eventStarts[i]));
             }
+            dismissEvents(resolver, values, eventIds);
         } else {
             // NOTE: I don't believe that this ever happens.
-            selection = CalendarAlerts.STATE + "=" + CalendarAlerts.STATE_FIRED;
+            alarmIds = new ArrayList<AlarmId>(0);
+            resolver.update(CalendarAlerts.CONTENT_URI, values,
+                    CalendarAlerts.STATE + "=" + CalendarAlerts.STATE_FIRED, null);
         }
 
-        GlobalDismissManager.dismissGlobally(getApplicationContext(), alarmIds);
-
-        ContentResolver resolver = getContentResolver();
-        ContentValues values = new ContentValues();
-        values.put(PROJECTION[COLUMN_INDEX_STATE], CalendarAlerts.STATE_DISMISSED);
-        resolver.update(uri, values, selection, null);
-
         // Remove from notification bar.
         if (notificationId != -1) {
             NotificationManager nm =
                     (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
             nm.cancel(notificationId);
+            PostedNotifications.getInstance().forget(notificationId);
+        }
+
+        if (AlertService.DEBUG) {
+            Log.d(TAG, "Dismissed " + alarmIds.size() + " alarms locally in "
+                    + (SystemClock.elapsedRealtime() - startTime) + " ms");
+        }
+
+        // The dismissals are in the outbox before the service stops, so they survive the
+        // process being killed. Only sending them doesn't hold up the local dismissal.
+        if (!alarmIds.isEmpty()) {
+            GlobalDismissManager.queueDismissals(this, alarmIds);
+            GlobalDismissManager.sendDismissalsAsync(getApplicationContext(), startTime);
         }
 
         if (SHOW_ACTION.equals(intent.getAction())) {
@@ -113,24 +127,34 @@ public class DismissAlarmsService extends IntentService {
         }
     }
 
-    private String buildMultipleEventsQuery(long[] eventIds) {
+    /**
+     * Marks the fired alarms of the events as dismissed, with as few updates as the limit on
+     * selection arguments allows.
+     */
+    private static void dismissEvents(ContentResolver resolver, ContentValues values,
+            long[] eventIds) {
+        for (int start = 0; start < eventIds.length; start += MAX_EVENTS_PER_UPDATE) {
+            int count = Math.min(MAX_EVENTS_PER_UPDATE, eventIds.length - start);
+            String[] selectionArgs = new String[count + 1];
+            selectionArgs[0] = Integer.toString(CalendarAlerts.STATE_FIRED);
+            for (int i = 0; i < count; i++) {
+                selectionArgs[i + 1] = Long.toString(eventIds[start + i]);
+            }
+            resolver.update(CalendarAlerts.CONTENT_URI, values,
+                    buildMultipleEventsQuery(count), selectionArgs);
+        }
+    }
+
+    private static String buildMultipleEventsQuery(int count) {
         StringBuilder selection = new StringBuilder();
         selection.append(CalendarAlerts.STATE);
-        selection.append("=");
-        selection.append(CalendarAlerts.STATE_FIRED);
-        if (eventIds.length > 0) {
-            selection.append(" AND (");
-            selection.append(CalendarAlerts.EVENT_ID);
-            selection.append("=");
-            selection.append(eventIds[0]);
-            for (int i = 1; i < eventIds.length; i++) {
-                selection.append(" OR ");
-                selection.append(CalendarAlerts.EVENT_ID);
-                selection.append("=");
-                selection.append(eventIds[i]);
-            }
-            selection.append(")");
+        selection.append("=? AND ");
+        selection.append(CalendarAlerts.EVENT_ID);
+        selection.append(" IN (?");
+        for (int i = 1; i < count; i++) {
+            selection.append(",?");
         }
+        selection.append(")");
         return selection.toString();
     }
 }
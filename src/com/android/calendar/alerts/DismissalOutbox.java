@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.calendar.alerts.GlobalDismissManager.GlobalDismissId;
+import com.android.calendar.alerts.GlobalDismissManager.LocalDismissId;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps the dismissals GlobalDismissManager still has to send, and the ones received from other
+ * devices that still have to be applied, across process restarts.
+ *
+ * Both sets live in memory and every change is appended to a log file as length prefixed
+ * records, written and synced at once for a whole batch. The log is rewritten with only the
+ * live entries once it holds mostly stale records, through AtomicFile. A record torn by a crash
+ * while appending is cut off when the log is read again, and the backup AtomicFile keeps while
+ * rewriting is restored before the log is read or appended to.
+ *
+ * Thread safe.
+ */
+class DismissalOutbox {
+    private static final String TAG = "DismissalOutbox";
+
+    private static final String FILE_NAME = "dismissal_outbox";
+
+    private static final byte OP_ADD_SENDER = 0;
+    private static final byte OP_REMOVE_SENDER = 1;
+    private static final byte OP_ADD_RECEIVED = 2;
+    private static final byte OP_REMOVE_RECEIVED = 3;
+
+    // Don't bother compacting logs smaller than this
+    private static final int MIN_RECORDS_TO_COMPACT = 64;
+
+    private static DismissalOutbox sInstance;
+
+    private final AtomicFile mFile;
+
+    // Dismissal -> time it was made or received. Guarded by this.
+    private final HashMap<LocalDismissId, Long> mSender = new HashMap<LocalDismissId, Long>();
+    private final HashMap<GlobalDismissId, Long> mReceived = new HashMap<GlobalDismissId, Long>();
+    // Records in the log, live or not
+    private int mRecordCount;
+
+    static synchronized DismissalOutbox getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DismissalOutbox(new File(context.getFilesDir(), FILE_NAME));
+            sInstance.load();
+        }
+        return sInstance;
+    }
+
+    // VisibleForTesting
+    DismissalOutbox(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    synchronized void addSender(Collection<LocalDismissId> dismissIds, long dismissTime) {
+        Batch batch = new Batch();
+        for (LocalDismissId dismissId : dismissIds) {
+            mSender.put(dismissId, dismissTime);
+            batch.writeSender(OP_ADD_SENDER, dismissId, dismissTime);
+        }
+        append(batch);
+    }
+
+    synchronized void removeSender(Collection<LocalDismissId> dismissIds) {
+        Batch batch = new Batch();
+        for (LocalDismissId dismissId : dismissIds) {
+            if (mSender.remove(dismissId) != null) {
+                batch.writeSender(OP_REMOVE_SENDER, dismissId, 0);
+            }
+        }
+        append(batch);
+    }
+
+    /**
+     * Returns the dismissals to send, in no particular order.
+     */
+    synchronized ArrayList<LocalDismissId> getSender() {
+        return new ArrayList<LocalDismissId>(mSender.keySet());
+    }
+
+    synchronized void addReceived(Collection<GlobalDismissId> dismissIds, long receiveTime) {
+        Batch batch = new Batch();
+        for (GlobalDismissId dismissId : dismissIds) {
+            mReceived.put(dismissId, receiveTime);
+            batch.writeReceived(OP_ADD_RECEIVED, dismissId, receiveTime);
+        }
+        append(batch);
+    }
+
+    synchronized void removeReceived(Collection<GlobalDismissId> dismissIds) {
+        Batch batch = new Batch();
+        for (GlobalDismissId dismissId : dismissIds) {
+            if (mReceived.remove(dismissId) != null) {
+                batch.writeReceived(OP_REMOVE_RECEIVED, dismissId, 0);
+            }
+        }
+        append(batch);
+    }
+
+    /**
+     * Returns the dismissals to apply, in no particular order.
+     */
+    synchronized ArrayList<GlobalDismissId> getReceived() {
+        return new ArrayList<GlobalDismissId>(mReceived.keySet());
+    }
+
+    /**
+     * Drops the dismissals made or received more than timeToLive before the current time.
+     */
+    synchronized void expire(long currentTime, long timeToLive) {
+        Batch batch = new Batch();
+        Iterator<Map.Entry<LocalDismissId, Long>> senderIt = mSender.entrySet().iterator();
+        while (senderIt.hasNext()) {
+            Map.Entry<LocalDismissId, Long> entry = senderIt.next();
+            if (currentTime - entry.getValue() > timeToLive) {
+                senderIt.remove();
+                batch.writeSender(OP_REMOVE_SENDER, entry.getKey(), 0);
+            }
+        }
+        Iterator<Map.Entry<GlobalDismissId, Long>> receivedIt = mReceived.entrySet().iterator();
+        while (receivedIt.hasNext()) {
+            Map.Entry<GlobalDismissId, Long> entry = receivedIt.next();
+            if (currentTime - entry.getValue() > timeToLive) {
+                receivedIt.remove();
+                batch.writeReceived(OP_REMOVE_RECEIVED, entry.getKey(), 0);
+            }
+        }
+        append(batch);
+    }
+
+    // VisibleForTesting
+    synchronized int getRecordCount() {
+        return mRecordCount;
+    }
+
+    // VisibleForTesting
+    synchronized void load() {
+        mSender.clear();
+        mReceived.clear();
+        mRecordCount = 0;
+        File file = mFile.getBaseFile();
+
+        // Restores the backup if a compaction didn't finish
+        byte[] data;
+        try {
+            data = mFile.readFully();
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + file, e);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                buffer.position(buffer.position() - 4);
+                break;
+            }
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(data, buffer.position(), length));
+            buffer.position(buffer.position() + length);
+            try {
+                replay(in);
+            } catch (IOException e) {
+                Log.w(TAG, "Skipping a malformed record", e);
+            }
+            mRecordCount++;
+        }
+        if (buffer.position() != data.length) {
+            // Torn by a crash while appending
+            Log.w(TAG, "Dropping a partial record");
+            truncate(file, buffer.position());
+        }
+    }
+
+    private void replay(DataInputStream in) throws IOException {
+        byte op = in.readByte();
+        switch (op) {
+            case OP_ADD_SENDER:
+            case OP_REMOVE_SENDER: {
+                LocalDismissId dismissId = new LocalDismissId(in.readUTF(), in.readUTF(),
+                        in.readLong(), in.readLong());
+                long time = in.readLong();
+                if (op == OP_ADD_SENDER) {
+                    mSender.put(dismissId, time);
+                } else {
+                    mSender.remove(dismissId);
+                }
+                break;
+            }
+            case OP_ADD_RECEIVED:
+            case OP_REMOVE_RECEIVED: {
+                GlobalDismissId dismissId = new GlobalDismissId(in.readUTF(), in.readUTF(),
+                        in.readLong());
+                long time = in.readLong();
+                if (op == OP_ADD_RECEIVED) {
+                    mReceived.put(dismissId, time);
+                } else {
+                    mReceived.remove(dismissId);
+                }
+                break;
+            }
+            default:
+                Log.w(TAG, "Skipping unknown record " + op);
+        }
+    }
+
+    private void append(Batch batch) {
+        if (batch.mCount == 0) {
+            return;
+        }
+        mRecordCount += batch.mCount;
+        if (mRecordCount >= MIN_RECORDS_TO_COMPACT
+                && mRecordCount > 2 * (mSender.size() + mReceived.size())) {
+            compact();
+            return;
+        }
+
+        File file = mFile.getBaseFile();
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            Log.e(TAG, "Failed to create " + parent);
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            restoreBackup();
+            out = new FileOutputStream(file, true);
+            // A single write for the whole batch, so a crash leaves at most one partial record
+            out.write(batch.mBytes.toByteArray());
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to append to " + file, e);
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Rewrites the log with only the live entries.
+     */
+    private void compact() {
+        Batch batch = new Batch();
+        for (Map.Entry<LocalDismissId, Long> entry : mSender.entrySet()) {
+            batch.writeSender(OP_ADD_SENDER, entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<GlobalDismissId, Long> entry : mReceived.entrySet()) {
+            batch.writeReceived(OP_ADD_RECEIVED, entry.getKey(), entry.getValue());
+        }
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            out.write(batch.mBytes.toByteArray());
+            mFile.finishWrite(out);
+            mRecordCount = batch.mCount;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compact " + mFile.getBaseFile(), e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    /**
+     * Has AtomicFile put back the backup of a compaction that didn't finish, which reading would
+     * otherwise do later and discard what was appended to the log in the meantime.
+     */
+    private void restoreBackup() throws IOException {
+        try {
+            mFile.openRead().close();
+        } catch (FileNotFoundException e) {
+            // Nothing written yet
+        }
+    }
+
+    private static void truncate(File file, long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to truncate " + file, e);
+        } finally {
+            close(raf);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Records to be appended with a single write.
+     */
+    private static class Batch {
+        final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream();
+        private final DataOutputStream mRecordOut = new DataOutputStream(mRecord);
+        int mCount;
+
+        void writeSender(byte op, LocalDismissId dismissId, long time) {
+            try {
+                mRecordOut.writeByte(op);
+                mRecordOut.writeUTF(dismissId.mAccountType);
+                mRecordOut.writeUTF(dismissId.mAccountName);
+                mRecordOut.writeLong(dismissId.mEventId);
+                mRecordOut.writeLong(dismissId.mStartTime);
+                mRecordOut.writeLong(time);
+                finishRecord();
+            } catch (IOException e) {
+                // Can't happen writing to memory
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void writeReceived(byte op, GlobalDismissId dismissId, long time) {
+            try {
+                mRecordOut.writeByte(op);
+                mRecordOut.writeUTF(dismissId.mAccountName);
+                mRecordOut.writeUTF(dismissId.mSyncId);
+                mRecordOut.writeLong(dismissId.mStartTime);
+                mRecordOut.writeLong(time);
+                finishRecord();
+            } catch (IOException e) {
+                // Can't happen writing to memory
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void finishRecord() throws IOException {
+            mRecordOut.flush();
+            DataOutputStream out = new DataOutputStream(mBytes);
+            out.writeInt(mRecord.size());
+            mRecord.writeTo(out);
+            out.flush();
+            mRecord.reset();
+            mCount++;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.text.TextUtils;
+
+import com.android.calendar.alerts.AlertService.NotificationInfo;
+
+import java.util.ArrayList;
+
+/**
+ * The events of the expired digest notification, collected one at a time.
+ *
+ * Only the first events, the ones the digest can show, are kept. Of the others only what the
+ * digest's dismiss intent needs is kept, in primitive arrays, and the count.
+ */
+class ExpiredDigest {
+
+    // Most events shown by the digest, in its lines or in its title
+    static final int MAX_SHOWN = 10;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int mMaxShown;
+    private final ArrayList<NotificationInfo> mShown;
+    private long[] mEventIds = new long[INITIAL_CAPACITY];
+    private long[] mStartMillis = new long[INITIAL_CAPACITY];
+    private long[] mEndMillis = new long[INITIAL_CAPACITY];
+    private int mSize;
+
+    /**
+     * @param maxShown the number of events to keep whole
+     */
+    ExpiredDigest(int maxShown) {
+        mMaxShown = maxShown;
+        mShown = new ArrayList<NotificationInfo>(Math.min(maxShown, INITIAL_CAPACITY));
+    }
+
+    void add(NotificationInfo info) {
+        if (mShown.size() == mSize && mSize < mMaxShown) {
+            mShown.add(info);
+        }
+        add(info.eventId, info.startMillis, info.endMillis);
+    }
+
+    /**
+     * Adds the events of the other digest after the events of this one.
+     */
+    void addAll(ExpiredDigest other) {
+        if (mShown.size() == mSize) {
+            for (int i = 0; i < other.mShown.size() && mShown.size() < mMaxShown; i++) {
+                mShown.add(other.mShown.get(i));
+            }
+        }
+        for (int i = 0; i < other.mSize; i++) {
+            add(other.mEventIds[i], other.mStartMillis[i], other.mEndMillis[i]);
+        }
+    }
+
+    private void add(long eventId, long startMillis, long endMillis) {
+        if (mSize == mEventIds.length) {
+            int capacity = mSize * 2;
+            mEventIds = copyOf(mEventIds, capacity);
+            mStartMillis = copyOf(mStartMillis, capacity);
+            mEndMillis = copyOf(mEndMillis, capacity);
+        }
+        mEventIds[mSize] = eventId;
+        mStartMillis[mSize] = startMillis;
+        mEndMillis[mSize] = endMillis;
+        mSize++;
+    }
+
+    /**
+     * Removes the event with the given id, if there is one. If it was shown while more events
+     * followed, the digest shows one event fewer, as those weren't kept whole.
+     */
+    void remove(long eventId) {
+        for (int i = 0; i < mSize; i++) {
+            if (mEventIds[i] == eventId) {
+                if (i < mShown.size()) {
+                    mShown.remove(i);
+                }
+                int moved = mSize - i - 1;
+                System.arraycopy(mEventIds, i + 1, mEventIds, i, moved);
+                System.arraycopy(mStartMillis, i + 1, mStartMillis, i, moved);
+                System.arraycopy(mEndMillis, i + 1, mEndMillis, i, moved);
+                mSize--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the first event and returns it, if it was kept whole.
+     *
+     * @return the first event, or null if there is none or it wasn't kept whole
+     */
+    NotificationInfo removeFirst() {
+        if (mShown.isEmpty() || mSize == 0 || mShown.get(0).eventId != mEventIds[0]) {
+            return null;
+        }
+        NotificationInfo info = mShown.get(0);
+        remove(info.eventId);
+        return info;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the first events, up to the number given to the constructor.
+     */
+    ArrayList<NotificationInfo> getShownEvents() {
+        return mShown;
+    }
+
+    long[] getEventIds() {
+        return copyOf(mEventIds, mSize);
+    }
+
+    long[] getStartMillis() {
+        return copyOf(mStartMillis, mSize);
+    }
+
+    long getEventId(int i) {
+        return mEventIds[i];
+    }
+
+    long getStartMillis(int i) {
+        return mStartMillis[i];
+    }
+
+    long getEndMillis(int i) {
+        return mEndMillis[i];
+    }
+
+    /**
+     * Returns the titles of the shown events.
+     */
+    String getTitle() {
+        StringBuilder digestTitle = new StringBuilder();
+        for (NotificationInfo eventInfo : mShown) {
+            if (!TextUtils.isEmpty(eventInfo.eventName)) {
+                if (digestTitle.length() > 0) {
+                    digestTitle.append(", ");
+                }
+                digestTitle.append(eventInfo.eventName);
+            }
+        }
+        return digestTitle.toString();
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+        long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Remembers which alerts were fired when AlertUtils.BYPASS_DB is set, replacing a key per alert
+ * in a SharedPreferences file.
+ *
+ * Alerts are appended as fixed size records (event id, begin time, alarm time) to segment files,
+ * one per day of alarm time, and kept in memory in a hash set of primitives per segment. Old
+ * alerts are dropped by deleting whole segments. A record torn by a crash while appending is
+ * cut off when the segment is read again, everything before it is kept.
+ *
+ * Thread safe.
+ */
+class FiredAlertStore {
+    private static final String TAG = "FiredAlertStore";
+    private static final boolean DEBUG = false;
+
+    private static final String DIRECTORY = "fired_alerts";
+    private static final String SEGMENT_PREFIX = "segment_";
+
+    private static final long SEGMENT_DURATION_MS = 24 * 60 * 60 * 1000L;
+    private static final int RECORD_SIZE = 3 * 8;
+
+    private static FiredAlertStore sInstance;
+
+    private final File mDirectory;
+
+    // Segment (alarm time / SEGMENT_DURATION_MS) -> alerts fired in it. Guarded by this.
+    private final HashMap<Long, AlertSet> mSegments = new HashMap<Long, AlertSet>();
+
+    static synchronized FiredAlertStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new FiredAlertStore(new File(context.getFilesDir(), DIRECTORY));
+            sInstance.load();
+            sInstance.importSharedPrefs(AlertUtils.getFiredAlertsTable(context));
+        }
+        return sInstance;
+    }
+
+    // VisibleForTesting
+    FiredAlertStore(File directory) {
+        mDirectory = directory;
+    }
+
+    synchronized boolean contains(long eventId, long beginTime, long alarmTime) {
+        AlertSet alerts = mSegments.get(getSegment(alarmTime));
+        return alerts != null && alerts.contains(eventId, beginTime, alarmTime);
+    }
+
+    synchronized void add(long eventId, long beginTime, long alarmTime) {
+        long segment = getSegment(alarmTime);
+        AlertSet alerts = mSegments.get(segment);
+        if (alerts == null) {
+            alerts = new AlertSet();
+            mSegments.put(segment, alerts);
+        }
+        if (!alerts.add(eventId, beginTime, alarmTime)) {
+            return;
+        }
+        append(segment, eventId, beginTime, alarmTime);
+    }
+
+    /**
+     * Drops the segments holding only alerts whose alarm time is at least maxAgeMs before now.
+     */
+    synchronized void removeOlderThan(long nowMillis, long maxAgeMs) {
+        Iterator<Map.Entry<Long, AlertSet>> it = mSegments.entrySet().iterator();
+        while (it.hasNext()) {
+            long segment = it.next().getKey();
+            long segmentEnd = (segment + 1) * SEGMENT_DURATION_MS;
+            if (nowMillis - segmentEnd >= maxAgeMs) {
+                it.remove();
+                if (!getSegmentFile(segment).delete()) {
+                    Log.w(TAG, "Failed to delete segment " + segment);
+                }
+                if (DEBUG) {
+                    Log.d(TAG, "Removed segment " + segment);
+                }
+            }
+        }
+    }
+
+    synchronized int size() {
+        int size = 0;
+        for (AlertSet alerts : mSegments.values()) {
+            size += alerts.size();
+        }
+        return size;
+    }
+
+    // VisibleForTesting
+    synchronized void load() {
+        mSegments.clear();
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX)) {
+                continue;
+            }
+            long segment;
+            try {
+                segment = Long.parseLong(name.substring(SEGMENT_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            AlertSet alerts = readSegment(file);
+            if (alerts != null) {
+                mSegments.put(segment, alerts);
+            }
+        }
+    }
+
+    private AlertSet readSegment(File file) {
+        long length = file.length();
+        long complete = length - length % RECORD_SIZE;
+        if (complete != length) {
+            // Torn by a crash while appending
+            Log.w(TAG, "Dropping a partial record from " + file.getName());
+            truncate(file, complete);
+        }
+
+        byte[] data = new byte[(int) complete];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, read - read % RECORD_SIZE);
+            AlertSet alerts = new AlertSet();
+            while (buffer.remaining() >= RECORD_SIZE) {
+                alerts.add(buffer.getLong(), buffer.getLong(), buffer.getLong());
+            }
+            return alerts;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + file.getName(), e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private void append(long segment, long eventId, long beginTime, long alarmTime) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Failed to create " + mDirectory);
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putLong(eventId).putLong(beginTime).putLong(alarmTime);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(getSegmentFile(segment), true);
+            // A single write of a whole record, so a crash leaves at most one partial record
+            out.write(record.array());
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to append to segment " + segment, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static void truncate(File file, long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to truncate " + file.getName(), e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the alerts recorded in SharedPreferences by earlier versions into the store, and
+     * empties the SharedPreferences file.
+     */
+    // VisibleForTesting
+    void importSharedPrefs(SharedPreferences prefs) {
+        Map<String, ?> entries = prefs.getAll();
+        if (entries.isEmpty()) {
+            return;
+        }
+        int imported = 0;
+        for (String key : entries.keySet()) {
+            long[] alert = AlertUtils.parseFiredAlertsKey(key);
+            if (alert != null) {
+                add(alert[0], alert[1], alert[2]);
+                imported++;
+            }
+        }
+        prefs.edit().clear().apply();
+        Log.i(TAG, "Imported " + imported + " fired alerts from shared prefs");
+    }
+
+    private File getSegmentFile(long segment) {
+        return new File(mDirectory, SEGMENT_PREFIX + segment);
+    }
+
+    private static long getSegment(long alarmTime) {
+        return alarmTime / SEGMENT_DURATION_MS;
+    }
+
+    /**
+     * Open addressing hash set of (event id, begin time, alarm time) triples.
+     */
+    private static class AlertSet {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private long[] mEntries = new long[INITIAL_CAPACITY * 3];
+        private boolean[] mUsed = new boolean[INITIAL_CAPACITY];
+        private int mSize;
+
+        int size() {
+            return mSize;
+        }
+
+        boolean contains(long eventId, long beginTime, long alarmTime) {
+            return mUsed[find(mEntries, mUsed, eventId, beginTime, alarmTime)];
+        }
+
+        /**
+         * @return false if the set already held the triple
+         */
+        boolean add(long eventId, long beginTime, long alarmTime) {
+            int slot = find(mEntries, mUsed, eventId, beginTime, alarmTime);
+            if (mUsed[slot]) {
+                return false;
+            }
+            mUsed[slot] = true;
+            mEntries[slot * 3] = eventId;
+            mEntries[slot * 3 + 1] = beginTime;
+            mEntries[slot * 3 + 2] = alarmTime;
+            if (++mSize * 2 > mUsed.length) {
+                grow();
+            }
+            return true;
+        }
+
+        private void grow() {
+            long[] entries = new long[mEntries.length * 2];
+            boolean[] used = new boolean[mUsed.length * 2];
+            for (int i = 0; i < mUsed.length; i++) {
+                if (mUsed[i]) {
+                    int slot = find(entries, used, mEntries[i * 3], mEntries[i * 3 + 1],
+                            mEntries[i * 3 + 2]);
+                    used[slot] = true;
+                    System.arraycopy(mEntries, i * 3, entries, slot * 3, 3);
+                }
+            }
+            mEntries = entries;
+            mUsed = used;
+        }
+
+        /**
+         * Returns the slot holding the triple, or the free slot it belongs in.
+         */
+        private static int find(long[] entries, boolean[] used, long eventId, long beginTime,
+                long alarmTime) {
+            long hash = eventId * 31 + beginTime;
+            hash = hash * 31 + alarmTime;
+            hash ^= hash >>> 32;
+            hash ^= hash >>> 16;
+            int mask = used.length - 1;
+            int slot = (int) hash & mask;
+            while (used[slot]) {
+                if (entries[slot * 3] == eventId && entries[slot * 3 + 1] == beginTime
+                        && entries[slot * 3 + 2] == alarmTime) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
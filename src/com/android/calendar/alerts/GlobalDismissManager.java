@@ -26,9 +26,11 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.CalendarContract.CalendarAlerts;
 import android.provider.CalendarContract.Calendars;
 import android.provider.CalendarContract.Events;
+import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 
@@ -37,24 +39,26 @@ import com.android.calendar.ExtensionsFactory;
 import com.android.calendar.R;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * Utilities for managing notification dismissal across devices.
  */
 public class GlobalDismissManager extends BroadcastReceiver {
-    private static class GlobalDismissId {
+    static class GlobalDismissId {
         public final String mAccountName;
         public final String mSyncId;
         public final long mStartTime;
 
-        private GlobalDismissId(String accountName, String syncId, long startTime) {
+        GlobalDismissId(String accountName, String syncId, long startTime) {
             // TODO(psliwowski): Add guava library to use Preconditions class
             if (accountName == null) {
                 throw new IllegalArgumentException("Account Name can not be set to null");
@@ -168,6 +172,11 @@ public class GlobalDismissManager extends BroadcastReceiver {
 
     private static final long TIME_TO_LIVE = 1 * 60 * 60 * 1000; // 1 hour
 
+    // Keeps a message well below the payload limit of the backplane
+    // VisibleForTesting
+    static final int MAX_DISMISSALS_PER_MESSAGE = 50;
+    private static final char LIST_SEPARATOR = ',';
+
     private static final String TAG = "GlobalDismissManager";
     private static final String GOOGLE_ACCOUNT_TYPE = "com.google";
     private static final String GLOBAL_DISMISS_MANAGER_PREFS = "com.android.calendar.alerts.GDM";
@@ -191,13 +200,21 @@ public class GlobalDismissManager extends BroadcastReceiver {
     public static final String SYNC_ID = KEY_PREFIX + "sync_id";
     public static final String START_TIME = KEY_PREFIX + "start_time";
     public static final String ACCOUNT_NAME = KEY_PREFIX + "account_name";
+    // Lists of sync ids and start times for messages carrying several dismissals
+    public static final String SYNC_IDS = KEY_PREFIX + "sync_ids";
+    public static final String START_TIMES = KEY_PREFIX + "start_times";
     public static final String DISMISS_INTENT = KEY_PREFIX + "DISMISS";
 
-    // TODO(psliwowski): Look into persisting these like AlertUtils.ALERTS_SHARED_PREFS_NAME
-    private static HashMap<GlobalDismissId, Long> sReceiverDismissCache =
-            new HashMap<GlobalDismissId, Long>();
-    private static HashMap<LocalDismissId, Long> sSenderDismissCache =
-            new HashMap<LocalDismissId, Long>();
+    private static final Executor sDismissExecutor = Executors.newSingleThreadExecutor();
+
+    // Older versions on the user's other devices only read SYNC_ID and START_TIME and drop
+    // messages listing several dismissals. Until receivers can tell that they read SYNC_IDS and
+    // START_TIMES, every dismissal is sent on its own in the original format.
+    // VisibleForTesting
+    static boolean sSendBatches = false;
+
+    // Accounts subscribed to, mirrors ACCOUNT_KEY. Null until read. Guarded by the class.
+    private static Set<String> sKnownAccounts;
 
     /**
      * Look for unknown accounts in a set of events and associate with them.
@@ -241,13 +258,18 @@ public class GlobalDismissManager extends BroadcastReceiver {
         SharedPreferences prefs =
                 context.getSharedPreferences(GLOBAL_DISMISS_MANAGER_PREFS,
                         Context.MODE_PRIVATE);
-        Set<String> existingAccounts = prefs.getStringSet(ACCOUNT_KEY,
-                new HashSet<String>());
-        accounts.removeAll(existingAccounts);
-
-        if (accounts.isEmpty()) {
-            // nothing to do, we've already registered all the accounts.
-            return;
+        Set<String> existingAccounts;
+        synchronized (GlobalDismissManager.class) {
+            if (sKnownAccounts == null) {
+                sKnownAccounts = new HashSet<String>(prefs.getStringSet(ACCOUNT_KEY,
+                        new HashSet<String>()));
+            }
+            accounts.removeAll(sKnownAccounts);
+            if (accounts.isEmpty()) {
+                // nothing to do, we've already registered all the accounts.
+                return;
+            }
+            existingAccounts = new HashSet<String>(sKnownAccounts);
         }
 
         // subscribe to remaining accounts
@@ -264,6 +286,9 @@ public class GlobalDismissManager extends BroadcastReceiver {
                 }
             }
             cnb.close();
+            synchronized (GlobalDismissManager.class) {
+                sKnownAccounts.addAll(existingAccounts);
+            }
             prefs.edit()
             .putStringSet(ACCOUNT_KEY, existingAccounts)
             .commit();
@@ -286,53 +311,147 @@ public class GlobalDismissManager extends BroadcastReceiver {
 
         }
 
-        long currentTime = System.currentTimeMillis();
-        ContentResolver resolver = context.getContentResolver();
-        synchronized (sSenderDismissCache) {
-            Iterator<Map.Entry<LocalDismissId, Long>> it =
-                    sSenderDismissCache.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<LocalDismissId, Long> entry = it.next();
-                LocalDismissId dismissId = entry.getKey();
-
-                Uri uri = asSync(Events.CONTENT_URI, dismissId.mAccountType,
-                        dismissId.mAccountName);
-                Cursor cursor = resolver.query(uri, EVENT_SYNC_PROJECTION,
-                        Events._ID + " = " + dismissId.mEventId, null, null);
-                try {
-                    cursor.moveToPosition(-1);
-                    int sync_id_idx = cursor.getColumnIndex(Events._SYNC_ID);
-                    if (sync_id_idx != -1) {
-                        while (cursor.moveToNext()) {
-                            String syncId = cursor.getString(sync_id_idx);
-                            if (syncId != null) {
-                                Bundle data = new Bundle();
-                                long startTime = dismissId.mStartTime;
-                                String accountName = dismissId.mAccountName;
-                                data.putString(SYNC_ID, syncId);
-                                data.putString(START_TIME, Long.toString(startTime));
-                                data.putString(ACCOUNT_NAME, accountName);
-                                try {
-                                    cnb.send(accountName, syncId + ":" + startTime, data);
-                                    it.remove();
-                                } catch (IOException e) {
-                                    // If we couldn't send, then leave dismissal in cache
-                                }
-                            }
-                        }
-                    }
-                } finally {
-                    cursor.close();
+        syncSenderDismissCache(context.getContentResolver(), cnb,
+                DismissalOutbox.getInstance(context), System.currentTimeMillis());
+
+        cnb.close();
+    }
+
+    /**
+     * Resolves the sync ids of the pending dismissals with one query per account and sends them,
+     * in as few messages as possible if batches are sent. The outbox is only locked to take a snapshot and to drop
+     * the dismissals that were sent, not while querying or sending.
+     */
+    // VisibleForTesting
+    static void syncSenderDismissCache(ContentResolver resolver, CloudNotificationBackplane cnb,
+            DismissalOutbox outbox, long currentTime) {
+        // (account type, account name) -> pending dismissals
+        HashMap<Pair<String, String>, ArrayList<LocalDismissId>> pending =
+                new HashMap<Pair<String, String>, ArrayList<LocalDismissId>>();
+        for (LocalDismissId dismissId : outbox.getSender()) {
+            Pair<String, String> account = new Pair<String, String>(dismissId.mAccountType,
+                    dismissId.mAccountName);
+            ArrayList<LocalDismissId> dismissIds = pending.get(account);
+            if (dismissIds == null) {
+                dismissIds = new ArrayList<LocalDismissId>();
+                pending.put(account, dismissIds);
+            }
+            dismissIds.add(dismissId);
+        }
+
+        for (Map.Entry<Pair<String, String>, ArrayList<LocalDismissId>> entry
+                : pending.entrySet()) {
+            String accountType = entry.getKey().first;
+            String accountName = entry.getKey().second;
+            ArrayList<LocalDismissId> dismissIds = entry.getValue();
+            Map<Long, String> syncIds = lookupEventToSyncIdMap(resolver, accountType,
+                    accountName, dismissIds);
+
+            ArrayList<LocalDismissId> batch = new ArrayList<LocalDismissId>();
+            ArrayList<String> batchSyncIds = new ArrayList<String>();
+            for (LocalDismissId dismissId : dismissIds) {
+                String syncId = syncIds.get(dismissId.mEventId);
+                if (syncId == null) {
+                    // Not synced yet, try again on the next provider change
+                    continue;
+                }
+                if (!sSendBatches || syncId.indexOf(LIST_SEPARATOR) >= 0) {
+                    // Can't be listed, or older receivers wouldn't read the list
+                    sendDismissals(cnb, outbox, accountName, singletonList(dismissId),
+                            singletonList(syncId));
+                    continue;
                 }
+                batch.add(dismissId);
+                batchSyncIds.add(syncId);
+                if (batch.size() == MAX_DISMISSALS_PER_MESSAGE) {
+                    sendDismissals(cnb, outbox, accountName, batch, batchSyncIds);
+                    batch = new ArrayList<LocalDismissId>();
+                    batchSyncIds = new ArrayList<String>();
+                }
+            }
+            if (!batch.isEmpty()) {
+                sendDismissals(cnb, outbox, accountName, batch, batchSyncIds);
+            }
+        }
+
+        // Remove old dismissals from the outbox after this last attempt
+        outbox.expire(currentTime, TIME_TO_LIVE);
+    }
 
-                // Remove old dismissals from cache after a certain time period
-                if (currentTime - entry.getValue() > TIME_TO_LIVE) {
-                    it.remove();
+    /**
+     * Sends one message for the dismissals and drops them from the outbox if it went out. A
+     * single dismissal uses the original message format.
+     */
+    private static void sendDismissals(CloudNotificationBackplane cnb, DismissalOutbox outbox,
+            String accountName, List<LocalDismissId> dismissIds, List<String> syncIds) {
+        Bundle data = new Bundle();
+        String msgId;
+        if (dismissIds.size() == 1) {
+            long startTime = dismissIds.get(0).mStartTime;
+            data.putString(SYNC_ID, syncIds.get(0));
+            data.putString(START_TIME, Long.toString(startTime));
+            msgId = syncIds.get(0) + ":" + startTime;
+        } else {
+            StringBuilder startTimes = new StringBuilder();
+            for (LocalDismissId dismissId : dismissIds) {
+                if (startTimes.length() > 0) {
+                    startTimes.append(LIST_SEPARATOR);
                 }
+                startTimes.append(dismissId.mStartTime);
             }
+            data.putString(SYNC_IDS, TextUtils.join(String.valueOf(LIST_SEPARATOR), syncIds));
+            data.putString(START_TIMES, startTimes.toString());
+            msgId = syncIds.get(0) + ":" + dismissIds.get(0).mStartTime + ":"
+                    + dismissIds.size();
+        }
+        data.putString(ACCOUNT_NAME, accountName);
+        try {
+            cnb.send(accountName, msgId, data);
+        } catch (IOException e) {
+            // If we couldn't send, then leave dismissals in the outbox
+            return;
         }
+        outbox.removeSender(dismissIds);
+    }
 
-        cnb.close();
+    /**
+     * @return a map from event to sync id for the events of the dismissals that have one
+     */
+    private static Map<Long, String> lookupEventToSyncIdMap(ContentResolver resolver,
+            String accountType, String accountName, List<LocalDismissId> dismissIds) {
+        Set<Long> eventIds = new HashSet<Long>(dismissIds.size());
+        for (LocalDismissId dismissId : dismissIds) {
+            eventIds.add(dismissId.mEventId);
+        }
+        Map<Long, String> syncIds = new HashMap<Long, String>();
+        Uri uri = asSync(Events.CONTENT_URI, accountType, accountName);
+        Cursor cursor = resolver.query(uri, EVENT_SYNC_PROJECTION,
+                buildMultipleIdQuery(eventIds, Events._ID), null, null);
+        if (cursor == null) {
+            return syncIds;
+        }
+        try {
+            cursor.moveToPosition(-1);
+            int event_id_idx = cursor.getColumnIndex(Events._ID);
+            int sync_id_idx = cursor.getColumnIndex(Events._SYNC_ID);
+            if (event_id_idx != -1 && sync_id_idx != -1) {
+                while (cursor.moveToNext()) {
+                    String syncId = cursor.getString(sync_id_idx);
+                    if (syncId != null) {
+                        syncIds.put(cursor.getLong(event_id_idx), syncId);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return syncIds;
+    }
+
+    private static <T> List<T> singletonList(T item) {
+        ArrayList<T> list = new ArrayList<T>(1);
+        list.add(item);
+        return list;
     }
 
     /**
@@ -343,6 +462,18 @@ public class GlobalDismissManager extends BroadcastReceiver {
      * @return true if notification_sender_id is available
      */
     public static void dismissGlobally(Context context, List<AlarmId> alarmIds) {
+        queueDismissals(context, alarmIds);
+        syncSenderDismissCache(context);
+    }
+
+    /**
+     * Writes the dismissals to the outbox, from which {@link #syncSenderDismissCache(Context)}
+     * sends them. Must not be called on main thread.
+     *
+     * @param context application context
+     * @param alarmIds Unique identifiers for events that have been dismissed by the user.
+     */
+    public static void queueDismissals(Context context, List<AlarmId> alarmIds) {
         Set<Long> eventIds = new HashSet<Long>(alarmIds.size());
         for (AlarmId alarmId: alarmIds) {
             eventIds.add(alarmId.mEventId);
@@ -365,19 +496,61 @@ public class GlobalDismissManager extends BroadcastReceiver {
             return;
         }
 
-        long currentTime = System.currentTimeMillis();
+        ArrayList<LocalDismissId> dismissIds = new ArrayList<LocalDismissId>(alarmIds.size());
         for (AlarmId alarmId : alarmIds) {
             Long calendar = eventsToCalendars.get(alarmId.mEventId);
             Pair<String, String> account = calendarsToAccounts.get(calendar);
             if (GOOGLE_ACCOUNT_TYPE.equals(account.first)) {
-                LocalDismissId dismissId = new LocalDismissId(account.first, account.second,
-                        alarmId.mEventId, alarmId.mStart);
-                synchronized (sSenderDismissCache) {
-                    sSenderDismissCache.put(dismissId, currentTime);
-                }
+                dismissIds.add(new LocalDismissId(account.first, account.second,
+                        alarmId.mEventId, alarmId.mStart));
             }
         }
-        syncSenderDismissCache(context);
+        DismissalOutbox.getInstance(context).addSender(dismissIds, System.currentTimeMillis());
+    }
+
+    /**
+     * Sends the dismissals in the outbox on a background thread shared by all callers, so they
+     * go out one batch at a time and in order. Dismissals must be queued with
+     * {@link #queueDismissals(Context, List)} first: if the process dies before they are sent,
+     * the next {@link #syncSenderDismissCache(Context)} sends them.
+     *
+     * @param dismissTime when the user dismissed, in SystemClock.elapsedRealtime() time base,
+     *            to log the end to end latency
+     */
+    public static void sendDismissalsAsync(final Context context, final long dismissTime) {
+        sDismissExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                syncSenderDismissCache(context);
+                if (AlertService.DEBUG) {
+                    Log.d(TAG, "Sent the dismissals "
+                            + (SystemClock.elapsedRealtime() - dismissTime)
+                            + " ms after the user dismissed");
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs {@link #dismissGlobally(Context, List)} on the same background thread, for callers on
+     * the main thread that can't query the provider.
+     *
+     * @param dismissTime when the user dismissed, in SystemClock.elapsedRealtime() time base,
+     *            to log the end to end latency
+     */
+    public static void dismissGloballyAsync(final Context context, final List<AlarmId> alarmIds,
+            final long dismissTime) {
+        sDismissExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dismissGlobally(context, alarmIds);
+                if (AlertService.DEBUG) {
+                    Log.d(TAG, "Dismissed " + alarmIds.size() + " alarms globally "
+                            + (SystemClock.elapsedRealtime() - dismissTime)
+                            + " ms after the user did");
+                }
+            }
+        });
     }
 
     private static Uri asSync(Uri uri, String accountType, String account) {
@@ -398,17 +571,18 @@ public class GlobalDismissManager extends BroadcastReceiver {
      */
     private static String buildMultipleIdQuery(Set<Long> ids, String key) {
         StringBuilder selection = new StringBuilder();
+        selection.append(key);
+        selection.append(" IN (");
         boolean first = true;
         for (Long id : ids) {
             if (first) {
                 first = false;
             } else {
-                selection.append(" OR ");
+                selection.append(",");
             }
-            selection.append(key);
-            selection.append("=");
             selection.append(id);
         }
+        selection.append(")");
         return selection.toString();
     }
 
@@ -419,8 +593,16 @@ public class GlobalDismissManager extends BroadcastReceiver {
      */
     private static Map<Long, Long> lookupEventToCalendarMap(Context context, Set<Long> eventIds) {
         Map<Long, Long> eventsToCalendars = new HashMap<Long, Long>();
+        AccountLookupCache cache = AccountLookupCache.getInstance(context);
+        int generation = cache.getEventsGeneration();
+        Set<Long> missing = cache.getEventCalendars(eventIds, eventsToCalendars);
+        if (missing.isEmpty()) {
+            return eventsToCalendars;
+        }
+
+        Map<Long, Long> queried = new HashMap<Long, Long>();
         ContentResolver resolver = context.getContentResolver();
-        String eventSelection = buildMultipleIdQuery(eventIds, Events._ID);
+        String eventSelection = buildMultipleIdQuery(missing, Events._ID);
         Cursor eventCursor = resolver.query(Events.CONTENT_URI, EVENT_PROJECTION,
                 eventSelection, null, null);
         try {
@@ -429,13 +611,15 @@ public class GlobalDismissManager extends BroadcastReceiver {
             int event_id_idx = eventCursor.getColumnIndex(Events._ID);
             if (calendar_id_idx != -1 && event_id_idx != -1) {
                 while (eventCursor.moveToNext()) {
-                    eventsToCalendars.put(eventCursor.getLong(event_id_idx),
+                    queried.put(eventCursor.getLong(event_id_idx),
                             eventCursor.getLong(calendar_id_idx));
                 }
             }
         } finally {
             eventCursor.close();
         }
+        cache.putEventCalendars(queried, generation);
+        eventsToCalendars.putAll(queried);
         return eventsToCalendars;
     }
 
@@ -448,8 +632,16 @@ public class GlobalDismissManager extends BroadcastReceiver {
             Set<Long> calendars) {
         Map<Long, Pair<String, String>> calendarsToAccounts =
                 new HashMap<Long, Pair<String, String>>();
+        AccountLookupCache cache = AccountLookupCache.getInstance(context);
+        int generation = cache.getCalendarsGeneration();
+        Set<Long> missing = cache.getCalendarAccounts(calendars, calendarsToAccounts);
+        if (missing.isEmpty()) {
+            return calendarsToAccounts;
+        }
+
+        Map<Long, Pair<String, String>> queried = new HashMap<Long, Pair<String, String>>();
         ContentResolver resolver = context.getContentResolver();
-        String calendarSelection = buildMultipleIdQuery(calendars, Calendars._ID);
+        String calendarSelection = buildMultipleIdQuery(missing, Calendars._ID);
         Cursor calendarCursor = resolver.query(Calendars.CONTENT_URI, CALENDARS_PROJECTION,
                 calendarSelection, null, null);
         try {
@@ -463,13 +655,15 @@ public class GlobalDismissManager extends BroadcastReceiver {
                     String name = calendarCursor.getString(account_name_idx);
                     String type = calendarCursor.getString(account_type_idx);
                     if (name != null && type != null) {
-                        calendarsToAccounts.put(id, new Pair<String, String>(type, name));
+                        queried.put(id, new Pair<String, String>(type, name));
                     }
                 }
             }
         } finally {
             calendarCursor.close();
         }
+        cache.putCalendarAccounts(queried, generation);
+        calendarsToAccounts.putAll(queried);
         return calendarsToAccounts;
     }
 
@@ -479,46 +673,39 @@ public class GlobalDismissManager extends BroadcastReceiver {
      */
     public static void syncReceiverDismissCache(Context context) {
         ContentResolver resolver = context.getContentResolver();
-        long currentTime = System.currentTimeMillis();
-        synchronized (sReceiverDismissCache) {
-            Iterator<Map.Entry<GlobalDismissId, Long>> it =
-                    sReceiverDismissCache.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<GlobalDismissId, Long> entry = it.next();
-                GlobalDismissId globalDismissId = entry.getKey();
-                Uri uri = GlobalDismissManager.asSync(Events.CONTENT_URI,
-                        GlobalDismissManager.GOOGLE_ACCOUNT_TYPE, globalDismissId.mAccountName);
-                Cursor cursor = resolver.query(uri, GlobalDismissManager.EVENT_SYNC_PROJECTION,
-                        Events._SYNC_ID + " = '" + globalDismissId.mSyncId + "'",
-                        null, null);
-                try {
-                    int event_id_idx = cursor.getColumnIndex(Events._ID);
-                    cursor.moveToFirst();
-                    if (event_id_idx != -1 && !cursor.isAfterLast()) {
-                        long eventId = cursor.getLong(event_id_idx);
-                        ContentValues values = new ContentValues();
-                        String selection = "(" + CalendarAlerts.STATE + "=" +
-                                CalendarAlerts.STATE_FIRED + " OR " +
-                                CalendarAlerts.STATE + "=" +
-                                CalendarAlerts.STATE_SCHEDULED + ") AND " +
-                                CalendarAlerts.EVENT_ID + "=" + eventId + " AND " +
-                                CalendarAlerts.BEGIN + "=" + globalDismissId.mStartTime;
-                        values.put(CalendarAlerts.STATE, CalendarAlerts.STATE_DISMISSED);
-                        int rows = resolver.update(CalendarAlerts.CONTENT_URI, values,
-                                selection, null);
-                        if (rows > 0) {
-                            it.remove();
-                        }
+        DismissalOutbox outbox = DismissalOutbox.getInstance(context);
+        ArrayList<GlobalDismissId> applied = new ArrayList<GlobalDismissId>();
+        for (GlobalDismissId globalDismissId : outbox.getReceived()) {
+            Uri uri = GlobalDismissManager.asSync(Events.CONTENT_URI,
+                    GlobalDismissManager.GOOGLE_ACCOUNT_TYPE, globalDismissId.mAccountName);
+            Cursor cursor = resolver.query(uri, GlobalDismissManager.EVENT_SYNC_PROJECTION,
+                    Events._SYNC_ID + " = '" + globalDismissId.mSyncId + "'",
+                    null, null);
+            try {
+                int event_id_idx = cursor.getColumnIndex(Events._ID);
+                cursor.moveToFirst();
+                if (event_id_idx != -1 && !cursor.isAfterLast()) {
+                    long eventId = cursor.getLong(event_id_idx);
+                    ContentValues values = new ContentValues();
+                    String selection = "(" + CalendarAlerts.STATE + "=" +
+                            CalendarAlerts.STATE_FIRED + " OR " +
+                            CalendarAlerts.STATE + "=" +
+                            CalendarAlerts.STATE_SCHEDULED + ") AND " +
+                            CalendarAlerts.EVENT_ID + "=" + eventId + " AND " +
+                            CalendarAlerts.BEGIN + "=" + globalDismissId.mStartTime;
+                    values.put(CalendarAlerts.STATE, CalendarAlerts.STATE_DISMISSED);
+                    int rows = resolver.update(CalendarAlerts.CONTENT_URI, values,
+                            selection, null);
+                    if (rows > 0) {
+                        applied.add(globalDismissId);
                     }
-                } finally {
-                    cursor.close();
-                }
-
-                if (currentTime - entry.getValue() > TIME_TO_LIVE) {
-                    it.remove();
                 }
+            } finally {
+                cursor.close();
             }
         }
+        outbox.removeReceived(applied);
+        outbox.expire(System.currentTimeMillis(), TIME_TO_LIVE);
     }
 
     @Override
@@ -531,13 +718,34 @@ public class GlobalDismissManager extends BroadcastReceiver {
                 Intent intent = params[0].second;
                 if (intent.hasExtra(SYNC_ID) && intent.hasExtra(ACCOUNT_NAME)
                         && intent.hasExtra(START_TIME)) {
-                    synchronized (sReceiverDismissCache) {
-                        sReceiverDismissCache.put(new GlobalDismissId(
-                                intent.getStringExtra(ACCOUNT_NAME),
-                                intent.getStringExtra(SYNC_ID),
-                                Long.parseLong(intent.getStringExtra(START_TIME))
-                        ), System.currentTimeMillis());
+                    ArrayList<GlobalDismissId> dismissIds = new ArrayList<GlobalDismissId>(1);
+                    dismissIds.add(new GlobalDismissId(
+                            intent.getStringExtra(ACCOUNT_NAME),
+                            intent.getStringExtra(SYNC_ID),
+                            Long.parseLong(intent.getStringExtra(START_TIME))
+                    ));
+                    DismissalOutbox.getInstance(context).addReceived(dismissIds,
+                            System.currentTimeMillis());
+                    AlertService.updateAlertNotification(context);
+                } else if (intent.hasExtra(SYNC_IDS) && intent.hasExtra(ACCOUNT_NAME)
+                        && intent.hasExtra(START_TIMES)) {
+                    String accountName = intent.getStringExtra(ACCOUNT_NAME);
+                    String[] syncIds = TextUtils.split(intent.getStringExtra(SYNC_IDS),
+                            String.valueOf(LIST_SEPARATOR));
+                    String[] startTimes = TextUtils.split(intent.getStringExtra(START_TIMES),
+                            String.valueOf(LIST_SEPARATOR));
+                    if (syncIds.length != startTimes.length) {
+                        Log.w(TAG, "Malformed dismissal list");
+                        return null;
+                    }
+                    ArrayList<GlobalDismissId> dismissIds =
+                            new ArrayList<GlobalDismissId>(syncIds.length);
+                    for (int i = 0; i < syncIds.length; i++) {
+                        dismissIds.add(new GlobalDismissId(accountName, syncIds[i],
+                                Long.parseLong(startTimes[i])));
                     }
+                    DismissalOutbox.getInstance(context).addReceived(dismissIds,
+                            System.currentTimeMillis());
                     AlertService.updateAlertNotification(context);
                 }
                 return null;
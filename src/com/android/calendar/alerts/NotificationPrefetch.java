@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.CalendarContract.Attendees;
+import android.provider.CalendarContract.Calendars;
+import android.provider.CalendarContract.Events;
+import android.text.Spannable;
+import android.text.TextUtils;
+import android.text.style.URLSpan;
+
+import com.android.calendar.Utils;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Loads what the action buttons of the event notifications of a refresh need, for all events
+ * at once: one query of the events and one of their attendees, instead of three queries per
+ * notification. Nothing is loaded until the first notification asks, so a refresh that posts
+ * nothing doesn't query.
+ *
+ * The links found in a location are cached across refreshes by event id and location, so the
+ * linkify of an unchanged location only runs once.
+ */
+class NotificationPrefetch {
+
+    private static final String[] EVENT_PROJECTION = new String[] {
+        Events._ID,                 // 0
+        Events.EVENT_LOCATION,      // 1
+        Calendars.ACCOUNT_NAME,     // 2
+    };
+    private static final int EVENT_INDEX_ID = 0;
+    private static final int EVENT_INDEX_LOCATION = 1;
+    private static final int EVENT_INDEX_ACCOUNT_NAME = 2;
+
+    private static final String[] ATTENDEES_PROJECTION = new String[] {
+        Attendees.EVENT_ID,         // 0
+        Attendees.ATTENDEE_EMAIL,   // 1
+    };
+    private static final int ATTENDEES_INDEX_EVENT_ID = 0;
+    private static final int ATTENDEES_INDEX_EMAIL = 1;
+
+    private static final URLSpan[] NO_SPANS = new URLSpan[0];
+
+    private static final int MAX_CACHED_SPANS = 64;
+
+    // Event id -> links of its location. Guarded by itself.
+    private static final LinkedHashMap<Long, CachedSpans> sSpansCache =
+            new LinkedHashMap<Long, CachedSpans>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, CachedSpans> eldest) {
+            return size() > MAX_CACHED_SPANS;
+        }
+    };
+
+    private static class CachedSpans {
+        String location;
+        URLSpan[] urlSpans;
+    }
+
+    static class EventContent {
+        URLSpan[] urlSpans = NO_SPANS;
+        String syncAccount;
+        boolean hasEmailableAttendee;
+    }
+
+    private final Context mContext;
+    private final long[] mEventIds;
+    // Null until loaded
+    private HashMap<Long, EventContent> mContents;
+
+    /**
+     * @param eventIds the events of all notifications to post
+     */
+    NotificationPrefetch(Context context, long[] eventIds) {
+        mContext = context;
+        mEventIds = eventIds;
+    }
+
+    /**
+     * Returns the content of the event, or null if it isn't one of the prefetched events.
+     */
+    EventContent get(long eventId) {
+        if (mContents == null) {
+            mContents = new HashMap<Long, EventContent>();
+            load();
+        }
+        return mContents.get(eventId);
+    }
+
+    private void load() {
+        if (mEventIds.length == 0) {
+            return;
+        }
+        StringBuilder ids = new StringBuilder();
+        for (long eventId : mEventIds) {
+            // Events missing from the provider have nothing to show
+            mContents.put(eventId, new EventContent());
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(eventId);
+        }
+
+        Cursor events = mContext.getContentResolver().query(Events.CONTENT_URI,
+                EVENT_PROJECTION, Events._ID + " IN (" + ids + ")", null, null);
+        if (events != null) {
+            try {
+                while (events.moveToNext()) {
+                    EventContent content = mContents.get(
+                            events.getLong(EVENT_INDEX_ID));
+                    if (content != null) {
+                        content.urlSpans = getURLSpans(events.getLong(EVENT_INDEX_ID),
+                                events.getString(EVENT_INDEX_LOCATION));
+                        content.syncAccount = events.getString(EVENT_INDEX_ACCOUNT_NAME);
+                    }
+                }
+            } finally {
+                events.close();
+            }
+        }
+
+        Cursor attendees = mContext.getContentResolver().query(Attendees.CONTENT_URI,
+                ATTENDEES_PROJECTION, Attendees.EVENT_ID + " IN (" + ids + ")", null, null);
+        if (attendees != null) {
+            try {
+                while (attendees.moveToNext()) {
+                    EventContent content = mContents.get(
+                            attendees.getLong(ATTENDEES_INDEX_EVENT_ID));
+                    if (content != null && !content.hasEmailableAttendee) {
+                        content.hasEmailableAttendee = Utils.isEmailableFrom(
+                                attendees.getString(ATTENDEES_INDEX_EMAIL), content.syncAccount);
+                    }
+                }
+            } finally {
+                attendees.close();
+            }
+        }
+    }
+
+    /**
+     * Using the linkify magic, get a list of URLs from the event's location. If no such links
+     * are found, we should end up with a single geo link of the entire string.
+     */
+    static URLSpan[] getURLSpans(long eventId, String location) {
+        if (TextUtils.isEmpty(location)) {
+            return NO_SPANS;
+        }
+        synchronized (sSpansCache) {
+            CachedSpans cached = sSpansCache.get(eventId);
+            if (cached != null && location.equals(cached.location)) {
+                return cached.urlSpans;
+            }
+        }
+
+        Spannable text = Utils.extendedLinkify(location, true);
+        // The linkify method should have found at least one link, at the very least.
+        // If no smart links were found, it should have set the whole string as a geo link.
+        CachedSpans cached = new CachedSpans();
+        cached.location = location;
+        cached.urlSpans = text.getSpans(0, text.length(), URLSpan.class);
+        synchronized (sSpansCache) {
+            sSpansCache.put(eventId, cached);
+        }
+        return cached.urlSpans;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+import com.android.calendar.alerts.AlertService.NotificationInfo;
+
+import java.util.ArrayList;
+
+/**
+ * Remembers what AlertService last posted under each notification id, so that a refresh only
+ * posts the notifications that changed and only cancels the ids that were in use.
+ *
+ * Until a refresh has posted everything once in this process, nothing is known about the
+ * notification bar and every id is treated as changed. Code cancelling notifications outside
+ * of AlertService.generateAlerts has to call {@link #forget(int)} or {@link #forgetAll()}.
+ *
+ * Thread safe.
+ */
+class PostedNotifications {
+
+    // 64 bit FNV-1a
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static PostedNotifications sInstance;
+
+    // Hash of the notification posted under each id, valid where mPosted is set
+    private final long[] mHashes;
+    private final boolean[] mPosted;
+    private boolean mKnown;
+
+    static synchronized PostedNotifications getInstance() {
+        if (sInstance == null) {
+            sInstance = new PostedNotifications(AlertService.MAX_NOTIFICATIONS);
+        }
+        return sInstance;
+    }
+
+    // VisibleForTesting
+    PostedNotifications(int maxNotificationId) {
+        mHashes = new long[maxNotificationId + 1];
+        mPosted = new boolean[maxNotificationId + 1];
+    }
+
+    /**
+     * Returns true if the state of every id is known since the last full refresh.
+     */
+    synchronized boolean isKnown() {
+        return mKnown;
+    }
+
+    /**
+     * Returns true if a notification with the same hash is known to be posted under the id.
+     */
+    synchronized boolean isUnchanged(int id, long hash) {
+        return mKnown && isInRange(id) && mPosted[id] && mHashes[id] == hash;
+    }
+
+    /**
+     * Returns true unless the id is known to be free, so cancelling it would be a no-op.
+     */
+    synchronized boolean mayBePosted(int id) {
+        return !mKnown || !isInRange(id) || mPosted[id];
+    }
+
+    synchronized void setPosted(int id, long hash) {
+        if (isInRange(id)) {
+            mPosted[id] = true;
+            mHashes[id] = hash;
+        }
+    }
+
+    synchronized void setCancelled(int id) {
+        if (isInRange(id)) {
+            mPosted[id] = false;
+        }
+    }
+
+    /**
+     * Marks the end of a refresh that set the state of every id.
+     */
+    synchronized void setKnown() {
+        mKnown = true;
+    }
+
+    /**
+     * Called when a notification was cancelled by someone else. It's posted again on the next
+     * refresh if it's still needed.
+     */
+    synchronized void forget(int id) {
+        setCancelled(id);
+    }
+
+    /**
+     * Called when notifications were changed by someone else. The next refresh posts and
+     * cancels everything.
+     */
+    synchronized void forgetAll() {
+        mKnown = false;
+        for (int i = 0; i < mPosted.length; i++) {
+            mPosted[i] = false;
+        }
+    }
+
+    private boolean isInRange(int id) {
+        return id >= 0 && id < mPosted.length;
+    }
+
+    /**
+     * Hash of everything an individual event notification is built from.
+     */
+    static long hash(NotificationInfo info, String summaryText, boolean highPriority,
+            boolean doPopup) {
+        long hash = hashInfo(FNV_OFFSET_BASIS, info);
+        hash = hashString(hash, summaryText);
+        hash = hashLong(hash, highPriority ? 1 : 0);
+        return hashLong(hash, doPopup ? 1 : 0);
+    }
+
+    /**
+     * Hash of everything the digest of expired events is built from.
+     */
+    static long hashDigest(ExpiredDigest digest, String title) {
+        long hash = hashString(FNV_OFFSET_BASIS, title);
+        ArrayList<NotificationInfo> shown = digest.getShownEvents();
+        for (int i = 0; i < shown.size(); i++) {
+            hash = hashInfo(hash, shown.get(i));
+        }
+        for (int i = 0; i < digest.size(); i++) {
+            hash = hashLong(hash, digest.getEventId(i));
+            hash = hashLong(hash, digest.getStartMillis(i));
+            hash = hashLong(hash, digest.getEndMillis(i));
+        }
+        return hashLong(hash, digest.size());
+    }
+
+    private static long hashInfo(long hash, NotificationInfo info) {
+        hash = hashString(hash, info.eventName);
+        hash = hashString(hash, info.location);
+        hash = hashString(hash, info.description);
+        hash = hashLong(hash, info.startMillis);
+        hash = hashLong(hash, info.endMillis);
+        hash = hashLong(hash, info.eventId);
+        return hashLong(hash, info.allDay ? 1 : 0);
+    }
+
+    private static long hashString(long hash, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash ^= value.charAt(i);
+                hash *= FNV_PRIME;
+            }
+        }
+        hash ^= 0xffff;
+        return hash * FNV_PRIME;
+    }
+
+    private static long hashLong(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+
+import com.android.calendar.OtherPreferences;
+import com.android.calendar.Utils;
+
+import java.util.TimeZone;
+
+/**
+ * Decides whether an alarm time falls in the quiet hours, during which reminders are posted
+ * silently.
+ *
+ * Built once per AlertService run. The quiet hours are kept as an interval of minutes of the
+ * day, and the offsets of the time zone, with the exact times they change, are worked out up
+ * front for the days around the run. {@link #isQuiet(long)} then doesn't allocate anything.
+ */
+class QuietHoursPolicy {
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    // Days around the run covered by the offset table. Alarm times outside of it ask the
+    // time zone directly.
+    private static final long TABLE_PAST_MS = 7 * DateUtils.DAY_IN_MILLIS;
+    private static final long TABLE_FUTURE_MS = 2 * DateUtils.DAY_IN_MILLIS;
+    private static final long TABLE_STEP_MS = DateUtils.HOUR_IN_MILLIS;
+
+    // Inclusive minutes of the day. Start is after end when the quiet hours cross midnight.
+    private final int mStartMinute;
+    private final int mEndMinute;
+    private final boolean mCrossesMidnight;
+
+    private final TimeZone mTimeZone;
+    private final long mTableStart;
+    private final long mTableEnd;
+    // mOffsets[i] is in effect from mTransitions[i] until mTransitions[i + 1]
+    private final long[] mTransitions;
+    private final int[] mOffsets;
+
+    /**
+     * Returns the quiet hours set in the preferences, or null if they are off.
+     */
+    static QuietHoursPolicy fromPreferences(Context context, long currentTime) {
+        if (!Utils.getSharedPreference(context, OtherPreferences.KEY_OTHER_QUIET_HOURS, false)) {
+            return null;
+        }
+        return new QuietHoursPolicy(
+                Utils.getSharedPreference(context,
+                        OtherPreferences.KEY_OTHER_QUIET_HOURS_START_HOUR,
+                        OtherPreferences.QUIET_HOURS_DEFAULT_START_HOUR),
+                Utils.getSharedPreference(context,
+                        OtherPreferences.KEY_OTHER_QUIET_HOURS_START_MINUTE,
+                        OtherPreferences.QUIET_HOURS_DEFAULT_START_MINUTE),
+                Utils.getSharedPreference(context,
+                        OtherPreferences.KEY_OTHER_QUIET_HOURS_END_HOUR,
+                        OtherPreferences.QUIET_HOURS_DEFAULT_END_HOUR),
+                Utils.getSharedPreference(context,
+                        OtherPreferences.KEY_OTHER_QUIET_HOURS_END_MINUTE,
+                        OtherPreferences.QUIET_HOURS_DEFAULT_END_MINUTE),
+                TimeZone.getDefault(), currentTime);
+    }
+
+    // VisibleForTesting
+    QuietHoursPolicy(int startHour, int startMinute, int endHour, int endMinute,
+            TimeZone timeZone, long currentTime) {
+        mStartMinute = startHour * 60 + startMinute;
+        mEndMinute = endHour * 60 + endMinute;
+        // i.e. 22:30 - 06:45; 12:45 - 12:00 cross midnight,
+        //      01:05 - 10:30; 05:00 - 05:30 don't.
+        mCrossesMidnight = mStartMinute > mEndMinute;
+
+        mTimeZone = timeZone;
+        mTableStart = currentTime - TABLE_PAST_MS;
+        mTableEnd = currentTime + TABLE_FUTURE_MS;
+
+        // Step through the table period, and find the exact time of each offset change
+        long[] transitions = new long[4];
+        int[] offsets = new int[4];
+        transitions[0] = mTableStart;
+        offsets[0] = timeZone.getOffset(mTableStart);
+        int count = 1;
+        for (long t = mTableStart; t < mTableEnd; t += TABLE_STEP_MS) {
+            long next = Math.min(t + TABLE_STEP_MS, mTableEnd);
+            int offset = timeZone.getOffset(next);
+            if (offset == offsets[count - 1]) {
+                continue;
+            }
+            if (count == transitions.length) {
+                transitions = copyOf(transitions, count * 2);
+                offsets = copyOf(offsets, count * 2);
+            }
+            transitions[count] = findTransition(timeZone, t, next);
+            offsets[count] = offset;
+            count++;
+        }
+        mTransitions = copyOf(transitions, count);
+        mOffsets = copyOf(offsets, count);
+    }
+
+    /**
+     * Returns true if an alarm at the given time is within the quiet hours.
+     */
+    boolean isQuiet(long alarmTime) {
+        int minute = getMinuteOfDay(alarmTime);
+        boolean afterStart = minute >= mStartMinute;
+        boolean beforeEnd = minute <= mEndMinute;
+        if (mCrossesMidnight) {
+            // Quiet if it's after start time OR before end time.
+            return afterStart || beforeEnd;
+        } else {
+            // Quiet if it's after start time AND before end time.
+            return afterStart && beforeEnd;
+        }
+    }
+
+    // VisibleForTesting
+    int getMinuteOfDay(long millis) {
+        long local = millis + getOffset(millis);
+        long minute = local / DateUtils.MINUTE_IN_MILLIS;
+        if (local < 0 && local % DateUtils.MINUTE_IN_MILLIS != 0) {
+            minute--;
+        }
+        int minuteOfDay = (int) (minute % MINUTES_PER_DAY);
+        return minuteOfDay < 0 ? minuteOfDay + MINUTES_PER_DAY : minuteOfDay;
+    }
+
+    private int getOffset(long millis) {
+        if (millis < mTableStart || millis > mTableEnd) {
+            return mTimeZone.getOffset(millis);
+        }
+        // Only a few entries, the last one at or before millis applies
+        int i = mTransitions.length - 1;
+        while (i > 0 && mTransitions[i] > millis) {
+            i--;
+        }
+        return mOffsets[i];
+    }
+
+    /**
+     * Returns the first millisecond after from, up to to, with the offset in effect at to.
+     */
+    private static long findTransition(TimeZone timeZone, long from, long to) {
+        int offset = timeZone.getOffset(to);
+        long low = from;
+        long high = to;
+        while (high - low > 1) {
+            long mid = low + (high - low) / 2;
+            if (timeZone.getOffset(mid) == offset) {
+                high = mid;
+            } else {
+                low = mid;
+            }
+        }
+        return high;
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+        long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+}
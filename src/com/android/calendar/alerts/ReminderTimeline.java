@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+/**
+ * The upcoming reminders found by AlarmScheduler, in a min-heap ordered by alarm time, so that
+ * the next alarm can be scheduled again without querying the provider.
+ *
+ * A timeline is built from the instances beginning within the lookahead window plus its
+ * validity period, and can answer for any time within that period. It is dropped when the
+ * provider data, the time or the time zone change.
+ *
+ * Not thread safe. Only used from AlertService's worker thread.
+ */
+class ReminderTimeline {
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    // Heap of reminders, ordered by alarm time
+    private long[] mAlarmTimes = new long[INITIAL_CAPACITY];
+    private long[] mEventIds = new long[INITIAL_CAPACITY];
+    // Local start time of the instance for regular events. For all-day events the UTC start
+    // time shifted by the local offset, which is what the lookahead window applies to.
+    private long[] mWindowBegins = new long[INITIAL_CAPACITY];
+    private int mSize;
+
+    private boolean mBuilt;
+    private long mValidFrom;
+    private long mValidUntil;
+    private String mTimeZone;
+
+    // Result of the last findNext()
+    private long mNextAlarmTime;
+    private long mNextEventId;
+
+    /**
+     * Returns true if the timeline was built and covers the given time in the given time zone.
+     */
+    boolean isValid(long currentMillis, String timeZone) {
+        return mBuilt && currentMillis >= mValidFrom && currentMillis <= mValidUntil
+                && timeZone.equals(mTimeZone);
+    }
+
+    /**
+     * Empties the timeline, to be built again for the given period.
+     */
+    void reset(long validFrom, long validUntil, String timeZone) {
+        mSize = 0;
+        mBuilt = true;
+        mValidFrom = validFrom;
+        mValidUntil = validUntil;
+        mTimeZone = timeZone;
+    }
+
+    /**
+     * Drops the timeline. The next scheduling has to build it again.
+     */
+    void invalidate() {
+        mSize = 0;
+        mBuilt = false;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void add(long alarmTime, long eventId, long windowBegin) {
+        if (mSize == mAlarmTimes.length) {
+            int capacity = mSize * 2;
+            mAlarmTimes = copyOf(mAlarmTimes, capacity);
+            mEventIds = copyOf(mEventIds, capacity);
+            mWindowBegins = copyOf(mWindowBegins, capacity);
+        }
+        int i = mSize++;
+        set(i, alarmTime, eventId, windowBegin);
+        siftUp(i);
+    }
+
+    /**
+     * Finds the earliest reminder after the current time, for an instance beginning within the
+     * lookahead window from the current time. Reminders that are due or for instances that
+     * began are dropped on the way.
+     *
+     * @return true if there is one, to be read with {@link #getNextAlarmTime()} and
+     *         {@link #getNextEventId()}
+     */
+    boolean findNext(long currentMillis, long lookaheadMillis) {
+        long maxWindowBegin = currentMillis + lookaheadMillis;
+        // Reminders set aside because their instance is still too far out
+        long[] aside = null;
+        int asideCount = 0;
+        boolean found = false;
+
+        while (mSize > 0) {
+            if (mAlarmTimes[0] <= currentMillis || mWindowBegins[0] < currentMillis) {
+                // Will never be the next one again
+                removeTop();
+            } else if (mWindowBegins[0] > maxWindowBegin) {
+                if (aside == null) {
+                    aside = new long[3 * 4];
+                } else if (aside.length == asideCount * 3) {
+                    aside = copyOf(aside, aside.length * 2);
+                }
+                aside[asideCount * 3] = mAlarmTimes[0];
+                aside[asideCount * 3 + 1] = mEventIds[0];
+                aside[asideCount * 3 + 2] = mWindowBegins[0];
+                asideCount++;
+                removeTop();
+            } else {
+                mNextAlarmTime = mAlarmTimes[0];
+                mNextEventId = mEventIds[0];
+                found = true;
+                break;
+            }
+        }
+
+        for (int i = 0; i < asideCount; i++) {
+            add(aside[i * 3], aside[i * 3 + 1], aside[i * 3 + 2]);
+        }
+        return found;
+    }
+
+    long getNextAlarmTime() {
+        return mNextAlarmTime;
+    }
+
+    long getNextEventId() {
+        return mNextEventId;
+    }
+
+    private void removeTop() {
+        mSize--;
+        if (mSize > 0) {
+            set(0, mAlarmTimes[mSize], mEventIds[mSize], mWindowBegins[mSize]);
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (mAlarmTimes[parent] <= mAlarmTimes[i]) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < mSize && mAlarmTimes[left] < mAlarmTimes[smallest]) {
+                smallest = left;
+            }
+            if (right < mSize && mAlarmTimes[right] < mAlarmTimes[smallest]) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                break;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void set(int i, long alarmTime, long eventId, long windowBegin) {
+        mAlarmTimes[i] = alarmTime;
+        mEventIds[i] = eventId;
+        mWindowBegins[i] = windowBegin;
+    }
+
+    private void swap(int i, int j) {
+        long alarmTime = mAlarmTimes[i];
+        long eventId = mEventIds[i];
+        long windowBegin = mWindowBegins[i];
+        set(i, mAlarmTimes[j], mEventIds[j], mWindowBegins[j]);
+        set(j, alarmTime, eventId, windowBegin);
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+        long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+}
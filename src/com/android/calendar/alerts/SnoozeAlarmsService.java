@@ -65,6 +65,7 @@ public class SnoozeAlarmsService extends IntentService {
                 NotificationManager nm =
                     (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
                 nm.cancel(notificationId);
+                PostedNotifications.getInstance().forget(notificationId);
             }
 
             // Dismiss current alarm
@@ -30,7 +30,6 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.provider.CalendarContract.Attendees;
-import android.provider.CalendarContract.Calendars;
 import android.provider.CalendarContract.Instances;
 import android.text.format.DateUtils;
 import android.text.format.Time;
@@ -49,6 +48,7 @@ import com.android.calendar.CalendarController.EventInfo;
 import com.android.calendar.CalendarController.EventType;
 import com.android.calendar.CalendarController.ViewType;
 import com.android.calendar.Event;
+import com.android.calendar.EventFilter;
 import com.android.calendar.R;
 import com.android.calendar.Utils;
 import com.android.calendar.event.CreateEventDialogFragment;
@@ -60,25 +60,25 @@ import java.util.List;
 
 public class MonthByWeekFragment extends SimpleDayPickerFragment implements
         CalendarController.EventHandler, LoaderManager.LoaderCallbacks<Cursor>, OnScrollListener,
-        OnTouchListener {
+        OnTouchListener, EventFilter.OnFilterChangedListener {
     private static final String TAG = "MonthFragment";
     private static final String TAG_EVENT_DIALOG = "event_dialog";
 
     private CreateEventDialogFragment mEventDialog;
 
-    // Selection and selection args for adding event queries
-    private static final String WHERE_CALENDARS_VISIBLE = Calendars.VISIBLE + "=1";
     private static final String INSTANCES_SORT_ORDER = Instances.START_DAY + ","
             + Instances.START_MINUTE + "," + Instances.TITLE;
     protected static boolean mShowDetailsInMonth = false;
 
     protected float mMinimumTwoMonthFlingVelocity;
     protected boolean mIsMiniMonth;
-    protected boolean mHideDeclined;
 
     protected int mFirstLoadedJulianDay;
     protected int mLastLoadedJulianDay;
 
+    // The events of the loaded days before they are run through the EventFilter
+    private ArrayList<Event> mLoadedEvents;
+
     private static final int WEEKS_BUFFER = 1;
     // How long to wait after scroll stops before starting the loader
     // Using scroll duration because scroll state changes don't update
@@ -209,8 +209,9 @@ public class MonthByWeekFragment extends SimpleDayPickerFragment implements
 
     protected String updateWhere() {
         // TODO fix selection/selection args after b/3206641 is fixed
-        String where = WHERE_CALENDARS_VISIBLE;
-        if (mHideDeclined || !mShowDetailsInMonth) {
+        // Hiding declined events per the preference is left to the EventFilter
+        String where = EventFilter.getInstance(mContext).getCalendarSelection();
+        if (!mShowDetailsInMonth) {
             where += " AND " + Instances.SELF_ATTENDEE_STATUS + "!="
                     + Attendees.ATTENDEE_STATUS_DECLINED;
         }
@@ -368,11 +369,8 @@ public class MonthByWeekFragment extends SimpleDayPickerFragment implements
     public void doResumeUpdates() {
         mFirstDayOfWeek = Utils.getFirstDayOfWeek(mContext);
         mShowWeekNumber = Utils.getShowWeekNumber(mContext);
-        boolean prevHideDeclined = mHideDeclined;
-        mHideDeclined = Utils.getHideDeclinedEvents(mContext);
-        if (prevHideDeclined != mHideDeclined && mLoader != null) {
-            mLoader.setSelection(updateWhere());
-        }
+        EventFilter.getInstance(mContext).addListener(this);
+        applyEventFilter();
         mDaysPerWeek = Utils.getDaysPerWeek(mContext);
         updateHeader();
         mAdapter.setSelectedDay(mSelectedDay);
@@ -400,9 +398,41 @@ public class MonthByWeekFragment extends SimpleDayPickerFragment implements
             ArrayList<Event> events = new ArrayList<Event>();
             Event.buildEventsFromCursor(
                     events, data, mContext, mFirstLoadedJulianDay, mLastLoadedJulianDay);
-            ((MonthByWeekAdapter) mAdapter).setEvents(mFirstLoadedJulianDay,
-                    mLastLoadedJulianDay - mFirstLoadedJulianDay + 1, events);
+            mLoadedEvents = events;
+            applyEventFilter();
+        }
+    }
+
+    /**
+     * Shows the loaded events that are accepted by the EventFilter.
+     */
+    private void applyEventFilter() {
+        if (mLoadedEvents == null) {
+            return;
         }
+        ((MonthByWeekAdapter) mAdapter).setEvents(mFirstLoadedJulianDay,
+                mLastLoadedJulianDay - mFirstLoadedJulianDay + 1,
+                EventFilter.getInstance(mContext).filter(mLoadedEvents));
+    }
+
+    @Override
+    public void onEventFilterChanged(boolean requery) {
+        synchronized (mUpdateLoader) {
+            if (mLoader != null) {
+                // Keep loading the calendars the filter may show
+                mLoader.setSelection(updateWhere());
+                if (requery) {
+                    mLoader.forceLoad();
+                }
+            }
+            applyEventFilter();
+        }
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        EventFilter.getInstance(mContext).removeListener(this);
     }
 
     @Override
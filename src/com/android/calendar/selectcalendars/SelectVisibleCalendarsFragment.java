@@ -34,6 +34,7 @@ import com.android.calendar.AsyncQueryService;
 import com.android.calendar.CalendarController;
 import com.android.calendar.CalendarController.EventInfo;
 import com.android.calendar.CalendarController.EventType;
+import com.android.calendar.EventFilter;
 import com.android.calendar.R;
 import com.android.calendar.Utils;
 import com.android.calendar.selectcalendars.CalendarColorCache.OnCalendarColorsLoadedListener;
@@ -164,6 +165,8 @@ public class SelectVisibleCalendarsFragment extends Fragment
         values.put(Calendars.VISIBLE, visibility);
         mService.startUpdate(mUpdateToken, null, uri, values, null, null, 0);
         mAdapter.setVisible(position, visibility);
+        EventFilter.getInstance(getActivity()).setCalendarVisible(mAdapter.getItemId(position),
+                visibility == 1);
     }
 
     @Override
@@ -16,6 +16,7 @@
 
 package com.android.calendar.widget;
 
+import com.android.calendar.EventFilter;
 import com.android.calendar.R;
 import com.android.calendar.Utils;
 
@@ -29,6 +30,7 @@ import android.util.Log;
 import android.view.View;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.TimeZone;
@@ -61,6 +63,11 @@ class CalendarAppWidgetModel {
          */
         final int mIndex;
 
+        /**
+         * Id of the row, stable across models. Day headers are negative, event rows are not.
+         */
+        long mId;
+
         RowInfo(int type, int index) {
             mType = type;
             mIndex = index;
@@ -261,6 +268,10 @@ class CalendarAppWidgetModel {
     }
 
     public void buildFromCursor(Cursor cursor, String timeZone) {
+        buildFromSnapshot(WidgetEventSnapshot.fromCursor(cursor), timeZone);
+    }
+
+    void buildFromSnapshot(WidgetEventSnapshot snapshot, String timeZone) {
         final Time recycle = new Time(timeZone);
         final ArrayList<LinkedList<RowInfo>> mBuckets =
                 new ArrayList<LinkedList<RowInfo>>(CalendarAppWidgetService.MAX_DAYS);
@@ -274,24 +285,26 @@ class CalendarAppWidgetModel {
                     TimeZone.SHORT);
         }
 
-        cursor.moveToPosition(-1);
         String tz = Utils.getTimeZone(mContext, null);
-        while (cursor.moveToNext()) {
-            final int rowId = cursor.getPosition();
-            final long eventId = cursor.getLong(CalendarAppWidgetService.INDEX_EVENT_ID);
-            final boolean allDay = cursor.getInt(CalendarAppWidgetService.INDEX_ALL_DAY) != 0;
-            long start = cursor.getLong(CalendarAppWidgetService.INDEX_BEGIN);
-            long end = cursor.getLong(CalendarAppWidgetService.INDEX_END);
-            final String title = cursor.getString(CalendarAppWidgetService.INDEX_TITLE);
-            final String location =
-                    cursor.getString(CalendarAppWidgetService.INDEX_EVENT_LOCATION);
+        final EventFilter filter = EventFilter.getInstance(mContext);
+        final int count = snapshot.getCount();
+        final HashSet<Long> eventRowIds = new HashSet<Long>();
+        for (int rowId = 0; rowId < count; rowId++) {
+            final int selfStatus = snapshot.getSelfAttendeeStatus(rowId);
+            if (!filter.accept(snapshot.getCalendarId(rowId), selfStatus)) {
+                continue;
+            }
+            final long eventId = snapshot.getEventId(rowId);
+            final boolean allDay = snapshot.isAllDay(rowId);
+            long start = snapshot.getBegin(rowId);
+            long end = snapshot.getEnd(rowId);
+            final String title = snapshot.getTitle(rowId);
+            final String location = snapshot.getLocation(rowId);
             // we don't compute these ourselves because it seems to produce the
             // wrong endDay for all day events
-            final int startDay = cursor.getInt(CalendarAppWidgetService.INDEX_START_DAY);
-            final int endDay = cursor.getInt(CalendarAppWidgetService.INDEX_END_DAY);
-            final int color = cursor.getInt(CalendarAppWidgetService.INDEX_COLOR);
-            final int selfStatus = cursor
-                    .getInt(CalendarAppWidgetService.INDEX_SELF_ATTENDEE_STATUS);
+            final int startDay = snapshot.getStartDay(rowId);
+            final int endDay = snapshot.getEndDay(rowId);
+            final int color = snapshot.getColor(rowId);
 
             // Adjust all-day times into local timezone
             if (allDay) {
@@ -319,6 +332,7 @@ class CalendarAppWidgetModel {
             for (int day = from; day <= to; day++) {
                 LinkedList<RowInfo> bucket = mBuckets.get(day - mTodayJulianDay);
                 RowInfo rowInfo = new RowInfo(RowInfo.TYPE_MEETING, i);
+                rowInfo.mId = getEventRowId(eventId, start, day, eventRowIds);
                 if (allDay) {
                     bucket.addFirst(rowInfo);
                 } else {
@@ -337,7 +351,9 @@ class CalendarAppWidgetModel {
                     // Add the day header
                     final int dayIndex = mDayInfos.size();
                     mDayInfos.add(dayInfo);
-                    mRowInfos.add(new RowInfo(RowInfo.TYPE_DAY, dayIndex));
+                    RowInfo rowInfo = new RowInfo(RowInfo.TYPE_DAY, dayIndex);
+                    rowInfo.mId = -1 - day;
+                    mRowInfos.add(rowInfo);
                 }
 
                 // Add the event row infos
@@ -351,6 +367,66 @@ class CalendarAppWidgetModel {
         }
     }
 
+    /**
+     * Returns the id of the row of an event instance on a day, which stays the same across models
+     * so the list can keep the row. An event spanning several days has a row in each of them.
+     * Ids are derived from a hash, a row whose hash is taken by an earlier row of the model gets
+     * the next free id.
+     *
+     * @param used the ids of the event rows of the model so far, the id returned is added
+     */
+    // VisibleForTesting
+    static long getEventRowId(long eventId, long start, int day, HashSet<Long> used) {
+        long result = 1;
+        result = 31 * result + (int) (eventId ^ (eventId >>> 32));
+        result = 31 * result + (int) (start ^ (start >>> 32));
+        result = 31 * result + day;
+        result &= Long.MAX_VALUE;
+        // Non-negative, so it can't clash with the ids of the day headers either
+        while (!used.add(result)) {
+            result = (result + 1) & Long.MAX_VALUE;
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if the event is shown as in progress at the given time.
+     */
+    static boolean isInProgress(EventInfo eventInfo, long now) {
+        return !eventInfo.allDay && eventInfo.start <= now && now <= eventInfo.end;
+    }
+
+    /**
+     * Returns true if the other model shows the same rows, with the same ids, the same content
+     * and the same events in progress.
+     */
+    boolean hasSameRows(CalendarAppWidgetModel other) {
+        if (other == null || mRowInfos.size() != other.mRowInfos.size()) {
+            return false;
+        }
+        for (int i = 0; i < mRowInfos.size(); i++) {
+            RowInfo row = mRowInfos.get(i);
+            RowInfo otherRow = other.mRowInfos.get(i);
+            if (row.mType != otherRow.mType || row.mId != otherRow.mId) {
+                return false;
+            }
+            if (row.mType == RowInfo.TYPE_DAY) {
+                if (!mDayInfos.get(row.mIndex).equals(other.mDayInfos.get(otherRow.mIndex))) {
+                    return false;
+                }
+            } else {
+                EventInfo eventInfo = mEventInfos.get(row.mIndex);
+                EventInfo otherEventInfo = other.mEventInfos.get(otherRow.mIndex);
+                if (!eventInfo.equals(otherEventInfo)
+                        || isInProgress(eventInfo, mNow) != isInProgress(otherEventInfo,
+                                other.mNow)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     private EventInfo populateEventInfo(long eventId, boolean allDay, long start, long end,
             int startDay, int endDay, String title, String location, int color, int selfStatus) {
         EventInfo eventInfo = new EventInfo();
@@ -20,7 +20,6 @@ import static android.provider.CalendarContract.EXTRA_EVENT_ALL_DAY;
 import static android.provider.CalendarContract.EXTRA_EVENT_BEGIN_TIME;
 import static android.provider.CalendarContract.EXTRA_EVENT_END_TIME;
 
-import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
@@ -38,6 +37,7 @@ import com.android.calendar.AllInOneActivity;
 import com.android.calendar.EventInfoActivity;
 import com.android.calendar.R;
 import com.android.calendar.Utils;
+import com.android.calendar.alerts.AlertUtils;
 
 /**
  * Simple widget to show next upcoming calendar event.
@@ -82,9 +82,8 @@ public class CalendarAppWidgetProvider extends AppWidgetProvider {
     @Override
     public void onDisabled(Context context) {
         // Unsubscribe from all AlarmManager updates
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
         PendingIntent pendingUpdate = getUpdateIntent(context);
-        am.cancel(pendingUpdate);
+        AlertUtils.createAlarmManager(context).cancel(pendingUpdate);
     }
 
     /**
@@ -16,21 +16,13 @@
 
 package com.android.calendar.widget;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.CursorLoader;
 import android.content.Intent;
-import android.content.Loader;
 import android.content.res.Resources;
 import android.database.Cursor;
-import android.database.MatrixCursor;
-import android.net.Uri;
-import android.os.Handler;
 import android.provider.CalendarContract.Attendees;
-import android.provider.CalendarContract.Calendars;
 import android.provider.CalendarContract.Instances;
 import android.text.format.DateUtils;
 import android.text.format.Time;
@@ -45,9 +37,8 @@ import com.android.calendar.widget.CalendarAppWidgetModel.DayInfo;
 import com.android.calendar.widget.CalendarAppWidgetModel.EventInfo;
 import com.android.calendar.widget.CalendarAppWidgetModel.RowInfo;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.HashMap;
+import java.util.HashSet;
 
 
 public class CalendarAppWidgetService extends RemoteViewsService {
@@ -58,14 +49,10 @@ public class CalendarAppWidgetService extends RemoteViewsService {
     // Minimum delay between queries on the database for widget updates in ms
     static final int WIDGET_UPDATE_THROTTLE = 500;
 
-    private static final String EVENT_SORT_ORDER = Instances.START_DAY + " ASC, "
+    static final String EVENT_SORT_ORDER = Instances.START_DAY + " ASC, "
             + Instances.START_MINUTE + " ASC, " + Instances.END_DAY + " ASC, "
             + Instances.END_MINUTE + " ASC LIMIT " + EVENT_MAX_COUNT;
 
-    private static final String EVENT_SELECTION = Calendars.VISIBLE + "=1";
-    private static final String EVENT_SELECTION_HIDE_DECLINED = Calendars.VISIBLE + "=1 AND "
-            + Instances.SELF_ATTENDEE_STATUS + "!=" + Attendees.ATTENDEE_STATUS_DECLINED;
-
     static final String[] EVENT_PROJECTION = new String[] {
         Instances.ALL_DAY,
         Instances.BEGIN,
@@ -77,6 +64,7 @@ public class CalendarAppWidgetService extends RemoteViewsService {
         Instances.END_DAY,
         Instances.DISPLAY_COLOR, // If SDK < 16, set to Instances.CALENDAR_COLOR.
         Instances.SELF_ATTENDEE_STATUS,
+        Instances.CALENDAR_ID,
     };
 
     static final int INDEX_ALL_DAY = 0;
@@ -89,6 +77,7 @@ public class CalendarAppWidgetService extends RemoteViewsService {
     static final int INDEX_END_DAY = 7;
     static final int INDEX_COLOR = 8;
     static final int INDEX_SELF_ATTENDEE_STATUS = 9;
+    static final int INDEX_CALENDAR_ID = 10;
 
     static {
         if (!Utils.isJellybeanOrLater()) {
@@ -97,13 +86,13 @@ public class CalendarAppWidgetService extends RemoteViewsService {
     }
     static final int MAX_DAYS = 7;
 
-    private static final long SEARCH_DURATION = MAX_DAYS * DateUtils.DAY_IN_MILLIS;
+    static final long SEARCH_DURATION = MAX_DAYS * DateUtils.DAY_IN_MILLIS;
 
     /**
      * Update interval used when no next-update calculated, or bad trigger time in past.
      * Unit: milliseconds.
      */
-    private static final long UPDATE_TIME_NO_EVENTS = DateUtils.HOUR_IN_MILLIS * 6;
+    static final long UPDATE_TIME_NO_EVENTS = DateUtils.HOUR_IN_MILLIS * 6;
 
     @Override
     public RemoteViewsFactory onGetViewFactory(Intent intent) {
@@ -111,59 +100,29 @@ public class CalendarAppWidgetService extends RemoteViewsService {
     }
 
     public static class CalendarFactory extends BroadcastReceiver implements
-            RemoteViewsService.RemoteViewsFactory, Loader.OnLoadCompleteListener<Cursor> {
+            RemoteViewsService.RemoteViewsFactory, WidgetDataHub.Listener {
         private static final boolean LOGD = false;
 
-        // Suppress unnecessary logging about update time. Need to be static as this object is
-        // re-instanciated frequently.
-        // TODO: It seems loadData() is called via onCreate() four times, which should mean
-        // unnecessary CalendarFactory object is created and dropped. It is not efficient.
-        private static long sLastUpdateTime = UPDATE_TIME_NO_EVENTS;
-
         private Context mContext;
         private Resources mResources;
-        private static CalendarAppWidgetModel mModel;
-        private static Object mLock = new Object();
-        private static volatile int mSerialNum = 0;
-        private int mLastSerialNum = -1;
-        private CursorLoader mLoader;
-        private final Handler mHandler = new Handler();
-        private static final AtomicInteger currentVersion = new AtomicInteger(0);
-        private final ExecutorService executor = Executors.newSingleThreadExecutor();
+        // Set by WidgetDataHub on the main thread, read by the binder calls
+        private volatile CalendarAppWidgetModel mModel;
+        // Model this factory's widget was last told to bind. The model is shared, the widgets
+        // are not.
+        private CalendarAppWidgetModel mNotifiedModel;
         private int mAppWidgetId;
+        // Rows built for the model and time zone below, reused until they change. Only used
+        // from the binder calls, which RemoteViewsService serializes.
+        private final HashMap<RowKey, RemoteViews> mRowViews = new HashMap<RowKey, RemoteViews>();
+        private CalendarAppWidgetModel mRowViewsModel;
+        private String mRowViewsTimeZone;
+        private int mRowViewsBinds;
+        private int mRowViewsHits;
+        private long mRowViewsBindNanos;
         private int mDeclinedColor;
         private int mStandardColor;
         private int mAllDayColor;
 
-        private final Runnable mTimezoneChanged = new Runnable() {
-            @Override
-            public void run() {
-                if (mLoader != null) {
-                    mLoader.forceLoad();
-                }
-            }
-        };
-
-        private Runnable createUpdateLoaderRunnable(final String selection,
-                final PendingResult result, final int version) {
-            return new Runnable() {
-                @Override
-                public void run() {
-                    // If there is a newer load request in the queue, skip loading.
-                    if (mLoader != null && version >= currentVersion.get()) {
-                        Uri uri = createLoaderUri();
-                        mLoader.setUri(uri);
-                        mLoader.setSelection(selection);
-                        synchronized (mLock) {
-                            mLastSerialNum = ++mSerialNum;
-                        }
-                        mLoader.forceLoad();
-                    }
-                    result.finish();
-                }
-            };
-        }
-
         protected CalendarFactory(Context context, Intent intent) {
             mContext = context;
             mResources = context.getResources();
@@ -182,8 +141,7 @@ public class CalendarAppWidgetService extends RemoteViewsService {
 
         @Override
         public void onCreate() {
-            String selection = queryForSelection();
-            initLoader(selection);
+            WidgetDataHub.getInstance(mContext).addListener(this);
         }
 
         @Override
@@ -192,9 +150,13 @@ public class CalendarAppWidgetService extends RemoteViewsService {
 
         @Override
         public void onDestroy() {
-            if (mLoader != null) {
-                mLoader.reset();
-            }
+            WidgetDataHub.getInstance(mContext).removeListener(this);
+        }
+
+        @Override
+        public void onWidgetModelChanged(CalendarAppWidgetModel model) {
+            mModel = model;
+            notifyWidgetDataChangedIfNeeded();
         }
 
         @Override
@@ -211,7 +173,8 @@ public class CalendarAppWidgetService extends RemoteViewsService {
                 return null;
             }
 
-            if (mModel == null) {
+            final CalendarAppWidgetModel model = mModel;
+            if (model == null) {
                 RemoteViews views = new RemoteViews(mContext.getPackageName(),
                         R.layout.appwidget_loading);
                 final Intent intent = CalendarAppWidgetProvider.getLaunchFillInIntent(mContext, 0,
@@ -220,7 +183,8 @@ public class CalendarAppWidgetService extends RemoteViewsService {
                 return views;
 
             }
-            if (mModel.mEventInfos.isEmpty() || mModel.mRowInfos.isEmpty()) {
+            if (model.mEventInfos.isEmpty() || model.mRowInfos.isEmpty()
+                    || position >= model.mRowInfos.size()) {
                 RemoteViews views = new RemoteViews(mContext.getPackageName(),
                         R.layout.appwidget_no_events);
                 final Intent intent = CalendarAppWidgetProvider.getLaunchFillInIntent(mContext, 0,
@@ -229,16 +193,66 @@ public class CalendarAppWidgetService extends RemoteViewsService {
                 return views;
             }
 
-            RowInfo rowInfo = mModel.mRowInfos.get(position);
+            final long startNanos = LOGD ? System.nanoTime() : 0;
+            final long now = System.currentTimeMillis();
+            updateRowViewsCache(model, now);
+            RowKey key = new RowKey(model, model.mRowInfos.get(position), now);
+            RemoteViews views = mRowViews.get(key);
+            if (views == null) {
+                views = buildRowViews(model, model.mRowInfos.get(position), now);
+                mRowViews.put(key, views);
+            } else if (LOGD) {
+                mRowViewsHits++;
+            }
+            if (LOGD) {
+                mRowViewsBinds++;
+                mRowViewsBindNanos += System.nanoTime() - startNanos;
+            }
+            return views;
+        }
+
+        /**
+         * Drops the cached rows the model doesn't show anymore, or all of them when the time
+         * zone changed.
+         */
+        private void updateRowViewsCache(CalendarAppWidgetModel model, long now) {
+            String tz = Utils.getTimeZone(mContext, null);
+            if (model == mRowViewsModel && tz.equals(mRowViewsTimeZone)) {
+                return;
+            }
+            if (LOGD && mRowViewsBinds > 0) {
+                Log.d(TAG, "Bound " + mRowViewsBinds + " rows in "
+                        + mRowViewsBindNanos / 1000 + " us, " + mRowViewsHits + " from cache");
+            }
+            mRowViewsBinds = 0;
+            mRowViewsHits = 0;
+            mRowViewsBindNanos = 0;
+
+            if (!tz.equals(mRowViewsTimeZone)) {
+                // All-day rows launch the event at times in the old time zone
+                mRowViews.clear();
+            } else {
+                HashSet<RowKey> keys = new HashSet<RowKey>(model.mRowInfos.size() * 2);
+                for (RowInfo rowInfo : model.mRowInfos) {
+                    keys.add(new RowKey(model, rowInfo, now));
+                }
+                mRowViews.keySet().retainAll(keys);
+            }
+            mRowViewsModel = model;
+            mRowViewsTimeZone = tz;
+        }
+
+        private RemoteViews buildRowViews(CalendarAppWidgetModel model, RowInfo rowInfo,
+                long now) {
             if (rowInfo.mType == RowInfo.TYPE_DAY) {
                 RemoteViews views = new RemoteViews(mContext.getPackageName(),
                         R.layout.appwidget_day);
-                DayInfo dayInfo = mModel.mDayInfos.get(rowInfo.mIndex);
+                DayInfo dayInfo = model.mDayInfos.get(rowInfo.mIndex);
                 updateTextView(views, R.id.date, View.VISIBLE, dayInfo.mDayLabel);
                 return views;
             } else {
                 RemoteViews views;
-                final EventInfo eventInfo = mModel.mEventInfos.get(rowInfo.mIndex);
+                final EventInfo eventInfo = model.mEventInfos.get(rowInfo.mIndex);
                 if (eventInfo.allDay) {
                     views = new RemoteViews(mContext.getPackageName(),
                             R.layout.widget_all_day_item);
@@ -247,8 +261,7 @@ public class CalendarAppWidgetService extends RemoteViewsService {
                 }
                 int displayColor = Utils.getDisplayColorFromColor(eventInfo.color);
 
-                final long now = System.currentTimeMillis();
-                if (!eventInfo.allDay && eventInfo.start <= now && now <= eventInfo.end) {
+                if (CalendarAppWidgetModel.isInProgress(eventInfo, now)) {
                     views.setInt(R.id.widget_row, "setBackgroundResource",
                             R.drawable.agenda_item_bg_secondary);
                 } else {
@@ -323,6 +336,50 @@ public class CalendarAppWidgetService extends RemoteViewsService {
             }
         }
 
+        /**
+         * Identifies the content of a row. Everything a row shows follows from its EventInfo or
+         * DayInfo, which include the attendee status and the all-day state, and from whether
+         * the event is in progress.
+         */
+        private static class RowKey {
+            final long mId;
+            final Object mInfo;
+            final boolean mInProgress;
+
+            RowKey(CalendarAppWidgetModel model, RowInfo rowInfo, long now) {
+                mId = rowInfo.mId;
+                if (rowInfo.mType == RowInfo.TYPE_DAY) {
+                    mInfo = model.mDayInfos.get(rowInfo.mIndex);
+                    mInProgress = false;
+                } else {
+                    EventInfo eventInfo = model.mEventInfos.get(rowInfo.mIndex);
+                    mInfo = eventInfo;
+                    mInProgress = CalendarAppWidgetModel.isInProgress(eventInfo, now);
+                }
+            }
+
+            @Override
+            public int hashCode() {
+                int result = (int) (mId ^ (mId >>> 32));
+                result = 31 * result + mInfo.hashCode();
+                result = 31 * result + (mInProgress ? 1 : 0);
+                return result;
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                if (this == obj) {
+                    return true;
+                }
+                if (!(obj instanceof RowKey)) {
+                    return false;
+                }
+                RowKey other = (RowKey) obj;
+                return mId == other.mId && mInProgress == other.mInProgress
+                        && mInfo.equals(other.mInfo);
+            }
+        }
+
         @Override
         public int getViewTypeCount() {
             return 5;
@@ -340,19 +397,11 @@ public class CalendarAppWidgetService extends RemoteViewsService {
 
         @Override
         public long getItemId(int position) {
-            if (mModel == null ||  mModel.mRowInfos.isEmpty() || position >= getCount()) {
+            final CalendarAppWidgetModel model = mModel;
+            if (model == null || position < 0 || position >= model.mRowInfos.size()) {
                 return 0;
             }
-            RowInfo rowInfo = mModel.mRowInfos.get(position);
-            if (rowInfo.mType == RowInfo.TYPE_DAY) {
-                return rowInfo.mIndex;
-            }
-            EventInfo eventInfo = mModel.mEventInfos.get(rowInfo.mIndex);
-            long prime = 31;
-            long result = 1;
-            result = prime * result + (int) (eventInfo.id ^ (eventInfo.id >>> 32));
-            result = prime * result + (int) (eventInfo.start ^ (eventInfo.start >>> 32));
-            return result;
+            return model.mRowInfos.get(position).mId;
         }
 
         @Override
@@ -360,103 +409,17 @@ public class CalendarAppWidgetService extends RemoteViewsService {
             return true;
         }
 
-        /**
-         * Query across all calendars for upcoming event instances from now
-         * until some time in the future. Widen the time range that we query by
-         * one day on each end so that we can catch all-day events. All-day
-         * events are stored starting at midnight in UTC but should be included
-         * in the list of events starting at midnight local time. This may fetch
-         * more events than we actually want, so we filter them out later.
-         *
-         * @param selection The selection string for the loader to filter the query with.
-         */
-        public void initLoader(String selection) {
-            if (LOGD)
-                Log.d(TAG, "Querying for widget events...");
-
-            // Search for events from now until some time in the future
-            Uri uri = createLoaderUri();
-            mLoader = new CursorLoader(mContext, uri, EVENT_PROJECTION, selection, null,
-                    EVENT_SORT_ORDER);
-            mLoader.setUpdateThrottle(WIDGET_UPDATE_THROTTLE);
-            synchronized (mLock) {
-                mLastSerialNum = ++mSerialNum;
-            }
-            mLoader.registerListener(mAppWidgetId, this);
-            mLoader.startLoading();
-
-        }
-
-        /**
-         * This gets the selection string for the loader.  This ends up doing a query in the
-         * shared preferences.
-         */
-        private String queryForSelection() {
-            return Utils.getHideDeclinedEvents(mContext) ? EVENT_SELECTION_HIDE_DECLINED
-                    : EVENT_SELECTION;
-        }
-
-        /**
-         * @return The uri for the loader
-         */
-        private Uri createLoaderUri() {
-            long now = System.currentTimeMillis();
-            // Add a day on either side to catch all-day events
-            long begin = now - DateUtils.DAY_IN_MILLIS;
-            long end = now + SEARCH_DURATION + DateUtils.DAY_IN_MILLIS;
-
-            Uri uri = Uri.withAppendedPath(Instances.CONTENT_URI, Long.toString(begin) + "/" + end);
-            return uri;
-        }
-
         /* @VisibleForTesting */
         protected static CalendarAppWidgetModel buildAppWidgetModel(
                 Context context, Cursor cursor, String timeZone) {
-            CalendarAppWidgetModel model = new CalendarAppWidgetModel(context, timeZone);
-            model.buildFromCursor(cursor, timeZone);
-            return model;
-        }
-
-        /**
-         * Calculates and returns the next time we should push widget updates.
-         */
-        private long calculateUpdateTime(CalendarAppWidgetModel model, long now, String timeZone) {
-            // Make sure an update happens at midnight or earlier
-            long minUpdateTime = getNextMidnightTimeMillis(timeZone);
-            for (EventInfo event : model.mEventInfos) {
-                final long start;
-                final long end;
-                start = event.start;
-                end = event.end;
-
-                // We want to update widget when we enter/exit time range of an event.
-                if (now < start) {
-                    minUpdateTime = Math.min(minUpdateTime, start);
-                } else if (now < end) {
-                    minUpdateTime = Math.min(minUpdateTime, end);
-                }
-            }
-            return minUpdateTime;
+            return buildAppWidgetModel(context, WidgetEventSnapshot.fromCursor(cursor), timeZone);
         }
 
-        private static long getNextMidnightTimeMillis(String timezone) {
-            Time time = new Time();
-            time.setToNow();
-            time.monthDay++;
-            time.hour = 0;
-            time.minute = 0;
-            time.second = 0;
-            long midnightDeviceTz = time.normalize(true);
-
-            time.timezone = timezone;
-            time.setToNow();
-            time.monthDay++;
-            time.hour = 0;
-            time.minute = 0;
-            time.second = 0;
-            long midnightHomeTz = time.normalize(true);
-
-            return Math.min(midnightDeviceTz, midnightHomeTz);
+        static CalendarAppWidgetModel buildAppWidgetModel(
+                Context context, WidgetEventSnapshot snapshot, String timeZone) {
+            CalendarAppWidgetModel model = new CalendarAppWidgetModel(context, timeZone);
+            model.buildFromSnapshot(snapshot, timeZone);
+            return model;
         }
 
         static void updateTextView(RemoteViews views, int id, int visibility, String string) {
@@ -466,92 +429,30 @@ public class CalendarAppWidgetService extends RemoteViewsService {
             }
         }
 
-        /*
-         * (non-Javadoc)
-         * @see
-         * android.content.Loader.OnLoadCompleteListener#onLoadComplete(android
-         * .content.Loader, java.lang.Object)
+        /**
+         * Tells the widget to bind its rows again, unless they would look the same as with the
+         * model it was last told about.
          */
-        @Override
-        public void onLoadComplete(Loader<Cursor> loader, Cursor cursor) {
-            if (cursor == null) {
+        private void notifyWidgetDataChangedIfNeeded() {
+            if (mModel.hasSameRows(mNotifiedModel)) {
+                if (LOGD) {
+                    Log.d(TAG, "Widget rows didn't change");
+                }
                 return;
             }
-            // If a newer update has happened since we started clean up and
-            // return
-            synchronized (mLock) {
-                if (cursor.isClosed()) {
-                    Log.wtf(TAG, "Got a closed cursor from onLoadComplete");
-                    return;
-                }
-
-                if (mLastSerialNum != mSerialNum) {
-                    return;
-                }
-
-                final long now = System.currentTimeMillis();
-                String tz = Utils.getTimeZone(mContext, mTimezoneChanged);
-
-                // Copy it to a local static cursor.
-                MatrixCursor matrixCursor = Utils.matrixCursorFromCursor(cursor);
-                try {
-                    mModel = buildAppWidgetModel(mContext, matrixCursor, tz);
-                } finally {
-                    if (matrixCursor != null) {
-                        matrixCursor.close();
-                    }
-
-                    if (cursor != null) {
-                        cursor.close();
-                    }
-                }
-
-                // Schedule an alarm to wake ourselves up for the next update.
-                // We also cancel
-                // all existing wake-ups because PendingIntents don't match
-                // against extras.
-                long triggerTime = calculateUpdateTime(mModel, now, tz);
-
-                // If no next-update calculated, or bad trigger time in past,
-                // schedule
-                // update about six hours from now.
-                if (triggerTime < now) {
-                    Log.w(TAG, "Encountered bad trigger time " + formatDebugTime(triggerTime, now));
-                    triggerTime = now + UPDATE_TIME_NO_EVENTS;
-                }
-
-                final AlarmManager alertManager = (AlarmManager) mContext
-                        .getSystemService(Context.ALARM_SERVICE);
-                final PendingIntent pendingUpdate = CalendarAppWidgetProvider
-                        .getUpdateIntent(mContext);
-
-                alertManager.cancel(pendingUpdate);
-                alertManager.set(AlarmManager.RTC, triggerTime, pendingUpdate);
-                Time time = new Time(Utils.getTimeZone(mContext, null));
-                time.setToNow();
-
-                if (time.normalize(true) != sLastUpdateTime) {
-                    Time time2 = new Time(Utils.getTimeZone(mContext, null));
-                    time2.set(sLastUpdateTime);
-                    time2.normalize(true);
-                    if (time.year != time2.year || time.yearDay != time2.yearDay) {
-                        final Intent updateIntent = new Intent(
-                                Utils.getWidgetUpdateAction(mContext));
-                        mContext.sendBroadcast(updateIntent);
-                    }
-
-                    sLastUpdateTime = time.toMillis(true);
-                }
+            mNotifiedModel = mModel;
+            notifyWidgetDataChanged();
+        }
 
-                AppWidgetManager widgetManager = AppWidgetManager.getInstance(mContext);
-                if (mAppWidgetId == -1) {
-                    int[] ids = widgetManager.getAppWidgetIds(CalendarAppWidgetProvider
-                            .getComponentName(mContext));
+        private void notifyWidgetDataChanged() {
+            AppWidgetManager widgetManager = AppWidgetManager.getInstance(mContext);
+            if (mAppWidgetId == -1) {
+                int[] ids = widgetManager.getAppWidgetIds(CalendarAppWidgetProvider
+                        .getComponentName(mContext));
 
-                    widgetManager.notifyAppWidgetViewDataChanged(ids, R.id.events_list);
-                } else {
-                    widgetManager.notifyAppWidgetViewDataChanged(mAppWidgetId, R.id.events_list);
-                }
+                widgetManager.notifyAppWidgetViewDataChanged(ids, R.id.events_list);
+            } else {
+                widgetManager.notifyAppWidgetViewDataChanged(mAppWidgetId, R.id.events_list);
             }
         }
 
@@ -559,44 +460,9 @@ public class CalendarAppWidgetService extends RemoteViewsService {
         public void onReceive(Context context, Intent intent) {
             if (LOGD)
                 Log.d(TAG, "AppWidgetService received an intent. It was " + intent.toString());
-            mContext = context;
 
-            // We cannot do any queries from the UI thread, so push the 'selection' query
-            // to a background thread.  However the implementation of the latter query
-            // (cursor loading) uses CursorLoader which must be initiated from the UI thread,
-            // so there is some convoluted handshaking here.
-            //
-            // Note that as currently implemented, this must run in a single threaded executor
-            // or else the loads may be run out of order.
-            //
-            // TODO: Remove use of mHandler and CursorLoader, and do all the work synchronously
-            // in the background thread.  All the handshaking going on here between the UI and
-            // background thread with using goAsync, mHandler, and CursorLoader is confusing.
-            final PendingResult result = goAsync();
-            executor.submit(new Runnable() {
-                @Override
-                public void run() {
-                    // We always complete queryForSelection() even if the load task ends up being
-                    // canceled because of a more recent one.  Optimizing this to allow
-                    // canceling would require keeping track of all the PendingResults
-                    // (from goAsync) to abort them.  Defer this until it becomes a problem.
-                    final String selection = queryForSelection();
-
-                    if (mLoader == null) {
-                        mAppWidgetId = -1;
-                        mHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                initLoader(selection);
-                                result.finish();
-                            }
-                        });
-                    } else {
-                        mHandler.post(createUpdateLoaderRunnable(selection, result,
-                                currentVersion.incrementAndGet()));
-                    }
-                }
-            });
+            // The selection is computed off the UI thread, the load itself is started from it.
+            WidgetDataHub.getInstance(context).requestLoad(goAsync());
         }
     }
 
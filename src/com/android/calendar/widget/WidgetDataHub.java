@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.widget;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.BroadcastReceiver.PendingResult;
+import android.content.Context;
+import android.content.CursorLoader;
+import android.content.Intent;
+import android.content.Loader;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.CalendarContract.Attendees;
+import android.provider.CalendarContract.Instances;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.android.calendar.EventFilter;
+import com.android.calendar.R;
+import com.android.calendar.Utils;
+import com.android.calendar.alerts.AlarmManagerInterface;
+import com.android.calendar.alerts.AlertUtils;
+import com.android.calendar.widget.CalendarAppWidgetModel.EventInfo;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the instances shown by the calendar widgets once for all of them. There is a single
+ * loader, model and update alarm per process, however many widgets are placed, and the model is
+ * handed to the factory of every widget.
+ *
+ * Models are immutable once handed out. The loader, the listeners and the snapshot are only
+ * touched on the main thread, where the snapshot and model are also built. The loader is reset
+ * and the alarm cancelled when the last listener is removed and no widget is placed anymore.
+ */
+class WidgetDataHub implements Loader.OnLoadCompleteListener<Cursor>,
+        EventFilter.OnFilterChangedListener {
+    private static final String TAG = "CalendarWidget";
+    private static final boolean LOGD = false;
+
+    interface Listener {
+        /**
+         * Called on the main thread with every new model.
+         */
+        void onWidgetModelChanged(CalendarAppWidgetModel model);
+    }
+
+    private static WidgetDataHub sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Runs queryForSelection() off the main thread. Single threaded to keep the loads in order.
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicInteger mVersion = new AtomicInteger(0);
+
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+    private CursorLoader mLoader;
+    // Copy of the last loaded cursor, to rebuild the model when the EventFilter changes
+    private WidgetEventSnapshot mSnapshot;
+    private volatile CalendarAppWidgetModel mModel;
+    // Whether the selection of the last load left out declined events
+    private volatile boolean mSelectionHidesDeclined;
+
+    // Suppress unnecessary logging about update time
+    private long mLastUpdateTime = CalendarAppWidgetService.UPDATE_TIME_NO_EVENTS;
+
+    private final Runnable mTimezoneChanged = new Runnable() {
+        @Override
+        public void run() {
+            requestLoad(null);
+        }
+    };
+
+    static synchronized WidgetDataHub getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WidgetDataHub(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private WidgetDataHub(Context context) {
+        mContext = context;
+        EventFilter.getInstance(context).addListener(this);
+    }
+
+    /**
+     * Starts handing models to the listener, starting with the current one if there is one.
+     */
+    void addListener(final Listener listener) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListeners.contains(listener)) {
+                    return;
+                }
+                mListeners.add(listener);
+                if (mModel != null) {
+                    listener.onWidgetModelChanged(mModel);
+                } else if (mLoader == null) {
+                    requestLoad(null);
+                }
+            }
+        });
+    }
+
+    void removeListener(final Listener listener) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListeners.remove(listener);
+                if (mListeners.isEmpty() && !hasWidgets()) {
+                    stop();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return whether any calendar widget is still placed
+     */
+    private boolean hasWidgets() {
+        int[] ids = AppWidgetManager.getInstance(mContext).getAppWidgetIds(
+                CalendarAppWidgetProvider.getComponentName(mContext));
+        return ids != null && ids.length > 0;
+    }
+
+    /**
+     * Stops the loader, drops the model and cancels the update alarm once the last widget is
+     * gone. The next listener or load request starts over.
+     */
+    private void stop() {
+        if (LOGD) {
+            Log.d(TAG, "No widgets left, stopping the loader");
+        }
+        if (mLoader != null) {
+            mLoader.unregisterListener(this);
+            mLoader.reset();
+            mLoader = null;
+        }
+        mSnapshot = null;
+        mModel = null;
+        mLastUpdateTime = CalendarAppWidgetService.UPDATE_TIME_NO_EVENTS;
+        AlertUtils.createAlarmManager(mContext).cancel(
+                CalendarAppWidgetProvider.getUpdateIntent(mContext));
+    }
+
+    /**
+     * Loads the instances again, coalesced with the other requests made until the selection
+     * was computed. Can be called from any thread.
+     *
+     * @param result finished once the load was started, may be null
+     */
+    void requestLoad(final PendingResult result) {
+        final int version = mVersion.incrementAndGet();
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                // If there is a newer load request in the queue, skip loading.
+                if (version < mVersion.get()) {
+                    if (result != null) {
+                        result.finish();
+                    }
+                    return;
+                }
+                final String selection = queryForSelection();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (version >= mVersion.get()) {
+                            load(selection);
+                        }
+                        if (result != null) {
+                            result.finish();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Query across all calendars for upcoming event instances from now until some time in the
+     * future. Widen the time range that we query by one day on each end so that we can catch
+     * all-day events. All-day events are stored starting at midnight in UTC but should be
+     * included in the list of events starting at midnight local time. This may fetch more
+     * events than we actually want, so we filter them out later.
+     */
+    private void load(String selection) {
+        if (mListeners.isEmpty() && !hasWidgets()) {
+            // Nothing to show it on, e.g. a broadcast after the last widget was removed
+            stop();
+            return;
+        }
+        Uri uri = createLoaderUri();
+        if (mLoader == null) {
+            if (LOGD) {
+                Log.d(TAG, "Querying for widget events...");
+            }
+            mLoader = new CursorLoader(mContext, uri, CalendarAppWidgetService.EVENT_PROJECTION,
+                    selection, null, CalendarAppWidgetService.EVENT_SORT_ORDER);
+            mLoader.setUpdateThrottle(CalendarAppWidgetService.WIDGET_UPDATE_THROTTLE);
+            mLoader.registerListener(0, this);
+            mLoader.startLoading();
+        } else {
+            mLoader.setUri(uri);
+            mLoader.setSelection(selection);
+            mLoader.forceLoad();
+        }
+    }
+
+    /**
+     * This gets the selection string for the loader. Declined events are left out by the query
+     * when they are hidden, so that they don't count against the EVENT_MAX_COUNT limit. Hidden
+     * calendars are left to the EventFilter when the model is built.
+     */
+    private String queryForSelection() {
+        EventFilter filter = EventFilter.getInstance(mContext);
+        boolean hideDeclined = filter.isHideDeclined();
+        mSelectionHidesDeclined = hideDeclined;
+        String selection = filter.getCalendarSelection();
+        if (hideDeclined) {
+            selection += " AND " + Instances.SELF_ATTENDEE_STATUS + "!="
+                    + Attendees.ATTENDEE_STATUS_DECLINED;
+        }
+        return selection;
+    }
+
+    /**
+     * @return The uri for the loader
+     */
+    private static Uri createLoaderUri() {
+        long now = System.currentTimeMillis();
+        // Add a day on either side to catch all-day events
+        long begin = now - DateUtils.DAY_IN_MILLIS;
+        long end = now + CalendarAppWidgetService.SEARCH_DURATION + DateUtils.DAY_IN_MILLIS;
+
+        return Uri.withAppendedPath(Instances.CONTENT_URI, Long.toString(begin) + "/" + end);
+    }
+
+    /**
+     * Rebuilds the model from the last loaded events, without querying them again unless
+     * instances that were never loaded have to be shown or declined events were shown or hidden.
+     */
+    @Override
+    public void onEventFilterChanged(final boolean requery) {
+        if (requery || EventFilter.getInstance(mContext).isHideDeclined()
+                != mSelectionHidesDeclined) {
+            requestLoad(null);
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSnapshot == null) {
+                    return;
+                }
+                String tz = Utils.getTimeZone(mContext, mTimezoneChanged);
+                publish(CalendarAppWidgetService.CalendarFactory.buildAppWidgetModel(mContext,
+                        mSnapshot, tz));
+            }
+        });
+    }
+
+    @Override
+    public void onLoadComplete(Loader<Cursor> loader, Cursor cursor) {
+        if (cursor == null) {
+            return;
+        }
+        if (cursor.isClosed()) {
+            Log.wtf(TAG, "Got a closed cursor from onLoadComplete");
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        String tz = Utils.getTimeZone(mContext, mTimezoneChanged);
+
+        // Copy it to a snapshot, kept until the next load.
+        try {
+            mSnapshot = WidgetEventSnapshot.fromCursor(cursor);
+        } finally {
+            cursor.close();
+        }
+        CalendarAppWidgetModel model = CalendarAppWidgetService.CalendarFactory
+                .buildAppWidgetModel(mContext, mSnapshot, tz);
+        scheduleUpdate(model, now, tz);
+        publish(model);
+    }
+
+    private void publish(CalendarAppWidgetModel model) {
+        mModel = model;
+        if (mListeners.isEmpty()) {
+            // No widget is bound in this process, have them all bind again to pick it up
+            AppWidgetManager widgetManager = AppWidgetManager.getInstance(mContext);
+            int[] ids = widgetManager.getAppWidgetIds(
+                    CalendarAppWidgetProvider.getComponentName(mContext));
+            widgetManager.notifyAppWidgetViewDataChanged(ids, R.id.events_list);
+            return;
+        }
+        for (Listener listener : new ArrayList<Listener>(mListeners)) {
+            listener.onWidgetModelChanged(model);
+        }
+    }
+
+    /**
+     * Schedules an alarm to wake ourselves up for the next update.
+     */
+    private void scheduleUpdate(CalendarAppWidgetModel model, long now, String tz) {
+        long triggerTime = calculateUpdateTime(model, now, tz);
+
+        // If no next-update calculated, or bad trigger time in past, schedule
+        // update about six hours from now.
+        if (triggerTime < now) {
+            Log.w(TAG, "Encountered bad trigger time "
+                    + CalendarAppWidgetService.formatDebugTime(triggerTime, now));
+            triggerTime = now + CalendarAppWidgetService.UPDATE_TIME_NO_EVENTS;
+        }
+
+        // We also cancel all existing wake-ups because PendingIntents don't match against
+        // extras.
+        final AlarmManagerInterface alertManager = AlertUtils.createAlarmManager(mContext);
+        final PendingIntent pendingUpdate = CalendarAppWidgetProvider.getUpdateIntent(mContext);
+
+        alertManager.cancel(pendingUpdate);
+        // Shares the wakeup of a reminder or notification refresh due soon after
+        alertManager.set(AlarmManager.RTC, triggerTime, pendingUpdate);
+        Time time = new Time(Utils.getTimeZone(mContext, null));
+        time.setToNow();
+
+        if (time.normalize(true) != mLastUpdateTime) {
+            Time time2 = new Time(Utils.getTimeZone(mContext, null));
+            time2.set(mLastUpdateTime);
+            time2.normalize(true);
+            if (time.year != time2.year || time.yearDay != time2.yearDay) {
+                final Intent updateIntent = new Intent(Utils.getWidgetUpdateAction(mContext));
+                mContext.sendBroadcast(updateIntent);
+            }
+
+            mLastUpdateTime = time.toMillis(true);
+        }
+    }
+
+    /**
+     * Calculates and returns the next time we should push widget updates.
+     */
+    private static long calculateUpdateTime(CalendarAppWidgetModel model, long now,
+            String timeZone) {
+        // Make sure an update happens at midnight or earlier
+        long minUpdateTime = getNextMidnightTimeMillis(timeZone);
+        for (EventInfo event : model.mEventInfos) {
+            final long start;
+            final long end;
+            start = event.start;
+            end = event.end;
+
+            // We want to update widget when we enter/exit time range of an event.
+            if (now < start) {
+                minUpdateTime = Math.min(minUpdateTime, start);
+            } else if (now < end) {
+                minUpdateTime = Math.min(minUpdateTime, end);
+            }
+        }
+        return minUpdateTime;
+    }
+
+    private static long getNextMidnightTimeMillis(String timezone) {
+        Time time = new Time();
+        time.setToNow();
+        time.monthDay++;
+        time.hour = 0;
+        time.minute = 0;
+        time.second = 0;
+        long midnightDeviceTz = time.normalize(true);
+
+        time.timezone = timezone;
+        time.setToNow();
+        time.monthDay++;
+        time.hour = 0;
+        time.minute = 0;
+        time.second = 0;
+        long midnightHomeTz = time.normalize(true);
+
+        return Math.min(midnightDeviceTz, midnightHomeTz);
+    }
+}
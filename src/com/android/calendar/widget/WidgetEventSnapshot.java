@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.widget;
+
+import android.database.Cursor;
+
+import java.util.HashMap;
+
+/**
+ * A copy of the instances loaded for the widget, kept to rebuild the model when the EventFilter
+ * changes without querying again.
+ *
+ * The columns of {@link CalendarAppWidgetService#EVENT_PROJECTION} are read with their own type
+ * into one array per column, instead of as strings into a MatrixCursor that has to parse them
+ * back. Titles and locations repeated by recurring events are stored once.
+ *
+ * Immutable once built.
+ */
+class WidgetEventSnapshot {
+
+    private final int mCount;
+    private final long[] mEventIds;
+    private final long[] mBegins;
+    private final long[] mEnds;
+    private final long[] mCalendarIds;
+    private final int[] mStartDays;
+    private final int[] mEndDays;
+    private final int[] mColors;
+    private final int[] mSelfAttendeeStatuses;
+    private final boolean[] mAllDays;
+    private final String[] mTitles;
+    private final String[] mLocations;
+
+    private WidgetEventSnapshot(int count) {
+        mCount = count;
+        mEventIds = new long[count];
+        mBegins = new long[count];
+        mEnds = new long[count];
+        mCalendarIds = new long[count];
+        mStartDays = new int[count];
+        mEndDays = new int[count];
+        mColors = new int[count];
+        mSelfAttendeeStatuses = new int[count];
+        mAllDays = new boolean[count];
+        mTitles = new String[count];
+        mLocations = new String[count];
+    }
+
+    /**
+     * Copies the rows of a cursor over {@link CalendarAppWidgetService#EVENT_PROJECTION}. The
+     * cursor is left open.
+     */
+    static WidgetEventSnapshot fromCursor(Cursor cursor) {
+        WidgetEventSnapshot snapshot = new WidgetEventSnapshot(cursor.getCount());
+        HashMap<String, String> strings = new HashMap<String, String>();
+        int i = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext() && i < snapshot.mCount) {
+            snapshot.mEventIds[i] = cursor.getLong(CalendarAppWidgetService.INDEX_EVENT_ID);
+            snapshot.mBegins[i] = cursor.getLong(CalendarAppWidgetService.INDEX_BEGIN);
+            snapshot.mEnds[i] = cursor.getLong(CalendarAppWidgetService.INDEX_END);
+            snapshot.mCalendarIds[i] = cursor.getLong(CalendarAppWidgetService.INDEX_CALENDAR_ID);
+            snapshot.mStartDays[i] = cursor.getInt(CalendarAppWidgetService.INDEX_START_DAY);
+            snapshot.mEndDays[i] = cursor.getInt(CalendarAppWidgetService.INDEX_END_DAY);
+            snapshot.mColors[i] = cursor.getInt(CalendarAppWidgetService.INDEX_COLOR);
+            snapshot.mSelfAttendeeStatuses[i] =
+                    cursor.getInt(CalendarAppWidgetService.INDEX_SELF_ATTENDEE_STATUS);
+            snapshot.mAllDays[i] = cursor.getInt(CalendarAppWidgetService.INDEX_ALL_DAY) != 0;
+            snapshot.mTitles[i] = intern(strings,
+                    cursor.getString(CalendarAppWidgetService.INDEX_TITLE));
+            snapshot.mLocations[i] = intern(strings,
+                    cursor.getString(CalendarAppWidgetService.INDEX_EVENT_LOCATION));
+            i++;
+        }
+        return snapshot;
+    }
+
+    private static String intern(HashMap<String, String> strings, String string) {
+        if (string == null) {
+            return null;
+        }
+        String interned = strings.get(string);
+        if (interned == null) {
+            strings.put(string, string);
+            interned = string;
+        }
+        return interned;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    long getEventId(int i) {
+        return mEventIds[i];
+    }
+
+    long getBegin(int i) {
+        return mBegins[i];
+    }
+
+    long getEnd(int i) {
+        return mEnds[i];
+    }
+
+    long getCalendarId(int i) {
+        return mCalendarIds[i];
+    }
+
+    int getStartDay(int i) {
+        return mStartDays[i];
+    }
+
+    int getEndDay(int i) {
+        return mEndDays[i];
+    }
+
+    int getColor(int i) {
+        return mColors[i];
+    }
+
+    int getSelfAttendeeStatus(int i) {
+        return mSelfAttendeeStatuses[i];
+    }
+
+    boolean isAllDay(int i) {
+        return mAllDays[i];
+    }
+
+    String getTitle(int i) {
+        return mTitles[i];
+    }
+
+    String getLocation(int i) {
+        return mLocations[i];
+    }
+}
@@ -47,6 +47,9 @@ import android.util.Log;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -72,6 +75,10 @@ public class AsyncQueryServiceTest extends ServiceTestCase<AsyncQueryServiceHelp
 
     private static final String TEST_SELECTION = "selection";
 
+    private static final Uri SLOW_URI = Uri.parse(AUTHORITY_URI + "slow");
+
+    private static final Uri FAST_URI = Uri.parse(AUTHORITY_URI + "fast");
+
     private static final String[] TEST_SELECTION_ARGS = new String[] {
             "arg1", "arg2", "arg3"
     };
@@ -362,6 +369,57 @@ public class AsyncQueryServiceTest extends ServiceTestCase<AsyncQueryServiceHelp
         Log.d(TAG, "testCancel_multipleCancels Done <<<<<<<<<<<<<<");
     }
 
+    @LargeTest
+    public void testOrdering_perTarget() throws Exception {
+        BlockingProvider provider = new BlockingProvider();
+        RecordingAsyncQueryService aqs = new RecordingAsyncQueryService(
+                buildTestContext(provider));
+
+        int slow1 = aqs.getNextToken();
+        int fastDelayed = aqs.getNextToken();
+        int fast = aqs.getNextToken();
+        int slow2 = aqs.getNextToken();
+        aqs.startDelete(slow1, null, SLOW_URI, null, null, 0);
+        aqs.startDelete(fastDelayed, null, FAST_URI, null, null, MIN_DELAY);
+        aqs.startDelete(fast, null, FAST_URI, null, null, 0);
+        aqs.startDelete(slow2, null, SLOW_URI, null, null, 0);
+
+        // The blocked delete on SLOW_URI holds up the one after it, not the ones on FAST_URI
+        assertEquals("Other target was held up.", 2, aqs.waitForCompletion(2,
+                BASE_TEST_WAIT_TIME));
+        assertEquals(Arrays.asList(fast, fastDelayed), aqs.getCompleted());
+        assertTrue("Queued delete not counted.", AsyncQueryServiceHelper.getQueueDepth() >= 1);
+
+        Thread.sleep(MIN_DELAY);
+        provider.release();
+        assertEquals("Not all operations were executed.", 2, aqs.waitForCompletion(2,
+                BASE_TEST_WAIT_TIME));
+        assertEquals(Arrays.asList(fast, fastDelayed, slow1, slow2), aqs.getCompleted());
+        assertTrue("Wait time not recorded.",
+                AsyncQueryServiceHelper.getMaxWaitMillis() >= MIN_DELAY);
+    }
+
+    @LargeTest
+    public void testCancel_queuedBehindRunning() throws Exception {
+        BlockingProvider provider = new BlockingProvider();
+        RecordingAsyncQueryService aqs = new RecordingAsyncQueryService(
+                buildTestContext(provider));
+
+        int running = aqs.getNextToken();
+        int queued = aqs.getNextToken();
+        aqs.startDelete(running, null, SLOW_URI, null, null, 0);
+        aqs.startDelete(queued, null, SLOW_URI, null, null, 0);
+
+        // Due but waiting for the running one on the same target, so it can still be canceled
+        assertEquals("Can't cancel queued", 1, aqs.cancelOperation(queued));
+        assertEquals("Queued should be gone", 0, aqs.cancelOperation(queued));
+
+        provider.release();
+        assertEquals("Canceled operation was executed.", 1, aqs.waitForCompletion(2,
+                BASE_TEST_WAIT_TIME));
+        assertEquals(Arrays.asList(running), aqs.getCompleted());
+    }
+
     private OperationInfo generateWork(long delayMillis) {
         OperationInfo work = new OperationInfo();
         work.op = Operation.EVENT_ARG_DELETE;
@@ -416,7 +474,11 @@ public class AsyncQueryServiceTest extends ServiceTestCase<AsyncQueryServiceHelp
         return sorted;
     }
 
-    private Context buildTestContext(final OperationInfo[] work) {
+    private Context buildTestContext(OperationInfo[] work) {
+        return buildTestContext(new TestProvider(work));
+    }
+
+    private Context buildTestContext(final ContentProvider provider) {
         MockContext context = new MockContext() {
             MockContentResolver mResolver;
 
@@ -431,7 +493,6 @@ public class AsyncQueryServiceTest extends ServiceTestCase<AsyncQueryServiceHelp
                     IsolatedContext providerContext =
                             new IsolatedContext(mResolver, targetContextWrapper);
 
-                    ContentProvider provider = new TestProvider(work);
                     provider.attachInfo(providerContext, null);
 
                     mResolver.addProvider(AUTHORITY, provider);
@@ -584,6 +645,102 @@ public class AsyncQueryServiceTest extends ServiceTestCase<AsyncQueryServiceHelp
         }
     }
 
+    /**
+     * Records the tokens of the completed deletes, in the order they completed.
+     */
+    class RecordingAsyncQueryService extends AsyncQueryService {
+        private final List<Integer> mCompleted =
+                Collections.synchronizedList(new ArrayList<Integer>());
+
+        private final Semaphore mCountingSemaphore = new Semaphore(0);
+
+        public RecordingAsyncQueryService(Context context) {
+            super(context);
+
+            HandlerThread thread = new HandlerThread("RecordingAsyncQueryService");
+            thread.start();
+            super.setTestHandler(new Handler(thread.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    RecordingAsyncQueryService.this.handleMessage(msg);
+                }
+            });
+        }
+
+        @Override
+        protected void onDeleteComplete(int token, Object cookie, int result) {
+            mCompleted.add(token);
+            mCountingSemaphore.release();
+        }
+
+        public List<Integer> getCompleted() {
+            return new ArrayList<Integer>(mCompleted);
+        }
+
+        public int waitForCompletion(int expected, long timeoutMills) {
+            int count = 0;
+            try {
+                while (count < expected) {
+                    if (!mCountingSemaphore.tryAcquire(timeoutMills, TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                    count++;
+                }
+            } catch (InterruptedException e) {
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Deletes on {@link #SLOW_URI} block until {@link #release()} is called.
+     */
+    class BlockingProvider extends ContentProvider {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+
+        public void release() {
+            mLatch.countDown();
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            if (SLOW_URI.equals(uri)) {
+                try {
+                    mLatch.await();
+                } catch (InterruptedException e) {
+                }
+            }
+            return 1;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String orderBy) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public boolean onCreate() {
+            return false;
+        }
+    }
+
     /**
      * This gets called by AsyncQueryServiceHelper to read or write the data. It
      * also verifies the data against the data passed in the constructor
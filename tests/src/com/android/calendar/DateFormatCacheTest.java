@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+
+import java.util.Formatter;
+import java.util.Locale;
+
+/**
+ * Unit tests for {@link DateFormatCache}.
+ */
+public class DateFormatCacheTest extends AndroidTestCase {
+    private static final String TIME_ZONE = "America/Los_Angeles";
+
+    private long mStart;
+    private long mEnd;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        DateFormatCache.flush();
+        Time time = new Time(TIME_ZONE);
+        time.set(0, 30, 9, 12, 3, 2014);
+        mStart = time.toMillis(false);
+        mEnd = mStart + DateUtils.HOUR_IN_MILLIS;
+    }
+
+    @SmallTest
+    public void testMatchesDateUtils() {
+        int[] flagsList = new int[] {
+                DateUtils.FORMAT_SHOW_TIME,
+                DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_24HOUR,
+                DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_WEEKDAY,
+                DateUtils.FORMAT_SHOW_YEAR | DateUtils.FORMAT_SHOW_DATE
+                        | DateUtils.FORMAT_ABBREV_MONTH,
+        };
+        for (int flags : flagsList) {
+            Formatter f = new Formatter(new StringBuilder(50), Locale.getDefault());
+            String expected = DateUtils.formatDateRange(getContext(), f, mStart, mEnd, flags,
+                    TIME_ZONE).toString();
+            assertEquals(expected, DateFormatCache.formatDateRange(getContext(), mStart, mEnd,
+                    flags, TIME_ZONE));
+            // Again from the cache
+            assertEquals(expected, DateFormatCache.formatDateRange(getContext(), mStart, mEnd,
+                    flags, TIME_ZONE));
+        }
+        assertEquals(flagsList.length, DateFormatCache.size());
+    }
+
+    @SmallTest
+    public void testKeyedByTimeZone() {
+        int flags = DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_24HOUR;
+        String local = DateFormatCache.formatDateRange(getContext(), mStart, mEnd, flags,
+                TIME_ZONE);
+        String utc = DateFormatCache.formatDateRange(getContext(), mStart, mEnd, flags,
+                Time.TIMEZONE_UTC);
+        assertFalse(local.equals(utc));
+        assertEquals(2, DateFormatCache.size());
+    }
+
+    @SmallTest
+    public void testFlushedOnNewDay() {
+        long now = System.currentTimeMillis();
+        DateFormatCache.formatDateRange(getContext(), mStart, mEnd, DateUtils.FORMAT_SHOW_TIME,
+                TIME_ZONE, now);
+        DateFormatCache.formatDateRange(getContext(), mStart, mEnd, DateUtils.FORMAT_SHOW_DATE,
+                TIME_ZONE, now);
+        assertEquals(2, DateFormatCache.size());
+
+        DateFormatCache.formatDateRange(getContext(), mStart, mEnd, DateUtils.FORMAT_SHOW_TIME,
+                TIME_ZONE, now + DateUtils.DAY_IN_MILLIS);
+        assertEquals(1, DateFormatCache.size());
+    }
+
+    @SmallTest
+    public void testFlush() {
+        DateFormatCache.formatDateRange(getContext(), mStart, mEnd, DateUtils.FORMAT_SHOW_TIME,
+                TIME_ZONE);
+        assertEquals(1, DateFormatCache.size());
+        DateFormatCache.flush();
+        assertEquals(0, DateFormatCache.size());
+    }
+}
@@ -52,6 +52,7 @@ public class AlarmSchedulerTest extends AndroidTestCase {
         private ArrayList<EventInfo> mEvents = new ArrayList<EventInfo>();
         private ArrayList<String> mExpectedRemindersQueries = new ArrayList<String>();
         private int mCurrentReminderQueryIndex = 0;
+        private int mInstancesQueryCount = 0;
 
         /**
          * Contains info for a test event and its reminder.
@@ -115,6 +116,7 @@ public class AlarmSchedulerTest extends AndroidTestCase {
         public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                 String sortOrder) {
             if (uri.toString().startsWith(Instances.CONTENT_URI.toString())) {
+                mInstancesQueryCount++;
                 return getInstancesCursor();
             } else if (Reminders.CONTENT_URI.equals(uri)) {
                 if (mExpectedRemindersQueries.size() > 0) {
@@ -136,6 +138,13 @@ public class AlarmSchedulerTest extends AndroidTestCase {
             }
         }
 
+        /**
+         * Returns the number of times the instances were queried.
+         */
+        int getInstancesQueryCount() {
+            return mInstancesQueryCount;
+        }
+
         /**
          * Optionally set up expectation for the reminders query selection.
          */
@@ -316,4 +325,75 @@ public class AlarmSchedulerTest extends AndroidTestCase {
         AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager, batchSize,
                 currentMillis);
     }
+
+    public void testTimelineReused() {
+        long startMillis = System.currentTimeMillis();
+        mMockProvider.addEventInfo(1, false, startMillis + DateUtils.HOUR_IN_MILLIS, 10);
+        mMockProvider.addEventInfo(2, false, startMillis + DateUtils.HOUR_IN_MILLIS * 2, 10);
+        ReminderTimeline timeline = new ReminderTimeline();
+
+        expectAlarmAt(startMillis + DateUtils.MINUTE_IN_MILLIS * 50);
+        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, timeline, mMockAlarmManager,
+                BATCH_SIZE, startMillis);
+        assertTrue(mMockAlarmManager.isAlarmSet());
+        assertEquals(1, mMockProvider.getInstancesQueryCount());
+
+        // Once the first reminder fired, the second one comes from the timeline.
+        mMockAlarmManager.reset();
+        expectAlarmAt(startMillis + DateUtils.MINUTE_IN_MILLIS * 110);
+        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, timeline, mMockAlarmManager,
+                BATCH_SIZE, startMillis + DateUtils.MINUTE_IN_MILLIS * 51);
+        assertTrue(mMockAlarmManager.isAlarmSet());
+        assertEquals(1, mMockProvider.getInstancesQueryCount());
+    }
+
+    public void testTimelineRebuilt() {
+        long currentMillis = System.currentTimeMillis();
+        mMockProvider.addEventInfo(1, false, currentMillis + DateUtils.HOUR_IN_MILLIS, 10);
+        ReminderTimeline timeline = new ReminderTimeline();
+
+        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, timeline, mMockAlarmManager,
+                BATCH_SIZE, currentMillis);
+        assertEquals(1, mMockProvider.getInstancesQueryCount());
+
+        // Dropped when the provider data changes.
+        timeline.invalidate();
+        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, timeline, mMockAlarmManager,
+                BATCH_SIZE, currentMillis);
+        assertEquals(2, mMockProvider.getInstancesQueryCount());
+
+        // Expired after a couple of days.
+        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, timeline, mMockAlarmManager,
+                BATCH_SIZE, currentMillis + DateUtils.DAY_IN_MILLIS * 2);
+        assertEquals(3, mMockProvider.getInstancesQueryCount());
+    }
+
+    public void testTimelineMatchesQuery() {
+        // Reminders up to two days ahead, for instances within and beyond the one week
+        // lookahead window.
+        long startMillis = System.currentTimeMillis();
+        int twoDays = (int) (DateUtils.DAY_IN_MILLIS * 2 / DateUtils.MINUTE_IN_MILLIS);
+        mMockProvider.addEventInfo(1, false, startMillis + DateUtils.HOUR_IN_MILLIS, 10);
+        mMockProvider.addEventInfo(1, false, startMillis + DateUtils.HOUR_IN_MILLIS * 3, 10);
+        mMockProvider.addEventInfo(2, false, startMillis + DateUtils.HOUR_IN_MILLIS * 2, 90);
+        mMockProvider.addEventInfo(3, false, startMillis + DateUtils.WEEK_IN_MILLIS
+                + DateUtils.HOUR_IN_MILLIS * 6, twoDays);
+        mMockProvider.addEventInfo(4, false, startMillis + DateUtils.HOUR_IN_MILLIS * 20, 0);
+        ReminderTimeline timeline = new ReminderTimeline();
+        MockAlarmManager freshAlarmManager = new MockAlarmManager(mContext);
+
+        // Step through the day, the timeline has to pick the same alarm as a fresh query.
+        for (long currentMillis = startMillis;
+                currentMillis < startMillis + DateUtils.DAY_IN_MILLIS;
+                currentMillis += DateUtils.MINUTE_IN_MILLIS * 17) {
+            mMockAlarmManager.reset();
+            freshAlarmManager.reset();
+            AlarmScheduler.scheduleNextAlarm(mIsolatedContext, timeline, mMockAlarmManager,
+                    BATCH_SIZE, currentMillis);
+            AlarmScheduler.scheduleNextAlarm(mIsolatedContext, freshAlarmManager, BATCH_SIZE,
+                    currentMillis);
+            assertEquals(freshAlarmManager.isAlarmSet(), mMockAlarmManager.isAlarmSet());
+            assertEquals(freshAlarmManager.getAlarmTime(), mMockAlarmManager.getAlarmTime());
+        }
+    }
 }
@@ -22,6 +22,7 @@ import static android.app.Notification.PRIORITY_MIN;
 
 import android.app.AlarmManager;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.provider.CalendarContract.Attendees;
 import android.provider.CalendarContract.CalendarAlerts;
@@ -717,6 +718,49 @@ public class AlertServiceTest extends AndroidTestCase {
                 2012 /* year */, Time.getCurrentTimezone());
     }
 
+    /**
+     * Runs processQuery with buckets that bump nothing and copies what they hold into the lists.
+     */
+    private void processQuery(Cursor alertCursor, long currentTime,
+            ArrayList<NotificationInfo> highPriority, ArrayList<NotificationInfo> mediumPriority,
+            ArrayList<NotificationInfo> lowPriority) {
+        AlertBuckets buckets = new AlertBuckets(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        AlertService.processQuery(alertCursor, mContext, currentTime, buckets);
+        copyBuckets(buckets, highPriority, mediumPriority, lowPriority);
+    }
+
+    /**
+     * Adds the events of the lists to buckets, in the order processQuery would, and copies the
+     * result back into the lists.
+     */
+    private static void fillBuckets(ArrayList<NotificationInfo> highPriority,
+            ArrayList<NotificationInfo> mediumPriority, ArrayList<NotificationInfo> lowPriority,
+            int maxNotifications) {
+        AlertBuckets buckets = new AlertBuckets(maxNotifications, Integer.MAX_VALUE);
+        for (NotificationInfo info : highPriority) {
+            buckets.addHighPriority(info);
+        }
+        for (NotificationInfo info : mediumPriority) {
+            buckets.addMediumPriority(info);
+        }
+        for (NotificationInfo info : lowPriority) {
+            buckets.addLowPriority(info);
+        }
+        copyBuckets(buckets, highPriority, mediumPriority, lowPriority);
+    }
+
+    private static void copyBuckets(AlertBuckets buckets,
+            ArrayList<NotificationInfo> highPriority, ArrayList<NotificationInfo> mediumPriority,
+            ArrayList<NotificationInfo> lowPriority) {
+        buckets.finish();
+        highPriority.clear();
+        highPriority.addAll(buckets.getHighPriorityEvents());
+        mediumPriority.clear();
+        mediumPriority.addAll(buckets.getMediumPriorityEvents());
+        lowPriority.clear();
+        lowPriority.addAll(buckets.getExpiredDigest().getShownEvents());
+    }
+
     @SmallTest
     public void testProcessQuery_skipDeclinedDismissed() {
         int declinedEventId = 1;
@@ -737,8 +781,8 @@ public class AlertServiceTest extends AndroidTestCase {
         ArrayList<NotificationInfo> mediumPriority = new ArrayList<NotificationInfo>();
         ArrayList<NotificationInfo> lowPriority = new ArrayList<NotificationInfo>();
         long currentTime = createTimeInMillis(5, 0);
-        AlertService.processQuery(at.getAlertCursor(), mContext, currentTime, highPriority,
-                mediumPriority, lowPriority);
+        processQuery(at.getAlertCursor(), currentTime, highPriority, mediumPriority,
+                lowPriority);
 
         assertEquals(0, lowPriority.size());
         assertEquals(0, mediumPriority.size());
@@ -764,8 +808,8 @@ public class AlertServiceTest extends AndroidTestCase {
         ArrayList<NotificationInfo> mediumPriority = new ArrayList<NotificationInfo>();
         ArrayList<NotificationInfo> lowPriority = new ArrayList<NotificationInfo>();
         long currentTime = createTimeInMillis(5, 0);
-        AlertService.processQuery(at.getAlertCursor(), mContext, currentTime, highPriority,
-                mediumPriority, lowPriority);
+        processQuery(at.getAlertCursor(), currentTime, highPriority, mediumPriority,
+                lowPriority);
 
         assertEquals(0, lowPriority.size());
         assertEquals(0, mediumPriority.size());
@@ -794,8 +838,8 @@ public class AlertServiceTest extends AndroidTestCase {
 
         // Both events in the future: the earliest one should be chosen.
         long currentTime = earlierStartTime - DateUtils.DAY_IN_MILLIS * 5;
-        AlertService.processQuery(at.getAlertCursor(), mContext, currentTime, highPriority,
-                mediumPriority, lowPriority);
+        processQuery(at.getAlertCursor(), currentTime, highPriority, mediumPriority,
+                lowPriority);
         assertEquals(0, lowPriority.size());
         assertEquals(0, mediumPriority.size());
         assertEquals(1, highPriority.size());
@@ -805,8 +849,8 @@ public class AlertServiceTest extends AndroidTestCase {
         // Increment time just past the earlier event: the earlier one should be chosen.
         highPriority.clear();
         currentTime = earlierStartTime + DateUtils.MINUTE_IN_MILLIS * 10;
-        AlertService.processQuery(at.getAlertCursor(), mContext, currentTime, highPriority,
-                mediumPriority, lowPriority);
+        processQuery(at.getAlertCursor(), currentTime, highPriority, mediumPriority,
+                lowPriority);
         assertEquals(0, lowPriority.size());
         assertEquals(0, mediumPriority.size());
         assertEquals(1, highPriority.size());
@@ -816,8 +860,8 @@ public class AlertServiceTest extends AndroidTestCase {
         // Increment time to 15 min past the earlier event: the later one should be chosen.
         highPriority.clear();
         currentTime = earlierStartTime + DateUtils.MINUTE_IN_MILLIS * 15;
-        AlertService.processQuery(at.getAlertCursor(), mContext, currentTime, highPriority,
-                mediumPriority, lowPriority);
+        processQuery(at.getAlertCursor(), currentTime, highPriority, mediumPriority,
+                lowPriority);
         assertEquals(0, lowPriority.size());
         assertEquals(0, mediumPriority.size());
         assertEquals(1, highPriority.size());
@@ -827,8 +871,8 @@ public class AlertServiceTest extends AndroidTestCase {
         // Both events in the past: the later one should be chosen (in the low priority bucket).
         highPriority.clear();
         currentTime = laterStartTime + DateUtils.DAY_IN_MILLIS * 5;
-        AlertService.processQuery(at.getAlertCursor(), mContext, currentTime, highPriority,
-                mediumPriority, lowPriority);
+        processQuery(at.getAlertCursor(), currentTime, highPriority, mediumPriority,
+                lowPriority);
         assertEquals(0, highPriority.size());
         assertEquals(0, mediumPriority.size());
         assertEquals(1, lowPriority.size());
@@ -854,8 +898,8 @@ public class AlertServiceTest extends AndroidTestCase {
 
         // Both events in the future: the earliest one should be chosen.
         long currentTime = day1 - DateUtils.DAY_IN_MILLIS * 3;
-        AlertService.processQuery(at.getAlertCursor(), mContext, currentTime, highPriority,
-                mediumPriority, lowPriority);
+        processQuery(at.getAlertCursor(), currentTime, highPriority, mediumPriority,
+                lowPriority);
         assertEquals(0, lowPriority.size());
         assertEquals(0, mediumPriority.size());
         assertEquals(1, highPriority.size());
@@ -866,8 +910,8 @@ public class AlertServiceTest extends AndroidTestCase {
         // be chosen.
         highPriority.clear();
         currentTime = Utils.createTimeInMillis(0, 10, 0, 1, 5, 2012, Time.getCurrentTimezone());
-        AlertService.processQuery(at.getAlertCursor(), mContext, currentTime, highPriority,
-                mediumPriority, lowPriority);
+        processQuery(at.getAlertCursor(), currentTime, highPriority, mediumPriority,
+                lowPriority);
         assertEquals(0, lowPriority.size());
         assertEquals(0, mediumPriority.size());
         assertEquals(1, highPriority.size());
@@ -877,8 +921,8 @@ public class AlertServiceTest extends AndroidTestCase {
         // Increment time to 15 min past the earlier event: the later one should be chosen.
         highPriority.clear();
         currentTime = Utils.createTimeInMillis(0, 15, 0, 1, 5, 2012, Time.getCurrentTimezone());
-        AlertService.processQuery(at.getAlertCursor(), mContext, currentTime, highPriority,
-                mediumPriority, lowPriority);
+        processQuery(at.getAlertCursor(), currentTime, highPriority, mediumPriority,
+                lowPriority);
         assertEquals(0, lowPriority.size());
         assertEquals(0, mediumPriority.size());
         assertEquals(1, highPriority.size());
@@ -888,8 +932,8 @@ public class AlertServiceTest extends AndroidTestCase {
         // Both events in the past: the later one should be chosen (in the low priority bucket).
         highPriority.clear();
         currentTime = day2 + DateUtils.DAY_IN_MILLIS * 1;
-        AlertService.processQuery(at.getAlertCursor(), mContext, currentTime, highPriority,
-                mediumPriority, lowPriority);
+        processQuery(at.getAlertCursor(), currentTime, highPriority, mediumPriority,
+                lowPriority);
         assertEquals(0, highPriority.size());
         assertEquals(0, mediumPriority.size());
         assertEquals(1, lowPriority.size());
@@ -909,7 +953,7 @@ public class AlertServiceTest extends AndroidTestCase {
         ArrayList<NotificationInfo> high = threeItemList;
         ArrayList<NotificationInfo> medium = new ArrayList<NotificationInfo>();
         ArrayList<NotificationInfo> low = new ArrayList<NotificationInfo>();
-        AlertService.redistributeBuckets(high, medium, low, maxNotifications);
+        fillBuckets(high, medium, low, maxNotifications);
         assertEquals(3, high.size());
         assertEquals(0, medium.size());
         assertEquals(0, low.size());
@@ -918,7 +962,7 @@ public class AlertServiceTest extends AndroidTestCase {
         high = new ArrayList<NotificationInfo>();
         medium = threeItemList;
         low = new ArrayList<NotificationInfo>();
-        AlertService.redistributeBuckets(high, medium, low, maxNotifications);
+        fillBuckets(high, medium, low, maxNotifications);
         assertEquals(0, high.size());
         assertEquals(3, medium.size());
         assertEquals(0, low.size());
@@ -928,7 +972,7 @@ public class AlertServiceTest extends AndroidTestCase {
         medium = new ArrayList<NotificationInfo>();
         medium.add(high.remove(1));
         low = new ArrayList<NotificationInfo>();
-        AlertService.redistributeBuckets(high, medium, low, maxNotifications);
+        fillBuckets(high, medium, low, maxNotifications);
         assertEquals(2, high.size());
         assertEquals(1, medium.size());
         assertEquals(0, low.size());
@@ -947,7 +991,7 @@ public class AlertServiceTest extends AndroidTestCase {
 
         // Invoke the method under test.
         int maxNotifications = 3;
-        AlertService.redistributeBuckets(high, medium, low, maxNotifications);
+        fillBuckets(high, medium, low, maxNotifications);
 
         // Verify some high priority were kicked out.
         assertEquals(3, high.size());
@@ -977,7 +1021,7 @@ public class AlertServiceTest extends AndroidTestCase {
 
         // Invoke the method under test.
         int maxNotifications = 3;
-        AlertService.redistributeBuckets(high, medium, low, maxNotifications);
+        fillBuckets(high, medium, low, maxNotifications);
 
         // Verify high priority untouched.
         assertEquals(2, high.size());
@@ -1011,7 +1055,7 @@ public class AlertServiceTest extends AndroidTestCase {
 
         // Invoke the method under test.
         int maxNotifications = 3;
-        AlertService.redistributeBuckets(high, medium, low, maxNotifications);
+        fillBuckets(high, medium, low, maxNotifications);
 
         // Verify high priority.
         assertEquals(3, high.size());
@@ -1030,4 +1074,73 @@ public class AlertServiceTest extends AndroidTestCase {
         assertEquals(2, low.get(3).eventId);
         assertEquals(1, low.get(4).eventId);
     }
+
+    @SmallTest
+    public void testRemoveEvent_bumpedInstanceReplaced() throws Exception {
+        AlertBuckets buckets = new AlertBuckets(2, ExpiredDigest.MAX_SHOWN);
+        buckets.addHighPriority(createNotificationInfo(5));
+        buckets.addHighPriority(createNotificationInfo(4));
+        // Bumps event 5 to the digest
+        buckets.addHighPriority(createNotificationInfo(3));
+
+        // A more relevant instance of event 5 replaces the bumped one, and bumps event 4
+        buckets.removeEvent(5);
+        buckets.addHighPriority(createNotificationInfo(5));
+        buckets.finish();
+
+        ArrayList<NotificationInfo> high = buckets.getHighPriorityEvents();
+        assertEquals(2, high.size());
+        assertEquals(3, high.get(0).eventId);
+        assertEquals(5, high.get(1).eventId);
+
+        // Only event 4 is in the digest, dismissing it must not dismiss the shown event 5
+        ExpiredDigest digest = buckets.getExpiredDigest();
+        assertEquals(1, digest.size());
+        assertEquals(4, digest.getEventId(0));
+        assertEquals(1, digest.getShownEvents().size());
+        assertEquals(4, digest.getShownEvents().get(0).eventId);
+    }
+
+    @SmallTest
+    public void testRemoveEvent_bumpedEventTakesFreedSlot() throws Exception {
+        AlertBuckets buckets = new AlertBuckets(2, ExpiredDigest.MAX_SHOWN);
+        buckets.addHighPriority(createNotificationInfo(5));
+        buckets.addHighPriority(createNotificationInfo(4));
+        // Bumps events 5 and 4 to the digest
+        buckets.addHighPriority(createNotificationInfo(3));
+        buckets.addHighPriority(createNotificationInfo(2));
+
+        // Event 3 is replaced by an instance that is only low priority, event 4 gets its slot
+        buckets.removeEvent(3);
+        buckets.addLowPriority(createNotificationInfo(3));
+        buckets.finish();
+
+        ArrayList<NotificationInfo> high = buckets.getHighPriorityEvents();
+        assertEquals(2, high.size());
+        assertEquals(4, high.get(0).eventId);
+        assertEquals(2, high.get(1).eventId);
+
+        ExpiredDigest digest = buckets.getExpiredDigest();
+        assertEquals(2, digest.size());
+        assertEquals(5, digest.getEventId(0));
+        assertEquals(3, digest.getEventId(1));
+    }
+
+    @SmallTest
+    public void testRemoveEvent_bumpedMediumEventTakesFreedSlot() throws Exception {
+        AlertBuckets buckets = new AlertBuckets(2, ExpiredDigest.MAX_SHOWN);
+        buckets.addMediumPriority(createNotificationInfo(5));
+        buckets.addMediumPriority(createNotificationInfo(4));
+        // Bumps event 3 to the digest
+        buckets.addMediumPriority(createNotificationInfo(3));
+
+        buckets.removeEvent(4);
+        buckets.finish();
+
+        ArrayList<NotificationInfo> medium = buckets.getMediumPriorityEvents();
+        assertEquals(2, medium.size());
+        assertEquals(5, medium.get(0).eventId);
+        assertEquals(3, medium.get(1).eventId);
+        assertEquals(0, buckets.getExpiredDigest().size());
+    }
 }
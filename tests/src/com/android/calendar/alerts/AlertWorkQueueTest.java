@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+@SmallTest
+public class AlertWorkQueueTest extends AndroidTestCase {
+    private static final int MSG_RUN_WORK = 1;
+    private static final long DELAY_MS = 100;
+
+    private final ArrayList<Integer> mWork = new ArrayList<Integer>();
+    private final ArrayList<Integer> mFinished = new ArrayList<Integer>();
+    private AlertWorkQueue mQueue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // The messages are dropped, the test runs the queue itself
+        mQueue = new AlertWorkQueue(new Handler(Looper.getMainLooper()), MSG_RUN_WORK,
+                new AlertWorkQueue.Worker() {
+                    @Override
+                    public void doWork(int work) {
+                        mWork.add(work);
+                    }
+
+                    @Override
+                    public void finish(int startId) {
+                        mFinished.add(startId);
+                    }
+                });
+    }
+
+    public void testNoWorkFinishesAtOnce() {
+        mQueue.finishWhenIdle(1);
+        assertEquals(Arrays.asList(1), mFinished);
+    }
+
+    public void testNoWorkIntentWaitsForPendingWork() {
+        // A provider change, then an intent without work such as a dismissal of old reminders
+        mQueue.request(AlertWorkQueue.WORK_REFRESH_NOTIFICATIONS, DELAY_MS);
+        mQueue.finishWhenIdle(1);
+        mQueue.finishWhenIdle(2);
+        assertTrue(mFinished.isEmpty());
+        assertFalse(mQueue.runIfDue());
+
+        SystemClock.sleep(DELAY_MS);
+        assertTrue(mQueue.runIfDue());
+        assertEquals(Arrays.asList(AlertWorkQueue.WORK_REFRESH_NOTIFICATIONS), mWork);
+        assertEquals(Arrays.asList(1, 2), mFinished);
+        assertFalse(mQueue.hasPendingWork());
+    }
+
+    public void testBurstIsMerged() {
+        mQueue.request(AlertWorkQueue.WORK_SYNC_DISMISSALS, DELAY_MS);
+        mQueue.request(AlertWorkQueue.WORK_REFRESH_NOTIFICATIONS, DELAY_MS);
+        SystemClock.sleep(DELAY_MS);
+        assertTrue(mQueue.runIfDue());
+        assertEquals(Arrays.asList(AlertWorkQueue.WORK_SYNC_DISMISSALS
+                | AlertWorkQueue.WORK_REFRESH_NOTIFICATIONS), mWork);
+        assertEquals(2, mQueue.getRequestCount());
+        assertEquals(1, mQueue.getRunCount());
+    }
+
+    public void testUndelayedWorkIsNotHeldBack() {
+        mQueue.request(AlertWorkQueue.WORK_REFRESH_NOTIFICATIONS, DELAY_MS);
+        mQueue.finishWhenIdle(1);
+        // A reminder behind the provider change
+        mQueue.request(AlertWorkQueue.WORK_SCHEDULE_NEXT_ALARM, 0);
+        mQueue.finishWhenIdle(2);
+        assertEquals(Arrays.asList(AlertWorkQueue.WORK_SCHEDULE_NEXT_ALARM), mWork);
+        // Still held for the delayed work
+        assertTrue(mFinished.isEmpty());
+        assertTrue(mQueue.hasPendingWork());
+
+        SystemClock.sleep(DELAY_MS);
+        assertTrue(mQueue.runIfDue());
+        assertEquals(Arrays.asList(AlertWorkQueue.WORK_SCHEDULE_NEXT_ALARM,
+                AlertWorkQueue.WORK_REFRESH_NOTIFICATIONS), mWork);
+        assertEquals(Arrays.asList(1, 2), mFinished);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+@SmallTest
+public class CoalescingAlarmManagerTest extends AndroidTestCase {
+    private static final long TOLERANCE_MS = 30 * DateUtils.SECOND_IN_MILLIS;
+
+    private MockAlarmManager mMockAlarmManager;
+    private CoalescingAlarmManager mAlarmManager;
+    private long mBase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockAlarmManager = new MockAlarmManager(getContext());
+        mAlarmManager = new CoalescingAlarmManager(mMockAlarmManager, TOLERANCE_MS,
+                new HashMap<PendingIntent, Long>());
+        mBase = System.currentTimeMillis() + DateUtils.HOUR_IN_MILLIS;
+    }
+
+    private PendingIntent createOperation(int id) {
+        return PendingIntent.getBroadcast(getContext(), id,
+                new Intent("com.android.calendar.tests.ALARM_" + id), 0);
+    }
+
+    private void assertTimes(long[] expected, long[] actual) {
+        assertTrue("Expected " + Arrays.toString(expected) + " but was "
+                + Arrays.toString(actual), Arrays.equals(expected, actual));
+    }
+
+    public void testAlarmBeforeWakeupIsDelayed() {
+        mAlarmManager.set(AlarmManager.RTC_WAKEUP, mBase, createOperation(1));
+        mAlarmManager.set(AlarmManager.RTC_WAKEUP, mBase - 20 * DateUtils.SECOND_IN_MILLIS,
+                createOperation(2));
+
+        assertTimes(new long[] { mBase, mBase },
+                mMockAlarmManager.getAlarmTimes(AlarmManager.RTC_WAKEUP));
+        assertTimes(new long[] { mBase }, mAlarmManager.getPlannedWakeups());
+    }
+
+    public void testAlarmBeyondToleranceIsKept() {
+        long early = mBase - TOLERANCE_MS - 1;
+        mAlarmManager.set(AlarmManager.RTC_WAKEUP, mBase, createOperation(1));
+        mAlarmManager.set(AlarmManager.RTC_WAKEUP, early, createOperation(2));
+
+        assertTimes(new long[] { mBase, early },
+                mMockAlarmManager.getAlarmTimes(AlarmManager.RTC_WAKEUP));
+        assertTimes(new long[] { early, mBase }, mAlarmManager.getPlannedWakeups());
+    }
+
+    public void testAlarmIsNeverEarly() {
+        long late = mBase + 10 * DateUtils.SECOND_IN_MILLIS;
+        mAlarmManager.set(AlarmManager.RTC_WAKEUP, mBase, createOperation(1));
+        mAlarmManager.set(AlarmManager.RTC_WAKEUP, late, createOperation(2));
+
+        assertTimes(new long[] { mBase, late },
+                mMockAlarmManager.getAlarmTimes(AlarmManager.RTC_WAKEUP));
+    }
+
+    public void testRefreshSharesWakeup() {
+        mAlarmManager.set(AlarmManager.RTC_WAKEUP, mBase, createOperation(1));
+        mAlarmManager.set(AlarmManager.RTC, mBase - 5 * DateUtils.SECOND_IN_MILLIS,
+                createOperation(2));
+
+        assertTimes(new long[] { mBase }, mMockAlarmManager.getAlarmTimes(AlarmManager.RTC));
+        // A refresh doesn't wake the device by itself
+        assertTimes(new long[] { mBase }, mAlarmManager.getPlannedWakeups());
+    }
+
+    public void testAlarmSetAgainReplacesItsWakeup() {
+        PendingIntent operation = createOperation(1);
+        mAlarmManager.set(AlarmManager.RTC_WAKEUP, mBase, operation);
+        mAlarmManager.set(AlarmManager.RTC_WAKEUP, mBase + DateUtils.HOUR_IN_MILLIS, operation);
+
+        assertTimes(new long[] { mBase + DateUtils.HOUR_IN_MILLIS },
+                mAlarmManager.getPlannedWakeups());
+        // Nothing left to share a wakeup with
+        mAlarmManager.set(AlarmManager.RTC_WAKEUP, mBase - DateUtils.SECOND_IN_MILLIS,
+                createOperation(2));
+        assertEquals(mBase - DateUtils.SECOND_IN_MILLIS, mMockAlarmManager.getAlarmTime());
+    }
+
+    public void testCancelledAlarmLeavesThePlan() {
+        PendingIntent operation = createOperation(1);
+        mAlarmManager.set(AlarmManager.RTC_WAKEUP, mBase, operation);
+        mAlarmManager.cancel(operation);
+
+        assertEquals(1, mMockAlarmManager.getCancelCount());
+        assertTimes(new long[0], mAlarmManager.getPlannedWakeups());
+        // Not delayed to the wakeup of the cancelled alarm
+        mAlarmManager.set(AlarmManager.RTC_WAKEUP, mBase - DateUtils.SECOND_IN_MILLIS,
+                createOperation(2));
+        assertEquals(mBase - DateUtils.SECOND_IN_MILLIS, mMockAlarmManager.getAlarmTime());
+    }
+
+    public void testPassedWakeupsAreDropped() {
+        long now = mBase;
+        mAlarmManager.plan(AlarmManager.RTC_WAKEUP, now - DateUtils.MINUTE_IN_MILLIS,
+                createOperation(1), now - DateUtils.HOUR_IN_MILLIS);
+        mAlarmManager.plan(AlarmManager.RTC_WAKEUP, now + DateUtils.MINUTE_IN_MILLIS,
+                createOperation(2), now);
+
+        assertTimes(new long[] { now + DateUtils.MINUTE_IN_MILLIS },
+                mAlarmManager.getPlannedWakeups());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.calendar.alerts;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.calendar.alerts.GlobalDismissManager.GlobalDismissId;
+import com.android.calendar.alerts.GlobalDismissManager.LocalDismissId;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+@SmallTest
+public class DismissalOutboxTest extends AndroidTestCase {
+    private static final String ACCOUNT_TYPE = "com.google";
+    private static final String ACCOUNT = "one@example.com";
+    private static final long NOW = 1000000L;
+
+    private File mFile;
+    private File mBackupFile;
+    private DismissalOutbox mOutbox;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "test_dismissal_outbox");
+        mBackupFile = new File(mFile.getPath() + ".bak");
+        mFile.delete();
+        mBackupFile.delete();
+        mOutbox = new DismissalOutbox(mFile);
+        mOutbox.load();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        mBackupFile.delete();
+        super.tearDown();
+    }
+
+    private DismissalOutbox reload() {
+        DismissalOutbox outbox = new DismissalOutbox(mFile);
+        outbox.load();
+        return outbox;
+    }
+
+    private static ArrayList<LocalDismissId> sender(long eventId) {
+        ArrayList<LocalDismissId> dismissIds = new ArrayList<LocalDismissId>(1);
+        dismissIds.add(new LocalDismissId(ACCOUNT_TYPE, ACCOUNT, eventId, NOW + eventId));
+        return dismissIds;
+    }
+
+    private static ArrayList<GlobalDismissId> received(String syncId) {
+        ArrayList<GlobalDismissId> dismissIds = new ArrayList<GlobalDismissId>(1);
+        dismissIds.add(new GlobalDismissId(ACCOUNT, syncId, NOW));
+        return dismissIds;
+    }
+
+    public void testReload() {
+        mOutbox.addSender(sender(1), NOW);
+        mOutbox.addSender(sender(2), NOW);
+        mOutbox.removeSender(sender(1));
+        mOutbox.addReceived(received("sync1"), NOW);
+
+        DismissalOutbox outbox = reload();
+        assertEquals(1, outbox.getSender().size());
+        assertEquals(2, outbox.getSender().get(0).mEventId);
+        assertEquals(1, outbox.getReceived().size());
+        assertEquals("sync1", outbox.getReceived().get(0).mSyncId);
+        assertEquals(4, outbox.getRecordCount());
+    }
+
+    public void testCompaction() {
+        mOutbox.addSender(sender(1000), NOW);
+        for (long id = 1; id <= 40; id++) {
+            mOutbox.addSender(sender(id), NOW);
+            mOutbox.removeSender(sender(id));
+        }
+
+        // Rewritten with only the live entry once it held mostly stale records
+        assertTrue(mOutbox.getRecordCount() < 64);
+        assertFalse(mBackupFile.exists());
+
+        DismissalOutbox outbox = reload();
+        assertEquals(mOutbox.getRecordCount(), outbox.getRecordCount());
+        assertEquals(1, outbox.getSender().size());
+        assertEquals(1000, outbox.getSender().get(0).mEventId);
+
+        // Appends after the compaction are kept
+        mOutbox.addSender(sender(2000), NOW);
+        assertEquals(2, reload().getSender().size());
+    }
+
+    public void testTornLastRecordIsTruncated() throws IOException {
+        mOutbox.addSender(sender(1), NOW);
+        mOutbox.addSender(sender(2), NOW);
+        long length = mFile.length();
+
+        // Part of a record, as left by a crash while appending
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        try {
+            out.write(new byte[] { 0, 0, 0, 40, 0, 1 });
+        } finally {
+            out.close();
+        }
+
+        DismissalOutbox outbox = reload();
+        assertEquals(length, mFile.length());
+        assertEquals(2, outbox.getSender().size());
+        assertEquals(2, outbox.getRecordCount());
+
+        // Records appended after the truncation are read back whole
+        outbox.addSender(sender(3), NOW);
+        assertEquals(3, reload().getSender().size());
+    }
+
+    public void testBackupOfUnfinishedCompactionIsRestored() {
+        mOutbox.addSender(sender(1), NOW);
+        mOutbox.addSender(sender(2), NOW);
+
+        // As if the process died while compacting, before the new log was written
+        assertTrue(mFile.renameTo(mBackupFile));
+
+        DismissalOutbox outbox = reload();
+        assertEquals(2, outbox.getSender().size());
+
+        // Appended to the restored log, not to one the backup replaces later
+        outbox.addSender(sender(3), NOW);
+        assertFalse(mBackupFile.exists());
+        assertEquals(3, reload().getSender().size());
+    }
+
+    public void testAppendRestoresBackup() throws IOException {
+        mOutbox.addSender(sender(1), NOW);
+        // A compaction died after starting to write the new log
+        assertTrue(mFile.renameTo(mBackupFile));
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(new byte[] { 0, 0 });
+        } finally {
+            out.close();
+        }
+
+        mOutbox.addSender(sender(2), NOW);
+
+        assertFalse(mBackupFile.exists());
+        assertEquals(2, reload().getSender().size());
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.calendar.alerts;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+@SmallTest
+public class FiredAlertStoreTest extends AndroidTestCase {
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final int RECORD_SIZE = 3 * 8;
+    // Midnight UTC, the start of a segment
+    private static final long SEGMENT_START = 16000 * DAY;
+    private static final String PREFS_NAME = "test_fired_alerts";
+
+    private File mDirectory;
+    private FiredAlertStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "test_fired_alerts");
+        deleteDirectory();
+        mStore = new FiredAlertStore(mDirectory);
+        mStore.load();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear()
+                .commit();
+        super.tearDown();
+    }
+
+    private void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private FiredAlertStore reload() {
+        FiredAlertStore store = new FiredAlertStore(mDirectory);
+        store.load();
+        return store;
+    }
+
+    private File getSegmentFile(long alarmTime) {
+        return new File(mDirectory, "segment_" + (alarmTime / DAY));
+    }
+
+    public void testAddContains() {
+        long alarmTime = SEGMENT_START + 1000;
+        assertFalse(mStore.contains(1, 2000, alarmTime));
+
+        mStore.add(1, 2000, alarmTime);
+        assertTrue(mStore.contains(1, 2000, alarmTime));
+        assertFalse(mStore.contains(1, 2000, alarmTime + 1));
+        assertFalse(mStore.contains(1, 2001, alarmTime));
+        assertFalse(mStore.contains(2, 2000, alarmTime));
+
+        // Adding it again neither counts nor appends it twice
+        mStore.add(1, 2000, alarmTime);
+        assertEquals(1, mStore.size());
+        assertEquals(RECORD_SIZE, getSegmentFile(alarmTime).length());
+    }
+
+    public void testReloadAfterRestart() {
+        mStore.add(1, 2000, SEGMENT_START + 1000);
+        mStore.add(2, 3000, SEGMENT_START + 2000);
+        mStore.add(3, 4000, SEGMENT_START + DAY + 1000);
+
+        FiredAlertStore store = reload();
+        assertEquals(3, store.size());
+        assertTrue(store.contains(1, 2000, SEGMENT_START + 1000));
+        assertTrue(store.contains(2, 3000, SEGMENT_START + 2000));
+        assertTrue(store.contains(3, 4000, SEGMENT_START + DAY + 1000));
+        assertFalse(store.contains(4, 5000, SEGMENT_START + 3000));
+    }
+
+    public void testPartialRecordIsTruncated() throws IOException {
+        long alarmTime = SEGMENT_START + 1000;
+        mStore.add(1, 2000, alarmTime);
+        mStore.add(2, 3000, alarmTime);
+
+        // Half a record, as left by a crash while appending
+        File file = getSegmentFile(alarmTime);
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[RECORD_SIZE / 2]);
+        } finally {
+            out.close();
+        }
+
+        FiredAlertStore store = reload();
+        assertEquals(2 * RECORD_SIZE, file.length());
+        assertEquals(2, store.size());
+        assertTrue(store.contains(1, 2000, alarmTime));
+        assertTrue(store.contains(2, 3000, alarmTime));
+
+        // Records appended after the truncation are read back whole
+        store.add(3, 4000, alarmTime);
+        store = reload();
+        assertEquals(3, store.size());
+        assertTrue(store.contains(3, 4000, alarmTime));
+    }
+
+    public void testRemoveOlderThan_segmentBoundary() {
+        long maxAge = 2 * DAY;
+        // Last millisecond of the first segment and first millisecond of the next one
+        long lastOfFirst = SEGMENT_START + DAY - 1;
+        long firstOfSecond = SEGMENT_START + DAY;
+        mStore.add(1, 1000, lastOfFirst);
+        mStore.add(2, 1000, firstOfSecond);
+
+        // The first segment ends at firstOfSecond, one millisecond short of maxAge
+        mStore.removeOlderThan(firstOfSecond + maxAge - 1, maxAge);
+        assertTrue(mStore.contains(1, 1000, lastOfFirst));
+        assertTrue(mStore.contains(2, 1000, firstOfSecond));
+
+        // Exactly maxAge after the end of the first segment
+        mStore.removeOlderThan(firstOfSecond + maxAge, maxAge);
+        assertFalse(mStore.contains(1, 1000, lastOfFirst));
+        assertTrue(mStore.contains(2, 1000, firstOfSecond));
+        assertFalse(getSegmentFile(lastOfFirst).exists());
+        assertTrue(getSegmentFile(firstOfSecond).exists());
+
+        FiredAlertStore store = reload();
+        assertEquals(1, store.size());
+        assertTrue(store.contains(2, 1000, firstOfSecond));
+    }
+
+    public void testGrowWithCollidingTriples() {
+        // eventId * 31 + beginTime is the same for all of them, so they all hash to one slot.
+        // More than half the initial capacity makes the set grow and rehash the chain.
+        long alarmTime = SEGMENT_START + 1000;
+        int count = 40;
+        for (int i = 0; i < count; i++) {
+            mStore.add(i, 100000 - 31 * i, alarmTime);
+        }
+        // Some that don't collide, in between
+        for (int i = 0; i < count; i++) {
+            mStore.add(1000 + i, i, alarmTime);
+        }
+
+        assertEquals(2 * count, mStore.size());
+        for (int i = 0; i < count; i++) {
+            assertTrue(mStore.contains(i, 100000 - 31 * i, alarmTime));
+            assertTrue(mStore.contains(1000 + i, i, alarmTime));
+        }
+        assertFalse(mStore.contains(count, 100000 - 31 * count, alarmTime));
+        assertFalse(mStore.contains(-1, 100000 + 31, alarmTime));
+
+        FiredAlertStore store = reload();
+        assertEquals(2 * count, store.size());
+        for (int i = 0; i < count; i++) {
+            assertTrue(store.contains(i, 100000 - 31 * i, alarmTime));
+        }
+    }
+
+    public void testImportSharedPrefs() {
+        long alarmTime = SEGMENT_START + 1000;
+        SharedPreferences prefs = getContext().getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+        prefs.edit()
+                .putLong("preference_alert_1_2000_" + alarmTime, alarmTime)
+                .putLong("preference_alert_2_3000_" + (alarmTime + DAY), alarmTime + DAY)
+                .putLong("preference_alert_bad_key", alarmTime)
+                .putLong("some_other_pref", 1)
+                .commit();
+
+        mStore.importSharedPrefs(prefs);
+        assertEquals(2, mStore.size());
+        assertTrue(mStore.contains(1, 2000, alarmTime));
+        assertTrue(mStore.contains(2, 3000, alarmTime + DAY));
+        assertTrue(prefs.getAll().isEmpty());
+
+        // Imported alerts are persisted, and an empty table imports nothing
+        FiredAlertStore store = reload();
+        store.importSharedPrefs(prefs);
+        assertEquals(2, store.size());
+        assertTrue(store.contains(1, 2000, alarmTime));
+    }
+}
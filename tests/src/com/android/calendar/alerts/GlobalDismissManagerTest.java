@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.provider.CalendarContract;
+import android.provider.CalendarContract.Events;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.TextUtils;
+
+import com.android.calendar.CloudNotificationBackplane;
+import com.android.calendar.alerts.GlobalDismissManager.LocalDismissId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+@SmallTest
+public class GlobalDismissManagerTest extends AndroidTestCase {
+    private static final String ACCOUNT_TYPE = "com.google";
+    private static final String ACCOUNT_1 = "one@example.com";
+    private static final String ACCOUNT_2 = "two@example.com";
+    private static final long START_TIME = 1000000L;
+
+    private MockProvider mMockProvider;
+    private FakeBackplane mBackplane;
+    private MockContentResolver mResolver;
+    private File mOutboxFile;
+    private DismissalOutbox mOutbox;
+
+    /**
+     * Answers event queries by id with the sync ids set up by the test.
+     */
+    private static class MockProvider extends MockContentProvider {
+        private static final Pattern ID_IN = Pattern.compile(Events._ID + " IN \\(([0-9,]*)\\)");
+
+        private final HashMap<Long, String> mSyncIds = new HashMap<Long, String>();
+        private int mQueryCount;
+
+        void setSyncId(long eventId, String syncId) {
+            mSyncIds.put(eventId, syncId);
+        }
+
+        int getQueryCount() {
+            return mQueryCount;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                String sortOrder) {
+            mQueryCount++;
+            Matcher matcher = ID_IN.matcher(selection);
+            assertTrue("Unexpected selection " + selection, matcher.matches());
+            MatrixCursor cursor = new MatrixCursor(GlobalDismissManager.EVENT_SYNC_PROJECTION);
+            for (String id : TextUtils.split(matcher.group(1), ",")) {
+                long eventId = Long.parseLong(id);
+                if (mSyncIds.containsKey(eventId)) {
+                    cursor.addRow(new Object[] { eventId, mSyncIds.get(eventId) });
+                }
+            }
+            return cursor;
+        }
+    }
+
+    /**
+     * Records the messages instead of sending them.
+     */
+    private static class FakeBackplane implements CloudNotificationBackplane {
+        final ArrayList<String> mRecipients = new ArrayList<String>();
+        final ArrayList<Bundle> mMessages = new ArrayList<Bundle>();
+        boolean mFail;
+
+        @Override
+        public boolean open(Context context) {
+            return true;
+        }
+
+        @Override
+        public boolean subscribeToGroup(String senderId, String account, String groupId) {
+            return true;
+        }
+
+        @Override
+        public void send(String to, String msgId, Bundle data) throws IOException {
+            if (mFail) {
+                throw new IOException("offline");
+            }
+            mRecipients.add(to);
+            mMessages.add(data);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mOutboxFile = new File(getContext().getCacheDir(), "test_dismissal_outbox");
+        mOutboxFile.delete();
+        mOutbox = new DismissalOutbox(mOutboxFile);
+        mMockProvider = new MockProvider();
+        mBackplane = new FakeBackplane();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(CalendarContract.AUTHORITY, mMockProvider);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        GlobalDismissManager.sSendBatches = false;
+        mOutboxFile.delete();
+        super.tearDown();
+    }
+
+    private void dismiss(String account, long eventId, long time) {
+        ArrayList<LocalDismissId> dismissIds = new ArrayList<LocalDismissId>();
+        dismissIds.add(new LocalDismissId(ACCOUNT_TYPE, account, eventId, START_TIME + eventId));
+        mOutbox.addSender(dismissIds, time);
+    }
+
+    public void testSingleDismissalUsesOriginalFormat() {
+        long now = System.currentTimeMillis();
+        mMockProvider.setSyncId(1, "sync1");
+        dismiss(ACCOUNT_1, 1, now);
+
+        GlobalDismissManager.syncSenderDismissCache(mResolver, mBackplane, mOutbox, now);
+
+        assertEquals(1, mMockProvider.getQueryCount());
+        assertEquals(1, mBackplane.mMessages.size());
+        Bundle data = mBackplane.mMessages.get(0);
+        assertEquals("sync1", data.getString(GlobalDismissManager.SYNC_ID));
+        assertEquals(Long.toString(START_TIME + 1),
+                data.getString(GlobalDismissManager.START_TIME));
+        assertEquals(ACCOUNT_1, data.getString(GlobalDismissManager.ACCOUNT_NAME));
+        assertEquals(0, mOutbox.getSender().size());
+    }
+
+    public void testOneMessagePerDismissalByDefault() {
+        long now = System.currentTimeMillis();
+        for (long id = 1; id <= 3; id++) {
+            mMockProvider.setSyncId(id, "sync" + id);
+            dismiss(ACCOUNT_1, id, now);
+        }
+
+        GlobalDismissManager.syncSenderDismissCache(mResolver, mBackplane, mOutbox, now);
+
+        assertEquals(1, mMockProvider.getQueryCount());
+        assertEquals(3, mBackplane.mMessages.size());
+        for (Bundle data : mBackplane.mMessages) {
+            assertNull(data.getString(GlobalDismissManager.SYNC_IDS));
+            assertNull(data.getString(GlobalDismissManager.START_TIMES));
+            String syncId = data.getString(GlobalDismissManager.SYNC_ID);
+            long id = Long.parseLong(syncId.substring("sync".length()));
+            assertEquals(Long.toString(START_TIME + id),
+                    data.getString(GlobalDismissManager.START_TIME));
+        }
+        assertEquals(0, mOutbox.getSender().size());
+    }
+
+    public void testOneQueryAndMessagePerAccount() {
+        GlobalDismissManager.sSendBatches = true;
+        long now = System.currentTimeMillis();
+        for (long id = 1; id <= 20; id++) {
+            mMockProvider.setSyncId(id, "sync" + id);
+            dismiss(id <= 10 ? ACCOUNT_1 : ACCOUNT_2, id, now);
+        }
+
+        GlobalDismissManager.syncSenderDismissCache(mResolver, mBackplane, mOutbox, now);
+
+        assertEquals(2, mMockProvider.getQueryCount());
+        assertEquals(2, mBackplane.mMessages.size());
+        for (int i = 0; i < 2; i++) {
+            Bundle data = mBackplane.mMessages.get(i);
+            String account = mBackplane.mRecipients.get(i);
+            assertEquals(account, data.getString(GlobalDismissManager.ACCOUNT_NAME));
+            String[] syncIds = TextUtils.split(data.getString(GlobalDismissManager.SYNC_IDS), ",");
+            String[] startTimes = TextUtils.split(
+                    data.getString(GlobalDismissManager.START_TIMES), ",");
+            assertEquals(10, syncIds.length);
+            assertEquals(10, startTimes.length);
+            for (int j = 0; j < syncIds.length; j++) {
+                long id = Long.parseLong(syncIds[j].substring("sync".length()));
+                assertEquals(ACCOUNT_1.equals(account), id <= 10);
+                assertEquals(START_TIME + id, Long.parseLong(startTimes[j]));
+            }
+        }
+        assertEquals(0, mOutbox.getSender().size());
+    }
+
+    public void testLargeBatchIsSplit() {
+        GlobalDismissManager.sSendBatches = true;
+        long now = System.currentTimeMillis();
+        int count = GlobalDismissManager.MAX_DISMISSALS_PER_MESSAGE + 1;
+        for (long id = 1; id <= count; id++) {
+            mMockProvider.setSyncId(id, "sync" + id);
+            dismiss(ACCOUNT_1, id, now);
+        }
+
+        GlobalDismissManager.syncSenderDismissCache(mResolver, mBackplane, mOutbox, now);
+
+        assertEquals(1, mMockProvider.getQueryCount());
+        assertEquals(2, mBackplane.mMessages.size());
+        assertEquals(0, mOutbox.getSender().size());
+    }
+
+    public void testUnsyncedEventStaysPending() {
+        long now = System.currentTimeMillis();
+        mMockProvider.setSyncId(1, "sync1");
+        dismiss(ACCOUNT_1, 1, now);
+        dismiss(ACCOUNT_1, 2, now);
+
+        GlobalDismissManager.syncSenderDismissCache(mResolver, mBackplane, mOutbox, now);
+
+        assertEquals(1, mBackplane.mMessages.size());
+        assertEquals(1, mOutbox.getSender().size());
+
+        mMockProvider.setSyncId(2, "sync2");
+        GlobalDismissManager.syncSenderDismissCache(mResolver, mBackplane, mOutbox, now);
+
+        assertEquals(2, mBackplane.mMessages.size());
+        assertEquals("sync2", mBackplane.mMessages.get(1).getString(GlobalDismissManager.SYNC_ID));
+        assertEquals(0, mOutbox.getSender().size());
+    }
+
+    public void testFailedSendStaysPending() {
+        long now = System.currentTimeMillis();
+        mMockProvider.setSyncId(1, "sync1");
+        mMockProvider.setSyncId(2, "sync2");
+        dismiss(ACCOUNT_1, 1, now);
+        dismiss(ACCOUNT_1, 2, now);
+        mBackplane.mFail = true;
+
+        GlobalDismissManager.syncSenderDismissCache(mResolver, mBackplane, mOutbox, now);
+
+        assertEquals(2, mOutbox.getSender().size());
+    }
+
+    public void testExpiredDismissalIsDropped() {
+        long now = System.currentTimeMillis();
+        dismiss(ACCOUNT_1, 1, now - 2 * 60 * 60 * 1000);
+
+        GlobalDismissManager.syncSenderDismissCache(mResolver, mBackplane, mOutbox, now);
+
+        assertEquals(0, mBackplane.mMessages.size());
+        assertEquals(0, mOutbox.getSender().size());
+    }
+
+    public void testOutboxSurvivesRestart() {
+        long now = System.currentTimeMillis();
+        mMockProvider.setSyncId(1, "sync1");
+        dismiss(ACCOUNT_1, 1, now);
+        dismiss(ACCOUNT_1, 2, now);
+        GlobalDismissManager.syncSenderDismissCache(mResolver, mBackplane, mOutbox, now);
+
+        // As if the process died and started again
+        mOutbox = new DismissalOutbox(mOutboxFile);
+        mOutbox.load();
+        assertEquals(1, mOutbox.getSender().size());
+        assertEquals(2, mOutbox.getSender().get(0).mEventId);
+
+        mMockProvider.setSyncId(2, "sync2");
+        GlobalDismissManager.syncSenderDismissCache(mResolver, mBackplane, mOutbox, now);
+        assertEquals(2, mBackplane.mMessages.size());
+        assertEquals(0, mOutbox.getSender().size());
+    }
+}
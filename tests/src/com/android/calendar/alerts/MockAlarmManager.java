@@ -22,11 +22,17 @@ import android.text.format.DateUtils;
 
 import junit.framework.Assert;
 
+import java.util.ArrayList;
+
 public class MockAlarmManager implements AlarmManagerInterface {
     private Context context;
     private int expectedAlarmType = -1;
     private long expectedAlarmTime = -1;
     private boolean alarmSet = false;
+    private long actualAlarmTime = -1;
+    // Type and time of every alarm set, in order
+    private ArrayList<long[]> alarms = new ArrayList<long[]>();
+    private int cancelCount = 0;
 
     MockAlarmManager(Context context) {
         this.context = context;
@@ -41,6 +47,8 @@ public class MockAlarmManager implements AlarmManagerInterface {
     public void set(int actualAlarmType, long actualAlarmTime, PendingIntent operation) {
         Assert.assertNotNull(operation);
         alarmSet = true;
+        this.actualAlarmTime = actualAlarmTime;
+        alarms.add(new long[] { actualAlarmType, actualAlarmTime });
         if (expectedAlarmType != -1) {
             Assert.assertEquals("Alarm type not expected.", expectedAlarmType, actualAlarmType);
             Assert.assertEquals("Alarm time not expected. Expected:" + DateUtils.formatDateTime(
@@ -50,10 +58,56 @@ public class MockAlarmManager implements AlarmManagerInterface {
         }
     }
 
+    @Override
+    public void cancel(PendingIntent operation) {
+        Assert.assertNotNull(operation);
+        cancelCount++;
+    }
+
+    /**
+     * Returns the number of times cancel() was invoked.
+     */
+    public int getCancelCount() {
+        return cancelCount;
+    }
+
     /**
      * Returns whether set() was invoked.
      */
     public boolean isAlarmSet() {
         return alarmSet;
     }
+
+    /**
+     * Returns the time of the last alarm set, or -1 if none was.
+     */
+    public long getAlarmTime() {
+        return actualAlarmTime;
+    }
+
+    /**
+     * Returns the times of the alarms set so far with the given type, in order.
+     */
+    public long[] getAlarmTimes(int type) {
+        int count = 0;
+        long[] times = new long[alarms.size()];
+        for (long[] alarm : alarms) {
+            if (alarm[0] == type) {
+                times[count++] = alarm[1];
+            }
+        }
+        long[] result = new long[count];
+        System.arraycopy(times, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Forgets the alarms set so far.
+     */
+    public void reset() {
+        alarmSet = false;
+        actualAlarmTime = -1;
+        alarms.clear();
+        cancelCount = 0;
+    }
 }
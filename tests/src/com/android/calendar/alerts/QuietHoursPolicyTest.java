@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+
+import java.util.TimeZone;
+
+/**
+ * Checks {@link QuietHoursPolicy} against the Time based evaluation AlertService used to do
+ * for every alert.
+ */
+@SmallTest
+public class QuietHoursPolicyTest extends AndroidTestCase {
+
+    private static final String[] TIME_ZONES = {
+            "UTC",
+            "America/Los_Angeles",
+            // Half hour offset, changes at 02:00 local
+            "America/St_Johns",
+            // Half hour DST shift
+            "Australia/Lord_Howe",
+            "Asia/Kolkata",
+    };
+
+    // Around the start and the end of DST in both hemispheres
+    private static final long[] RUN_TIMES = {
+            createTimeInMillis(2014, 2, 9, 12, 0, "UTC"),
+            createTimeInMillis(2014, 3, 6, 12, 0, "UTC"),
+            createTimeInMillis(2014, 9, 5, 12, 0, "UTC"),
+            createTimeInMillis(2014, 10, 2, 12, 0, "UTC"),
+    };
+
+    private static long createTimeInMillis(int year, int month, int day, int hour, int minute,
+            String timeZone) {
+        Time t = new Time(timeZone);
+        t.set(0, minute, hour, day, month, year);
+        return t.normalize(false);
+    }
+
+    /**
+     * The evaluation AlertService.processQuery used before QuietHoursPolicy.
+     */
+    private static boolean isQuietReference(long alarmTime, String timeZone, int startHour,
+            int startMinute, int endHour, int endMinute) {
+        Time time = new Time(timeZone);
+        time.set(alarmTime);
+        boolean alarmAfterQuietHoursStart = (time.hour > startHour
+                || (time.hour == startHour && time.minute >= startMinute));
+        boolean alarmBeforeQuietHoursEnd = (time.hour < endHour
+                || (time.hour == endHour && time.minute <= endMinute));
+        boolean quietHoursCrossesMidnight = startHour > endHour
+                || (startHour == endHour && startMinute > endMinute);
+        if (quietHoursCrossesMidnight) {
+            return alarmAfterQuietHoursStart || alarmBeforeQuietHoursEnd;
+        } else {
+            return alarmAfterQuietHoursStart && alarmBeforeQuietHoursEnd;
+        }
+    }
+
+    private void assertMatchesReference(int startHour, int startMinute, int endHour,
+            int endMinute) {
+        for (String timeZone : TIME_ZONES) {
+            for (long runTime : RUN_TIMES) {
+                QuietHoursPolicy policy = new QuietHoursPolicy(startHour, startMinute, endHour,
+                        endMinute, TimeZone.getTimeZone(timeZone), runTime);
+                // Alarms from before the offset table until after it, every 7 minutes
+                for (long alarmTime = runTime - 9 * DateUtils.DAY_IN_MILLIS;
+                        alarmTime < runTime + 4 * DateUtils.DAY_IN_MILLIS;
+                        alarmTime += 7 * DateUtils.MINUTE_IN_MILLIS) {
+                    assertEquals("Quiet hours " + startHour + ":" + startMinute + "-" + endHour
+                            + ":" + endMinute + " in " + timeZone + " at " + alarmTime,
+                            isQuietReference(alarmTime, timeZone, startHour, startMinute,
+                                    endHour, endMinute),
+                            policy.isQuiet(alarmTime));
+                }
+            }
+        }
+    }
+
+    public void testCrossesMidnight() {
+        assertMatchesReference(22, 30, 6, 45);
+    }
+
+    public void testCrossesMidnightSameHour() {
+        assertMatchesReference(12, 45, 12, 0);
+    }
+
+    public void testWithinDay() {
+        assertMatchesReference(1, 5, 10, 30);
+    }
+
+    public void testWithinHour() {
+        assertMatchesReference(5, 0, 5, 30);
+    }
+
+    public void testSingleMinute() {
+        assertMatchesReference(8, 15, 8, 15);
+    }
+
+    public void testBoundaries() {
+        QuietHoursPolicy policy = new QuietHoursPolicy(22, 30, 6, 45,
+                TimeZone.getTimeZone("UTC"), RUN_TIMES[0]);
+        long day = createTimeInMillis(2014, 2, 9, 0, 0, "UTC");
+        assertFalse(policy.isQuiet(day + 22 * DateUtils.HOUR_IN_MILLIS
+                + 29 * DateUtils.MINUTE_IN_MILLIS));
+        assertTrue(policy.isQuiet(day + 22 * DateUtils.HOUR_IN_MILLIS
+                + 30 * DateUtils.MINUTE_IN_MILLIS));
+        assertTrue(policy.isQuiet(day));
+        // The end minute is still quiet, until its last second
+        assertTrue(policy.isQuiet(day + 6 * DateUtils.HOUR_IN_MILLIS
+                + 45 * DateUtils.MINUTE_IN_MILLIS + 59 * DateUtils.SECOND_IN_MILLIS));
+        assertFalse(policy.isQuiet(day + 6 * DateUtils.HOUR_IN_MILLIS
+                + 46 * DateUtils.MINUTE_IN_MILLIS));
+    }
+
+    public void testMinuteOfDayAcrossDst() {
+        TimeZone timeZone = TimeZone.getTimeZone("America/Los_Angeles");
+        QuietHoursPolicy policy = new QuietHoursPolicy(0, 0, 0, 0, timeZone, RUN_TIMES[0]);
+        // 2014-03-09 03:00 PDT, right after the clocks went forward from 02:00 PST
+        long afterChange = createTimeInMillis(2014, 2, 9, 10, 0, "UTC");
+        assertEquals(3 * 60, policy.getMinuteOfDay(afterChange));
+        assertEquals(60 + 59, policy.getMinuteOfDay(afterChange - DateUtils.MINUTE_IN_MILLIS));
+    }
+}
@@ -30,6 +30,7 @@ import android.text.format.DateUtils;
 import android.text.format.Time;
 import android.view.View;
 
+import java.util.HashSet;
 import java.util.TimeZone;
 
 // adb shell am instrument -w -e class com.android.calendar.widget.CalendarAppWidgetServiceTest
@@ -173,6 +174,42 @@ public class CalendarAppWidgetServiceTest extends AndroidTestCase {
         assertEquals(expected.toString(), actual.toString());
     }
 
+    @SmallTest
+    public void testSnapshotFromCursor() throws Exception {
+        MatrixCursor cursor = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION, 0);
+        cursor.addRow(getRow(0, now + ONE_HOUR, now + TWO_HOURS, title, location, 7));
+        cursor.addRow(getRow(1, now, now + ONE_HOUR, title, null, 8));
+
+        WidgetEventSnapshot snapshot = WidgetEventSnapshot.fromCursor(cursor);
+
+        assertEquals(2, snapshot.getCount());
+        assertEquals(7, snapshot.getEventId(0));
+        assertEquals(now + ONE_HOUR, snapshot.getBegin(0));
+        assertEquals(now + TWO_HOURS, snapshot.getEnd(0));
+        assertFalse(snapshot.isAllDay(0));
+        assertEquals(location, snapshot.getLocation(0));
+        assertTrue(snapshot.isAllDay(1));
+        assertNull(snapshot.getLocation(1));
+        // Repeated strings are shared
+        assertSame(snapshot.getTitle(0), snapshot.getTitle(1));
+    }
+
+    @SmallTest
+    public void testEventRowIdsAreUnique() throws Exception {
+        // eventId * 31 + start is the same for both, so they hash alike
+        HashSet<Long> used = new HashSet<Long>();
+        long id1 = CalendarAppWidgetModel.getEventRowId(7, 1000, 100, used);
+        long id2 = CalendarAppWidgetModel.getEventRowId(8, 969, 100, used);
+        assertTrue(id1 >= 0);
+        assertTrue(id2 >= 0);
+        assertFalse(id1 == id2);
+
+        // The same rows in the same order get the same ids in the next model
+        HashSet<Long> next = new HashSet<Long>();
+        assertEquals(id1, CalendarAppWidgetModel.getEventRowId(7, 1000, 100, next));
+        assertEquals(id2, CalendarAppWidgetModel.getEventRowId(8, 969, 100, next));
+    }
+
     private Object[] getRow(int allDay, long begin, long end, String title, String location,
             long eventId) {
         Object[] row = new Object[CalendarAppWidgetService.EVENT_PROJECTION.length];
@@ -180,7 +217,8 @@ public class CalendarAppWidgetServiceTest extends AndroidTestCase {
         row[CalendarAppWidgetService.INDEX_BEGIN] = new Long(begin);
         row[CalendarAppWidgetService.INDEX_END] = new Long(end);
         row[CalendarAppWidgetService.INDEX_TITLE] = new String(title);
-        row[CalendarAppWidgetService.INDEX_EVENT_LOCATION] = new String(location);
+        row[CalendarAppWidgetService.INDEX_EVENT_LOCATION] =
+                location == null ? null : new String(location);
         row[CalendarAppWidgetService.INDEX_EVENT_ID] = new Long(eventId);
         return row;
     }